@@ -0,0 +1,131 @@
+package hlrv.flybook;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Locale;
+import java.util.Properties;
+
+import com.vaadin.server.AbstractCommunicationManager;
+import com.vaadin.server.CommunicationManager;
+import com.vaadin.server.DefaultDeploymentConfiguration;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinServlet;
+import com.vaadin.server.VaadinServletService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.util.CurrentInstance;
+import com.vaadin.ui.UI;
+
+/**
+ * Measures the UIDL response of a freshly shown FlightsTable and the time to
+ * write it, not part of the web application build.
+ *
+ * Runs a session and UI without a servlet container and writes the full
+ * repaint the browser gets when the flights view is opened. Compare versions
+ * by running it against each build, for example the one before airport
+ * cells became strings:
+ *
+ * <pre>
+ * git archive 2f13ccc^ src | tar -x -C /tmp/old
+ * javac -d /tmp/old/classes -cp 'lib/*' $(find /tmp/old/src -name '*.java') bench/hlrv/flybook/FlightsTableBenchmark.java
+ * java -cp '/tmp/old/classes:lib/*' hlrv.flybook.FlightsTableBenchmark WebContent 15
+ * </pre>
+ *
+ * Arguments: directory of the flybook database, page length (default 15),
+ * measured renders (default 30).
+ */
+public class FlightsTableBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        final File baseDir = new File(args[0]);
+        int pageLength = args.length > 1 ? Integer.parseInt(args[1]) : 15;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        final VaadinService service = new VaadinServletService(
+                new VaadinServlet(), new DefaultDeploymentConfiguration(
+                        FlightsTableBenchmark.class, new Properties())) {
+
+            @Override
+            public File getBaseDirectory() {
+                return baseDir;
+            }
+        };
+        CurrentInstance.setInheritable(VaadinService.class, service);
+
+        VaadinSession session = new VaadinSession(service);
+        session.lock();
+        VaadinSession.setCurrent(session);
+        session.setLocale(Locale.getDefault());
+        session.setCommunicationManager(new CommunicationManager(session));
+
+        /**
+         * Request of the UIDL writer, which only asks it for the service.
+         */
+        VaadinRequest request = (VaadinRequest) Proxy.newProxyInstance(
+                FlightsTableBenchmark.class.getClassLoader(),
+                new Class<?>[] { VaadinRequest.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        return method.getName().equals("getService") ? service
+                                : null;
+                    }
+                });
+
+        UI ui = new UI() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        ui.setSession(session);
+        UI.setCurrent(ui);
+        ui.doInit(request, 1);
+        session.addUI(ui);
+
+        /**
+         * FlightsTable does not read session state.
+         */
+        new SessionContext(session, "benchmark", null);
+
+        AbstractCommunicationManager manager = session
+                .getCommunicationManager();
+
+        /**
+         * Warm up so the measured renders run compiled code.
+         */
+        int size = 0;
+        long best = Long.MAX_VALUE;
+        for (int r = -10; r < rounds; ++r) {
+
+            FlightsTable table = new FlightsTable();
+            table.setPageLength(pageLength);
+            ui.setContent(table);
+
+            StringWriter out = new StringWriter();
+            PrintWriter writer = new PrintWriter(out);
+            long start = System.nanoTime();
+            manager.writeUidlResponse(request, true, writer, ui, false);
+            writer.flush();
+            long time = System.nanoTime() - start;
+
+            size = out.getBuffer().length();
+            if (r >= 0) {
+                best = Math.min(best, time);
+            }
+        }
+
+        System.out.printf("page length %d: UIDL %d chars, best render %.2f ms%n",
+                pageLength, size, best / 1e6);
+        System.exit(0);
+    }
+}
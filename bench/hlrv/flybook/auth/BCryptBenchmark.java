@@ -0,0 +1,85 @@
+package hlrv.flybook.auth;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/**
+ * Side-by-side benchmark of BCrypt.hashpw/checkpw, not part of the web
+ * application build.
+ *
+ * Measures time and heap allocated per hash at a given cost. Compare
+ * versions by running it against each BCrypt class, for example the one
+ * before the per-thread key schedule buffers:
+ *
+ * <pre>
+ * git show 3b2b94f^:src/hlrv/flybook/auth/BCrypt.java &gt; /tmp/old/hlrv/flybook/auth/BCrypt.java
+ * javac -d /tmp/old /tmp/old/hlrv/flybook/auth/BCrypt.java bench/hlrv/flybook/auth/BCryptBenchmark.java
+ * java -cp /tmp/old hlrv.flybook.auth.BCryptBenchmark 8
+ * </pre>
+ *
+ * Arguments: log rounds (default 8), measured hashes per round (default 50),
+ * rounds (default 5).
+ */
+public class BCryptBenchmark {
+
+    public static void main(String[] args) {
+
+        int logRounds = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int hashes = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Random random = new Random(1);
+        String[] passwords = new String[hashes];
+        String[] salts = new String[hashes];
+        for (int i = 0; i < hashes; ++i) {
+            passwords[i] = Long.toString(random.nextLong(), 36);
+            salts[i] = BCrypt.gensalt(logRounds);
+        }
+        String stored = BCrypt.hashpw(passwords[0], salts[0]);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean allocation = threads instanceof com.sun.management.ThreadMXBean;
+
+        /**
+         * Warm up so the measured rounds run compiled code.
+         */
+        for (int i = 0; i < hashes; ++i) {
+            BCrypt.hashpw(passwords[i], salts[i]);
+        }
+
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < rounds; ++r) {
+            long bytes = allocated(threads, allocation);
+            long start = System.nanoTime();
+            for (int i = 0; i < hashes; ++i) {
+                BCrypt.hashpw(passwords[i], salts[i]);
+            }
+            double ms = (System.nanoTime() - start) / 1e6 / hashes;
+            long perHash = (allocated(threads, allocation) - bytes) / hashes;
+            best = Math.min(best, ms);
+            System.out.printf("hashpw  round %d: %.3f ms/op, %s%n", r, ms,
+                    allocation ? perHash + " B/op" : "allocation n/a");
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < hashes; ++i) {
+            if (!BCrypt.checkpw(passwords[0], stored)) {
+                throw new AssertionError("checkpw failed");
+            }
+        }
+        System.out.printf("checkpw: %.3f ms/op%n", (System.nanoTime() - start)
+                / 1e6 / hashes);
+        System.out.printf("hashpw best: %.3f ms/op at log rounds %d%n", best,
+                logRounds);
+    }
+
+    private static long allocated(ThreadMXBean threads, boolean allocation) {
+
+        if (!allocation) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -1,11 +1,17 @@
 package hlrv.flybook;
 
 import hlrv.flybook.auth.User;
+import hlrv.flybook.conv.EpochFormatter;
+import hlrv.flybook.db.AircraftUtilization;
 import hlrv.flybook.db.DBConstants;
 import hlrv.flybook.db.containers.AircraftsContainer;
 import hlrv.flybook.db.items.AircraftItem;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import com.vaadin.annotations.Title;
 import com.vaadin.data.Container.Filter;
@@ -14,6 +20,7 @@ import com.vaadin.data.Property;
 import com.vaadin.data.Property.ValueChangeEvent;
 import com.vaadin.data.Validator;
 import com.vaadin.data.fieldgroup.FieldGroup;
+import com.vaadin.data.util.BeanItem;
 import com.vaadin.data.util.converter.StringToIntegerConverter;
 import com.vaadin.data.util.sqlcontainer.query.QueryDelegate.RowIdChangeEvent;
 import com.vaadin.data.util.sqlcontainer.query.QueryDelegate.RowIdChangeListener;
@@ -28,6 +35,8 @@ import com.vaadin.ui.Button.ClickListener;
 import com.vaadin.ui.CustomComponent;
 import com.vaadin.ui.FormLayout;
 import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Notification;
 import com.vaadin.ui.Table;
 import com.vaadin.ui.TextField;
 import com.vaadin.ui.UI;
@@ -50,6 +59,30 @@ public class AircraftsView extends CustomComponent implements
     private FormLayout editorLayout = new FormLayout();
     private FieldGroup editorFields = new FieldGroup();
 
+    /* Maintenance limits and counters of selected aircraft. */
+    private Label alertLabel = new Label();
+    private Label usageLabel = new Label();
+    private TextField hoursLimitField = new TextField("Hours between maintenance");
+    private TextField landingsLimitField = new TextField(
+            "Landings between maintenance");
+    private Button saveLimitsButton = new Button("Save Limits");
+    private Button maintenanceDoneButton = new Button("Maintenance Done");
+
+    /**
+     * Generated utilization columns, shown after visibleColumns.
+     */
+    private static final String GEN_HOURS = "util_hours";
+    private static final String GEN_LANDINGS = "util_landings";
+    private static final String GEN_LAST_FLIGHT = "util_last_flight";
+    private static final String GEN_MAINTENANCE = "util_maintenance";
+
+    private static final String[] utilizationColumns = new String[] {
+            GEN_HOURS, GEN_LANDINGS, GEN_LAST_FLIGHT, GEN_MAINTENANCE };
+
+    private static final String[] utilizationHeaders = new String[] {
+            "Hours since maintenance", "Landings since maintenance",
+            "Last flight", "Maintenance" };
+
     private static final String[] visibleColumns = new String[] {
             DBConstants.AIRCRAFTS_REGISTER, DBConstants.AIRCRAFTS_MAKE_MODEL,
             DBConstants.AIRCRAFTS_ENGINE_COUNT, DBConstants.AIRCRAFTS_CAPACITY,
@@ -72,6 +105,19 @@ public class AircraftsView extends CustomComponent implements
      */
     private AircraftsContainer aircraftContainer;
 
+    /**
+     * Shared utilization counters.
+     */
+    private AircraftUtilization utilization;
+
+    /**
+     * Counters by register, as of last loadUsage().
+     */
+    private Map<String, AircraftUtilization.Usage> usage = Collections
+            .emptyMap();
+
+    private EpochFormatter formatter = new EpochFormatter();
+
     private String validatorIgnoresRegister;
 
     private boolean discardChanges = true;
@@ -83,9 +129,13 @@ public class AircraftsView extends CustomComponent implements
         setSizeFull();
 
         aircraftContainer = SessionContext.getCurrent().getAircraftsContainer();
+        utilization = AircraftUtilization.get(SessionContext.getCurrent()
+                .getDBConnection());
+        loadUsage();
 
         initTable();
         initEditor();
+        initMaintenance();
         initSearch();
         initAddRemoveButtons();
         initLayout();
@@ -103,6 +153,7 @@ public class AircraftsView extends CustomComponent implements
         VerticalLayout leftLayout = new VerticalLayout();
         // splitPanel.addComponent(leftLayout);
         // splitPanel.addComponent(editorLayout);
+        leftLayout.addComponent(alertLabel);
         leftLayout.addComponent(table);
         HorizontalLayout bottomLeftLayout = new HorizontalLayout();
         leftLayout.addComponent(bottomLeftLayout);
@@ -207,6 +258,250 @@ public class AircraftsView extends CustomComponent implements
         editorLayout.addComponent(buttonLayout);
     }
 
+    /**
+     * Maintenance section below editor buttons.
+     */
+    private void initMaintenance() {
+
+        hoursLimitField.setConverter(new StringToIntegerConverter());
+        hoursLimitField.setNullRepresentation("");
+        hoursLimitField.setWidth("100%");
+        landingsLimitField.setConverter(new StringToIntegerConverter());
+        landingsLimitField.setNullRepresentation("");
+        landingsLimitField.setWidth("100%");
+
+        saveLimitsButton.addClickListener(new ClickListener() {
+            @Override
+            public void buttonClick(ClickEvent event) {
+
+                String register = getSelectedRegister();
+                if (register == null || !checkCanMaintain()) {
+                    return;
+                }
+                try {
+                    utilization.setLimits(register,
+                            (Integer) hoursLimitField.getConvertedValue(),
+                            (Integer) landingsLimitField.getConvertedValue());
+                } catch (SQLException e) {
+                    Notification.show("Failed to save limits", e.toString(),
+                            Notification.Type.ERROR_MESSAGE);
+                } catch (com.vaadin.data.util.converter.Converter.ConversionException e) {
+                    Notification.show("Limits must be whole numbers",
+                            Notification.Type.WARNING_MESSAGE);
+                    return;
+                }
+                refreshUsage();
+            }
+        });
+
+        maintenanceDoneButton.addClickListener(new ClickListener() {
+            @Override
+            public void buttonClick(ClickEvent event) {
+
+                String register = getSelectedRegister();
+                if (register == null || !checkCanMaintain()) {
+                    return;
+                }
+                try {
+                    utilization.resetCounters(register);
+                } catch (SQLException e) {
+                    Notification.show("Failed to reset counters",
+                            e.toString(), Notification.Type.ERROR_MESSAGE);
+                }
+                refreshUsage();
+            }
+        });
+
+        HorizontalLayout maintenanceButtons = new HorizontalLayout();
+        maintenanceButtons.setSpacing(true);
+        maintenanceButtons.addComponent(saveLimitsButton);
+        maintenanceButtons.addComponent(maintenanceDoneButton);
+
+        usageLabel.setCaption("Utilization");
+        editorLayout.addComponent(usageLabel);
+        editorLayout.addComponent(hoursLimitField);
+        editorLayout.addComponent(landingsLimitField);
+        editorLayout.addComponent(maintenanceButtons);
+    }
+
+    /**
+     * Reloads counters (cached until next flight commit) and updates alerts.
+     */
+    private void loadUsage() {
+
+        try {
+            usage = utilization.getUsage();
+        } catch (SQLException e) {
+            Notification.show("Failed to load aircraft utilization",
+                    e.toString(), Notification.Type.WARNING_MESSAGE);
+            usage = Collections.emptyMap();
+        }
+
+        List<String> overdue = new ArrayList<String>();
+        List<String> dueSoon = new ArrayList<String>();
+        for (AircraftUtilization.Usage u : usage.values()) {
+            if (u.getStatus() == AircraftUtilization.Status.OVERDUE) {
+                overdue.add(u.getRegister());
+            } else if (u.getStatus() == AircraftUtilization.Status.DUE_SOON) {
+                dueSoon.add(u.getRegister());
+            }
+        }
+        Collections.sort(overdue);
+        Collections.sort(dueSoon);
+
+        StringBuilder alert = new StringBuilder();
+        if (!overdue.isEmpty()) {
+            alert.append("Maintenance overdue: ").append(join(overdue));
+        }
+        if (!dueSoon.isEmpty()) {
+            if (alert.length() > 0) {
+                alert.append(". ");
+            }
+            alert.append("Maintenance due soon: ").append(join(dueSoon));
+        }
+        alertLabel.setValue(alert.toString());
+        alertLabel.setVisible(alert.length() > 0);
+    }
+
+    private void refreshUsage() {
+
+        loadUsage();
+        table.refreshRowCache();
+        showUsage();
+    }
+
+    /**
+     * Shows counters and limits of selected aircraft in editor.
+     */
+    private void showUsage() {
+
+        String register = getSelectedRegister();
+        AircraftUtilization.Usage u = register != null ? usage.get(register)
+                : null;
+
+        if (u == null) {
+            usageLabel.setValue("No flights");
+            hoursLimitField.setValue(null);
+            landingsLimitField.setValue(null);
+        } else {
+            usageLabel.setValue("Total " + formatter.formatDuration(u.getFlightTime())
+                    + " h, " + u.getLandings() + " landings, block "
+                    + formatter.formatDuration(u.getBlockTime() * 60)
+                    + " h. Since maintenance "
+                    + formatter.formatDuration(u.getFlightTimeSinceReset())
+                    + " h, " + u.getLandingsSinceReset() + " landings"
+                    + (u.getResetTime() != null ? " ("
+                            + formatter.format(u.getResetTime()) + ")" : ""));
+            hoursLimitField.setConvertedValue(u.getHoursLimit());
+            landingsLimitField.setConvertedValue(u.getLandingsLimit());
+        }
+
+        boolean committed = register != null
+                && aircraftContainer.containsItem(register);
+        boolean allowed = canMaintainSelected();
+        hoursLimitField.setEnabled(allowed);
+        landingsLimitField.setEnabled(allowed);
+        saveLimitsButton.setEnabled(committed && allowed);
+        maintenanceDoneButton.setEnabled(committed && allowed);
+    }
+
+    /**
+     * Returns true if current user can change maintenance limits and
+     * counters of selected aircraft, i.e. is admin or owner of the aircraft.
+     */
+    private boolean canMaintainSelected() {
+
+        Object aircraftId = table.getValue();
+        Item item = aircraftId != null ? table.getItem(aircraftId) : null;
+        BeanItem<User> user = ((FlybookUI) UI.getCurrent()).getUser();
+        if (item == null || user == null) {
+            return false;
+        }
+        return new AircraftItem(item).isModifiableByUser(user.getBean());
+    }
+
+    /**
+     * Checks canMaintainSelected() again when maintenance is changed, button
+     * state is only updated when selection changes.
+     */
+    private boolean checkCanMaintain() {
+
+        if (canMaintainSelected()) {
+            return true;
+        }
+        Notification.show(
+                "Only admin or owner of the aircraft can change maintenance",
+                Notification.Type.WARNING_MESSAGE);
+        return false;
+    }
+
+    private String getSelectedRegister() {
+
+        Object aircraftId = table.getValue();
+        if (aircraftId == null) {
+            return null;
+        }
+        Item item = table.getItem(aircraftId);
+        return item != null ? (String) item.getItemProperty(
+                DBConstants.AIRCRAFTS_REGISTER).getValue() : null;
+    }
+
+    private static String join(List<String> values) {
+
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates utilization cells from counters.
+     */
+    private class UtilizationColumnGenerator implements Table.ColumnGenerator {
+
+        @Override
+        public Object generateCell(Table source, Object itemId, Object columnId) {
+
+            Item item = source.getItem(itemId);
+            Object register = item != null ? item.getItemProperty(
+                    DBConstants.AIRCRAFTS_REGISTER).getValue() : null;
+            AircraftUtilization.Usage u = register != null ? usage
+                    .get(register) : null;
+            if (u == null) {
+                return null;
+            }
+
+            if (GEN_HOURS.equals(columnId)) {
+                return formatter.formatDuration(u.getFlightTimeSinceReset())
+                        + (u.getHoursLimit() != null ? " / "
+                                + u.getHoursLimit() + ":00" : "");
+            } else if (GEN_LANDINGS.equals(columnId)) {
+                return u.getLandingsSinceReset()
+                        + (u.getLandingsLimit() != null ? " / "
+                                + u.getLandingsLimit() : "");
+            } else if (GEN_LAST_FLIGHT.equals(columnId)) {
+                return u.getLastFlight() != null ? formatter.format(u
+                        .getLastFlight()) : null;
+            } else if (GEN_MAINTENANCE.equals(columnId)) {
+                switch (u.getStatus()) {
+                case OVERDUE:
+                    return "Overdue";
+                case DUE_SOON:
+                    return "Due soon";
+                case OK:
+                    return "OK";
+                default:
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
     @Override
     public void valueChange(ValueChangeEvent event) {
 
@@ -317,6 +612,7 @@ public class AircraftsView extends CustomComponent implements
                     } catch (SQLException e) {
                         System.err.println(e.toString());
                     }
+                    showUsage();
                 }
             }
         });
@@ -325,8 +621,53 @@ public class AircraftsView extends CustomComponent implements
     private void initTable() {
 
         table.setContainerDataSource(aircraftContainer.getContainer());
-        table.setVisibleColumns(visibleColumns);
-        table.setColumnHeaders(headers);
+
+        UtilizationColumnGenerator generator = new UtilizationColumnGenerator();
+        for (String pid : utilizationColumns) {
+            table.addGeneratedColumn(pid, generator);
+        }
+
+        String[] columns = new String[visibleColumns.length
+                + utilizationColumns.length];
+        String[] columnHeaders = new String[columns.length];
+        System.arraycopy(visibleColumns, 0, columns, 0, visibleColumns.length);
+        System.arraycopy(utilizationColumns, 0, columns,
+                visibleColumns.length, utilizationColumns.length);
+        System.arraycopy(headers, 0, columnHeaders, 0, headers.length);
+        System.arraycopy(utilizationHeaders, 0, columnHeaders,
+                headers.length, utilizationHeaders.length);
+        table.setVisibleColumns(columns);
+        table.setColumnHeaders(columnHeaders);
+
+        /**
+         * Alert styles for maintenance state, see theme.
+         */
+        table.setCellStyleGenerator(new Table.CellStyleGenerator() {
+            @Override
+            public String getStyle(Table source, Object itemId,
+                    Object propertyId) {
+
+                if (!GEN_MAINTENANCE.equals(propertyId)) {
+                    return null;
+                }
+                Item item = source.getItem(itemId);
+                Object register = item != null ? item.getItemProperty(
+                        DBConstants.AIRCRAFTS_REGISTER).getValue() : null;
+                AircraftUtilization.Usage u = register != null ? usage
+                        .get(register) : null;
+                if (u == null) {
+                    return null;
+                }
+                switch (u.getStatus()) {
+                case OVERDUE:
+                    return "maintenance-overdue";
+                case DUE_SOON:
+                    return "maintenance-due";
+                default:
+                    return null;
+                }
+            }
+        });
 
         table.setColumnCollapsingAllowed(true);
         for (String pid : initialCollapsedColumns) {
@@ -357,6 +698,8 @@ public class AircraftsView extends CustomComponent implements
 
                     editorFields.setItemDataSource(item);
                     applyAircraftButton.setEnabled(editorFields.isValid());
+                    loadUsage();
+                    showUsage();
                 } else {
                     editorFields.setItemDataSource(null);
                 }
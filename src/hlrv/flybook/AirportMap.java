@@ -0,0 +1,289 @@
+package hlrv.flybook;
+
+import hlrv.flybook.db.AirportIndex;
+import hlrv.flybook.map.AirportMaps;
+import hlrv.flybook.map.ClusterPyramid;
+import hlrv.flybook.map.MapType;
+import hlrv.flybook.map.WebMercator;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.data.Property;
+import com.vaadin.event.MouseEvents;
+import com.vaadin.server.StreamResource;
+import com.vaadin.server.StreamResource.StreamSource;
+import com.vaadin.server.VaadinService;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Button.ClickEvent;
+import com.vaadin.ui.ComboBox;
+import com.vaadin.ui.CustomComponent;
+import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Image;
+import com.vaadin.ui.Notification;
+import com.vaadin.ui.VerticalLayout;
+
+/**
+ * Map of all airports, drawn as precomputed clusters (see ClusterPyramid).
+ *
+ * View is a single server rendered image. Center is kept on a GRID pixel
+ * grid and panning moves by whole grid steps, so views repeat between users
+ * and are mostly served from AirportMaps image cache. Clicking a cluster
+ * zooms in on it, clicking a single airport shows its details.
+ */
+public class AirportMap extends CustomComponent implements
+        Property.ValueChangeListener, Button.ClickListener,
+        MouseEvents.ClickListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = Logger.getLogger("AirportMap");
+
+    private static final int GRID = 64;
+
+    private static final int CLICK_RADIUS = 12;
+
+    private int imageWidth = 768;
+    private int imageHeight = 448;
+
+    private final File baseDir;
+
+    private int zoom = 1;
+    private long centerX;
+    private long centerY;
+
+    private Image image;
+
+    private ComboBox comboType;
+
+    private Button zoomIn;
+    private Button zoomOut;
+    private Button west;
+    private Button east;
+    private Button north;
+    private Button south;
+
+    public AirportMap() {
+
+        baseDir = VaadinService.getCurrent().getBaseDirectory();
+
+        double world = WebMercator.worldSize(zoom);
+        centerX = snap(world / 2);
+        centerY = snap(world / 2);
+
+        image = new Image();
+        image.setWidth(imageWidth, Unit.PIXELS);
+        image.setHeight(imageHeight, Unit.PIXELS);
+        image.addClickListener(this);
+
+        comboType = new ComboBox();
+        for (MapType type : MapType.values()) {
+            comboType.addItem(type.getName());
+        }
+        comboType.setNullSelectionAllowed(false);
+        comboType.setImmediate(true);
+        comboType.setValue(MapType.TERRAIN.getName());
+        comboType.addValueChangeListener(this);
+
+        zoomIn = new Button("Zoom In", this);
+        zoomOut = new Button("Zoom Out", this);
+        west = new Button("West", this);
+        east = new Button("East", this);
+        north = new Button("North", this);
+        south = new Button("South", this);
+
+        HorizontalLayout controls = new HorizontalLayout();
+        controls.setSpacing(true);
+        controls.addComponent(zoomIn);
+        controls.addComponent(zoomOut);
+        controls.addComponent(west);
+        controls.addComponent(east);
+        controls.addComponent(north);
+        controls.addComponent(south);
+        controls.addComponent(comboType);
+
+        VerticalLayout layout = new VerticalLayout();
+        layout.setSpacing(true);
+        layout.addComponent(controls);
+        layout.addComponent(image);
+        layout.setSizeUndefined();
+
+        setCompositionRoot(layout);
+
+        updateImageSource();
+    }
+
+    @Override
+    public void buttonClick(ClickEvent event) {
+
+        Button b = event.getButton();
+        if (b == zoomIn) {
+            setView(zoom + 1, centerX * 2, centerY * 2);
+        } else if (b == zoomOut) {
+            setView(zoom - 1, centerX / 2, centerY / 2);
+        } else if (b == west) {
+            setView(zoom, centerX - imageWidth / 2, centerY);
+        } else if (b == east) {
+            setView(zoom, centerX + imageWidth / 2, centerY);
+        } else if (b == north) {
+            setView(zoom, centerX, centerY - imageHeight / 2);
+        } else if (b == south) {
+            setView(zoom, centerX, centerY + imageHeight / 2);
+        }
+    }
+
+    @Override
+    public void click(MouseEvents.ClickEvent event) {
+
+        double x = centerX - imageWidth / 2.0 + event.getRelativeX();
+        double y = centerY - imageHeight / 2.0 + event.getRelativeY();
+        double world = WebMercator.worldSize(zoom);
+
+        AirportMaps maps = getAirportMaps();
+        if (maps == null) {
+            return;
+        }
+
+        ClusterPyramid.Cluster c = maps.findNearest(zoom, x, y, CLICK_RADIUS);
+        if (c == null) {
+            return;
+        }
+
+        if (c.getCount() == 1 || zoom >= ClusterPyramid.MAX_ZOOM) {
+            AirportIndex index = maps.getIndex();
+            int i = c.getAirportIndex();
+            String more = c.getCount() > 1 ? " (+" + (c.getCount() - 1)
+                    + " more)" : "";
+            Notification.show(index.getICAOCode(i) + " " + index.getName(i)
+                    + more, index.getCity(i) + ", " + index.getCountry(i),
+                    Notification.Type.TRAY_NOTIFICATION);
+        } else {
+            setView(zoom + 1, (long) (c.getX() * world * 2),
+                    (long) (c.getY() * world * 2));
+        }
+    }
+
+    @Override
+    public void valueChange(Property.ValueChangeEvent event) {
+        updateImageSource();
+    }
+
+    /**
+     * Sets zoom and center (world pixels at new zoom), snapping center to
+     * grid and keeping view within world vertically.
+     */
+    private void setView(int newZoom, long x, long y) {
+
+        if (newZoom < 0 || newZoom > ClusterPyramid.MAX_ZOOM) {
+            return;
+        }
+
+        long world = (long) WebMercator.worldSize(newZoom);
+
+        x = ((x % world) + world) % world;
+        if (world <= imageHeight) {
+            y = world / 2;
+        } else {
+            y = Math.max(imageHeight / 2, Math.min(world - imageHeight / 2, y));
+        }
+
+        zoom = newZoom;
+        centerX = snap(x);
+        centerY = snap(y);
+
+        updateImageSource();
+    }
+
+    private static long snap(double v) {
+        return Math.round(v / GRID) * GRID;
+    }
+
+    private AirportMaps getAirportMaps() {
+
+        try {
+            return AirportMaps.get(baseDir, SessionContext.getCurrent()
+                    .getDBConnection());
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Failed to load airports", e);
+            Notification.show("Failed to load airports", e.toString(),
+                    Notification.Type.ERROR_MESSAGE);
+            return null;
+        }
+    }
+
+    private void updateImageSource() {
+
+        AirportMaps maps = getAirportMaps();
+        if (maps == null) {
+            image.setSource(null);
+            return;
+        }
+
+        MapType type = MapType.fromName((String) comboType.getValue());
+
+        zoomIn.setEnabled(zoom < ClusterPyramid.MAX_ZOOM);
+        zoomOut.setEnabled(zoom > 0);
+
+        StreamResource res = new StreamResource(new ViewSource(maps, type,
+                zoom, centerX, centerY, imageWidth, imageHeight), "airports-"
+                + type.name().toLowerCase() + "-" + zoom + "-" + centerX + "-"
+                + centerY + ".png");
+        res.setMIMEType("image/png");
+        res.setCacheTime(60 * 60 * 1000L);
+
+        image.setSource(res);
+    }
+
+    /**
+     * Renders (or fetches cached) view when browser requests it.
+     */
+    private static class ViewSource implements StreamSource {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Application wide, looked up again after deserialization.
+         */
+        private transient AirportMaps maps;
+
+        private final MapType type;
+        private final int zoom;
+        private final long centerX;
+        private final long centerY;
+        private final int width;
+        private final int height;
+
+        public ViewSource(AirportMaps maps, MapType type, int zoom,
+                long centerX, long centerY, int width, int height) {
+
+            this.maps = maps;
+            this.type = type;
+            this.zoom = zoom;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public InputStream getStream() {
+
+            try {
+                if (maps == null) {
+                    maps = AirportMaps.get(VaadinService.getCurrent()
+                            .getBaseDirectory(), SessionContext.getCurrent()
+                            .getDBConnection());
+                }
+                return new ByteArrayInputStream(maps.getView(type, zoom,
+                        centerX, centerY, width, height));
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to render airport map", e);
+                return null;
+            }
+        }
+    }
+}
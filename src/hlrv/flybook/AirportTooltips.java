@@ -0,0 +1,104 @@
+package hlrv.flybook;
+
+import hlrv.flybook.db.AirportIndex;
+
+/**
+ * HTML tooltips of airports, shared by all sessions. Tooltip of an airport
+ * is built on first use and then reused for every table cell showing it.
+ */
+public class AirportTooltips {
+
+    private static AirportTooltips instance = null;
+
+    private final AirportIndex index;
+
+    /**
+     * Tooltips by AirportIndex position. Filled lazily; racing threads build
+     * equal strings, so unsynchronized writes are harmless.
+     */
+    private final String[] tooltips;
+
+    private AirportTooltips(AirportIndex index) {
+        this.index = index;
+        this.tooltips = new String[index.size()];
+    }
+
+    /**
+     * Returns tooltips of index, reusing the shared instance while the index
+     * stays the same.
+     */
+    public static synchronized AirportTooltips get(AirportIndex index) {
+
+        if (instance == null || instance.index != index) {
+            instance = new AirportTooltips(index);
+        }
+        return instance;
+    }
+
+    public AirportIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns airport name, or null if airport id is unknown.
+     */
+    public String getName(Integer airportId) {
+
+        int i = airportId == null ? -1 : index.indexOf(airportId);
+        return i < 0 ? null : index.getName(i);
+    }
+
+    /**
+     * Returns HTML tooltip of airport, or null if airport id is unknown.
+     */
+    public String getTooltip(Integer airportId) {
+
+        int i = airportId == null ? -1 : index.indexOf(airportId);
+        if (i < 0) {
+            return null;
+        }
+
+        String tooltip = tooltips[i];
+        if (tooltip == null) {
+            StringBuilder sb = new StringBuilder(160);
+            sb.append("<ul><li><b>Airport</b>: ");
+            escape(sb, index.getName(i));
+            sb.append("</li><li><b>Country</b>: ");
+            escape(sb, index.getCountry(i));
+            sb.append("</li><li><b>City</b>: ");
+            escape(sb, index.getCity(i));
+            sb.append("</li><li><b>ICAO</b>: ");
+            escape(sb, index.getICAOCode(i));
+            sb.append("</li></ul>");
+            tooltip = sb.toString();
+            tooltips[i] = tooltip;
+        }
+        return tooltip;
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '&':
+                sb.append("&amp;");
+                break;
+            case '"':
+                sb.append("&quot;");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+    }
+}
@@ -1,18 +1,27 @@
 package hlrv.flybook;
 
 import hlrv.flybook.db.containers.AirportsContainer;
+import hlrv.flybook.db.items.AirportItem;
 
+import java.util.List;
+
+import com.vaadin.data.Item;
 import com.vaadin.data.Property;
 import com.vaadin.data.Property.ValueChangeEvent;
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.ComboBox;
 import com.vaadin.ui.CustomComponent;
 import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
 import com.vaadin.ui.Panel;
+import com.vaadin.ui.UI;
 import com.vaadin.ui.VerticalLayout;
 import com.vaadin.ui.themes.Reindeer;
 
 public class AirportsView extends CustomComponent implements
-        Property.ValueChangeListener {
+        Property.ValueChangeListener, Button.ClickListener {
 
     /**
      * Reference to airports SQLContainer wrapper object.
@@ -27,6 +36,20 @@ public class AirportsView extends CustomComponent implements
 
     private AirportsTable table;
 
+    /**
+     * Admin only, pilots who have visited selected airport.
+     */
+    private Label visitedByLabel;
+
+    /**
+     * Map of all airports, created when first shown.
+     */
+    private AirportMap map = null;
+
+    private Button toggleMap;
+
+    private VerticalLayout layout;
+
     public AirportsView() {
         setSizeFull();
 
@@ -54,15 +77,32 @@ public class AirportsView extends CustomComponent implements
         table = new AirportsTable(airportsContainer);
         table.setSizeFull();
 
+        visitedByLabel = new Label();
+        visitedByLabel.setCaption("Visited By");
+        if (((FlybookUI) UI.getCurrent()).getUser().getBean().isAdmin()) {
+            table.setSelectable(true);
+            table.setImmediate(true);
+            table.addValueChangeListener(this);
+        } else {
+            visitedByLabel.setVisible(false);
+        }
+
         HorizontalLayout filterLayout = new HorizontalLayout();
         filterLayout.setSpacing(true);
         filterLayout.addComponent(filterCountry);
         filterLayout.addComponent(filterCity);
 
+        toggleMap = new Button("Show Map", this);
+        filterLayout.addComponent(toggleMap);
+        filterLayout.setComponentAlignment(toggleMap, Alignment.BOTTOM_LEFT);
+        filterLayout.addComponent(visitedByLabel);
+        filterLayout.setComponentAlignment(visitedByLabel,
+                Alignment.BOTTOM_LEFT);
+
         Panel filterPanel = new Panel("Filter", filterLayout);
         filterPanel.addStyleName(Reindeer.PANEL_LIGHT);
 
-        VerticalLayout layout = new VerticalLayout();
+        layout = new VerticalLayout();
         layout.setSizeFull();
         layout.addComponent(filterPanel);
         layout.addComponent(table);
@@ -71,6 +111,30 @@ public class AirportsView extends CustomComponent implements
         setCompositionRoot(layout);
     }
 
+    /**
+     * Switches between table and map.
+     */
+    @Override
+    public void buttonClick(ClickEvent event) {
+
+        if (map == null || map.getParent() == null) {
+            if (map == null) {
+                map = new AirportMap();
+            }
+            layout.replaceComponent(table, map);
+            layout.setExpandRatio(map, 1.0f);
+            filterCountry.setEnabled(false);
+            filterCity.setEnabled(false);
+            toggleMap.setCaption("Show Table");
+        } else {
+            layout.replaceComponent(map, table);
+            layout.setExpandRatio(table, 1.0f);
+            filterCountry.setEnabled(true);
+            filterCity.setEnabled(true);
+            toggleMap.setCaption("Show Map");
+        }
+    }
+
     @Override
     public void valueChange(ValueChangeEvent event) {
 
@@ -94,7 +158,36 @@ public class AirportsView extends CustomComponent implements
 
             airportsContainer.filterByCity(city);
 
+        } else if (event.getProperty() == table) {
+
+            showVisitedBy(table.getValue());
         }
 
     }
+
+    /**
+     * Shows pilots who have departed from or landed at selected airport.
+     */
+    private void showVisitedBy(Object itemId) {
+
+        Item item = itemId != null ? table.getItem(itemId) : null;
+        if (item == null) {
+            visitedByLabel.setValue("");
+            return;
+        }
+        Integer airportId = new AirportItem(item).getID();
+
+        List<String> pilots = SessionContext.getCurrent()
+                .getFlightsContainer().getVisitedAirports()
+                .getPilots(airportId);
+
+        StringBuilder sb = new StringBuilder();
+        for (String pilot : pilots) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(pilot);
+        }
+        visitedByLabel.setValue(pilots.isEmpty() ? "Nobody" : sb.toString());
+    }
 }
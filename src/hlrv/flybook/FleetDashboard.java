@@ -0,0 +1,269 @@
+package hlrv.flybook;
+
+import hlrv.flybook.conv.EpochFormatter;
+import hlrv.flybook.db.FleetAggregator;
+import hlrv.flybook.db.FleetReport;
+import hlrv.flybook.db.FlightSketches;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import com.vaadin.data.util.IndexedContainer;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Button.ClickEvent;
+import com.vaadin.ui.CustomComponent;
+import com.vaadin.ui.GridLayout;
+import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Notification;
+import com.vaadin.ui.Table;
+import com.vaadin.ui.VerticalLayout;
+
+/**
+ * Admin view of fleet-wide breakdowns: flight time per pilot, aircraft,
+ * airport pair, month and flight type over all flights.
+ *
+ * Below them are approximate top lists of routes, airports and aircraft from
+ * FlightSketches with bounds of true count, and a button to verify them
+ * against exact counts.
+ */
+public class FleetDashboard extends CustomComponent implements
+        Button.ClickListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String PID_LABEL = "label";
+    private static final String PID_FLIGHTS = "flights";
+    private static final String PID_HOURS = "hours";
+    private static final String PID_RANGE = "range";
+
+    /**
+     * Number of rows in estimated top lists.
+     */
+    private static final int TOP_SIZE = 20;
+
+    private EpochFormatter formatter = new EpochFormatter();
+
+    private Button refreshButton;
+    private Button verifyButton;
+
+    private Label summary;
+
+    private Table tablePilots;
+    private Table tableAircrafts;
+    private Table tableRoutes;
+    private Table tableMonths;
+    private Table tableTypes;
+
+    private Table tableTopRoutes;
+    private Table tableTopAirports;
+    private Table tableTopAircraft;
+
+    public FleetDashboard() {
+
+        setSizeFull();
+
+        refreshButton = new Button("Refresh");
+        refreshButton.addClickListener(this);
+
+        verifyButton = new Button("Verify Estimates");
+        verifyButton.addClickListener(this);
+
+        summary = new Label();
+
+        tablePilots = createTable("Pilot");
+        tableAircrafts = createTable("Aircraft");
+        tableRoutes = createTable("Route");
+        tableMonths = createTable("Month");
+        tableTypes = createTable("Flight Type");
+
+        tableTopRoutes = createEstimateTable("Top Routes (est.)");
+        tableTopAirports = createEstimateTable("Busiest Airports (est.)");
+        tableTopAircraft = createEstimateTable("Most Used Aircraft (est.)");
+
+        HorizontalLayout topLayout = new HorizontalLayout();
+        topLayout.setSpacing(true);
+        topLayout.addComponent(refreshButton);
+        topLayout.addComponent(verifyButton);
+        topLayout.addComponent(summary);
+
+        GridLayout grid = new GridLayout(3, 3);
+        grid.setSpacing(true);
+        grid.setSizeFull();
+        grid.addComponent(tablePilots);
+        grid.addComponent(tableAircrafts);
+        grid.addComponent(tableRoutes);
+        grid.addComponent(tableMonths);
+        grid.addComponent(tableTypes);
+        grid.newLine();
+        grid.addComponent(tableTopRoutes);
+        grid.addComponent(tableTopAirports);
+        grid.addComponent(tableTopAircraft);
+
+        VerticalLayout layout = new VerticalLayout();
+        layout.setSpacing(true);
+        layout.setMargin(true);
+        layout.setSizeFull();
+        layout.addComponent(topLayout);
+        layout.addComponent(grid);
+        layout.setExpandRatio(grid, 1.0f);
+
+        setCompositionRoot(layout);
+
+        refresh();
+    }
+
+    @Override
+    public void buttonClick(ClickEvent event) {
+
+        if (event.getButton() == refreshButton) {
+            refresh();
+        } else if (event.getButton() == verifyButton) {
+            verify();
+        }
+    }
+
+    /**
+     * Recomputes breakdowns.
+     */
+    public void refresh() {
+
+        FleetReport report;
+        try {
+            report = FleetAggregator.get().aggregate(
+                    SessionContext.getCurrent().getDBConnection());
+        } catch (SQLException e) {
+            Notification.show("Failed to load flights", e.toString(),
+                    Notification.Type.ERROR_MESSAGE);
+            return;
+        }
+
+        summary.setValue(report.getFlights() + " flights, "
+                + formatter.formatDuration(report.getSeconds())
+                + " hours (computed in " + report.getMillis() + " ms, "
+                + report.getPartitions() + " partitions)");
+
+        fill(tablePilots, report.getPilots());
+        fill(tableAircrafts, report.getAircrafts());
+        fill(tableRoutes, report.getRoutes());
+        fill(tableMonths, report.getMonths());
+        fill(tableTypes, report.getTypes());
+
+        try {
+            FlightSketches sketches = FlightSketches.get(SessionContext
+                    .getCurrent().getDBConnection());
+            fillEstimates(tableTopRoutes, sketches.getTopRoutes(TOP_SIZE));
+            fillEstimates(tableTopAirports, sketches.getTopAirports(TOP_SIZE));
+            fillEstimates(tableTopAircraft, sketches.getTopAircraft(TOP_SIZE));
+        } catch (SQLException e) {
+            Notification.show("Failed to load estimates", e.toString(),
+                    Notification.Type.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Compares estimated top lists against exact counts. If an exact count
+     * is out of estimate bounds, sketches have drifted and are rebuilt.
+     */
+    private void verify() {
+
+        try {
+            FlightSketches sketches = FlightSketches.get(SessionContext
+                    .getCurrent().getDBConnection());
+            FlightSketches.Verification v = sketches.verify(TOP_SIZE);
+
+            String details = v.getChecked() + " exact top counts checked, "
+                    + v.getMissing() + " not listed, max error "
+                    + v.getMaxError();
+            if (v.isConsistent()) {
+                Notification.show("Estimates are within bounds", details,
+                        Notification.Type.HUMANIZED_MESSAGE);
+            } else {
+                sketches.rebuild();
+                Notification.show(v.getOutOfBounds()
+                        + " counts out of bounds, estimates were rebuilt",
+                        details, Notification.Type.WARNING_MESSAGE);
+                refresh();
+            }
+        } catch (SQLException e) {
+            Notification.show("Failed to verify estimates", e.toString(),
+                    Notification.Type.ERROR_MESSAGE);
+        }
+    }
+
+    private Table createTable(String caption) {
+
+        Table table = new Table(caption);
+        table.setSizeFull();
+        table.setContainerDataSource(createContainer());
+        table.setColumnHeaders(new String[] { caption, "Flights", "Hours" });
+        table.setColumnAlignment(PID_FLIGHTS, Table.Align.RIGHT);
+        table.setColumnAlignment(PID_HOURS, Table.Align.RIGHT);
+        return table;
+    }
+
+    private Table createEstimateTable(String caption) {
+
+        Table table = new Table(caption);
+        table.setSizeFull();
+        table.setContainerDataSource(createEstimateContainer());
+        table.setColumnHeaders(new String[] { caption, "Count", "Range" });
+        table.setColumnAlignment(PID_FLIGHTS, Table.Align.RIGHT);
+        table.setColumnAlignment(PID_RANGE, Table.Align.RIGHT);
+        return table;
+    }
+
+    private static IndexedContainer createEstimateContainer() {
+
+        IndexedContainer container = new IndexedContainer();
+        container.addContainerProperty(PID_LABEL, String.class, null);
+        container.addContainerProperty(PID_FLIGHTS, Long.class, null);
+        container.addContainerProperty(PID_RANGE, String.class, null);
+        return container;
+    }
+
+    private static IndexedContainer createContainer() {
+
+        IndexedContainer container = new IndexedContainer();
+        container.addContainerProperty(PID_LABEL, String.class, null);
+        container.addContainerProperty(PID_FLIGHTS, Long.class, null);
+        container.addContainerProperty(PID_HOURS, String.class, null);
+        return container;
+    }
+
+    /**
+     * Replaces table rows, keeping report order. Cells are in container
+     * property order.
+     */
+    private void fill(Table table, List<FleetReport.Row> rows) {
+
+        table.setContainerDataSource(createContainer());
+        for (FleetReport.Row row : rows) {
+            table.addItem(new Object[] {
+                    row.getLabel() != null ? row.getLabel() : "",
+                    row.getFlights(),
+                    formatter.formatDuration(row.getSeconds()) }, table.size());
+        }
+        table.setColumnHeaders(new String[] { table.getCaption(), "Flights",
+                "Hours" });
+    }
+
+    /**
+     * Replaces table rows with estimates, range is bounds of true count.
+     */
+    private void fillEstimates(Table table,
+            List<FlightSketches.Estimate> estimates) {
+
+        table.setContainerDataSource(createEstimateContainer());
+        for (FlightSketches.Estimate estimate : estimates) {
+            table.addItem(new Object[] {
+                    estimate.getLabel(),
+                    estimate.getCount(),
+                    estimate.getLowerBound() == estimate.getUpperBound() ? ""
+                            : estimate.getLowerBound() + " - "
+                                    + estimate.getUpperBound() }, table.size());
+        }
+        table.setColumnHeaders(new String[] { table.getCaption(), "Count",
+                "Range" });
+    }
+}
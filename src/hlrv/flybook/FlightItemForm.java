@@ -1,14 +1,22 @@
 package hlrv.flybook;
 
+import hlrv.flybook.conv.EpochFormatter;
 import hlrv.flybook.db.DBConstants;
 import hlrv.flybook.db.containers.AircraftsContainer;
 import hlrv.flybook.db.containers.AirportsContainer;
 import hlrv.flybook.db.containers.FlightsContainer;
 import hlrv.flybook.db.items.AircraftItem;
 import hlrv.flybook.db.items.FlightItem;
+import hlrv.flybook.map.TrackPyramid;
+import hlrv.flybook.track.Track;
+import hlrv.flybook.track.TrackParser;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 
@@ -23,15 +31,23 @@ import com.vaadin.ui.ComboBox;
 import com.vaadin.ui.CustomComponent;
 import com.vaadin.ui.DateField;
 import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
 import com.vaadin.ui.Notification;
 import com.vaadin.ui.Panel;
 import com.vaadin.ui.TextArea;
 import com.vaadin.ui.TextField;
+import com.vaadin.ui.Upload;
 import com.vaadin.ui.VerticalLayout;
 
 public class FlightItemForm extends CustomComponent implements
         Property.ValueChangeListener {
 
+    /**
+     * Largest track file accepted for upload, bytes. A day of one second
+     * IGC fixes is about 3 MB.
+     */
+    private static final long MAX_TRACK_BYTES = 8 * 1024 * 1024;
+
     private FieldGroup fieldGroup;
 
     // private TextField fieldId; // is this even needed ?
@@ -59,15 +75,45 @@ public class FlightItemForm extends CustomComponent implements
 
     private FlightMap flightMap;
 
+    private Label labelTrack;
+
+    private Upload uploadTrack;
+
     private AircraftsContainer aircraftsContainer;
 
+    private FlightsContainer flightsContainer;
+
     private FlightItem currentItem;
 
+    /**
+     * Notes of current item as loaded, fieldNotes is not bound to field group
+     * because list rows do not carry notes.
+     */
+    private String currentNotes = "";
+
+    /**
+     * Recorded track of current item as loaded, and track uploaded since,
+     * which is set to FlightsContainer on commit.
+     */
+    private TrackPyramid currentTrack;
+    private Track uploadedTrack;
+
+    /**
+     * Parser of upload in progress, it is the upload stream.
+     */
+    private transient TrackParser trackParser;
+
+    /**
+     * True if upload in progress was interrupted for being too large.
+     */
+    private transient boolean trackTooLarge;
+
     public FlightItemForm() {
         super();
 
         aircraftsContainer = SessionContext.getCurrent()
                 .getAircraftsContainer();
+        flightsContainer = SessionContext.getCurrent().getFlightsContainer();
 
         // /**
         // * Create id and date
@@ -162,10 +208,73 @@ public class FlightItemForm extends CustomComponent implements
         fieldIFRTime = new TextField("IFR Time");
 
         fieldNotes = new TextArea("Notes");
+        fieldNotes.setNullRepresentation("");
         // fieldNotes.setColumns(30);
 
         flightMap = new FlightMap();
 
+        labelTrack = new Label();
+        labelTrack.setCaption("Recorded Track");
+
+        /**
+         * Track file is parsed while it is being uploaded.
+         */
+        uploadTrack = new Upload(null, new Upload.Receiver() {
+            @Override
+            public OutputStream receiveUpload(String filename, String mimeType) {
+                trackParser = TrackParser.create(filename);
+                return trackParser;
+            }
+        });
+
+        /**
+         * Uploads over MAX_TRACK_BYTES are interrupted, by declared length
+         * at start and by bytes received while in progress.
+         */
+        uploadTrack.addStartedListener(new Upload.StartedListener() {
+            @Override
+            public void uploadStarted(Upload.StartedEvent event) {
+                trackTooLarge = false;
+                if (event.getContentLength() > MAX_TRACK_BYTES) {
+                    interruptTrackUpload();
+                }
+            }
+        });
+        uploadTrack.addProgressListener(new Upload.ProgressListener() {
+            @Override
+            public void updateProgress(long readBytes, long contentLength) {
+                if (readBytes > MAX_TRACK_BYTES && !trackTooLarge) {
+                    interruptTrackUpload();
+                }
+            }
+        });
+        uploadTrack.setButtonCaption("Upload Track (IGC/GPX)");
+        uploadTrack.setImmediate(true);
+        uploadTrack.addSucceededListener(new Upload.SucceededListener() {
+            @Override
+            public void uploadSucceeded(Upload.SucceededEvent event) {
+                trackUploaded();
+            }
+        });
+        uploadTrack.addFailedListener(new Upload.FailedListener() {
+            @Override
+            public void uploadFailed(Upload.FailedEvent event) {
+                trackParser = null;
+                String message;
+                if (trackTooLarge) {
+                    message = event.getFilename() + " is larger than "
+                            + MAX_TRACK_BYTES / (1024 * 1024) + " MB";
+                } else if (event.getReason() instanceof IOException) {
+                    message = event.getReason().getMessage();
+                } else {
+                    message = event.getFilename()
+                            + " is not an IGC or GPX track file";
+                }
+                Notification.show("Track upload failed", message,
+                        Notification.Type.WARNING_MESSAGE);
+            }
+        });
+
         /**
          * Layout created components.
          */
@@ -227,6 +336,8 @@ public class FlightItemForm extends CustomComponent implements
         bottomRightLayout.setSizeUndefined();
         bottomRightLayout.addComponent(fieldFlightTime);
         bottomRightLayout.addComponent(flightMap);
+        bottomRightLayout.addComponent(labelTrack);
+        bottomRightLayout.addComponent(uploadTrack);
 
         HorizontalLayout bottomLayout = new HorizontalLayout();
         bottomLayout.setSpacing(true);
@@ -282,6 +393,8 @@ public class FlightItemForm extends CustomComponent implements
 
         // if (fieldGroup.getItemDataSource() != null) {
         fieldGroup.setReadOnly(!editable);
+        fieldNotes.setReadOnly(!editable);
+        uploadTrack.setEnabled(editable);
         // } else {
         // setReadOnly(!editable);
         // }
@@ -324,6 +437,15 @@ public class FlightItemForm extends CustomComponent implements
 
         fieldGroup.setItemDataSource(flightItem.getItem());
 
+        currentNotes = loadNotes(flightItem);
+        fieldNotes.setReadOnly(false);
+        fieldNotes.setValue(currentNotes);
+        fieldNotes.setReadOnly(fieldGroup.isReadOnly());
+
+        currentTrack = loadTrack(flightItem);
+        uploadedTrack = null;
+        showTrack(flightItem.getFlightID());
+
         // if (flightItem.isNull()) {
         //
         // // for (Field<?> f : fieldGroup.getFields()) {
@@ -373,19 +495,177 @@ public class FlightItemForm extends CustomComponent implements
 
             fieldGroup.commit();
 
+            String notes = fieldNotes.getValue();
+            if (notes == null) {
+                notes = "";
+            }
+            if (currentItem != null && currentItem.getFlightID() != null
+                    && !notes.equals(currentNotes)) {
+                flightsContainer.setNotes(currentItem.getFlightID(), notes);
+                currentNotes = notes;
+            }
+            if (currentItem != null && currentItem.getFlightID() != null
+                    && uploadedTrack != null) {
+                flightsContainer.setTrack(currentItem.getFlightID(),
+                        uploadedTrack);
+                currentTrack = new TrackPyramid(uploadedTrack);
+                uploadedTrack = null;
+            }
+
             return true;
         } catch (FieldGroup.CommitException e) {
-            Notification.show("Commit Warning", e.getMessage(),
+
+            /**
+             * Conflict check failures come wrapped by FieldGroup.
+             */
+            String message = e.getMessage();
+            if (e.getCause() instanceof FieldGroup.CommitException) {
+                message = e.getCause().getMessage();
+            }
+            Notification.show("Commit Warning", message,
                     Notification.TYPE_HUMANIZED_MESSAGE);
         }
         return false;
     }
 
+    /**
+     * Fails if committed flight overlaps another flight of same pilot or same
+     * aircraft.
+     */
+    private void checkConflicts() throws FieldGroup.CommitException {
+
+        if (currentItem == null) {
+            return;
+        }
+        Integer dep = currentItem.getDepartureTime();
+        Integer land = currentItem.getLandingTime();
+        if (dep == null || land == null) {
+            return;
+        }
+
+        List<Integer> pilotConflicts;
+        List<Integer> aircraftConflicts;
+        try {
+            pilotConflicts = flightsContainer.getFlightConflicts()
+                    .findPilotConflicts(currentItem.getUsername(),
+                            currentItem.getFlightID(), dep, land);
+            aircraftConflicts = flightsContainer.getFlightConflicts()
+                    .findAircraftConflicts(currentItem.getAircraft(),
+                            currentItem.getFlightID(), dep, land);
+        } catch (SQLException e) {
+            throw new FieldGroup.CommitException(
+                    "Failed to check overlapping flights", e);
+        }
+
+        if (!pilotConflicts.isEmpty()) {
+            throw new FieldGroup.CommitException(
+                    "Flight overlaps pilot's flights " + pilotConflicts);
+        }
+        if (!aircraftConflicts.isEmpty()) {
+            throw new FieldGroup.CommitException("Aircraft "
+                    + currentItem.getAircraft() + " is logged on flights "
+                    + aircraftConflicts + " at the same time");
+        }
+    }
+
     /**
      * Sets original values from time of last call of setDataSource()
      */
     public void reset() {
         fieldGroup.discard();
+
+        boolean readOnly = fieldNotes.isReadOnly();
+        fieldNotes.setReadOnly(false);
+        fieldNotes.setValue(currentNotes);
+        fieldNotes.setReadOnly(readOnly);
+
+        if (uploadedTrack != null) {
+            uploadedTrack = null;
+            showTrack(currentItem != null ? currentItem.getFlightID() : null);
+        }
+    }
+
+    /**
+     * Loads notes of item by primary key, empty for new or null item.
+     */
+    private String loadNotes(FlightItem flightItem) {
+
+        Integer flightId = flightItem.getFlightID();
+        if (flightId == null) {
+            return "";
+        }
+        try {
+            return flightsContainer.loadNotes(flightId);
+        } catch (SQLException e) {
+            Notification.show("Failed to load notes", e.toString(),
+                    Notification.Type.WARNING_MESSAGE);
+            return "";
+        }
+    }
+
+    /**
+     * Loads track of item, null for new or null item or if it has none.
+     */
+    private TrackPyramid loadTrack(FlightItem flightItem) {
+
+        Integer flightId = flightItem.getFlightID();
+        if (flightId == null) {
+            return null;
+        }
+        try {
+            return flightsContainer.loadTrack(flightId);
+        } catch (SQLException e) {
+            Notification.show("Failed to load track", e.toString(),
+                    Notification.Type.WARNING_MESSAGE);
+            return null;
+        }
+    }
+
+    /**
+     * Stops upload in progress, upload then fails.
+     */
+    private void interruptTrackUpload() {
+
+        trackTooLarge = true;
+        uploadTrack.interruptUpload();
+    }
+
+    /**
+     * Takes track of finished upload.
+     */
+    private void trackUploaded() {
+
+        TrackParser parser = trackParser;
+        trackParser = null;
+        if (parser == null) {
+            return;
+        }
+        try {
+            uploadedTrack = parser.finish();
+        } catch (IOException e) {
+            Notification.show("Invalid track file", e.getMessage(),
+                    Notification.Type.WARNING_MESSAGE);
+            return;
+        }
+        showTrack(currentItem != null ? currentItem.getFlightID() : null);
+    }
+
+    /**
+     * Shows uploaded track, or loaded track if none was uploaded.
+     */
+    private void showTrack(Integer flightId) {
+
+        TrackPyramid track = uploadedTrack != null ? new TrackPyramid(
+                uploadedTrack) : currentTrack;
+        if (track == null) {
+            labelTrack.setValue("None");
+        } else {
+            labelTrack.setValue(track.getFixCount()
+                    + " fixes, "
+                    + new EpochFormatter().formatDuration(track.getEndTime()
+                            - track.getStartTime()));
+        }
+        flightMap.setTrack(flightId, track);
     }
 
     /**
@@ -422,7 +702,22 @@ public class FlightItemForm extends CustomComponent implements
 
         fg.bind(fieldIFRTime, DBConstants.FLIGHTENTRIES_IFR_TIME);
 
-        fg.bind(fieldNotes, DBConstants.FLIGHTENTRIES_NOTES);
+        /**
+         * Item properties have new values in postCommit, throwing rolls them
+         * back.
+         */
+        fg.addCommitHandler(new FieldGroup.CommitHandler() {
+            @Override
+            public void preCommit(FieldGroup.CommitEvent commitEvent)
+                    throws FieldGroup.CommitException {
+            }
+
+            @Override
+            public void postCommit(FieldGroup.CommitEvent commitEvent)
+                    throws FieldGroup.CommitException {
+                checkConflicts();
+            }
+        });
 
         return fg;
     }
@@ -1,9 +1,20 @@
 package hlrv.flybook;
 
 import hlrv.flybook.db.items.AirportItem;
+import hlrv.flybook.map.MapType;
+import hlrv.flybook.map.RouteMaps;
+import hlrv.flybook.map.TrackPyramid;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.vaadin.data.Property;
-import com.vaadin.server.ExternalResource;
+import com.vaadin.server.StreamResource;
+import com.vaadin.server.StreamResource.StreamSource;
+import com.vaadin.server.VaadinService;
 import com.vaadin.ui.ComboBox;
 import com.vaadin.ui.CustomComponent;
 import com.vaadin.ui.Image;
@@ -12,6 +23,8 @@ import com.vaadin.ui.VerticalLayout;
 public class FlightMap extends CustomComponent implements
         Property.ValueChangeListener {
 
+    private static final Logger logger = Logger.getLogger("FlightMap");
+
     private int imageWidth = 250;
     private int imageHeight = 150;
 
@@ -31,6 +44,12 @@ public class FlightMap extends CustomComponent implements
     private AirportItem departurePort;
     private AirportItem landingPort;
 
+    /**
+     * Recorded track drawn instead of the great circle route, if any.
+     */
+    private Integer trackFlightId;
+    private TrackPyramid track;
+
     /**
      * Creates new FlightMap
      * 
@@ -45,11 +64,12 @@ public class FlightMap extends CustomComponent implements
          * Combobox to select terrain type for image
          */
         comboType = new ComboBox("Map type");
-        comboType.addItem("Terrain");
-        comboType.addItem("Satellite");
+        for (MapType type : MapType.values()) {
+            comboType.addItem(type.getName());
+        }
         comboType.setNullSelectionAllowed(false);
         comboType.setImmediate(true);
-        comboType.setValue("Terrain");
+        comboType.setValue(MapType.TERRAIN.getName());
         // mapType.setTextInputAllowed(false);
         comboType.addValueChangeListener(this);
 
@@ -103,6 +123,17 @@ public class FlightMap extends CustomComponent implements
         updateImageSource();
     }
 
+    /**
+     * Sets recorded track of flight, null to draw route between ports.
+     */
+    public void setTrack(Integer flightId, TrackPyramid track) {
+
+        this.trackFlightId = flightId;
+        this.track = track;
+
+        updateImageSource();
+    }
+
     // public void setItem(FlightItem item) {
     //
     // this.flightItem = item;
@@ -117,122 +148,43 @@ public class FlightMap extends CustomComponent implements
 
     private void updateImageSource() {
 
-        if (departurePort.isNull() || landingPort.isNull()) {
+        if (track != null && trackFlightId != null) {
+            TrackImageSource source = new TrackImageSource(VaadinService
+                    .getCurrent().getBaseDirectory(), trackFlightId, track,
+                    getMapType(), imageWidth, imageHeight);
+
+            StreamResource res = new StreamResource(source, RouteMaps.trackKey(
+                    trackFlightId, track, getMapType(), imageWidth,
+                    imageHeight));
+            res.setMIMEType("image/png");
+            res.setCacheTime(24 * 60 * 60 * 1000L);
+
+            image.setSource(res);
+        } else if (departurePort.isNull() || landingPort.isNull()
+                || departurePort.getLatitude() == null
+                || landingPort.getLatitude() == null) {
             image.setSource(null);
         } else {
-            String[] ports = departureAndLandingPortStrings();
-
-            System.out.println("Departure: " + ports[0] + ", Landing: "
-                    + ports[1]);
+            RouteImageSource source = new RouteImageSource(VaadinService
+                    .getCurrent().getBaseDirectory(), departurePort,
+                    landingPort, getMapType(), imageWidth, imageHeight);
 
-            ExternalResource res = new ExternalResource(
-                    createGoogleStaticMapApiURL(ports[0], ports[1]),
-                    "image/png");
+            /**
+             * File name is the cache key, so browser caches each route
+             * separately.
+             */
+            StreamResource res = new StreamResource(source, RouteMaps.key(
+                    departurePort.getID(), landingPort.getID(),
+                    getMapType(), imageWidth, imageHeight));
+            res.setMIMEType("image/png");
+            res.setCacheTime(24 * 60 * 60 * 1000L);
 
             image.setSource(res);
         }
     }
 
-    private String[] departureAndLandingPortStrings() {
-
-        String[] ports = new String[2];
-
-        // int departurePort = flightItem.getDepartureAirport();
-        // int landingPort = flightItem.getLandingAirport();
-        //
-        // AirportsContainer airportsContainer = SessionContext.getCurrent()
-        // .getAirportsContainer();
-
-        // AirportItem departureItem = airportsContainer.getItem(departurePort);
-        // AirportItem landingItem = airportsContainer.getItem(landingPort);
-
-        // if (departureItem.isNull() || landingItem.isNull()) {
-        // ports[0] = ports[1] = "";
-        // }
-
-        ports[0] = departurePort.getCity() + "," + departurePort.getCountry();
-        ports[1] = landingPort.getCity() + "," + landingPort.getCountry();
-
-        // int departurePort = flightItem.getDepartureAirport();
-        // int landingPort = flightItem.getLandingAirport();
-        //
-        // StringBuilder sql = new StringBuilder();
-        // sql.append("SELECT ");
-        // sql.append(DBConstants.AIRPORTS_ID).append(", ");
-        // sql.append(DBConstants.AIRPORTS_CITY).append(", ");
-        // sql.append(DBConstants.AIRPORTS_COUNTRY).append(" ");
-        // sql.append("FROM ").append(DBConstants.TABLE_AIRPORTS).append(" ");
-        // sql.append("WHERE ");
-        // sql.append(DBConstants.AIRPORTS_ID).append(" = ");
-        // sql.append(departurePort).append(" OR ");
-        // sql.append(DBConstants.AIRPORTS_ID).append(" = ");
-        // sql.append(landingPort);
-        //
-        // System.out.println(sql.toString());
-        //
-        // try {
-        //
-        // Statement stmt = connection.createStatement();
-        //
-        // stmt.execute(sql.toString());
-        //
-        // ResultSet results = stmt.getResultSet();
-        //
-        // while (results.next()) {
-        // int airportId = results.getInt(1);
-        // if (airportId == departurePort) {
-        // ports[0] = results.getString(2) + ","
-        // + results.getString(3);
-        // } else {
-        // ports[1] = results.getString(2) + ","
-        // + results.getString(3);
-        // }
-        // }
-        //
-        // results.close(); // !!! release dblock !!!
-        //
-        // } catch (SQLException e) {
-        // System.err.println(e.toString());
-        // }
-
-        return ports;
-    }
-
-    private String createGoogleStaticMapApiURL(String source, String destination) {
-
-        StringBuilder sb = new StringBuilder(
-                "http://maps.googleapis.com/maps/api/staticmap?");
-
-        // sb.append("?center=");
-
-        // sb.append("&size=640x640");
-        // sb.append("&size=512x512");
-        // sb.append("&size=256x256");
-        sb.append("&size=").append(imageWidth).append("x").append(imageHeight);
-
-        // sb.append("&markers=color:green%7Clabel:D%7CHelsinki,Finland");
-        // sb.append("&markers=color:blue%7Clabel:L%7CLondon,England");
-        //
-        // sb.append("&path=weight:5%7Ccolor:red%7Cgeodesic:true"
-        // + "%7CHelsinki,Finland" + "%7CBerlin,Germany" + "%7CRome,Italy"
-        // + "%7CLondon,England");
-
-        sb.append("&markers=color:green%7Clabel:D%7C").append(source);
-        sb.append("&markers=color:blue%7Clabel:L%7C").append(destination);
-
-        sb.append("&path=weight:5%7Ccolor:red%7Cgeodesic:true%7C");
-        sb.append(source).append("%7C").append(destination);
-
-        sb.append("&maptype=").append(getMapType());
-
-        sb.append("&sensor=false");
-
-        return sb.toString();
-    }
-
-    private String getMapType() {
-        String type = (String) comboType.getValue();
-        return type.toLowerCase();
+    private MapType getMapType() {
+        return MapType.fromName((String) comboType.getValue());
     }
 
     @Override
@@ -249,4 +201,90 @@ public class FlightMap extends CustomComponent implements
         }
     }
 
+    /**
+     * Renders (or fetches cached) route image when browser requests it.
+     * Keeps only coordinates, not the airport items.
+     */
+    private static class RouteImageSource implements StreamSource {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File baseDir;
+        private final int departureId;
+        private final double departureLat;
+        private final double departureLon;
+        private final int landingId;
+        private final double landingLat;
+        private final double landingLon;
+        private final MapType type;
+        private final int width;
+        private final int height;
+
+        public RouteImageSource(File baseDir, AirportItem departure,
+                AirportItem landing, MapType type, int width, int height) {
+
+            this.baseDir = baseDir;
+            this.departureId = departure.getID();
+            this.departureLat = departure.getLatitude();
+            this.departureLon = departure.getLongitude();
+            this.landingId = landing.getID();
+            this.landingLat = landing.getLatitude();
+            this.landingLon = landing.getLongitude();
+            this.type = type;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public InputStream getStream() {
+
+            try {
+                return new ByteArrayInputStream(RouteMaps.get(baseDir)
+                        .getRoute(departureId, departureLat, departureLon,
+                                landingId, landingLat, landingLon, type,
+                                width, height));
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to render route map", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Renders (or fetches cached) track image when browser requests it.
+     */
+    private static class TrackImageSource implements StreamSource {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File baseDir;
+        private final int flightId;
+        private final TrackPyramid track;
+        private final MapType type;
+        private final int width;
+        private final int height;
+
+        public TrackImageSource(File baseDir, int flightId,
+                TrackPyramid track, MapType type, int width, int height) {
+
+            this.baseDir = baseDir;
+            this.flightId = flightId;
+            this.track = track;
+            this.type = type;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public InputStream getStream() {
+
+            try {
+                return new ByteArrayInputStream(RouteMaps.get(baseDir)
+                        .getTrack(flightId, track, type, width, height));
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to render track map", e);
+                return null;
+            }
+        }
+    }
 }
@@ -0,0 +1,172 @@
+package hlrv.flybook;
+
+import hlrv.flybook.conv.EpochFormatter;
+import hlrv.flybook.db.FlightDistances;
+import hlrv.flybook.db.FlightTotals;
+import hlrv.flybook.db.VisitedAirports;
+import hlrv.flybook.db.containers.FlightsContainer;
+
+import java.sql.SQLException;
+
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Button.ClickEvent;
+import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Notification;
+import com.vaadin.ui.Panel;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.themes.Reindeer;
+
+/**
+ * Shows logbook totals of a pilot (or all pilots) from FlightTotals rollup,
+ * and numbers of visited airports and countries from VisitedAirports.
+ * Totals do not follow date and type filters of flights table.
+ */
+public class FlightTotalsPanel extends Panel implements Button.ClickListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private FlightsContainer flightsContainer;
+
+    private EpochFormatter formatter = new EpochFormatter();
+
+    /**
+     * Pilot whose totals are shown, null for all pilots.
+     */
+    private String pilot;
+
+    private Label labelFlights;
+    private Label labelFlightTime;
+    private Label labelIFRTime;
+    private Label labelBlockTime;
+    private Label labelDistance;
+    private Label labelAirports;
+    private Label labelCountries;
+
+    private Label[] labelsByType;
+
+    /**
+     * Admin only, recomputes rollup table.
+     */
+    private Button rebuildButton;
+
+    public FlightTotalsPanel() {
+
+        super("Totals");
+
+        flightsContainer = SessionContext.getCurrent().getFlightsContainer();
+
+        addStyleName(Reindeer.PANEL_LIGHT);
+
+        labelFlights = new Label();
+        labelFlights.setCaption("Flights");
+        labelFlightTime = new Label();
+        labelFlightTime.setCaption("Flight Time");
+        labelIFRTime = new Label();
+        labelIFRTime.setCaption("IFR Time");
+        labelBlockTime = new Label();
+        labelBlockTime.setCaption("Block Time");
+        labelDistance = new Label();
+        labelDistance.setCaption("Distance (NM)");
+        labelAirports = new Label();
+        labelAirports.setCaption("Airports");
+        labelCountries = new Label();
+        labelCountries.setCaption("Countries");
+
+        HorizontalLayout layout = new HorizontalLayout();
+        layout.setSpacing(true);
+        layout.setSizeUndefined();
+        layout.addComponent(labelFlights);
+        layout.addComponent(labelFlightTime);
+        layout.addComponent(labelIFRTime);
+        layout.addComponent(labelBlockTime);
+        layout.addComponent(labelDistance);
+        layout.addComponent(labelAirports);
+        layout.addComponent(labelCountries);
+
+        /**
+         * Flight time by type, undefined type is left out.
+         */
+        FlightType[] types = FlightType.values();
+        labelsByType = new Label[types.length];
+        for (int i = 1; i < types.length; ++i) {
+            labelsByType[i] = new Label();
+            labelsByType[i].setCaption(types[i].getName());
+            layout.addComponent(labelsByType[i]);
+        }
+
+        rebuildButton = new Button("Rebuild");
+        rebuildButton.setDescription("Recompute totals from all flights");
+        rebuildButton.addClickListener(this);
+        rebuildButton.setVisible(((FlybookUI) UI.getCurrent()).getUser()
+                .getBean().isAdmin());
+        layout.addComponent(rebuildButton);
+
+        setContent(layout);
+    }
+
+    /**
+     * Sets pilot whose totals are shown, null for all pilots.
+     */
+    public void setPilot(String pilot) {
+
+        this.pilot = pilot;
+        refresh();
+    }
+
+    /**
+     * Shows current totals. Cached totals are used unless flights of pilot
+     * have changed.
+     */
+    public void refresh() {
+
+        FlightTotals.Totals totals;
+        try {
+            totals = flightsContainer.getFlightTotals().getTotals(pilot);
+        } catch (SQLException e) {
+            Notification.show("Failed to load totals", e.toString(),
+                    Notification.Type.WARNING_MESSAGE);
+            return;
+        }
+
+        labelFlights.setValue(String.valueOf(totals.getFlights()));
+        labelFlightTime.setValue(formatter.formatDuration(totals
+                .getFlightTime()));
+        labelIFRTime.setValue(formatter.formatDuration(totals.getIFRTime() * 60));
+        labelBlockTime.setValue(formatter.formatDuration(totals
+                .getBlockTime() * 60));
+        labelDistance.setValue(String.valueOf(FlightDistances
+                .toNauticalMiles(totals.getDistance())));
+
+        FlightType[] types = FlightType.values();
+        for (int i = 1; i < types.length; ++i) {
+            labelsByType[i].setValue(formatter.formatDuration(totals
+                    .getFlightTime(types[i])));
+        }
+
+        VisitedAirports visited = flightsContainer.getVisitedAirports();
+        labelAirports.setValue(String.valueOf(visited.getAirports(pilot)
+                .getCardinality()));
+        try {
+            labelCountries.setValue(String.valueOf(visited.getCountries(pilot)
+                    .getCardinality()));
+        } catch (SQLException e) {
+            labelCountries.setValue("");
+        }
+    }
+
+    @Override
+    public void buttonClick(ClickEvent event) {
+
+        if (event.getButton() == rebuildButton) {
+            try {
+                flightsContainer.getFlightTotals().rebuild();
+                refresh();
+                Notification.show("Totals rebuilt");
+            } catch (SQLException e) {
+                Notification.show("Rebuild Failed", e.toString(),
+                        Notification.Type.ERROR_MESSAGE);
+            }
+        }
+    }
+}
@@ -1,20 +1,33 @@
 package hlrv.flybook;
 
+import hlrv.flybook.conv.EpochFormatter;
+import hlrv.flybook.db.AirportIndex;
 import hlrv.flybook.db.DBConstants;
-import hlrv.flybook.db.containers.AirportsContainer;
+import hlrv.flybook.db.DutyCompliance;
+import hlrv.flybook.db.FlightDistances;
+import hlrv.flybook.db.FlightNotesIndex;
 import hlrv.flybook.db.containers.FlightsContainer;
-import hlrv.flybook.db.items.AirportItem;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import com.vaadin.data.Item;
 import com.vaadin.data.Property;
+import com.vaadin.server.PaintException;
+import com.vaadin.server.PaintTarget;
+import com.vaadin.shared.ui.label.ContentMode;
+import com.vaadin.ui.Component;
 import com.vaadin.ui.Label;
 import com.vaadin.ui.Table;
 
 public class FlightsTable extends Table {
 
+    private static final Logger logger = Logger.getLogger("FlightsTable");
+
     /**
      * Which columns are shown in table?
      */
@@ -24,9 +37,11 @@ public class FlightsTable extends Table {
             DBConstants.FLIGHTENTRIES_DEPARTURE_TIME,
             DBConstants.FLIGHTENTRIES_LANDING_AIRPORT,
             DBConstants.FLIGHTENTRIES_LANDING_TIME, GEN_FLIGHT_TIME,
+            DBConstants.FLIGHTENTRIES_DISTANCE,
             DBConstants.FLIGHTENTRIES_AIRCRAFT,
             DBConstants.FLIGHTENTRIES_FLIGHT_TYPE,
             DBConstants.FLIGHTENTRIES_IFR_TIME,
+            DBConstants.FLIGHTENTRIES_NIGHT_TIME,
             DBConstants.FLIGHTENTRIES_ONBLOCK_TIME,
             DBConstants.FLIGHTENTRIES_OFFBLOCK_TIME };
 
@@ -35,12 +50,18 @@ public class FlightsTable extends Table {
      */
     private String[] headers = { "Pilot", "Date", "Departure Airport",
             "Departure Time", "Landing Airport", "Landing Time", "Flight Time",
-            "Aircraft", "Flight Type", "IFR Time", "On-Block Time",
-            "Off-Block Time" };
+            "Distance (NM)", "Aircraft", "Flight Type", "IFR Time",
+            "Night Time", "On-Block Time", "Off-Block Time" };
 
-    private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-    // private DateFormat dateFormat = new
-    // SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    /**
+     * Formats unixtime columns without Date/SimpleDateFormat allocations.
+     */
+    private EpochFormatter dateFormat = new EpochFormatter();
+
+    /**
+     * Shared airport names and tooltips.
+     */
+    private transient AirportTooltips airports;
 
     /**
      * Table columns that are initially collapsed.
@@ -48,11 +69,13 @@ public class FlightsTable extends Table {
     private String[] initialCollapsedColumns = {
             DBConstants.FLIGHTENTRIES_FLIGHT_TYPE,
             DBConstants.FLIGHTENTRIES_IFR_TIME,
+            DBConstants.FLIGHTENTRIES_NIGHT_TIME,
             DBConstants.FLIGHTENTRIES_ONBLOCK_TIME,
             DBConstants.FLIGHTENTRIES_OFFBLOCK_TIME };
 
     // private static final String GEN_FULLNAME = "fullname";
     private static final String GEN_FLIGHT_TIME = "flight_time";
+    private static final String GEN_NOTES_MATCH = "notes_match";
 
     public FlightsTable() {
 
@@ -72,6 +95,7 @@ public class FlightsTable extends Table {
         addGeneratedColumn(DBConstants.FLIGHTENTRIES_LANDING_AIRPORT,
                 colGenerator);
         addGeneratedColumn(DBConstants.FLIGHTENTRIES_FLIGHT_TYPE, colGenerator);
+        addGeneratedColumn(GEN_NOTES_MATCH, colGenerator);
 
         setVisibleColumns(visibleColumns);
         setColumnHeaders(headers);
@@ -87,12 +111,169 @@ public class FlightsTable extends Table {
 
         // setColumnHeader(GEN_FLIGHT_TIME, "Flight Time");
 
+        /**
+         * Airport tooltips as item descriptions instead of a Label component
+         * per cell.
+         */
+        setItemDescriptionGenerator(new ItemDescriptionGenerator() {
+            @Override
+            public String generateDescription(Component source,
+                    Object itemId, Object propertyId) {
+
+                if (propertyId == null) {
+                    return DutyCompliance.describe(getDutyViolations(itemId));
+                }
+
+                if (DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT
+                        .equals(propertyId)
+                        || DBConstants.FLIGHTENTRIES_LANDING_AIRPORT
+                                .equals(propertyId)) {
+                    Item item = getItem(itemId);
+                    if (item != null) {
+                        return getAirports().getTooltip(
+                                (Integer) item.getItemProperty(propertyId)
+                                        .getValue());
+                    }
+                }
+                return null;
+            }
+        });
+
+        /**
+         * Commercial flights breaking duty or rest limits, see theme.
+         */
+        setCellStyleGenerator(new CellStyleGenerator() {
+            @Override
+            public String getStyle(Table source, Object itemId,
+                    Object propertyId) {
+
+                if (propertyId == null && getDutyViolations(itemId) != 0) {
+                    return "duty-violation";
+                }
+                return null;
+            }
+        });
+
         setSelectable(true);
         setImmediate(true);
         setNullSelectionAllowed(false);
 
     }
 
+    /**
+     * Shows or hides column of highlighted notes matches. Shown while notes
+     * search filter is set.
+     */
+    public void setNotesMatchVisible(boolean visible) {
+
+        Object[] columns = getVisibleColumns();
+        boolean shown = Arrays.asList(columns).contains(GEN_NOTES_MATCH);
+        if (visible == shown) {
+            return;
+        }
+
+        if (visible) {
+            Object[] newColumns = Arrays.copyOf(columns, columns.length + 1);
+            newColumns[columns.length] = GEN_NOTES_MATCH;
+            setVisibleColumns(newColumns);
+            setColumnHeader(GEN_NOTES_MATCH, "Notes");
+        } else {
+            Object[] newColumns = new Object[columns.length - 1];
+            int n = 0;
+            for (Object col : columns) {
+                if (!GEN_NOTES_MATCH.equals(col)) {
+                    newColumns[n++] = col;
+                }
+            }
+            setVisibleColumns(newColumns);
+        }
+    }
+
+    /**
+     * Loads duty timelines of pilots of visible commercial flights in one go,
+     * before row styles and descriptions are generated per cell.
+     */
+    @Override
+    public void paintContent(PaintTarget target) throws PaintException {
+
+        Set<String> pilots = new HashSet<String>();
+        for (Object itemId : getVisibleItemIds()) {
+            Item item = getItem(itemId);
+            if (item != null && isCommercial(item)) {
+                pilots.add((String) item.getItemProperty(
+                        DBConstants.FLIGHTENTRIES_USERNAME).getValue());
+            }
+        }
+        if (!pilots.isEmpty()) {
+            try {
+                SessionContext.getCurrent().getFlightsContainer()
+                        .getDutyCompliance().preload(pilots);
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "Failed to load duties", e);
+            }
+        }
+
+        super.paintContent(target);
+    }
+
+    private static boolean isCommercial(Item item) {
+
+        return item.getItemProperty(DBConstants.FLIGHTENTRIES_FLIGHT_ID)
+                .getValue() != null
+                && Integer.valueOf(FlightType.COMMERCIAL.ordinal()).equals(
+                        item.getItemProperty(
+                                DBConstants.FLIGHTENTRIES_FLIGHT_TYPE)
+                                .getValue());
+    }
+
+    /**
+     * Returns duty violation flags of committed commercial flight, 0 for
+     * others and if duties cannot be loaded. Called from style and
+     * description generators, which must not throw.
+     */
+    private int getDutyViolations(Object itemId) {
+
+        Item item = getItem(itemId);
+        if (item == null || !isCommercial(item)) {
+            return 0;
+        }
+        Object flightId = item.getItemProperty(
+                DBConstants.FLIGHTENTRIES_FLIGHT_ID).getValue();
+
+        try {
+            return SessionContext
+                    .getCurrent()
+                    .getFlightsContainer()
+                    .getDutyCompliance()
+                    .getViolations(
+                            (String) item.getItemProperty(
+                                    DBConstants.FLIGHTENTRIES_USERNAME)
+                                    .getValue(), (Integer) flightId);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Failed to load duties", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns shared airport tooltips, looked up again if airport index has
+     * been reloaded.
+     */
+    private AirportTooltips getAirports() {
+
+        try {
+            AirportIndex index = AirportIndex.get(SessionContext.getCurrent()
+                    .getDBConnection());
+            if (airports == null || airports.getIndex() != index) {
+                airports = AirportTooltips.get(index);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load airports: "
+                    + e.toString());
+        }
+        return airports;
+    }
+
     @Override
     protected String formatPropertyValue(Object rowId, Object colId,
             Property<?> property) {
@@ -106,147 +287,83 @@ public class FlightsTable extends Table {
         if (colId.equals(DBConstants.FLIGHTENTRIES_DATE)
                 || colId.equals(DBConstants.FLIGHTENTRIES_DEPARTURE_TIME)
                 || colId.equals(DBConstants.FLIGHTENTRIES_LANDING_TIME)) {
-            long time = (Integer) property.getValue();
-            return dateFormat.format(new Date(time * 1000L));
+            Integer time = (Integer) property.getValue();
+            return time == null ? "" : dateFormat.format(time);
+        }
+        if (colId.equals(DBConstants.FLIGHTENTRIES_DISTANCE)) {
+            Object meters = property.getValue();
+            return meters instanceof Number ? String.valueOf(FlightDistances
+                    .toNauticalMiles(((Number) meters).longValue())) : "";
         }
         return super.formatPropertyValue(rowId, colId, property);
     }
 
     /**
-     * Generator for columns.
+     * Generator for columns. Cells are plain strings, so no components are
+     * created per row.
      */
     private class TableColumnGenerator implements Table.ColumnGenerator {
 
-        // private UsersContainer usersContainer;
-        private AirportsContainer airportsContainer;
-
-        public TableColumnGenerator() {
-
-            // usersContainer = SessionContext.getCurrent().getUsersContainer();
-
-            airportsContainer = SessionContext.getCurrent()
-                    .getAirportsContainer();
-        }
-
         @Override
         public Object generateCell(Table table, Object itemId, Object columnId) {
 
-            Property prop = table.getItem(itemId).getItemProperty(columnId);
-
-            // if (columnId.equals(DBConstants.AIRCRAFTS_USERNAME)) {
-            //
-            // /**
-            // * Get username and create fullname by accessing UsersContainer.
-            // */
-            // String username = (String) prop.getValue();
-            //
-            // UserItem useritem = usersContainer.getItem(username);
-            //
-            // Label label = new Label(username);
-            // label.setDescription(useritem.getFirstname() + " "
-            // + useritem.getLastname());
-            // return label;
-            // }
+            Item item = table.getItem(itemId);
 
             if (columnId.equals(DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT)
                     || columnId
                             .equals(DBConstants.FLIGHTENTRIES_LANDING_AIRPORT)) {
 
                 /**
-                 * Change airport id to nicer string form. To do this, we need
-                 * to access AirportsContainer.
+                 * Change airport id to name, tooltip comes from item
+                 * description generator.
                  */
-                Integer port = (Integer) prop.getValue();
-
-                Label label = new Label();
-                if (port != null) {
-
-                    AirportItem apitem = airportsContainer.getItem(port);
-                    String country = apitem.getCountry();
-                    String name = apitem.getName();
-
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("<ul><li><b>Airport</b>: ").append(name)
-                            .append("</li>");
-                    sb.append("<li><b>Country</b>: ").append(country)
-                            .append("</li>");
-                    sb.append("<li><b>City</b>: ").append(apitem.getCity())
-                            .append("</li>");
-                    sb.append("<li><b>ICAO</b>: ").append(apitem.getICAOCode())
-                            .append("</li</ul>");
-
-                    label.setValue(name);
-                    label.setDescription(sb.toString());
-
-                    // Resource res = (Resource) airportsContainer
-                    // .getCountriesContainer()
-                    // .getItem(country)
-                    // .getItemProperty(
-                    // AirportsContainer.PID_COUNTRIES_ICON)
-                    // .getValue();
-                    // label.setIcon(res);
-                    // label.setImmediate(true);
-
-                    // Image img = new Image("", res);
-                    //
-                    // HorizontalLayout layout = new HorizontalLayout();
-                    // layout.setSizeUndefined();
-                    // layout.setSpacing(true);
-                    // layout.addComponent(label);
-                    // layout.addComponent(img);
-                    // layout.setComponentAlignment(img,
-                    // Alignment.MIDDLE_CENTER);
-
-                    return label;
+                Integer port = (Integer) item.getItemProperty(columnId)
+                        .getValue();
+                if (port == null) {
+                    return "";
                 }
-
-                return label;
+                String name = getAirports().getName(port);
+                return name != null ? name : String.valueOf(port);
             }
 
             if (columnId.equals(DBConstants.FLIGHTENTRIES_FLIGHT_TYPE)) {
 
-                FlightType type = FlightType.toEnum((Integer) prop.getValue());
+                FlightType type = FlightType.toEnum((Integer) item
+                        .getItemProperty(columnId).getValue());
 
                 return type.getName();
             }
 
             if (columnId.equals(GEN_FLIGHT_TIME)) {
 
-                int depTime = (Integer) table
-                        .getItem(itemId)
-                        .getItemProperty(
-                                DBConstants.FLIGHTENTRIES_DEPARTURE_TIME)
-                        .getValue();
+                Integer depTime = (Integer) item.getItemProperty(
+                        DBConstants.FLIGHTENTRIES_DEPARTURE_TIME).getValue();
 
-                int landTime = (Integer) table
-                        .getItem(itemId)
-                        .getItemProperty(DBConstants.FLIGHTENTRIES_LANDING_TIME)
-                        .getValue();
+                Integer landTime = (Integer) item.getItemProperty(
+                        DBConstants.FLIGHTENTRIES_LANDING_TIME).getValue();
 
-                String timeText;
-
-                int time_s = landTime - depTime;
+                if (depTime == null || landTime == null) {
+                    return "";
+                }
 
                 /**
                  * Flight time format H:mm
                  */
-                if (time_s >= 0) {
-                    int hours = time_s / (60 * 60);
-                    int minutes = (time_s - hours * (60 * 60)) / 60;
-
-                    timeText = String.valueOf(minutes);
-                    if (timeText.length() == 1) {
-                        timeText = "0" + timeText;
-                    }
-                    timeText = hours + ":" + timeText;
-                } else {
-                    timeText = "<E>";
-                }
+                return dateFormat.formatDuration(landTime - depTime);
+            }
 
-                return timeText;
-                // Label label = new Label(timeText);
-                // return label;
+            if (columnId.equals(GEN_NOTES_MATCH)) {
 
+                /**
+                 * Only cells with a component, and only while searching.
+                 */
+                Property<?> snippet = item
+                        .getItemProperty(FlightsContainer.PID_NOTES_SNIPPET);
+                if (snippet == null || snippet.getValue() == null) {
+                    return "";
+                }
+                return new Label(FlightNotesIndex.snippetToHtml(snippet
+                        .getValue().toString()), ContentMode.HTML);
             }
 
             return null;
@@ -3,6 +3,7 @@ package hlrv.flybook;
 import hlrv.flybook.auth.User;
 import hlrv.flybook.db.containers.FlightsContainer;
 import hlrv.flybook.db.items.FlightItem;
+import hlrv.flybook.session.SessionState;
 
 import java.sql.SQLException;
 import java.util.Date;
@@ -12,6 +13,7 @@ import com.vaadin.data.Container.ItemSetChangeEvent;
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
 import com.vaadin.data.Property.ValueChangeEvent;
+import com.vaadin.data.util.sqlcontainer.RowId;
 import com.vaadin.shared.ui.datefield.Resolution;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.Button.ClickEvent;
@@ -21,6 +23,7 @@ import com.vaadin.ui.DateField;
 import com.vaadin.ui.HorizontalLayout;
 import com.vaadin.ui.Notification;
 import com.vaadin.ui.Panel;
+import com.vaadin.ui.TextField;
 import com.vaadin.ui.UI;
 import com.vaadin.ui.VerticalLayout;
 import com.vaadin.ui.Window;
@@ -67,11 +70,21 @@ public class FlightsView extends CustomComponent implements
      */
     private DateField dateRangeToFilter;
 
+    /**
+     * Full-text search of notes.
+     */
+    private TextField notesSearchFilter;
+
     /**
      * Table to show some read-only (for now?) columns of filtered flights.
      */
     private FlightsTable table;
 
+    /**
+     * Logbook totals of filtered pilot.
+     */
+    private FlightTotalsPanel totalsPanel;
+
     /**
      * Controls to manage selected table entry.
      */
@@ -83,12 +96,25 @@ public class FlightsView extends CustomComponent implements
      */
     private NewFlightDialog newFlightDialog = null;
 
+    /**
+     * Serializable session state, filters and selection are restored from
+     * and saved to it.
+     */
+    private SessionState sessionState;
+
+    /**
+     * False while constructor sets initial values, so those are not written
+     * back to session store.
+     */
+    private boolean saveStateChanges = false;
+
     public FlightsView() {
         super();
 
         setSizeFull();
 
         flightsContainer = SessionContext.getCurrent().getFlightsContainer();
+        sessionState = SessionContext.getCurrent().getState();
 
         /**
          * We will have two main sub components: table and details panel.
@@ -106,6 +132,8 @@ public class FlightsView extends CustomComponent implements
         // table.setHeight("100%");
         table.setSizeFull();
 
+        totalsPanel = new FlightTotalsPanel();
+
         /**
          * Filter by pilot username.
          */
@@ -118,7 +146,12 @@ public class FlightsView extends CustomComponent implements
         comboPilotFilter.setImmediate(true);
         comboPilotFilter.addItem("All");
         comboPilotFilter.addItem(username);
-        comboPilotFilter.setValue(username);
+        if (sessionState.getPilotFilter() != null) {
+            comboPilotFilter.addItem(sessionState.getPilotFilter());
+            comboPilotFilter.setValue(sessionState.getPilotFilter());
+        } else {
+            comboPilotFilter.setValue(username);
+        }
 
         /**
          * Filter by dat.
@@ -126,7 +159,8 @@ public class FlightsView extends CustomComponent implements
         dateRangeFromFilter = new DateField("Date From");
         dateRangeFromFilter.setResolution(Resolution.MINUTE);
         // dateRangeFromFilter.setTimeZone(TimeZone.getTimeZone("GMT+0"));
-        dateRangeFromFilter.setValue(new Date(0));
+        dateRangeFromFilter.setValue(sessionState.getDateFromFilter() != null ? new Date(
+                sessionState.getDateFromFilter() * 1000L) : new Date(0));
         dateRangeFromFilter.addValueChangeListener(this);
         dateRangeFromFilter.setImmediate(true);
 
@@ -134,7 +168,9 @@ public class FlightsView extends CustomComponent implements
         dateRangeToFilter.setResolution(Resolution.MINUTE);
         // dateRangeToFilter.setTimeZone(TimeZone.getTimeZone("GMT+0"));
         // Advance some years from 1970
-        dateRangeToFilter.setValue(new Date(60 * 365 * 24 * 60 * 60 * 1000L));
+        dateRangeToFilter.setValue(sessionState.getDateToFilter() != null ? new Date(
+                sessionState.getDateToFilter() * 1000L) : new Date(
+                60 * 365 * 24 * 60 * 60 * 1000L));
         dateRangeToFilter.addValueChangeListener(this);
         dateRangeToFilter.setImmediate(true);
 
@@ -150,7 +186,21 @@ public class FlightsView extends CustomComponent implements
             comboFlightTypeFilter.addItem(type.getName());
         }
         comboFlightTypeFilter.addItem("All");
-        comboFlightTypeFilter.setValue("All");
+        if (sessionState.getFlightTypeFilter() != null) {
+            comboFlightTypeFilter.setValue(FlightType.toEnum(
+                    sessionState.getFlightTypeFilter()).getName());
+        } else {
+            comboFlightTypeFilter.setValue("All");
+        }
+
+        /**
+         * Search notes, combined with the other filters.
+         */
+        notesSearchFilter = new TextField("Search Notes");
+        notesSearchFilter.setWidth(12.0f, Unit.EM);
+        notesSearchFilter.setNullRepresentation("");
+        notesSearchFilter.addValueChangeListener(this);
+        notesSearchFilter.setImmediate(true);
 
         /**
          * Create components below table.
@@ -188,6 +238,7 @@ public class FlightsView extends CustomComponent implements
         filtersLayout.addComponent(dateRangeFromFilter);
         filtersLayout.addComponent(dateRangeToFilter);
         filtersLayout.addComponent(comboFlightTypeFilter);
+        filtersLayout.addComponent(notesSearchFilter);
 
         Panel filterPanel = new Panel("Filter By", filtersLayout);
         // filterPanel.setSizeFull();
@@ -210,6 +261,7 @@ public class FlightsView extends CustomComponent implements
         leftLayout.addComponent(filterPanel);
         leftLayout.addComponent(table);
         leftLayout.addComponent(bottomButtonLayout);
+        leftLayout.addComponent(totalsPanel);
         // leftLayout.setExpandRatio(filterPanel, 0.0f);
         leftLayout.setExpandRatio(table, 1.0f);
         // leftLayout.setExpandRatio(bottomButtonLayout, 0.0f);
@@ -231,6 +283,26 @@ public class FlightsView extends CustomComponent implements
         // horizontalSplitPanel.setSplitPosition(50f);
 
         setCompositionRoot(horizontalLayout);
+
+        /**
+         * Restore selected flight.
+         */
+        Integer selectedId = sessionState.getSelectedFlightId();
+        if (selectedId != null && flightsContainer.containsItem(selectedId)) {
+            table.select(new RowId(new Object[] { selectedId }));
+        }
+
+        saveStateChanges = true;
+    }
+
+    /**
+     * Writes session state to store unless view is still being constructed.
+     */
+    private void saveState() {
+
+        if (saveStateChanges) {
+            SessionContext.getCurrent().saveState();
+        }
     }
 
     /**
@@ -265,6 +337,12 @@ public class FlightsView extends CustomComponent implements
 
             valueChangeFlightTypeFilter(event);
 
+        } else if (event.getProperty() == notesSearchFilter) {
+
+            boolean searching = flightsContainer
+                    .filterByNotes(notesSearchFilter.getValue());
+            table.setNotesMatchVisible(searching);
+
         } else if (event.getProperty() == table) {
 
             valueChangeTableSelection(event);
@@ -287,11 +365,16 @@ public class FlightsView extends CustomComponent implements
         if (pilot.toUpperCase().equals("ALL")) {
 
             flightsContainer.filterByUser(null);
+            totalsPanel.setPilot(null);
 
         } else {
 
             flightsContainer.filterByUser(pilot);
+            totalsPanel.setPilot(pilot);
         }
+
+        sessionState.setPilotFilter(pilot);
+        saveState();
     }
 
     /**
@@ -319,8 +402,13 @@ public class FlightsView extends CustomComponent implements
             return;
         }
 
-        flightsContainer.filterByDate((int) (dateFrom.getTime() / 1000L),
-                (int) (dateTo.getTime() / 1000L));
+        int timeFrom = (int) (dateFrom.getTime() / 1000L);
+        int timeTo = (int) (dateTo.getTime() / 1000L);
+
+        flightsContainer.filterByDate(timeFrom, timeTo);
+
+        sessionState.setDateFilter(timeFrom, timeTo);
+        saveState();
     }
 
     /**
@@ -336,6 +424,7 @@ public class FlightsView extends CustomComponent implements
              * Disable filters.
              */
             flightsContainer.filterByFlightType(null);
+            sessionState.setFlightTypeFilter(null);
         } else {
             for (FlightType t : FlightType.values()) {
                 if (t.getName().equals(selectedType)) {
@@ -344,10 +433,13 @@ public class FlightsView extends CustomComponent implements
                      * Set filter.
                      */
                     flightsContainer.filterByFlightType(t.ordinal());
+                    sessionState.setFlightTypeFilter(t.ordinal());
                     break;
                 }
             }
         }
+
+        saveState();
     }
 
     /**
@@ -370,6 +462,10 @@ public class FlightsView extends CustomComponent implements
         deleteButton.setEnabled(enableDeletion);
 
         flightDetails.setItem(item);
+
+        sessionState.setSelectedFlightId(item.isNull() ? null : item
+                .getFlightID());
+        saveState();
     }
 
     @Override
@@ -482,5 +578,11 @@ public class FlightsView extends CustomComponent implements
     public void containerItemSetChange(ItemSetChangeEvent event) {
 
         table.sanitizeSelection();
+
+        /**
+         * Container is refreshed after every commit, totals come from cache
+         * unless committed flights changed them.
+         */
+        totalsPanel.refresh();
     }
 }
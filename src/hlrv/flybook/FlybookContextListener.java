@@ -0,0 +1,67 @@
+package hlrv.flybook;
+
+import hlrv.flybook.db.FleetAggregator;
+import hlrv.flybook.db.FlightBackfill;
+import hlrv.flybook.db.FlightColumns;
+import hlrv.flybook.db.FlightSketches;
+import hlrv.flybook.db.FlightTracks;
+import hlrv.flybook.db.PilotRecency;
+import hlrv.flybook.map.Tiles;
+import hlrv.flybook.session.FileSessionStore;
+import hlrv.flybook.session.SessionMonitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Releases application wide resources when the web application is stopped or
+ * redeployed: background executors are shut down and MBeans unregistered, so
+ * their threads and the MBean server do not keep the old class loader alive.
+ */
+public class FlybookContextListener implements ServletContextListener {
+
+    private static final Logger logger = Logger
+            .getLogger("FlybookContextListener");
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+
+        SessionMonitor.shutdown();
+        FileSessionStore.shutdown();
+        Tiles.shutdown();
+        FleetAggregator.shutdown();
+        PilotRecency.shutdown();
+        FlightSketches.shutdown();
+        FlightBackfill.shutdown();
+        FlightTracks.shutdown();
+        FlightColumns.invalidate();
+
+        /**
+         * Everything registered by the application is in the hlrv.flybook
+         * domain, including caches registered by LRUCache.register.
+         */
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (ObjectName name : server.queryNames(new ObjectName(
+                    "hlrv.flybook:*"), null)) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Failed to unregister " + name, e);
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to query MBeans", e);
+        }
+    }
+}
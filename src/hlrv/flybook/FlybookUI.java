@@ -5,16 +5,29 @@ import hlrv.flybook.auth.User;
 import hlrv.flybook.conv.CustomConverterFactory;
 import hlrv.flybook.db.DBConnection;
 import hlrv.flybook.managers.UserManager;
+import hlrv.flybook.session.FileSessionStore;
+import hlrv.flybook.session.SessionMonitor;
+import hlrv.flybook.session.SessionState;
+import hlrv.flybook.session.SessionStore;
 
+import java.io.File;
+import java.security.SecureRandom;
+import java.sql.SQLException;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
 import com.vaadin.annotations.Theme;
 import com.vaadin.data.util.BeanItem;
 import com.vaadin.data.util.sqlcontainer.connection.JDBCConnectionPool;
 import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinService;
 import com.vaadin.ui.UI;
 
 /**
@@ -25,11 +38,37 @@ import com.vaadin.ui.UI;
 @Theme("flybook")
 public class FlybookUI extends UI {
 
-    private Auth authenticator = null;
+    /**
+     * Not serializable, created again on first use after deserialization.
+     */
+    private transient Auth authenticator = null;
     private final BeanItem<User> user = null;
-    private SessionContext context = null;
+
+    /**
+     * Database connection pool is shared by all sessions. It is created (and
+     * migrations run) by the first UI, not by every visitor.
+     */
     private static DBConnection pool = null;
 
+    /**
+     * Store of serializable session state, shared by all sessions.
+     */
+    private static SessionStore sessionStore = null;
+
+    private static final SecureRandom keyRandom = new SecureRandom();
+
+    /**
+     * Cookie holding SessionStore key.
+     */
+    private static final String SESSION_COOKIE = "flybook-session";
+
+    /**
+     * How long a stored session logs the user in after login, set with
+     * system property "flybook.session.maxAgeHours".
+     */
+    private static final long SESSION_MAX_AGE_MS = TimeUnit.HOURS
+            .toMillis(Long.getLong("flybook.session.maxAgeHours", 12));
+
     public BeanItem<User> getUser() /* throws Exception */{
         // XXX: This is a temporary solution until registration is working
         // User testUser = new User("andven", "Andre", "Venter",
@@ -37,7 +76,7 @@ public class FlybookUI extends UI {
         // BeanItem<User> user = new BeanItem<User>(testUser);
         BeanItem<User> user = null;
         try {
-            user = this.authenticator.getCurrentUser();
+            user = getAuth().getCurrentUser();
         } catch (Exception e) {
             Logger logger = Logger.getLogger("FlybookUI");
             logger.log(new LogRecord(Level.WARNING, "User not logged in"));
@@ -51,26 +90,248 @@ public class FlybookUI extends UI {
 
     }
 
+    /**
+     * Returns shared DBConnection, creating it on first call.
+     */
+    public static synchronized DBConnection getDBConnection()
+            throws SQLException {
+
+        if (FlybookUI.pool == null) {
+            FlybookUI.pool = new DBConnection();
+        }
+        return FlybookUI.pool;
+    }
+
+    /**
+     * Returns store for serializable session state, creating it on first
+     * call. Directory can be set with system property "flybook.session.dir"
+     * and should point to shared storage when running several nodes.
+     */
+    public static synchronized SessionStore getSessionStore() {
+
+        if (FlybookUI.sessionStore == null) {
+            String dir = System.getProperty("flybook.session.dir");
+            if (dir == null) {
+                dir = VaadinService.getCurrent().getBaseDirectory()
+                        .toString()
+                        + "/sessions";
+            }
+            FlybookUI.sessionStore = new FileSessionStore(new File(dir));
+        }
+        return FlybookUI.sessionStore;
+    }
+
+    /**
+     * Creates SessionContext for the session. Must be called only after
+     * user has been authenticated, views expect the context to exist.
+     * 
+     * Every login gets a new key, and the state of a previous login in the
+     * session (same or another user) is removed from SessionStore, so a key
+     * seen before login never logs anyone in.
+     */
+    public SessionContext createSessionContext() {
+
+        String username = getUser().getBean().getUsername();
+
+        SessionContext previous = SessionContext.getCurrent();
+        if (previous != null) {
+            getSessionStore().remove(previous.getSessionKey());
+            SessionContext.clear(getSession());
+        }
+
+        /**
+         * New state is stored under fresh random key that is handed to
+         * browser as cookie, so any node can resume the session.
+         */
+        String key = createSessionKey();
+        SessionState state = new SessionState(username,
+                System.currentTimeMillis() + SESSION_MAX_AGE_MS);
+        SessionContext context = new SessionContext(getSession(), key, state);
+        context.saveState();
+
+        setSessionCookie(key,
+                (int) TimeUnit.MILLISECONDS.toSeconds(SESSION_MAX_AGE_MS));
+
+        return context;
+    }
+
+    /**
+     * Logs user out and forgets session state.
+     */
+    public void logout() {
+
+        SessionContext context = SessionContext.getCurrent();
+        if (context != null) {
+            getSessionStore().remove(context.getSessionKey());
+            SessionContext.clear(getSession());
+        }
+
+        setSessionCookie("", 0);
+
+        getAuth().logout();
+    }
+
+    /**
+     * Tries to resume session from state stored in SessionStore (e.g. after
+     * failover to another node or restart). Returns true on success.
+     */
+    private boolean resumeSession(VaadinRequest request) {
+
+        SessionContext context = SessionContext.getCurrent();
+        if (context == null) {
+
+            String key = null;
+            Cookie[] cookies = request.getCookies();
+            if (cookies != null) {
+                for (Cookie c : cookies) {
+                    if (SESSION_COOKIE.equals(c.getName())) {
+                        key = c.getValue();
+                    }
+                }
+            }
+            if (key == null || key.isEmpty()) {
+                return false;
+            }
+
+            /**
+             * Store does not return expired states.
+             */
+            SessionState state = getSessionStore().load(key);
+            if (state == null) {
+                return false;
+            }
+
+            context = new SessionContext(getSession(), key, state);
+        } else if (context.getState().isExpired(System.currentTimeMillis())) {
+
+            getSessionStore().remove(context.getSessionKey());
+            SessionContext.clear(getSession());
+            return false;
+        } else {
+
+            /**
+             * Context came with a deserialized session.
+             */
+            SessionMonitor.get().register(getSession());
+        }
+
+        try {
+            getAuth().resume(context.getState().getUsername());
+        } catch (Exception e) {
+            SessionContext.clear(getSession());
+            return false;
+        }
+
+        return true;
+    }
+
+    private static String createSessionKey() {
+
+        byte[] bytes = new byte[20];
+        keyRandom.nextBytes(bytes);
+
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sets session cookie, maxAge 0 deletes it. Cookie is HttpOnly, and
+     * Secure when the request came over HTTPS. Servlet 2.5 Cookie has no
+     * HttpOnly, so the header is written directly when possible.
+     */
+    private static void setSessionCookie(String value, int maxAge) {
+
+        VaadinResponse response = VaadinService.getCurrentResponse();
+        boolean secure = VaadinService.getCurrentRequest().isSecure();
+
+        if (response instanceof HttpServletResponse) {
+            StringBuilder header = new StringBuilder(SESSION_COOKIE)
+                    .append('=').append(value).append("; Path=")
+                    .append(getCookiePath()).append("; Max-Age=")
+                    .append(maxAge);
+            if (maxAge == 0) {
+                header.append("; Expires=Thu, 01 Jan 1970 00:00:00 GMT");
+            }
+            if (secure) {
+                header.append("; Secure");
+            }
+            header.append("; HttpOnly");
+            ((HttpServletResponse) response).addHeader("Set-Cookie",
+                    header.toString());
+        } else {
+            Cookie cookie = new Cookie(SESSION_COOKIE, value);
+            cookie.setPath(getCookiePath());
+            cookie.setMaxAge(maxAge);
+            cookie.setSecure(secure);
+            response.addCookie(cookie);
+        }
+    }
+
+    private static String getCookiePath() {
+
+        String path = VaadinService.getCurrentRequest().getContextPath();
+        return (path == null || path.isEmpty()) ? "/" : path;
+    }
+
+    /**
+     * Returns authenticator of the UI. After the session has been
+     * deserialized it is created again, and the user of unexpired session
+     * state is logged in.
+     */
     public Auth getAuth() {
+
+        if (this.authenticator == null) {
+            this.authenticator = createAuth();
+
+            SessionContext context = SessionContext.get(getSession());
+            if (context != null
+                    && !context.getState().isExpired(
+                            System.currentTimeMillis())) {
+                try {
+                    this.authenticator.resume(context.getState()
+                            .getUsername());
+                } catch (Exception e) {
+                    Logger.getLogger("FlybookUI").log(Level.WARNING,
+                            "Failed to resume user after deserialization", e);
+                }
+            }
+        }
         return this.authenticator;
     }
 
+    private static Auth createAuth() {
+
+        try {
+            return new Auth(new UserManager(getDBConnection().getPool()));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Database is not available", e);
+        }
+    }
+
     @Override
     protected void init(VaadinRequest request) {
         try {
             getPage().setTitle("Flybook");
 
-            FlybookUI.pool = new DBConnection();
-
-            this.authenticator = new Auth(new UserManager(
-                    FlybookUI.pool.getPool()));
+            this.authenticator = createAuth();
 
-            this.context = new SessionContext(getSession(), FlybookUI.pool);
+            /**
+             * NOTE: SessionContext is not created here. LoginForm creates it
+             * after successful login, or it is resumed from SessionStore.
+             */
 
             getSession().setConverterFactory(new CustomConverterFactory());
             getSession().setLocale(Locale.getDefault());
 
-            setContent(new LoginView());
+            if (resumeSession(request)) {
+                setContent(new MainView());
+            } else {
+                setContent(new LoginView());
+            }
 
         } catch (Exception e) {
             System.err.println(e.toString());
@@ -51,8 +51,6 @@ public class LoginForm extends CustomComponent {
      */
     private final FieldGroup form;
 
-    private final Auth auth;
-
     private final Button login;
 
     /**
@@ -69,7 +67,6 @@ public class LoginForm extends CustomComponent {
         layout = new VerticalLayout();
         form = new FieldGroup();
         register = new Button("Register");
-        auth = ((FlybookUI) UI.getCurrent()).getAuth();
         login = new Button("Login");
 
         /*
@@ -132,11 +129,18 @@ public class LoginForm extends CustomComponent {
                  */
                 try {
 
+                    Auth auth = ((FlybookUI) UI.getCurrent()).getAuth();
                     auth.login((String) item.getItemProperty("username")
                             .getValue(),
                             (String) item.getItemProperty("password")
                                     .getValue());
 
+                    /**
+                     * Session data layer is created only for authenticated
+                     * users.
+                     */
+                    ((FlybookUI) UI.getCurrent()).createSessionContext();
+
                     UI.getCurrent().getUI().setContent(new MainView());
 
                 } catch (final Exception e) {
@@ -1,13 +1,17 @@
 package hlrv.flybook;
 
+import com.vaadin.ui.Component;
 import com.vaadin.ui.CustomComponent;
 import com.vaadin.ui.TabSheet;
+import com.vaadin.ui.TabSheet.SelectedTabChangeEvent;
+import com.vaadin.ui.UI;
 import com.vaadin.ui.VerticalLayout;
 
 /**
  * This is the main view of the application
  */
-public class MainView extends CustomComponent {
+public class MainView extends CustomComponent implements
+        TabSheet.SelectedTabChangeListener {
 
     /*
      * layout for composition root
@@ -19,11 +23,23 @@ public class MainView extends CustomComponent {
      */
     private final MenuComponent menu;
 
+    /*
+     * recency of logged in pilot, below menu
+     */
+    private final RecencyPanel recency;
+
     /*
      * tabsheet
      */
     private final TabSheet tabs;
 
+    /*
+     * placeholders of tabs whose views have not been created yet
+     */
+    private final VerticalLayout airportsPlaceholder;
+    private final VerticalLayout aircraftsPlaceholder;
+    private final VerticalLayout fleetPlaceholder;
+
     /**
      * This class provides the main view for the user logged in
      */
@@ -35,6 +51,8 @@ public class MainView extends CustomComponent {
         menu = new MenuComponent();
         menu.setWidth("100%");
 
+        recency = new RecencyPanel();
+
         tabs = new TabSheet();
         tabs.setSizeFull();
 
@@ -48,16 +66,43 @@ public class MainView extends CustomComponent {
         tabs.setSizeFull();
 
         /*
-         * TabSheet configs
+         * TabSheet configs. Only the first tab view is created now, the
+         * others (and the containers they need) are created when the tab is
+         * first selected.
          */
+        airportsPlaceholder = new VerticalLayout();
+        airportsPlaceholder.setSizeFull();
+        aircraftsPlaceholder = new VerticalLayout();
+        aircraftsPlaceholder.setSizeFull();
+
         tabs.addTab(new FlightsView(), "Flights");
-        tabs.addTab(new AirportsView(), "Airports");
-        tabs.addTab(new AircraftsView(), "Aircrafts");
+        tabs.addTab(airportsPlaceholder, "Airports");
+        tabs.addTab(aircraftsPlaceholder, "Aircrafts");
+
+        /*
+         * Fleet-wide statistics for admins only
+         */
+        fleetPlaceholder = new VerticalLayout();
+        fleetPlaceholder.setSizeFull();
+        if (((FlybookUI) UI.getCurrent()).getUser().getBean().isAdmin()) {
+            tabs.addTab(fleetPlaceholder, "Fleet");
+        }
+        tabs.addSelectedTabChangeListener(this);
+
+        /*
+         * Restore tab selected before failover/restart
+         */
+        int selectedTab = SessionContext.getCurrent().getState()
+                .getSelectedTab();
+        if (selectedTab > 0 && selectedTab < tabs.getComponentCount()) {
+            tabs.setSelectedTab(selectedTab);
+        }
 
         /*
          * Components to layout
          */
         rootLayout.addComponent(menu);
+        rootLayout.addComponent(recency);
         rootLayout.addComponent(tabs);
         rootLayout.setExpandRatio(tabs, 1.0f);
 
@@ -66,4 +111,33 @@ public class MainView extends CustomComponent {
          */
         setCompositionRoot(rootLayout);
     }
+
+    @Override
+    public void selectedTabChange(SelectedTabChangeEvent event) {
+
+        Component selected = tabs.getSelectedTab();
+
+        if (selected == airportsPlaceholder
+                && airportsPlaceholder.getComponentCount() == 0) {
+
+            airportsPlaceholder.addComponent(new AirportsView());
+
+        } else if (selected == aircraftsPlaceholder
+                && aircraftsPlaceholder.getComponentCount() == 0) {
+
+            aircraftsPlaceholder.addComponent(new AircraftsView());
+
+        } else if (selected == fleetPlaceholder
+                && fleetPlaceholder.getComponentCount() == 0) {
+
+            fleetPlaceholder.addComponent(new FleetDashboard());
+        }
+
+        SessionContext context = SessionContext.getCurrent();
+        int position = tabs.getTabPosition(tabs.getTab(selected));
+        if (context.getState().getSelectedTab() != position) {
+            context.getState().setSelectedTab(position);
+            context.saveState();
+        }
+    }
 }
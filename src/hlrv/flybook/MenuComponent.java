@@ -15,7 +15,7 @@ public class MenuComponent extends CustomComponent {
         @Override
         public void menuSelected(MenuItem selectedItem) {
 
-            ((FlybookUI) UI.getCurrent()).getAuth().logout();
+            ((FlybookUI) UI.getCurrent()).logout();
 
             try {
                 UI.getCurrent().setContent(new LoginView());
@@ -0,0 +1,114 @@
+package hlrv.flybook;
+
+import hlrv.flybook.conv.EpochFormatter;
+import hlrv.flybook.db.PilotRecency;
+
+import java.sql.SQLException;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Container.ItemSetChangeEvent;
+import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Notification;
+import com.vaadin.ui.Panel;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.themes.Reindeer;
+
+/**
+ * Shows recency of logged in pilot from PilotRecency. Refreshed when flights
+ * container changes.
+ */
+public class RecencyPanel extends Panel implements
+        Container.ItemSetChangeListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String STYLE_EXPIRED = "recency-expired";
+
+    private EpochFormatter formatter = new EpochFormatter();
+
+    private PilotRecency recency;
+
+    private String pilot;
+
+    private Label labelLandings;
+    private Label labelIFRTime;
+    private Label labelNightTime;
+
+    public RecencyPanel() {
+
+        super("Recency");
+
+        SessionContext context = SessionContext.getCurrent();
+        recency = PilotRecency.get(context.getDBConnection());
+        pilot = ((FlybookUI) UI.getCurrent()).getUser().getBean()
+                .getUsername();
+
+        addStyleName(Reindeer.PANEL_LIGHT);
+
+        labelLandings = new Label();
+        labelLandings.setCaption("Landings (" + PilotRecency.LANDINGS_DAYS
+                + " days)");
+        labelIFRTime = new Label();
+        labelIFRTime.setCaption("IFR Time (" + PilotRecency.IFR_DAYS
+                + " days)");
+        labelNightTime = new Label();
+        labelNightTime.setCaption("Night Time (" + PilotRecency.NIGHT_DAYS
+                + " days)");
+
+        HorizontalLayout layout = new HorizontalLayout();
+        layout.setSpacing(true);
+        layout.setSizeUndefined();
+        layout.addComponent(labelLandings);
+        layout.addComponent(labelIFRTime);
+        layout.addComponent(labelNightTime);
+
+        setContent(layout);
+
+        context.getFlightsContainer().getContainer()
+                .addItemSetChangeListener(this);
+
+        refresh();
+    }
+
+    /**
+     * Shows current recency, tracker is updated by flight commits.
+     */
+    public void refresh() {
+
+        PilotRecency.Recency r;
+        try {
+            r = recency.getRecency(pilot);
+        } catch (SQLException e) {
+            Notification.show("Failed to load recency", e.toString(),
+                    Notification.Type.WARNING_MESSAGE);
+            return;
+        }
+
+        labelLandings.setValue(r.getLandings() + " / "
+                + PilotRecency.REQUIRED_LANDINGS);
+        setExpired(labelLandings, !r.isLandingCurrent());
+
+        labelIFRTime.setValue(formatter.formatDuration(r.getIFRMinutes() * 60)
+                + " / "
+                + formatter.formatDuration(PilotRecency.REQUIRED_IFR_MINUTES * 60));
+        setExpired(labelIFRTime, !r.isIFRCurrent());
+
+        labelNightTime.setValue(formatter.formatDuration(r
+                .getNightMinutes() * 60));
+    }
+
+    @Override
+    public void containerItemSetChange(ItemSetChangeEvent event) {
+        refresh();
+    }
+
+    private static void setExpired(Label label, boolean expired) {
+
+        if (expired) {
+            label.addStyleName(STYLE_EXPIRED);
+        } else {
+            label.removeStyleName(STYLE_EXPIRED);
+        }
+    }
+}
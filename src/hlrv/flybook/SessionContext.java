@@ -4,90 +4,273 @@ import hlrv.flybook.db.DBConnection;
 import hlrv.flybook.db.containers.AircraftsContainer;
 import hlrv.flybook.db.containers.AirportsContainer;
 import hlrv.flybook.db.containers.FlightsContainer;
+import hlrv.flybook.session.SessionMonitor;
+import hlrv.flybook.session.SessionState;
 
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
 
 import com.vaadin.server.VaadinSession;
 
-public class SessionContext {
+/**
+ * SessionContext holds the per-session data layer of authenticated user.
+ *
+ * Context is created only after successful login (see
+ * {@link FlybookUI#createSessionContext()}) and each container is created on
+ * first use, so anonymous visitors that only see LoginView cost no container
+ * memory or database work.
+ *
+ * Context is split in two parts: small serializable {@link SessionState}
+ * (also kept in SessionStore) and transient containers that are rebuilt on
+ * demand. Serialized context is therefore only a few hundred bytes and
+ * sessions can move between nodes.
+ */
+public class SessionContext implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     /**
-     * Database connections manager.
+     * Session attribute name of the context.
      */
-    private final DBConnection dbconn;
+    private static final String ATTRIBUTE = "context";
 
     /**
-     * Container for Users table.
+     * SessionStore key of the state.
      */
-    // private final UsersContainer usersContainer;
+    private final String sessionKey;
 
     /**
-     * SQLContainer wrapper for FlightEntries.
+     * Serializable session state.
      */
-    private FlightsContainer flightsContainer;
+    private final SessionState state;
 
     /**
-     * SQLContainer wrapper for Airports.
+     * Database connections manager. Shared, looked up on demand.
      */
-    private AirportsContainer airportsContainer;
+    private transient DBConnection dbconn;
 
     /**
-     * SQLContainer wrapper for Aircrafts.
+     * Container for Users table.
      */
-    private AircraftsContainer aircraftsContainer;
-
-    public SessionContext(VaadinSession session, DBConnection connection)
-            throws Exception {
+    // private final UsersContainer usersContainer;
 
-        dbconn = connection;
+    /**
+     * SQLContainer wrapper for FlightEntries. Created lazily.
+     */
+    private transient FlightsContainer flightsContainer;
 
-        // currentFlightEntry = new ObjectProperty<FlightItem>(null,
-        // FlightItem.class, false);
+    /**
+     * SQLContainer wrapper for Airports. Created lazily.
+     */
+    private transient AirportsContainer airportsContainer;
 
-        try {
+    /**
+     * SQLContainer wrapper for Aircrafts. Created lazily.
+     */
+    private transient AircraftsContainer aircraftsContainer;
 
-            // usersContainer = new UsersContainer(dbconn);
+    /**
+     * Containers dropped by evictCaches(). A view may still hold one, in
+     * which case it is taken back instead of creating a second container of
+     * the same table in the session.
+     */
+    private transient WeakReference<FlightsContainer> evictedFlights;
+    private transient WeakReference<AirportsContainer> evictedAirports;
+    private transient WeakReference<AircraftsContainer> evictedAircrafts;
 
-            airportsContainer = new AirportsContainer(dbconn);
+    /**
+     * Time (ms) caches were last evicted by SessionMonitor.
+     */
+    private transient long lastEvictionTime = 0;
 
-            flightsContainer = new FlightsContainer(dbconn);
+    public SessionContext(VaadinSession session, String sessionKey,
+            SessionState state) {
 
-            aircraftsContainer = new AircraftsContainer(dbconn);
+        this.sessionKey = sessionKey;
+        this.state = state;
 
-        } catch (SQLException e) {
-            throw new Exception("Failed to create session container: "
-                    + e.toString());
-        }
+        session.setAttribute(ATTRIBUTE, this);
 
-        session.setAttribute("context", this);
+        SessionMonitor.get().register(session);
     }
 
     /**
      * Returns DBConnection.
      */
     public DBConnection getDBConnection() {
+
+        if (dbconn == null) {
+            try {
+                dbconn = FlybookUI.getDBConnection();
+            } catch (SQLException e) {
+                throw new IllegalStateException(
+                        "Failed to open database: " + e.toString());
+            }
+        }
         return dbconn;
     }
 
+    /**
+     * Returns serializable session state. Call saveState() after
+     * modifications.
+     */
+    public SessionState getState() {
+        return state;
+    }
+
+    /**
+     * Returns SessionStore key of the state.
+     */
+    public String getSessionKey() {
+        return sessionKey;
+    }
+
+    /**
+     * Writes state to SessionStore.
+     */
+    public void saveState() {
+        FlybookUI.getSessionStore().save(sessionKey, state);
+    }
+
     // public UsersContainer getUsersContainer() {
     // return usersContainer;
     // }
 
     public FlightsContainer getFlightsContainer() {
+
+        if (flightsContainer == null && evictedFlights != null) {
+            flightsContainer = evictedFlights.get();
+            evictedFlights = null;
+        }
+        if (flightsContainer == null) {
+            try {
+                flightsContainer = new FlightsContainer(getDBConnection());
+            } catch (SQLException e) {
+                throw new IllegalStateException(
+                        "Failed to create flights container: " + e.toString());
+            }
+        }
         return flightsContainer;
     }
 
     public AirportsContainer getAirportsContainer() {
+
+        if (airportsContainer == null && evictedAirports != null) {
+            airportsContainer = evictedAirports.get();
+            evictedAirports = null;
+        }
+        if (airportsContainer == null) {
+            try {
+                airportsContainer = new AirportsContainer(getDBConnection());
+            } catch (SQLException e) {
+                throw new IllegalStateException(
+                        "Failed to create airports container: " + e.toString());
+            }
+        }
         return airportsContainer;
     }
 
     public AircraftsContainer getAircraftsContainer() {
+
+        if (aircraftsContainer == null && evictedAircrafts != null) {
+            aircraftsContainer = evictedAircrafts.get();
+            evictedAircrafts = null;
+        }
+        if (aircraftsContainer == null) {
+            try {
+                aircraftsContainer = new AircraftsContainer(getDBConnection());
+            } catch (SQLException e) {
+                throw new IllegalStateException(
+                        "Failed to create aircrafts container: " + e.toString());
+            }
+        }
         return aircraftsContainer;
     }
 
+    /**
+     * Returns approximate retained size (bytes) of created containers by
+     * container type. Containers not yet created are not listed.
+     * 
+     * Session lock must be held.
+     */
+    public Map<String, Long> getFootprint() {
+
+        Map<String, Long> footprint = new TreeMap<String, Long>();
+
+        if (flightsContainer != null) {
+            footprint.put("flights", flightsContainer.estimateMemoryUsage());
+        }
+        if (airportsContainer != null) {
+            footprint.put("airports", airportsContainer.estimateMemoryUsage());
+        }
+        if (aircraftsContainer != null) {
+            footprint
+                    .put("aircrafts", aircraftsContainer.estimateMemoryUsage());
+        }
+
+        return footprint;
+    }
+
+    /**
+     * Drops containers that no component is bound to and that have no
+     * uncommitted changes, they are created again on first use. Containers
+     * shown in the UI are left alone: refreshing them would only make their
+     * components fetch the rows again.
+     * 
+     * Called for idle sessions, session lock must be held.
+     */
+    public void evictCaches(long time) {
+
+        if (flightsContainer != null && flightsContainer.isDetached()) {
+            evictedFlights = new WeakReference<FlightsContainer>(
+                    flightsContainer);
+            flightsContainer = null;
+        }
+        if (airportsContainer != null && airportsContainer.isDetached()) {
+            evictedAirports = new WeakReference<AirportsContainer>(
+                    airportsContainer);
+            airportsContainer = null;
+        }
+        if (aircraftsContainer != null && aircraftsContainer.isDetached()) {
+            evictedAircrafts = new WeakReference<AircraftsContainer>(
+                    aircraftsContainer);
+            aircraftsContainer = null;
+        }
+
+        lastEvictionTime = time;
+    }
+
+    public long getLastEvictionTime() {
+        return lastEvictionTime;
+    }
+
+    /**
+     * Returns context of session or null if user has not logged in.
+     */
+    public static SessionContext get(VaadinSession session) {
+
+        return (SessionContext) session.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * Returns context of current session or null if user has not logged in.
+     */
     public static SessionContext getCurrent() {
 
         return (SessionContext) VaadinSession.getCurrent().getAttribute(
-                "context");
+                ATTRIBUTE);
+    }
+
+    /**
+     * Drops context (and all its containers) from session, e.g. on logout.
+     */
+    public static void clear(VaadinSession session) {
+
+        session.setAttribute(ATTRIBUTE, null);
+
+        SessionMonitor.get().unregister(session);
     }
 }
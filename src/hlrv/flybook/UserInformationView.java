@@ -34,17 +34,17 @@ public class UserInformationView extends Window {
      */
     private class SaveListener implements ClickListener {
 
-        private final Auth auth;
-
         public SaveListener() throws SQLException {
-
-            auth = ((FlybookUI) UI.getCurrent()).getAuth();
-
         }
 
         @Override
         public void buttonClick(ClickEvent event) {
 
+            /**
+             * Taken on use, UI rebuilds it after deserialization.
+             */
+            Auth auth = ((FlybookUI) UI.getCurrent()).getAuth();
+
             try {
 
                 fields.commit();
@@ -35,6 +35,16 @@ public class Auth {
         throw new Exception("Password incorrect");
     }
 
+    /**
+     * Resumes login of user whose session state was restored from
+     * SessionStore. No credentials are checked, the caller must only pass
+     * users of unexpired states. Throws if user no longer exists.
+     */
+    public User resume(String username) throws Exception {
+        this.user = this.manager.getFromUsername(username);
+        return this.user;
+    }
+
     public BeanItem<User> getCurrentUser() throws Exception {
         if (this.user == null) {
             throw new Exception("User not logged in");
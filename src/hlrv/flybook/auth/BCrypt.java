@@ -18,6 +18,7 @@ package hlrv.flybook.auth;
 import java.io.UnsupportedEncodingException;
 
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
  * BCrypt implements OpenBSD-style Blowfish password hashing using
@@ -370,9 +371,38 @@ public class BCrypt {
 		51, 52, 53, -1, -1, -1, -1, -1
 	};
 
+	// Length of the encoded salt and hash parts of a bcrypt string
+	private static final int ENCODED_SALT_LEN = 22;
+	private static final int ENCODED_HASH_LEN = 31;
+
+	// Raw hash length (one byte of the ciphertext is dropped)
+	private static final int BCRYPT_HASH_LEN = 23;
+
+	/*
+	 * Key schedule state is reused between calls on the same thread. A
+	 * login burst used to allocate fresh P and S copies (4 KiB+) and a
+	 * handful of temporary arrays for every hash; now each worker thread
+	 * keeps one engine and only re-initialises it in place.
+	 */
+	private static final ThreadLocal<BCrypt> engines = new ThreadLocal<BCrypt>() {
+		@Override
+		protected BCrypt initialValue() {
+			return new BCrypt();
+		}
+	};
+
 	// Expanded Blowfish key
-	private int P[];
-	private int S[];
+	private final int P[] = new int[P_orig.length];
+	private final int S[] = new int[S_orig.length];
+
+	// Scratch buffers, reused for every hash computed by this engine
+	private final int lr[] = new int[2];
+	private final int cdata[] = new int[bf_crypt_ciphertext.length];
+	private final byte saltb[] = new byte[BCRYPT_SALT_LEN];
+	private final byte hashed[] = new byte[bf_crypt_ciphertext.length * 4];
+
+	// Cyclic read offset into the key material, see streamtoword()
+	private int woff;
 
 	/**
 	 * Encode a byte array using bcrypt's slightly-modified base64
@@ -381,13 +411,12 @@ public class BCrypt {
 	 *
 	 * @param d	the byte array to encode
 	 * @param len	the number of bytes to encode
-	 * @return	base64-encoded string
+	 * @param rs	the buffer to append the encoded characters to
 	 * @exception IllegalArgumentException if the length is invalid
 	 */
-	private static String encode_base64(byte d[], int len)
+	private static void encode_base64(byte d[], int len, StringBuilder rs)
 		throws IllegalArgumentException {
 		int off = 0;
-		StringBuffer rs = new StringBuffer();
 		int c1, c2;
 
 		if (len <= 0 || len > d.length)
@@ -414,7 +443,6 @@ public class BCrypt {
 			rs.append(base64_code[c1 & 0x3f]);
 			rs.append(base64_code[c2 & 0x3f]);
 		}
-		return rs.toString();
 	}
 
 	/**
@@ -424,59 +452,57 @@ public class BCrypt {
 	 * @return	the decoded value of x
 	 */
 	private static byte char64(char x) {
-		if ((int)x < 0 || (int)x > index_64.length)
+		if ((int)x >= index_64.length)
 			return -1;
 		return index_64[(int)x];
 	}
 
 	/**
-	 * Decode a string encoded using bcrypt's base64 scheme to a
+	 * Decode a string encoded using bcrypt's base64 scheme into a
 	 * byte array. Note that this is *not* compatible with
 	 * the standard MIME-base64 encoding.
 	 * @param s	the string to decode
-	 * @param maxolen	the maximum number of bytes to decode
-	 * @return	an array containing the decoded bytes
-	 * @throws IllegalArgumentException if maxolen is invalid
+	 * @param soff	the offset of the first character to decode
+	 * @param send	the offset one past the last character to decode
+	 * @param ret	the array receiving the decoded bytes; its length
+	 * is the maximum number of bytes to decode
+	 * @return	the number of bytes decoded
+	 * @throws IllegalArgumentException if ret is empty
 	 */
-	private static byte[] decode_base64(String s, int maxolen)
+	private static int decode_base64(String s, int soff, int send, byte ret[])
 		throws IllegalArgumentException {
-		StringBuffer rs = new StringBuffer();
-		int off = 0, slen = s.length(), olen = 0;
-		byte ret[];
+		int off = soff, olen = 0, maxolen = ret.length;
 		byte c1, c2, c3, c4, o;
 
 		if (maxolen <= 0)
 			throw new IllegalArgumentException ("Invalid maxolen");
 
-		while (off < slen - 1 && olen < maxolen) {
+		while (off < send - 1 && olen < maxolen) {
 			c1 = char64(s.charAt(off++));
 			c2 = char64(s.charAt(off++));
 			if (c1 == -1 || c2 == -1)
 				break;
 			o = (byte)(c1 << 2);
 			o |= (c2 & 0x30) >> 4;
-			rs.append((char)o);
-			if (++olen >= maxolen || off >= slen)
+			ret[olen] = o;
+			if (++olen >= maxolen || off >= send)
 				break;
 			c3 = char64(s.charAt(off++));
 			if (c3 == -1)
 				break;
 			o = (byte)((c2 & 0x0f) << 4);
 			o |= (c3 & 0x3c) >> 2;
-			rs.append((char)o);
-			if (++olen >= maxolen || off >= slen)
+			ret[olen] = o;
+			if (++olen >= maxolen || off >= send)
 				break;
 			c4 = char64(s.charAt(off++));
 			o = (byte)((c3 & 0x03) << 6);
 			o |= c4;
-			rs.append((char)o);
+			ret[olen] = o;
 			++olen;
 		}
 
-		ret = new byte[olen];
-		for (off = 0; off < olen; off++)
-			ret[off] = (byte)rs.charAt(off);
-		return ret;
+		return olen;
 	}
 
 	/**
@@ -487,6 +513,7 @@ public class BCrypt {
 	 */
 	private final void encipher(int lr[], int off) {
 		int i, n, l = lr[off], r = lr[off + 1];
+		final int P[] = this.P, S[] = this.S;
 
 		l ^= P[0];
 		for (i = 0; i <= BLOWFISH_NUM_ROUNDS - 2;) {
@@ -509,23 +536,24 @@ public class BCrypt {
 	}
 
 	/**
-	 * Cycically extract a word of key material
+	 * Cycically extract a word of key material. The current offset
+	 * into data is kept in woff; callers interleaving two streams
+	 * save and restore it themselves.
 	 * @param data	the string to extract the data from
-	 * @param offp	a "pointer" (as a one-entry array) to the
-	 * current offset into data
 	 * @return	the next word of material from data
 	 */
-	private static int streamtoword(byte data[], int offp[]) {
+	private int streamtoword(byte data[]) {
 		int i;
 		int word = 0;
-		int off = offp[0];
+		int off = woff;
 
 		for (i = 0; i < 4; i++) {
 			word = (word << 8) | (data[off] & 0xff);
-			off = (off + 1) % data.length;
+			if (++off == data.length)
+				off = 0;
 		}
 
-		offp[0] = off;
+		woff = off;
 		return word;
 	}
 
@@ -533,8 +561,8 @@ public class BCrypt {
 	 * Initialise the Blowfish key schedule
 	 */
 	private void init_key() {
-		P = (int[])P_orig.clone();
-		S = (int[])S_orig.clone();
+		System.arraycopy(P_orig, 0, P, 0, P_orig.length);
+		System.arraycopy(S_orig, 0, S, 0, S_orig.length);
 	}
 
 	/**
@@ -543,13 +571,16 @@ public class BCrypt {
 	 */
 	private void key(byte key[]) {
 		int i;
-		int koffp[] = { 0 };
-		int lr[] = { 0, 0 };
+		final int lr[] = this.lr;
+		final int P[] = this.P, S[] = this.S;
 		int plen = P.length, slen = S.length;
 
+		woff = 0;
 		for (i = 0; i < plen; i++)
-			P[i] = P[i] ^ streamtoword(key, koffp);
+			P[i] = P[i] ^ streamtoword(key);
 
+		lr[0] = 0;
+		lr[1] = 0;
 		for (i = 0; i < plen; i += 2) {
 			encipher(lr, 0);
 			P[i] = lr[0];
@@ -572,24 +603,29 @@ public class BCrypt {
 	 */
 	private void ekskey(byte data[], byte key[]) {
 		int i;
-		int koffp[] = { 0 }, doffp[] = { 0 };
-		int lr[] = { 0, 0 };
+		final int lr[] = this.lr;
+		final int P[] = this.P, S[] = this.S;
 		int plen = P.length, slen = S.length;
 
+		woff = 0;
 		for (i = 0; i < plen; i++)
-			P[i] = P[i] ^ streamtoword(key, koffp);
+			P[i] = P[i] ^ streamtoword(key);
 
+		// From here on only the salt stream is consumed
+		woff = 0;
+		lr[0] = 0;
+		lr[1] = 0;
 		for (i = 0; i < plen; i += 2) {
-			lr[0] ^= streamtoword(data, doffp);
-			lr[1] ^= streamtoword(data, doffp);
+			lr[0] ^= streamtoword(data);
+			lr[1] ^= streamtoword(data);
 			encipher(lr, 0);
 			P[i] = lr[0];
 			P[i + 1] = lr[1];
 		}
 
 		for (i = 0; i < slen; i += 2) {
-			lr[0] ^= streamtoword(data, doffp);
-			lr[1] ^= streamtoword(data, doffp);
+			lr[0] ^= streamtoword(data);
+			lr[1] ^= streamtoword(data);
 			encipher(lr, 0);
 			S[i] = lr[0];
 			S[i + 1] = lr[1];
@@ -598,18 +634,18 @@ public class BCrypt {
 
 	/**
 	 * Perform the central password hashing step in the
-	 * bcrypt scheme
+	 * bcrypt scheme. The result is written to the engine's
+	 * hashed buffer.
 	 * @param password	the password to hash
 	 * @param salt	the binary salt to hash with the password
 	 * @param log_rounds	the binary logarithm of the number
 	 * of rounds of hashing to apply
-	 * @return	an array containing the binary hashed password
 	 */
-	private byte[] crypt_raw(byte password[], byte salt[], int log_rounds) {
+	private void crypt_raw(byte password[], byte salt[], int log_rounds) {
 		int rounds, i, j;
-		int cdata[] = (int[])bf_crypt_ciphertext.clone();
+		final int cdata[] = this.cdata;
+		final byte ret[] = this.hashed;
 		int clen = cdata.length;
-		byte ret[];
 
 		if (log_rounds < 4 || log_rounds > 31)
 			throw new IllegalArgumentException ("Bad number of rounds");
@@ -617,9 +653,11 @@ public class BCrypt {
 		if (salt.length != BCRYPT_SALT_LEN)
 			throw new IllegalArgumentException ("Bad salt length");
 
+		System.arraycopy(bf_crypt_ciphertext, 0, cdata, 0, clen);
+
 		init_key();
 		ekskey(salt, password);
-		for (i = 0; i < rounds; i++) {
+		for (i = 0; i != rounds; i++) {
 			key(password);
 			key(salt);
 		}
@@ -629,14 +667,28 @@ public class BCrypt {
 				encipher(cdata, j << 1);
 		}
 
-		ret = new byte[clen * 4];
 		for (i = 0, j = 0; i < clen; i++) {
 			ret[j++] = (byte)((cdata[i] >> 24) & 0xff);
 			ret[j++] = (byte)((cdata[i] >> 16) & 0xff);
 			ret[j++] = (byte)((cdata[i] >> 8) & 0xff);
 			ret[j++] = (byte)(cdata[i] & 0xff);
 		}
-		return ret;
+	}
+
+	/**
+	 * Parse a two digit decimal number without going through
+	 * substring()/Integer.parseInt().
+	 * @param s	the string to read from
+	 * @param off	the offset of the first digit
+	 * @return	the parsed value
+	 * @throws IllegalArgumentException if either character is not a digit
+	 */
+	private static int parse_rounds(String s, int off) {
+		int d1 = s.charAt(off) - '0', d2 = s.charAt(off + 1) - '0';
+
+		if (d1 < 0 || d1 > 9 || d2 < 0 || d2 > 9)
+			throw new IllegalArgumentException ("Invalid salt rounds");
+		return d1 * 10 + d2;
 	}
 
 	/**
@@ -648,11 +700,9 @@ public class BCrypt {
 	 */
 	public static String hashpw(String password, String salt) {
 		BCrypt B;
-		String real_salt;
-		byte passwordb[], saltb[], hashed[];
+		byte passwordb[], pwbytes[];
 		char minor = (char)0;
 		int rounds, off = 0;
-		StringBuffer rs = new StringBuffer();
 
 		if (salt.charAt(0) != '$' || salt.charAt(1) != '2')
 			throw new IllegalArgumentException ("Invalid salt version");
@@ -668,32 +718,49 @@ public class BCrypt {
 		// Extract number of rounds
 		if (salt.charAt(off + 2) > '$')
 			throw new IllegalArgumentException ("Missing salt rounds");
-		rounds = Integer.parseInt(salt.substring(off, off + 2));
+		rounds = parse_rounds(salt, off);
 
-		real_salt = salt.substring(off + 3, off + 25);
 		try {
-			passwordb = (password + (minor >= 'a' ? "\000" : "")).getBytes("UTF-8");
+			pwbytes = password.getBytes("UTF-8");
 		} catch (UnsupportedEncodingException uee) {
 			throw new AssertionError("UTF-8 is not supported");
 		}
 
-		saltb = decode_base64(real_salt, BCRYPT_SALT_LEN);
-
-		B = new BCrypt();
-		hashed = B.crypt_raw(passwordb, saltb, rounds);
-
-		rs.append("$2");
-		if (minor >= 'a')
-			rs.append(minor);
-		rs.append("$");
-		if (rounds < 10)
-			rs.append("0");
-		rs.append(Integer.toString(rounds));
-		rs.append("$");
-		rs.append(encode_base64(saltb, saltb.length));
-		rs.append(encode_base64(hashed,
-		    bf_crypt_ciphertext.length * 4 - 1));
-		return rs.toString();
+		// Append the terminating NUL for $2a$ without concatenating strings
+		if (minor >= 'a') {
+			passwordb = new byte[pwbytes.length + 1];
+			System.arraycopy(pwbytes, 0, passwordb, 0, pwbytes.length);
+		} else {
+			passwordb = pwbytes;
+		}
+
+		B = engines.get();
+		try {
+			int saltlen = decode_base64(salt, off + 3,
+			    Math.min(salt.length(), off + 3 + ENCODED_SALT_LEN), B.saltb);
+			if (saltlen != BCRYPT_SALT_LEN)
+				throw new IllegalArgumentException ("Bad salt length");
+
+			B.crypt_raw(passwordb, B.saltb, rounds);
+
+			StringBuilder rs = new StringBuilder(off + 3
+			    + ENCODED_SALT_LEN + ENCODED_HASH_LEN);
+			rs.append("$2");
+			if (minor >= 'a')
+				rs.append(minor);
+			rs.append('$');
+			rs.append((char)('0' + rounds / 10));
+			rs.append((char)('0' + rounds % 10));
+			rs.append('$');
+			encode_base64(B.saltb, BCRYPT_SALT_LEN, rs);
+			encode_base64(B.hashed, BCRYPT_HASH_LEN, rs);
+			return rs.toString();
+		} finally {
+			// Do not leave password derived material lying around
+			Arrays.fill(passwordb, (byte)0);
+			Arrays.fill(pwbytes, (byte)0);
+			Arrays.fill(B.hashed, (byte)0);
+		}
 	}
 
 	/**
@@ -705,20 +772,24 @@ public class BCrypt {
 	 * @return	an encoded salt value
 	 */
 	public static String gensalt(int log_rounds, SecureRandom random) {
-		StringBuffer rs = new StringBuffer();
+		StringBuilder rs = new StringBuilder(7 + ENCODED_SALT_LEN);
 		byte rnd[] = new byte[BCRYPT_SALT_LEN];
 
 		random.nextBytes(rnd);
 
 		rs.append("$2a$");
-		if (log_rounds < 10)
-			rs.append("0");
-		rs.append(Integer.toString(log_rounds));
-		rs.append("$");
-		rs.append(encode_base64(rnd, rnd.length));
+		rs.append((char)('0' + log_rounds / 10));
+		rs.append((char)('0' + log_rounds % 10));
+		rs.append('$');
+		encode_base64(rnd, rnd.length, rs);
 		return rs.toString();
 	}
 
+	/*
+	 * SecureRandom seeding is expensive, share one generator.
+	 */
+	private static final SecureRandom saltRandom = new SecureRandom();
+
 	/**
 	 * Generate a salt for use with the BCrypt.hashpw() method
 	 * @param log_rounds	the log2 of the number of rounds of
@@ -727,7 +798,7 @@ public class BCrypt {
 	 * @return	an encoded salt value
 	 */
 	public static String gensalt(int log_rounds) {
-		return gensalt(log_rounds, new SecureRandom());
+		return gensalt(log_rounds, saltRandom);
 	}
 
 	/**
@@ -742,12 +813,19 @@ public class BCrypt {
 
 	/**
 	 * Check that a plaintext password matches a previously hashed
-	 * one
+	 * one. The comparison runs in time independent of where the
+	 * strings first differ.
 	 * @param plaintext	the plaintext password to verify
 	 * @param hashed	the previously-hashed password
 	 * @return	true if the passwords match, false otherwise
 	 */
 	public static boolean checkpw(String plaintext, String hashed) {
-		return (hashed.compareTo(hashpw(plaintext, hashed)) == 0);
+		String candidate = hashpw(plaintext, hashed);
+		int len = hashed.length();
+		int diff = len ^ candidate.length();
+
+		for (int i = 0; i < len && i < candidate.length(); i++)
+			diff |= hashed.charAt(i) ^ candidate.charAt(i);
+		return diff == 0;
 	}
 }
@@ -0,0 +1,64 @@
+package hlrv.flybook.cache;
+
+/**
+ * JMX view of an LRUCache. Registered as "hlrv.flybook:type=Cache,name=..".
+ */
+public interface CacheStatsMXBean {
+
+    /**
+     * Number of lookups that found a cached value.
+     */
+    long getHitCount();
+
+    /**
+     * Number of lookups that did not find a cached value. Includes lookups
+     * that waited for a load started by another thread.
+     */
+    long getMissCount();
+
+    /**
+     * Hits / (hits + misses), or 1.0 if there have been no lookups.
+     */
+    double getHitRate();
+
+    /**
+     * Number of values actually loaded (at most one per concurrent miss of
+     * same key).
+     */
+    long getLoadCount();
+
+    /**
+     * Number of loads that threw an exception.
+     */
+    long getLoadFailureCount();
+
+    /**
+     * Average time of successful loads in milliseconds.
+     */
+    double getAverageLoadMillis();
+
+    /**
+     * Number of entries evicted because of weight bound.
+     */
+    long getEvictionCount();
+
+    /**
+     * Number of cached entries.
+     */
+    int getSize();
+
+    /**
+     * Sum of weights of cached entries.
+     */
+    long getWeight();
+
+    /**
+     * Maximum sum of weights.
+     */
+    long getMaxWeight();
+
+    /**
+     * Removes all entries.
+     */
+    void invalidateAll();
+}
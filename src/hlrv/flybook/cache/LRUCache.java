@@ -0,0 +1,369 @@
+package hlrv.flybook.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Thread-safe, weight-bounded LRU cache that can be shared between sessions.
+ *
+ * Entries are kept in an access ordered LinkedHashMap, so a hit moves the
+ * entry to the tail and eviction always drops the least recently used entry.
+ * Each entry has a weight (e.g. item count of the container built from the
+ * value) and entries are evicted while sum of weights exceeds the bound.
+ *
+ * Loading is single-flight: when several threads miss the same key at once,
+ * the first one runs the Loader and the others wait for its result instead of
+ * building the same value again. Loaders run in the calling thread, outside
+ * the cache lock.
+ *
+ * Cached values are shared, so they should be immutable.
+ *
+ * @param <K>
+ *            Keytype
+ * @param <V>
+ *            Valuetype
+ */
+public class LRUCache<K, V> implements CacheStatsMXBean {
+
+    private static final Logger logger = Logger.getLogger("LRUCache");
+
+    /**
+     * Builds value for key on cache miss.
+     */
+    public interface Loader<K, V> {
+        V load(K key) throws Exception;
+    }
+
+    /**
+     * Returns weight of value, must be >= 0.
+     */
+    public interface Weigher<V> {
+        int weigh(V value);
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final int weight;
+
+        Entry(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final Object lock = new Object();
+
+    /**
+     * Access ordered, eldest entry is least recently used. Guarded by lock.
+     */
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(
+            16, 0.75f, true);
+
+    /**
+     * Loads in progress. Guarded by lock.
+     */
+    private final Map<K, FutureTask<V>> loading = new HashMap<K, FutureTask<V>>();
+
+    /**
+     * Incremented by invalidations, loads started before an invalidation are
+     * returned to caller but not cached. Guarded by lock.
+     */
+    private long generation = 0;
+
+    private long weight = 0;
+
+    private final long maxWeight;
+
+    private final Weigher<? super V> weigher;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates cache where every entry has weight 1, i.e. maxWeight is maximum
+     * number of entries.
+     */
+    public LRUCache(long maxWeight) {
+        this(maxWeight, null);
+    }
+
+    public LRUCache(long maxWeight, Weigher<? super V> weigher) {
+
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be positive");
+        }
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Registers cache statistics to platform MBeanServer as
+     * "hlrv.flybook:type=Cache,name=<name>".
+     *
+     * @return this
+     */
+    public LRUCache<K, V> register(String name) {
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("hlrv.flybook:type=Cache,name=" + name));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to register cache MBean "
+                    + name, e);
+        }
+        return this;
+    }
+
+    /**
+     * Returns cached value or null. Counts as hit or miss.
+     */
+    public V getIfPresent(K key) {
+
+        synchronized (lock) {
+            Entry<V> e = entries.get(key);
+            if (e != null) {
+                hits.incrementAndGet();
+                return e.value;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns cached value for key, loading it with loader on miss. If another
+     * thread is already loading the key, waits for its result.
+     *
+     * @throws IllegalStateException
+     *             if loader fails (cause is the loader exception), or if
+     *             interrupted while waiting
+     */
+    public V get(final K key, final Loader<? super K, ? extends V> loader) {
+
+        FutureTask<V> task;
+        boolean owner = false;
+        long loadGeneration;
+
+        synchronized (lock) {
+            Entry<V> e = entries.get(key);
+            if (e != null) {
+                hits.incrementAndGet();
+                return e.value;
+            }
+            misses.incrementAndGet();
+
+            loadGeneration = generation;
+            task = loading.get(key);
+            if (task == null) {
+                task = new FutureTask<V>(new Callable<V>() {
+                    @Override
+                    public V call() throws Exception {
+                        return loader.load(key);
+                    }
+                });
+                loading.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            return await(key, task);
+        }
+
+        long start = System.nanoTime();
+        task.run();
+
+        V value;
+        try {
+            value = await(key, task);
+        } catch (RuntimeException e) {
+            loadFailures.incrementAndGet();
+            synchronized (lock) {
+                if (loading.get(key) == task) {
+                    loading.remove(key);
+                }
+            }
+            throw e;
+        }
+
+        loads.incrementAndGet();
+        loadNanos.addAndGet(System.nanoTime() - start);
+
+        int w = weigh(value);
+        synchronized (lock) {
+            if (loading.get(key) == task) {
+                loading.remove(key);
+            }
+            if (value != null && loadGeneration == generation) {
+                insert(key, value, w);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Puts value to cache, replacing old value of key.
+     */
+    public void put(K key, V value) {
+
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int w = weigh(value);
+        synchronized (lock) {
+            insert(key, value, w);
+        }
+    }
+
+    /**
+     * Removes key from cache.
+     */
+    public void invalidate(K key) {
+
+        synchronized (lock) {
+            Entry<V> old = entries.remove(key);
+            if (old != null) {
+                weight -= old.weight;
+            }
+            /**
+             * Do not cache result of possibly stale load in progress.
+             */
+            if (loading.remove(key) != null) {
+                ++generation;
+            }
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+
+        synchronized (lock) {
+            entries.clear();
+            loading.clear();
+            weight = 0;
+            ++generation;
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return loadFailures.get();
+    }
+
+    @Override
+    public double getAverageLoadMillis() {
+        long n = loads.get();
+        return n == 0 ? 0.0 : loadNanos.get() / 1e6 / n;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        synchronized (lock) {
+            return weight;
+        }
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Must be called holding lock.
+     */
+    private void insert(K key, V value, int w) {
+
+        Entry<V> old = entries.put(key, new Entry<V>(value, w));
+        if (old != null) {
+            weight -= old.weight;
+        }
+        weight += w;
+
+        /**
+         * Drop least recently used entries, but always keep the new one even
+         * if it alone exceeds the bound.
+         */
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && entries.size() > 1) {
+            Map.Entry<K, Entry<V>> eldest = it.next();
+            weight -= eldest.getValue().weight;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private int weigh(V value) {
+
+        if (weigher == null || value == null) {
+            return 1;
+        }
+        int w = weigher.weigh(value);
+        if (w < 0) {
+            throw new IllegalArgumentException("Negative weight " + w);
+        }
+        return w;
+    }
+
+    private V await(K key, FutureTask<V> task) {
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to load cache value for "
+                    + key, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Interrupted while waiting for cache value of " + key, e);
+        }
+    }
+}
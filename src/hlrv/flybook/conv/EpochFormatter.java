@@ -0,0 +1,125 @@
+package hlrv.flybook.conv;
+
+import java.io.Serializable;
+import java.util.TimeZone;
+
+/**
+ * Formats unix time (seconds) as "yyyy-MM-dd HH:mm" in a time zone, and
+ * durations as "H:mm".
+ *
+ * Same output as SimpleDateFormat("yyyy-MM-dd HH:mm") but without Date,
+ * Calendar or intermediate strings: date fields are computed arithmetically
+ * into a reused char buffer, only the returned String is allocated.
+ *
+ * Instances are not thread-safe, use one per component.
+ */
+public class EpochFormatter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TimeZone timeZone;
+
+    private final char[] buffer = new char[32];
+
+    /**
+     * Formatter in JVM default time zone.
+     */
+    public EpochFormatter() {
+        this(TimeZone.getDefault());
+    }
+
+    public EpochFormatter(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Returns time as "yyyy-MM-dd HH:mm".
+     */
+    public String format(long epochSeconds) {
+
+        long millis = epochSeconds * 1000L;
+        long local = epochSeconds + timeZone.getOffset(millis) / 1000;
+
+        long days = floorDiv(local, 86400);
+        int secondOfDay = (int) (local - days * 86400);
+
+        /**
+         * Civil date from days since 1970-01-01 (proleptic Gregorian), see
+         * H. Hinnant, "chrono-Compatible Low-Level Date Algorithms".
+         */
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        int pos = 0;
+        if (year < 0 || year > 9999) {
+            /**
+             * Out of normal range, let String do the digits.
+             */
+            String y = Long.toString(year);
+            y.getChars(0, y.length(), buffer, 0);
+            pos = y.length();
+        } else {
+            pos = put4(buffer, pos, (int) year);
+        }
+        buffer[pos++] = '-';
+        pos = put2(buffer, pos, month);
+        buffer[pos++] = '-';
+        pos = put2(buffer, pos, day);
+        buffer[pos++] = ' ';
+        pos = put2(buffer, pos, secondOfDay / 3600);
+        buffer[pos++] = ':';
+        pos = put2(buffer, pos, (secondOfDay / 60) % 60);
+
+        return new String(buffer, 0, pos);
+    }
+
+    /**
+     * Returns duration as "H:mm", or "<E>" if negative.
+     */
+    public String formatDuration(long seconds) {
+
+        if (seconds < 0) {
+            return "<E>";
+        }
+
+        long hours = seconds / 3600;
+        int minutes = (int) ((seconds / 60) % 60);
+
+        int pos = buffer.length;
+        buffer[--pos] = (char) ('0' + minutes % 10);
+        buffer[--pos] = (char) ('0' + minutes / 10);
+        buffer[--pos] = ':';
+        do {
+            buffer[--pos] = (char) ('0' + hours % 10);
+            hours /= 10;
+        } while (hours > 0);
+
+        return new String(buffer, pos, buffer.length - pos);
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    private static int put2(char[] buf, int pos, int v) {
+        buf[pos] = (char) ('0' + v / 10);
+        buf[pos + 1] = (char) ('0' + v % 10);
+        return pos + 2;
+    }
+
+    private static int put4(char[] buf, int pos, int v) {
+        buf[pos] = (char) ('0' + v / 1000);
+        buf[pos + 1] = (char) ('0' + (v / 100) % 10);
+        buf[pos + 2] = (char) ('0' + (v / 10) % 10);
+        buf[pos + 3] = (char) ('0' + v % 10);
+        return pos + 4;
+    }
+}
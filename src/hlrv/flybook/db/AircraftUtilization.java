@@ -0,0 +1,476 @@
+package hlrv.flybook.db;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Utilization counters and maintenance limits per aircraft register, shared
+ * by all sessions.
+ *
+ * Counters (flights, flight time, block time, last landing) are kept in table
+ * AircraftUtilization by triggers on FlightEntries, in the same transaction as
+ * every insert, update and delete, so reading them does not sum flights.
+ * Maintenance reset copies current counters to base_* columns; usage since
+ * maintenance is counter minus base, and is checked against the limits.
+ *
+ * Every flight counts as one landing (cycle). Flight time is in seconds and
+ * block time in minutes, as in FlightTotals.
+ */
+public class AircraftUtilization implements FlightEvents.Listener {
+
+    public static final String TABLE = "AircraftUtilization";
+
+    /**
+     * Share of a limit after which maintenance is due soon.
+     */
+    private static final double DUE_SOON = 0.9;
+
+    /**
+     * Counter values of a FlightEntries row, "X" is replaced by row reference
+     * (NEW, OLD or table name).
+     */
+    private static final String VALUE_FLIGHT_TIME = "(CASE WHEN X.landing_time > X.departure_time THEN X.landing_time - X.departure_time ELSE 0 END)";
+    private static final String VALUE_BLOCK_TIME = "(CASE WHEN X.offblock_time > 0 AND X.onblock_time > X.offblock_time THEN X.onblock_time - X.offblock_time ELSE 0 END)";
+
+    /**
+     * Columns whose change affects counters.
+     */
+    private static final String TRIGGER_COLUMNS = "aircraft, departure_time, landing_time, onblock_time, offblock_time";
+
+    // @formatter:off
+
+    private static final String CREATE_TABLE =
+            "CREATE TABLE if not exists " + TABLE + "(register TEXT PRIMARY KEY, "
+            + "flights INTEGER DEFAULT 0, flight_time INTEGER DEFAULT 0, block_time INTEGER DEFAULT 0, last_flight INTEGER, "
+            + "base_flights INTEGER DEFAULT 0, base_flight_time INTEGER DEFAULT 0, base_block_time INTEGER DEFAULT 0, reset_time INTEGER, "
+            + "hours_limit INTEGER, landings_limit INTEGER)";
+
+    /**
+     * Serves last landing lookups when latest flight of a register is deleted
+     * or moved.
+     */
+    private static final String CREATE_INDEX =
+            "CREATE INDEX if not exists flightentries_aircraft_index ON " + DBConstants.TABLE_FLIGHTENTRIES
+            + " (aircraft, landing_time)";
+
+    private static final String ADD_REGISTERS = "INSERT OR IGNORE INTO " + TABLE + " (register) SELECT DISTINCT aircraft FROM "
+            + DBConstants.TABLE_FLIGHTENTRIES + " WHERE IFNULL(aircraft, '') <> ''";
+
+    private static final String FILL_COUNTERS = "UPDATE " + TABLE + " SET "
+            + "flights = (SELECT COUNT(*) FROM " + DBConstants.TABLE_FLIGHTENTRIES + " X WHERE X.aircraft = register), "
+            + "flight_time = (SELECT IFNULL(SUM(" + VALUE_FLIGHT_TIME + "), 0) FROM " + DBConstants.TABLE_FLIGHTENTRIES + " X WHERE X.aircraft = register), "
+            + "block_time = (SELECT IFNULL(SUM(" + VALUE_BLOCK_TIME + "), 0) FROM " + DBConstants.TABLE_FLIGHTENTRIES + " X WHERE X.aircraft = register), "
+            + "last_flight = (SELECT MAX(landing_time) FROM " + DBConstants.TABLE_FLIGHTENTRIES + " X WHERE X.aircraft = register)";
+
+    private static final String ADD_ROW = "INSERT OR IGNORE INTO " + TABLE + " (register) SELECT X.aircraft WHERE IFNULL(X.aircraft, '') <> ''; "
+            + "UPDATE " + TABLE + " SET flights = flights + 1, flight_time = flight_time + " + VALUE_FLIGHT_TIME
+            + ", block_time = block_time + " + VALUE_BLOCK_TIME
+            + ", last_flight = (CASE WHEN X.landing_time IS NULL OR last_flight >= X.landing_time THEN last_flight ELSE X.landing_time END)"
+            + " WHERE register = X.aircraft; ";
+
+    /**
+     * Last landing is looked up again only if removed row had it.
+     */
+    private static final String SUBTRACT_ROW = "UPDATE " + TABLE + " SET flights = flights - 1, flight_time = flight_time - "
+            + VALUE_FLIGHT_TIME + ", block_time = block_time - " + VALUE_BLOCK_TIME
+            + ", last_flight = (CASE WHEN last_flight = X.landing_time THEN (SELECT MAX(landing_time) FROM "
+            + DBConstants.TABLE_FLIGHTENTRIES + " WHERE aircraft = X.aircraft) ELSE last_flight END)"
+            + " WHERE register = X.aircraft; ";
+
+    /**
+     * Migrations creating and filling counters table, appended to Migrations.
+     */
+    public static final String[] MIGRATIONS = {
+            CREATE_TABLE,
+            CREATE_INDEX,
+            ADD_REGISTERS,
+            FILL_COUNTERS,
+            "CREATE TRIGGER if not exists trigger_utilization_insert AFTER INSERT ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN " + row(ADD_ROW, "NEW") + "END",
+            "CREATE TRIGGER if not exists trigger_utilization_delete AFTER DELETE ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN " + row(SUBTRACT_ROW, "OLD") + "END",
+            "CREATE TRIGGER if not exists trigger_utilization_update AFTER UPDATE OF " + TRIGGER_COLUMNS + " ON "
+                    + DBConstants.TABLE_FLIGHTENTRIES + " FOR EACH ROW BEGIN " + row(SUBTRACT_ROW, "OLD")
+                    + row(ADD_ROW, "NEW") + "END" };
+
+    // @formatter:on
+
+    /**
+     * Maintenance state of an aircraft.
+     */
+    public enum Status {
+        NO_LIMITS, OK, DUE_SOON, OVERDUE
+    }
+
+    private static AircraftUtilization instance = null;
+
+    private final DBConnection dbconn;
+
+    /**
+     * Usage by register, null until loaded and after commits.
+     */
+    private volatile Map<String, Usage> usage = null;
+
+    /**
+     * Incremented by every invalidation, guarded by this. A load is cached
+     * only if it did not change meanwhile, so a load that started before a
+     * commit does not replace the invalidation with stale usage.
+     */
+    private long generation = 0;
+
+    private AircraftUtilization(DBConnection dbconn) {
+        this.dbconn = dbconn;
+    }
+
+    /**
+     * Returns shared instance.
+     */
+    public static synchronized AircraftUtilization get(DBConnection dbconn) {
+
+        if (instance == null) {
+            instance = new AircraftUtilization(dbconn);
+            FlightEvents.addListener(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns usage of all aircraft with flights or limits, by register.
+     */
+    public Map<String, Usage> getUsage() throws SQLException {
+
+        Map<String, Usage> result = usage;
+        if (result != null) {
+            return result;
+        }
+
+        long loadedGeneration;
+        synchronized (this) {
+            loadedGeneration = generation;
+        }
+        result = load();
+        synchronized (this) {
+            if (generation == loadedGeneration) {
+                usage = result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns usage of aircraft, or null if it has neither flights nor
+     * limits.
+     */
+    public Usage getUsage(String register) throws SQLException {
+        return getUsage().get(register);
+    }
+
+    @Override
+    public void flightsCommitted(Set<Integer> flightIds, Set<String> pilots) {
+        invalidate();
+    }
+
+    /**
+     * Sets maintenance limits of aircraft, null for no limit.
+     */
+    public void setLimits(String register, Integer hoursLimit,
+            Integer landingsLimit) throws SQLException {
+
+        Connection conn = dbconn.reserve();
+        try {
+            addRegister(conn, register);
+            PreparedStatement stmt = conn.prepareStatement("UPDATE " + TABLE
+                    + " SET hours_limit = ?, landings_limit = ? WHERE register = ?");
+            try {
+                setInteger(stmt, 1, hoursLimit);
+                setInteger(stmt, 2, landingsLimit);
+                stmt.setString(3, register);
+                stmt.executeUpdate();
+            } finally {
+                stmt.close();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            dbconn.release(conn);
+        }
+
+        invalidate();
+    }
+
+    /**
+     * Records maintenance of aircraft done now: usage since maintenance
+     * starts again from zero.
+     */
+    public void resetCounters(String register) throws SQLException {
+
+        Connection conn = dbconn.reserve();
+        try {
+            addRegister(conn, register);
+            PreparedStatement stmt = conn.prepareStatement("UPDATE " + TABLE
+                    + " SET base_flights = flights, base_flight_time = flight_time, "
+                    + "base_block_time = block_time, reset_time = ? WHERE register = ?");
+            try {
+                stmt.setLong(1, System.currentTimeMillis() / 1000L);
+                stmt.setString(2, register);
+                stmt.executeUpdate();
+            } finally {
+                stmt.close();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            dbconn.release(conn);
+        }
+
+        invalidate();
+    }
+
+    /**
+     * Recomputes counters from FlightEntries, for repair after the table has
+     * been modified without triggers. Limits and maintenance bases are kept.
+     */
+    public void rebuild() throws SQLException {
+
+        Connection conn = dbconn.reserve();
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.executeUpdate(ADD_REGISTERS);
+                stmt.executeUpdate(FILL_COUNTERS);
+            } finally {
+                stmt.close();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            dbconn.release(conn);
+        }
+
+        invalidate();
+    }
+
+    /**
+     * Drops cached usage, it is loaded again on next query.
+     */
+    private synchronized void invalidate() {
+        ++generation;
+        usage = null;
+    }
+
+    private Map<String, Usage> load() throws SQLException {
+
+        Map<String, Usage> result = new HashMap<String, Usage>();
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn
+                    .prepareStatement("SELECT register, flights, flight_time, block_time, last_flight, "
+                            + "base_flights, base_flight_time, base_block_time, reset_time, "
+                            + "hours_limit, landings_limit FROM " + TABLE);
+            try {
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        Usage u = new Usage(rs);
+                        result.put(u.getRegister(), u);
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            /**
+             * Ends read transaction, pool connections are not autocommit.
+             */
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static void addRegister(Connection conn, String register)
+            throws SQLException {
+
+        PreparedStatement stmt = conn.prepareStatement("INSERT OR IGNORE INTO "
+                + TABLE + " (register) VALUES (?)");
+        try {
+            stmt.setString(1, register);
+            stmt.executeUpdate();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static void setInteger(PreparedStatement stmt, int index,
+            Integer value) throws SQLException {
+
+        if (value != null) {
+            stmt.setInt(index, value);
+        } else {
+            stmt.setNull(index, Types.INTEGER);
+        }
+    }
+
+    private static Integer getInteger(ResultSet rs, int index)
+            throws SQLException {
+
+        int value = rs.getInt(index);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static String row(String sql, String ref) {
+        return sql.replace("X.", ref + ".");
+    }
+
+    /**
+     * Counters and limits of one aircraft, immutable.
+     */
+    public static class Usage implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String register;
+        private final long flights;
+        private final long flightTime;
+        private final long blockTime;
+        private final Integer lastFlight;
+        private final long baseFlights;
+        private final long baseFlightTime;
+        private final long baseBlockTime;
+        private final Integer resetTime;
+        private final Integer hoursLimit;
+        private final Integer landingsLimit;
+
+        private Usage(ResultSet rs) throws SQLException {
+
+            register = rs.getString(1);
+            flights = rs.getLong(2);
+            flightTime = rs.getLong(3);
+            blockTime = rs.getLong(4);
+            lastFlight = getInteger(rs, 5);
+            baseFlights = rs.getLong(6);
+            baseFlightTime = rs.getLong(7);
+            baseBlockTime = rs.getLong(8);
+            resetTime = getInteger(rs, 9);
+            hoursLimit = getInteger(rs, 10);
+            landingsLimit = getInteger(rs, 11);
+        }
+
+        public String getRegister() {
+            return register;
+        }
+
+        /**
+         * Total landings (one per flight).
+         */
+        public long getLandings() {
+            return flights;
+        }
+
+        /**
+         * Total airborne time in seconds.
+         */
+        public long getFlightTime() {
+            return flightTime;
+        }
+
+        /**
+         * Total block time in minutes.
+         */
+        public long getBlockTime() {
+            return blockTime;
+        }
+
+        /**
+         * Latest landing time (epoch seconds), null if none.
+         */
+        public Integer getLastFlight() {
+            return lastFlight;
+        }
+
+        /**
+         * Time of last maintenance reset (epoch seconds), null if never.
+         */
+        public Integer getResetTime() {
+            return resetTime;
+        }
+
+        /**
+         * Counters since last maintenance reset. Not below zero even if
+         * flights before the reset have been deleted.
+         */
+
+        public long getLandingsSinceReset() {
+            return Math.max(0, flights - baseFlights);
+        }
+
+        public long getFlightTimeSinceReset() {
+            return Math.max(0, flightTime - baseFlightTime);
+        }
+
+        public long getBlockTimeSinceReset() {
+            return Math.max(0, blockTime - baseBlockTime);
+        }
+
+        /**
+         * Airborne hours allowed between maintenances, null for no limit.
+         */
+        public Integer getHoursLimit() {
+            return hoursLimit;
+        }
+
+        /**
+         * Landings allowed between maintenances, null for no limit.
+         */
+        public Integer getLandingsLimit() {
+            return landingsLimit;
+        }
+
+        /**
+         * Returns state of most used limit.
+         */
+        public Status getStatus() {
+
+            if (hoursLimit == null && landingsLimit == null) {
+                return Status.NO_LIMITS;
+            }
+
+            double used = 0.0;
+            if (hoursLimit != null) {
+                used = Math.max(used, hoursLimit > 0 ? getFlightTimeSinceReset()
+                        / (hoursLimit * 3600.0) : 1.0);
+            }
+            if (landingsLimit != null) {
+                used = Math.max(used,
+                        landingsLimit > 0 ? getLandingsSinceReset()
+                                / (double) landingsLimit : 1.0);
+            }
+
+            if (used >= 1.0) {
+                return Status.OVERDUE;
+            } else if (used >= DUE_SOON) {
+                return Status.DUE_SOON;
+            }
+            return Status.OK;
+        }
+    }
+}
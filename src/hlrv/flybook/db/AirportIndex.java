@@ -0,0 +1,164 @@
+package hlrv.flybook.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable in-memory index of all airports, shared by all sessions.
+ *
+ * Airports are kept in id order in parallel arrays, which is a fraction of
+ * the memory of an SQLContainer with the same rows and can be scanned
+ * without any database access. Airports without coordinates are included,
+ * their coordinates are NaN.
+ */
+public class AirportIndex {
+
+    private static AirportIndex instance = null;
+
+    private final int[] ids;
+    private final String[] icaoCodes;
+    private final String[] names;
+    private final String[] cities;
+    private final String[] countries;
+    private final double[] latitudes;
+    private final double[] longitudes;
+
+    private AirportIndex(DBConnection dbconn) throws SQLException {
+
+        List<Object[]> rows = new ArrayList<Object[]>(8192);
+
+        Connection conn = dbconn.reserve();
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery("SELECT "
+                        + DBConstants.AIRPORTS_ID + ", "
+                        + DBConstants.AIRPORTS_ICAO + ", "
+                        + DBConstants.AIRPORTS_NAME + ", "
+                        + DBConstants.AIRPORTS_CITY + ", "
+                        + DBConstants.AIRPORTS_COUNTRY + ", "
+                        + DBConstants.AIRPORTS_LATITUDE + ", "
+                        + DBConstants.AIRPORTS_LONGITUDE + " FROM "
+                        + DBConstants.TABLE_AIRPORTS + " ORDER BY "
+                        + DBConstants.AIRPORTS_ID);
+                try {
+                    while (rs.next()) {
+                        double lat = rs.getDouble(6);
+                        if (rs.wasNull()) {
+                            lat = Double.NaN;
+                        }
+                        double lon = rs.getDouble(7);
+                        if (rs.wasNull()) {
+                            lon = Double.NaN;
+                        }
+                        rows.add(new Object[] { rs.getInt(1), rs.getString(2),
+                                rs.getString(3), rs.getString(4),
+                                rs.getString(5), lat, lon });
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            dbconn.release(conn);
+        }
+
+        int n = rows.size();
+        ids = new int[n];
+        icaoCodes = new String[n];
+        names = new String[n];
+        cities = new String[n];
+        countries = new String[n];
+        latitudes = new double[n];
+        longitudes = new double[n];
+
+        for (int i = 0; i < n; ++i) {
+            Object[] row = rows.get(i);
+            ids[i] = (Integer) row[0];
+            icaoCodes[i] = (String) row[1];
+            names[i] = (String) row[2];
+            cities[i] = (String) row[3];
+            countries[i] = (String) row[4];
+            latitudes[i] = (Double) row[5];
+            longitudes[i] = (Double) row[6];
+        }
+    }
+
+    /**
+     * Returns index, loading it on first call.
+     */
+    public static synchronized AirportIndex get(DBConnection dbconn)
+            throws SQLException {
+
+        if (instance == null) {
+            instance = new AirportIndex(dbconn);
+        }
+        return instance;
+    }
+
+    /**
+     * Drops index, next get() reloads it. Call after airports table has been
+     * modified.
+     */
+    public static synchronized void invalidate() {
+        instance = null;
+    }
+
+    /**
+     * Returns number of airports.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns position of airport id, or -1.
+     */
+    public int indexOf(int id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? -1 : i;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public String getICAOCode(int index) {
+        return icaoCodes[index];
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public String getCity(int index) {
+        return cities[index];
+    }
+
+    public String getCountry(int index) {
+        return countries[index];
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index];
+    }
+
+    /**
+     * Returns true if airport has coordinates.
+     */
+    public boolean hasLocation(int index) {
+        return !Double.isNaN(latitudes[index])
+                && !Double.isNaN(longitudes[index]);
+    }
+}
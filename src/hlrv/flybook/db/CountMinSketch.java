@@ -0,0 +1,100 @@
+package hlrv.flybook.db;
+
+import java.io.Serializable;
+
+/**
+ * Count-Min sketch of counts by 64-bit key hash, in fixed memory (depth *
+ * width counters).
+ *
+ * Counts may be decremented (turnstile model) as long as no key's true count
+ * goes negative. Then estimate is never below true count, and exceeds it by
+ * more than e / width * total with probability at most exp(-depth).
+ * Not thread safe.
+ */
+public class CountMinSketch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int depth;
+    private final int width;
+
+    /**
+     * Row i is counts[i * width, (i + 1) * width).
+     */
+    private final long[] counts;
+
+    private final long[] seeds;
+
+    private long total = 0;
+
+    public CountMinSketch(int depth, int width) {
+
+        if (depth < 1 || width < 1) {
+            throw new IllegalArgumentException("Empty sketch");
+        }
+        this.depth = depth;
+        this.width = width;
+        this.counts = new long[depth * width];
+        this.seeds = new long[depth];
+        long seed = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i < depth; ++i) {
+            seed = mix(seed + i);
+            seeds[i] = seed;
+        }
+    }
+
+    /**
+     * Adds delta (negative to remove) to count of key.
+     */
+    public void add(long key, long delta) {
+
+        for (int i = 0; i < depth; ++i) {
+            counts[i * width + index(key, i)] += delta;
+        }
+        total += delta;
+    }
+
+    /**
+     * Returns estimated count of key, never less than true count.
+     */
+    public long estimate(long key) {
+
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; ++i) {
+            min = Math.min(min, counts[i * width + index(key, i)]);
+        }
+        return Math.max(0, min);
+    }
+
+    /**
+     * Returns sum of all counts.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns bound of estimate overcount, holding with getConfidence().
+     */
+    public long getErrorBound() {
+        return (long) Math.ceil(Math.E / width * total);
+    }
+
+    public double getConfidence() {
+        return 1.0 - Math.exp(-depth);
+    }
+
+    private int index(long key, int row) {
+        return (int) ((mix(key ^ seeds[row]) >>> 1) % width);
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    static long mix(long z) {
+
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -33,6 +33,8 @@ public final class DBConstants {
     public final static String FLIGHTENTRIES_FLIGHT_TYPE              = "flight_type";
     public final static String FLIGHTENTRIES_IFR_TIME                 = "ifr_time";
     public final static String FLIGHTENTRIES_NOTES                    = "notes";
+    public final static String FLIGHTENTRIES_DISTANCE                 = "distance";
+    public final static String FLIGHTENTRIES_NIGHT_TIME               = "night_time";
     public final static String FLIGHTENTRIES_OPTLOCK                  = "optlock";
 
     public final static String AIRPORTS_ID                            = "id";
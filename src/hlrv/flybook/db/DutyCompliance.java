@@ -0,0 +1,481 @@
+package hlrv.flybook.db;
+
+import hlrv.flybook.FlightType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks commercial flights of pilots against duty and rest limits
+ * (DutyRules).
+ *
+ * Every loaded pilot has a timeline of duties sorted by start. Violations of
+ * every duty are kept; when a flight is added, changed or removed only duties
+ * whose windows reach it (at most the longest window, 28 days, after it) are
+ * evaluated again, and each evaluation only walks duties inside its window.
+ * Timeline of a pilot is loaded on first query, or by preload() ahead of
+ * queries, and then kept in sync by FlightEvents.
+ *
+ * Duty time in a window is the length of the union of duties in it, so
+ * overlapping report and post-flight times are not counted twice.
+ */
+public class DutyCompliance implements FlightEvents.Listener {
+
+    private static final Logger logger = Logger.getLogger("DutyCompliance");
+
+    /**
+     * Violation flags.
+     */
+    public static final int DUTY_24H = 1;
+    public static final int DUTY_7D = 2;
+    public static final int DUTY_28D = 4;
+    public static final int REST = 8;
+
+    private static final int DAY = 24 * 60 * 60;
+
+    private static final int LONGEST_WINDOW = 28 * DAY;
+
+    private static final String COLUMNS = DBConstants.FLIGHTENTRIES_FLIGHT_ID
+            + ", " + DBConstants.FLIGHTENTRIES_USERNAME + ", "
+            + DBConstants.FLIGHTENTRIES_FLIGHT_TYPE + ", "
+            + DBConstants.FLIGHTENTRIES_DEPARTURE_TIME + ", "
+            + DBConstants.FLIGHTENTRIES_LANDING_TIME;
+
+    private static DutyCompliance instance = null;
+
+    /**
+     * Duty of one flight in epoch seconds, report and post-flight times
+     * included.
+     */
+    private static class Duty {
+
+        final int flightId;
+        final String pilot;
+        final int start;
+        final int end;
+
+        Duty(int flightId, String pilot, int start, int end) {
+            this.flightId = flightId;
+            this.pilot = pilot;
+            this.start = start;
+            this.end = end;
+        }
+
+        long key() {
+            return DutyCompliance.key(start, flightId);
+        }
+    }
+
+    /**
+     * Duties and their violations of one pilot.
+     */
+    private static class Timeline {
+
+        final TreeMap<Long, Duty> byStart = new TreeMap<Long, Duty>();
+
+        final Map<Integer, Duty> byId = new HashMap<Integer, Duty>();
+
+        /**
+         * Flight id to violation flags, only non-zero ones.
+         */
+        final Map<Integer, Integer> violations = new HashMap<Integer, Integer>();
+
+        /**
+         * Longest duty so far, bounds how far before a window start duties
+         * reaching into it may start.
+         */
+        int maxLength = 0;
+
+        void add(Duty duty) {
+            byStart.put(duty.key(), duty);
+            byId.put(duty.flightId, duty);
+            maxLength = Math.max(maxLength, duty.end - duty.start);
+        }
+
+        Duty remove(int flightId) {
+            Duty duty = byId.remove(flightId);
+            if (duty != null) {
+                byStart.remove(duty.key());
+                violations.remove(flightId);
+            }
+            return duty;
+        }
+
+        /**
+         * Evaluates duties starting in [from - maxLength, to].
+         */
+        void evaluate(long from, long to, DutyRules rules) {
+
+            for (Duty duty : byStart.subMap(key(from - maxLength, 0), true,
+                    key(to, Integer.MAX_VALUE), true).values()) {
+                int v = evaluate(duty, rules);
+                if (v != 0) {
+                    violations.put(duty.flightId, v);
+                } else {
+                    violations.remove(duty.flightId);
+                }
+            }
+        }
+
+        void evaluateAll(DutyRules rules) {
+
+            violations.clear();
+            for (Duty duty : byStart.values()) {
+                int v = evaluate(duty, rules);
+                if (v != 0) {
+                    violations.put(duty.flightId, v);
+                }
+            }
+        }
+
+        private int evaluate(Duty duty, DutyRules rules) {
+
+            int v = 0;
+
+            if (union(duty.end - DAY, duty.end) > rules.getMaxDuty24h() * 60L) {
+                v |= DUTY_24H;
+            }
+            if (union(duty.end - 7L * DAY, duty.end) > rules.getMaxDuty7d() * 60L) {
+                v |= DUTY_7D;
+            }
+            if (union(duty.end - 28L * DAY, duty.end) > rules
+                    .getMaxDuty28d() * 60L) {
+                v |= DUTY_28D;
+            }
+
+            /**
+             * Rest before duty: gap to latest end of earlier duties.
+             */
+            long minRest = rules.getMinRestMinutes() * 60L;
+            long maxEnd = Long.MIN_VALUE;
+            for (Duty prev : byStart.subMap(
+                    key(duty.start - minRest - maxLength, 0), true, duty.key(),
+                    false).values()) {
+                maxEnd = Math.max(maxEnd, prev.end);
+            }
+            if (maxEnd != Long.MIN_VALUE) {
+                long gap = duty.start - maxEnd;
+                if (gap >= rules.getMaxBreakMinutes() * 60L && gap < minRest) {
+                    v |= REST;
+                }
+            }
+
+            return v;
+        }
+
+        /**
+         * Returns length of union of duties within [lo, hi).
+         */
+        private long union(long lo, long hi) {
+
+            long total = 0;
+            long covered = lo;
+
+            NavigableMap<Long, Duty> duties = byStart.subMap(key(lo
+                    - maxLength, 0), true, key(hi, 0), false);
+            for (Duty d : duties.values()) {
+                long s = Math.max(Math.max(d.start, lo), covered);
+                long e = Math.min(d.end, hi);
+                if (e > s) {
+                    total += e - s;
+                    covered = e;
+                }
+            }
+            return total;
+        }
+    }
+
+    private final DBConnection dbconn;
+
+    private DutyRules rules = DutyRules.DEFAULTS;
+
+    private final Map<String, Timeline> timelines = new HashMap<String, Timeline>();
+
+    /**
+     * Pilot of every tracked flight.
+     */
+    private final Map<Integer, String> flightPilots = new HashMap<Integer, String>();
+
+    /**
+     * Incremented by every commit and change of rules. Timelines preloaded
+     * without holding the lock are kept only if it did not change meanwhile.
+     */
+    private long generation = 0;
+
+    private DutyCompliance(DBConnection dbconn) {
+        this.dbconn = dbconn;
+    }
+
+    public static synchronized DutyCompliance get(DBConnection dbconn) {
+
+        if (instance == null) {
+            instance = new DutyCompliance(dbconn);
+            FlightEvents.addListener(instance);
+        }
+        return instance;
+    }
+
+    public synchronized DutyRules getRules() {
+        return rules;
+    }
+
+    /**
+     * Sets limits. Duties depend on report and post-flight times, so loaded
+     * timelines are dropped and loaded again when queried.
+     */
+    public synchronized void setRules(DutyRules rules) {
+
+        this.rules = rules;
+        ++generation;
+        timelines.clear();
+        flightPilots.clear();
+    }
+
+    /**
+     * Returns violation flags of flight of pilot, 0 if none or flight is not
+     * commercial.
+     */
+    public synchronized int getViolations(String pilot, int flightId)
+            throws SQLException {
+
+        if (pilot == null) {
+            return 0;
+        }
+        Timeline timeline = timelines.get(pilot);
+        if (timeline == null) {
+            timeline = load(pilot, rules);
+            add(pilot, timeline);
+        }
+        Integer v = timeline.violations.get(flightId);
+        return v != null ? v : 0;
+    }
+
+    /**
+     * Loads timelines of pilots that have none, so that following
+     * getViolations() calls do not read the database. Reads are done without
+     * holding the lock; if flights are committed meanwhile the timelines are
+     * dropped and pilots are loaded on query instead.
+     */
+    public void preload(Collection<String> pilots) throws SQLException {
+
+        List<String> missing = new ArrayList<String>();
+        long loadedGeneration;
+        DutyRules loadedRules;
+        synchronized (this) {
+            for (String pilot : pilots) {
+                if (pilot != null && !timelines.containsKey(pilot)) {
+                    missing.add(pilot);
+                }
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+            loadedGeneration = generation;
+            loadedRules = rules;
+        }
+
+        Map<String, Timeline> loaded = new HashMap<String, Timeline>();
+        for (String pilot : missing) {
+            loaded.put(pilot, load(pilot, loadedRules));
+        }
+
+        synchronized (this) {
+            if (generation != loadedGeneration) {
+                return;
+            }
+            for (Map.Entry<String, Timeline> e : loaded.entrySet()) {
+                if (!timelines.containsKey(e.getKey())) {
+                    add(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    private void add(String pilot, Timeline timeline) {
+
+        timelines.put(pilot, timeline);
+        for (Integer flightId : timeline.byId.keySet()) {
+            flightPilots.put(flightId, pilot);
+        }
+    }
+
+    /**
+     * Returns violation flags as text, null if none.
+     */
+    public static String describe(int violations) {
+
+        if (violations == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        if ((violations & DUTY_24H) != 0) {
+            sb.append("Duty limit of 24 hours exceeded. ");
+        }
+        if ((violations & DUTY_7D) != 0) {
+            sb.append("Duty limit of 7 days exceeded. ");
+        }
+        if ((violations & DUTY_28D) != 0) {
+            sb.append("Duty limit of 28 days exceeded. ");
+        }
+        if ((violations & REST) != 0) {
+            sb.append("Rest before duty too short. ");
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Moves committed flights in loaded timelines and evaluates duties
+     * around old and new times. On failure timelines are dropped rather than
+     * left stale.
+     */
+    @Override
+    public synchronized void flightsCommitted(Set<Integer> flightIds,
+            Set<String> pilots) {
+
+        ++generation;
+        if (flightIds.isEmpty() || timelines.isEmpty()) {
+            return;
+        }
+
+        List<Duty> changed = new ArrayList<Duty>();
+
+        for (Integer flightId : flightIds) {
+            String pilot = flightPilots.remove(flightId);
+            Timeline timeline = pilot != null ? timelines.get(pilot) : null;
+            if (timeline != null) {
+                Duty old = timeline.remove(flightId);
+                if (old != null) {
+                    changed.add(old);
+                }
+            }
+        }
+
+        try {
+            changed.addAll(sync(flightIds));
+        } catch (SQLException e) {
+            logger.log(Level.WARNING,
+                    "Failed to sync duty timelines, dropping them", e);
+            timelines.clear();
+            flightPilots.clear();
+            return;
+        }
+
+        for (Duty duty : changed) {
+            Timeline timeline = timelines.get(duty.pilot);
+            if (timeline != null) {
+                timeline.evaluate(duty.start, (long) duty.end
+                        + LONGEST_WINDOW, rules);
+            }
+        }
+    }
+
+    static long key(long start, int flightId) {
+        return (start << 32) | (flightId & 0xffffffffL);
+    }
+
+    /**
+     * Loads and evaluates commercial flights of pilot. Does not change shared
+     * state, may be called without holding the lock.
+     */
+    private Timeline load(String pilot, DutyRules rules) throws SQLException {
+
+        Timeline timeline = new Timeline();
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT " + COLUMNS
+                    + " FROM " + DBConstants.TABLE_FLIGHTENTRIES + " WHERE "
+                    + DBConstants.FLIGHTENTRIES_USERNAME + " = ? AND "
+                    + DBConstants.FLIGHTENTRIES_FLIGHT_TYPE + " = ?");
+            try {
+                stmt.setString(1, pilot);
+                stmt.setInt(2, FlightType.COMMERCIAL.ordinal());
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        Duty duty = readDuty(rs, rules);
+                        if (duty != null) {
+                            timeline.add(duty);
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            /**
+             * Ends read transaction, pool connections are not autocommit.
+             */
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+
+        timeline.evaluateAll(rules);
+        return timeline;
+    }
+
+    /**
+     * Reloads flights by primary key and adds them to loaded timelines.
+     * Returns added duties.
+     */
+    private List<Duty> sync(Collection<Integer> flightIds)
+            throws SQLException {
+
+        final List<Duty> added = new ArrayList<Duty>();
+
+        FlightRows.readByIds(dbconn, COLUMNS, flightIds,
+                new FlightRows.Handler() {
+                    @Override
+                    public void row(ResultSet rs) throws SQLException {
+                        Duty duty = readDuty(rs, rules);
+                        Timeline timeline = duty != null ? timelines
+                                .get(duty.pilot) : null;
+                        if (timeline != null) {
+                            timeline.add(duty);
+                            flightPilots.put(duty.flightId, duty.pilot);
+                            added.add(duty);
+                        }
+                    }
+                });
+        return added;
+    }
+
+    /**
+     * Returns duty of current row, null if flight is not commercial or has
+     * no valid times.
+     */
+    private static Duty readDuty(ResultSet rs, DutyRules rules)
+            throws SQLException {
+
+        String pilot = rs.getString(2);
+        int type = rs.getInt(3);
+        if (pilot == null || rs.wasNull()
+                || type != FlightType.COMMERCIAL.ordinal()) {
+            return null;
+        }
+        int dep = rs.getInt(4);
+        if (rs.wasNull()) {
+            return null;
+        }
+        int land = rs.getInt(5);
+        if (rs.wasNull() || land < dep) {
+            return null;
+        }
+        return new Duty(rs.getInt(1), pilot, dep - rules.getReportMinutes()
+                * 60, land + rules.getPostFlightMinutes() * 60);
+    }
+}
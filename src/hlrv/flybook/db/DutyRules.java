@@ -0,0 +1,80 @@
+package hlrv.flybook.db;
+
+import java.io.Serializable;
+
+/**
+ * Limits checked by DutyCompliance, all in minutes. Immutable.
+ *
+ * Duty of a flight starts report time before departure and ends post-flight
+ * time after landing. Duties separated by less than max break belong to the
+ * same duty period; a longer gap is rest and must be at least min rest.
+ */
+public class DutyRules implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final DutyRules DEFAULTS = new DutyRules(60, 30, 3 * 60,
+            10 * 60, 13 * 60, 60 * 60, 190 * 60);
+
+    private final int reportMinutes;
+    private final int postFlightMinutes;
+    private final int maxBreakMinutes;
+    private final int minRestMinutes;
+    private final int maxDuty24h;
+    private final int maxDuty7d;
+    private final int maxDuty28d;
+
+    public DutyRules(int reportMinutes, int postFlightMinutes,
+            int maxBreakMinutes, int minRestMinutes, int maxDuty24h,
+            int maxDuty7d, int maxDuty28d) {
+
+        if (maxBreakMinutes > minRestMinutes) {
+            throw new IllegalArgumentException(
+                    "Max break must not be longer than min rest");
+        }
+        this.reportMinutes = reportMinutes;
+        this.postFlightMinutes = postFlightMinutes;
+        this.maxBreakMinutes = maxBreakMinutes;
+        this.minRestMinutes = minRestMinutes;
+        this.maxDuty24h = maxDuty24h;
+        this.maxDuty7d = maxDuty7d;
+        this.maxDuty28d = maxDuty28d;
+    }
+
+    public int getReportMinutes() {
+        return reportMinutes;
+    }
+
+    public int getPostFlightMinutes() {
+        return postFlightMinutes;
+    }
+
+    public int getMaxBreakMinutes() {
+        return maxBreakMinutes;
+    }
+
+    public int getMinRestMinutes() {
+        return minRestMinutes;
+    }
+
+    /**
+     * Max duty in any 24 hours.
+     */
+    public int getMaxDuty24h() {
+        return maxDuty24h;
+    }
+
+    /**
+     * Max duty in any 7 days.
+     */
+    public int getMaxDuty7d() {
+        return maxDuty7d;
+    }
+
+    /**
+     * Max duty in any 28 days.
+     */
+    public int getMaxDuty28d() {
+        return maxDuty28d;
+    }
+}
@@ -0,0 +1,269 @@
+package hlrv.flybook.db;
+
+import hlrv.flybook.FlightType;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes fleet-wide breakdowns (FleetReport) over FlightColumns.
+ *
+ * Rows are split into partitions that are aggregated in parallel on a
+ * shared worker pool into FleetBreakdown partials, which are then merged.
+ * Workers read column arrays while the calling thread holds the store read
+ * lock, so they see a consistent snapshot.
+ *
+ * (Fork/join is not available on Java 6, a fixed pool with one level of
+ * partitioning is enough for a flat scan.)
+ */
+public class FleetAggregator {
+
+    /**
+     * Smallest partition worth a task.
+     */
+    private static final int MIN_PARTITION = 64 * 1024;
+
+    /**
+     * Number of airport pairs in report.
+     */
+    private static final int MAX_ROUTES = 100;
+
+    private static FleetAggregator instance = null;
+
+    private final ExecutorService workers;
+
+    private final int threads;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private FleetAggregator() {
+
+        threads = Runtime.getRuntime().availableProcessors();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "flybook-aggregator-"
+                        + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static synchronized FleetAggregator get() {
+
+        if (instance == null) {
+            instance = new FleetAggregator();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops aggregation workers on context shutdown.
+     */
+    public static synchronized void shutdown() {
+
+        if (instance != null) {
+            instance.workers.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Aggregates all flights. Loads column store and airport index on first
+     * use.
+     */
+    public FleetReport aggregate(DBConnection dbconn) throws SQLException {
+
+        FlightColumns columns = FlightColumns.get(dbconn);
+        final AirportIndex airports = AirportIndex.get(dbconn);
+
+        return columns.read(new FlightColumns.Scan<FleetReport>() {
+            @Override
+            public FleetReport scan(FlightColumns columns) {
+                return aggregate(columns, airports);
+            }
+        });
+    }
+
+    private FleetReport aggregate(final FlightColumns columns,
+            AirportIndex airports) {
+
+        long start = System.nanoTime();
+
+        final int size = columns.size();
+        final int pilotCount = columns.getUsernameCount();
+        final int aircraftCount = columns.getAircraftCount();
+        final int typeCount = FlightType.values().length;
+
+        int partitions = Math.max(1,
+                Math.min(threads * 4, size / MIN_PARTITION));
+
+        FleetBreakdown total;
+        if (partitions == 1) {
+            total = new FleetBreakdown(pilotCount, aircraftCount, typeCount);
+            total.add(columns, 0, size);
+        } else {
+            List<Future<FleetBreakdown>> futures = new ArrayList<Future<FleetBreakdown>>(
+                    partitions);
+            for (int p = 0; p < partitions; ++p) {
+                final int from = (int) ((long) size * p / partitions);
+                final int to = (int) ((long) size * (p + 1) / partitions);
+                futures.add(workers.submit(new Callable<FleetBreakdown>() {
+                    @Override
+                    public FleetBreakdown call() {
+                        FleetBreakdown part = new FleetBreakdown(pilotCount,
+                                aircraftCount, typeCount);
+                        part.add(columns, from, to);
+                        return part;
+                    }
+                }));
+            }
+
+            total = null;
+            try {
+                for (Future<FleetBreakdown> f : futures) {
+                    if (total == null) {
+                        total = f.get();
+                    } else {
+                        total.merge(f.get());
+                    }
+                }
+            } catch (InterruptedException e) {
+                cancel(futures);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Aggregation interrupted");
+            } catch (ExecutionException e) {
+                cancel(futures);
+                throw new IllegalStateException("Aggregation failed",
+                        e.getCause());
+            }
+        }
+
+        long millis = (System.nanoTime() - start) / 1000000L;
+
+        return createReport(total, columns, airports, millis, partitions);
+    }
+
+    private static void cancel(List<Future<FleetBreakdown>> futures) {
+        for (Future<FleetBreakdown> f : futures) {
+            f.cancel(true);
+        }
+    }
+
+    private static FleetReport createReport(FleetBreakdown b,
+            FlightColumns columns, AirportIndex airports, long millis,
+            int partitions) {
+
+        List<FleetReport.Row> pilots = new ArrayList<FleetReport.Row>();
+        long[] pilotFlights = b.getPilotFlights();
+        long[] pilotSeconds = b.getPilotSeconds();
+        for (int i = 0; i < pilotFlights.length; ++i) {
+            if (pilotFlights[i] > 0) {
+                pilots.add(new FleetReport.Row(columns.getUsername(i),
+                        pilotFlights[i], pilotSeconds[i]));
+            }
+        }
+        Collections.sort(pilots, BY_SECONDS);
+
+        List<FleetReport.Row> aircrafts = new ArrayList<FleetReport.Row>();
+        long[] aircraftFlights = b.getAircraftFlights();
+        long[] aircraftSeconds = b.getAircraftSeconds();
+        for (int i = 0; i < aircraftFlights.length; ++i) {
+            if (aircraftFlights[i] > 0) {
+                aircrafts.add(new FleetReport.Row(columns.getAircraft(i),
+                        aircraftFlights[i], aircraftSeconds[i]));
+            }
+        }
+        Collections.sort(aircrafts, BY_SECONDS);
+
+        /**
+         * Routes: pick top slots by seconds before building labels.
+         */
+        final FleetBreakdown.LongCounts routeCounts = b.getRoutes();
+        Integer[] routeSlots = box(routeCounts.slots());
+        Arrays.sort(routeSlots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long sa = routeCounts.getSeconds(a);
+                long sb = routeCounts.getSeconds(b);
+                return sa < sb ? 1 : (sa > sb ? -1 : 0);
+            }
+        });
+        List<FleetReport.Row> routes = new ArrayList<FleetReport.Row>();
+        for (int i = 0; i < routeSlots.length && i < MAX_ROUTES; ++i) {
+            int slot = routeSlots[i];
+            long key = routeCounts.getKey(slot);
+            String label = airportLabel(airports, (int) (key >> 32)) + " - "
+                    + airportLabel(airports, (int) key);
+            routes.add(new FleetReport.Row(label,
+                    routeCounts.getFlights(slot), routeCounts.getSeconds(slot)));
+        }
+
+        final FleetBreakdown.LongCounts monthCounts = b.getMonths();
+        Integer[] monthSlots = box(monthCounts.slots());
+        Arrays.sort(monthSlots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ka = monthCounts.getKey(a);
+                long kb = monthCounts.getKey(b);
+                return ka < kb ? -1 : (ka > kb ? 1 : 0);
+            }
+        });
+        List<FleetReport.Row> months = new ArrayList<FleetReport.Row>();
+        for (int slot : monthSlots) {
+            int key = (int) monthCounts.getKey(slot);
+            int month = key % 12 + 1;
+            months.add(new FleetReport.Row((key / 12) + "-"
+                    + (month < 10 ? "0" : "") + month,
+                    monthCounts.getFlights(slot), monthCounts.getSeconds(slot)));
+        }
+
+        List<FleetReport.Row> types = new ArrayList<FleetReport.Row>();
+        FlightType[] flightTypes = FlightType.values();
+        for (int i = 0; i < flightTypes.length; ++i) {
+            types.add(new FleetReport.Row(flightTypes[i].getName(),
+                    b.getTypeFlights()[i], b.getTypeSeconds()[i]));
+        }
+
+        return new FleetReport(b.getFlights(), b.getSeconds(), pilots,
+                aircrafts, routes, months, types, millis, partitions);
+    }
+
+    static String airportLabel(AirportIndex airports, int id) {
+
+        int i = airports.indexOf(id);
+        if (i < 0) {
+            return String.valueOf(id);
+        }
+        String icao = airports.getICAOCode(i);
+        return icao != null && icao.length() > 0 ? icao : airports.getName(i);
+    }
+
+    private static Integer[] box(int[] a) {
+        Integer[] boxed = new Integer[a.length];
+        for (int i = 0; i < a.length; ++i) {
+            boxed[i] = a[i];
+        }
+        return boxed;
+    }
+
+    private static final Comparator<FleetReport.Row> BY_SECONDS = new Comparator<FleetReport.Row>() {
+        @Override
+        public int compare(FleetReport.Row a, FleetReport.Row b) {
+            return a.getSeconds() < b.getSeconds() ? 1 : (a.getSeconds() > b
+                    .getSeconds() ? -1 : 0);
+        }
+    };
+}
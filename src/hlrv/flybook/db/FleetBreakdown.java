@@ -0,0 +1,295 @@
+package hlrv.flybook.db;
+
+import java.util.Arrays;
+
+/**
+ * Partial fleet-wide aggregate of flights: flight count and flight seconds
+ * per pilot, aircraft, airport pair, month and flight type.
+ *
+ * Keys are FlightColumns codes, so partials of disjoint row ranges can be
+ * computed independently (add()) and combined with merge(). Months are UTC,
+ * keyed year * 12 + month - 1, like FlightTotals.
+ */
+public class FleetBreakdown {
+
+    private long flights;
+    private long seconds;
+
+    private long[] pilotFlights;
+    private long[] pilotSeconds;
+
+    private long[] aircraftFlights;
+    private long[] aircraftSeconds;
+
+    private long[] typeFlights;
+    private long[] typeSeconds;
+
+    private final LongCounts months = new LongCounts();
+
+    /**
+     * Key departure << 32 | landing airport id. Flights without both
+     * airports are not counted.
+     */
+    private final LongCounts routes = new LongCounts();
+
+    public FleetBreakdown(int pilotCount, int aircraftCount, int typeCount) {
+
+        pilotFlights = new long[pilotCount];
+        pilotSeconds = new long[pilotCount];
+        aircraftFlights = new long[aircraftCount];
+        aircraftSeconds = new long[aircraftCount];
+        typeFlights = new long[typeCount];
+        typeSeconds = new long[typeCount];
+    }
+
+    /**
+     * Adds rows [from, to) of columns. Call inside FlightColumns.read().
+     */
+    public void add(FlightColumns columns, int from, int to) {
+
+        int[] usernames = columns.getUsernameCodes();
+        int[] aircrafts = columns.getAircraftCodes();
+        int[] departureTimes = columns.getDepartureTimes();
+        int[] landingTimes = columns.getLandingTimes();
+        int[] departureAirports = columns.getDepartureAirports();
+        int[] landingAirports = columns.getLandingAirports();
+        int[] types = columns.getFlightTypes();
+
+        final int NULL = FlightColumns.NULL;
+
+        for (int i = from; i < to; ++i) {
+
+            int dep = departureTimes[i];
+            int land = landingTimes[i];
+            long s = dep != NULL && land > dep ? (long) land - dep : 0;
+
+            ++flights;
+            seconds += s;
+
+            int pilot = usernames[i];
+            if (pilot >= 0 && pilot < pilotFlights.length) {
+                ++pilotFlights[pilot];
+                pilotSeconds[pilot] += s;
+            }
+
+            int aircraft = aircrafts[i];
+            if (aircraft >= 0 && aircraft < aircraftFlights.length) {
+                ++aircraftFlights[aircraft];
+                aircraftSeconds[aircraft] += s;
+            }
+
+            int type = types[i] == NULL ? 0 : types[i];
+            if (type >= 0 && type < typeFlights.length) {
+                ++typeFlights[type];
+                typeSeconds[type] += s;
+            }
+
+            if (dep != NULL) {
+                months.add(monthKey(dep), 1, s);
+            }
+
+            int depPort = departureAirports[i];
+            int landPort = landingAirports[i];
+            if (depPort != NULL && landPort != NULL) {
+                routes.add(((long) depPort << 32) | (landPort & 0xffffffffL),
+                        1, s);
+            }
+        }
+    }
+
+    /**
+     * Adds other partial to this one.
+     */
+    public void merge(FleetBreakdown other) {
+
+        flights += other.flights;
+        seconds += other.seconds;
+
+        pilotFlights = sum(pilotFlights, other.pilotFlights);
+        pilotSeconds = sum(pilotSeconds, other.pilotSeconds);
+        aircraftFlights = sum(aircraftFlights, other.aircraftFlights);
+        aircraftSeconds = sum(aircraftSeconds, other.aircraftSeconds);
+        typeFlights = sum(typeFlights, other.typeFlights);
+        typeSeconds = sum(typeSeconds, other.typeSeconds);
+
+        months.merge(other.months);
+        routes.merge(other.routes);
+    }
+
+    private static long[] sum(long[] a, long[] b) {
+
+        if (b.length > a.length) {
+            a = Arrays.copyOf(a, b.length);
+        }
+        for (int i = 0; i < b.length; ++i) {
+            a[i] += b[i];
+        }
+        return a;
+    }
+
+    /**
+     * Returns UTC year * 12 + month - 1 of unix time, see EpochFormatter.
+     */
+    static int monthKey(int epochSeconds) {
+
+        long days = epochSeconds >= 0 ? epochSeconds / 86400
+                : (epochSeconds - 86399L) / 86400;
+
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        return (int) (year * 12 + month - 1);
+    }
+
+    public long getFlights() {
+        return flights;
+    }
+
+    public long getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * Per code arrays, index is FlightColumns username code.
+     */
+    public long[] getPilotFlights() {
+        return pilotFlights;
+    }
+
+    public long[] getPilotSeconds() {
+        return pilotSeconds;
+    }
+
+    /**
+     * Per code arrays, index is FlightColumns aircraft code.
+     */
+    public long[] getAircraftFlights() {
+        return aircraftFlights;
+    }
+
+    public long[] getAircraftSeconds() {
+        return aircraftSeconds;
+    }
+
+    /**
+     * Per FlightType ordinal.
+     */
+    public long[] getTypeFlights() {
+        return typeFlights;
+    }
+
+    public long[] getTypeSeconds() {
+        return typeSeconds;
+    }
+
+    public LongCounts getMonths() {
+        return months;
+    }
+
+    public LongCounts getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Open addressing long key to (flights, seconds) map.
+     */
+    public static class LongCounts {
+
+        private long[] keys = new long[64];
+        private long[] flights = new long[64];
+        private long[] seconds = new long[64];
+        private boolean[] used = new boolean[64];
+        private int size = 0;
+
+        public void add(long key, long flightCount, long flightSeconds) {
+
+            if (2 * (size + 1) > keys.length) {
+                rehash(keys.length * 2);
+            }
+
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                used[i] = true;
+                keys[i] = key;
+                ++size;
+            }
+            flights[i] += flightCount;
+            seconds[i] += flightSeconds;
+        }
+
+        public void merge(LongCounts other) {
+
+            for (int i = 0; i < other.keys.length; ++i) {
+                if (other.used[i]) {
+                    add(other.keys[i], other.flights[i], other.seconds[i]);
+                }
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns slot positions of entries, for getKey() etc.
+         */
+        public int[] slots() {
+
+            int[] slots = new int[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; ++i) {
+                if (used[i]) {
+                    slots[n++] = i;
+                }
+            }
+            return slots;
+        }
+
+        public long getKey(int slot) {
+            return keys[slot];
+        }
+
+        public long getFlights(int slot) {
+            return flights[slot];
+        }
+
+        public long getSeconds(int slot) {
+            return seconds[slot];
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & mask;
+        }
+
+        private void rehash(int capacity) {
+
+            long[] oldKeys = keys;
+            long[] oldFlights = flights;
+            long[] oldSeconds = seconds;
+            boolean[] oldUsed = used;
+
+            keys = new long[capacity];
+            flights = new long[capacity];
+            seconds = new long[capacity];
+            used = new boolean[capacity];
+            size = 0;
+
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldUsed[i]) {
+                    add(oldKeys[i], oldFlights[i], oldSeconds[i]);
+                }
+            }
+        }
+    }
+}
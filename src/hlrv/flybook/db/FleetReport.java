@@ -0,0 +1,124 @@
+package hlrv.flybook.db;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fleet-wide breakdowns with resolved labels, result of FleetAggregator.
+ */
+public class FleetReport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * One breakdown line. Seconds are flight time.
+     */
+    public static class Row implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String label;
+        private final long flights;
+        private final long seconds;
+
+        public Row(String label, long flights, long seconds) {
+            this.label = label;
+            this.flights = flights;
+            this.seconds = seconds;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getFlights() {
+            return flights;
+        }
+
+        public long getSeconds() {
+            return seconds;
+        }
+    }
+
+    private final long flights;
+    private final long seconds;
+
+    private final List<Row> pilots;
+    private final List<Row> aircrafts;
+    private final List<Row> routes;
+    private final List<Row> months;
+    private final List<Row> types;
+
+    private final long millis;
+    private final int partitions;
+
+    FleetReport(long flights, long seconds, List<Row> pilots,
+            List<Row> aircrafts, List<Row> routes, List<Row> months,
+            List<Row> types, long millis, int partitions) {
+
+        this.flights = flights;
+        this.seconds = seconds;
+        this.pilots = Collections.unmodifiableList(pilots);
+        this.aircrafts = Collections.unmodifiableList(aircrafts);
+        this.routes = Collections.unmodifiableList(routes);
+        this.months = Collections.unmodifiableList(months);
+        this.types = Collections.unmodifiableList(types);
+        this.millis = millis;
+        this.partitions = partitions;
+    }
+
+    public long getFlights() {
+        return flights;
+    }
+
+    public long getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * Pilots by flight time, descending.
+     */
+    public List<Row> getPilots() {
+        return pilots;
+    }
+
+    /**
+     * Aircraft by flight time, descending.
+     */
+    public List<Row> getAircrafts() {
+        return aircrafts;
+    }
+
+    /**
+     * Airport pairs by flight time, descending, top ones only.
+     */
+    public List<Row> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Months (UTC, "yyyy-MM") in ascending order.
+     */
+    public List<Row> getMonths() {
+        return months;
+    }
+
+    /**
+     * Flight types in FlightType order.
+     */
+    public List<Row> getTypes() {
+        return types;
+    }
+
+    /**
+     * Aggregation time in milliseconds, excluding label lookups.
+     */
+    public long getMillis() {
+        return millis;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+}
@@ -0,0 +1,345 @@
+package hlrv.flybook.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills a FlightEntries column computed from other columns of the row, for
+ * rows written before the column existed.
+ *
+ * Id ranges of rows missing the value are read in turn, values computed in
+ * parallel on a shared worker pool, and results written in short
+ * transactions by the backfill thread, as SQLite has a single writer anyway.
+ * Backfills started with start() run one after another on a single thread,
+ * so they do not compete for the write lock.
+ */
+public abstract class FlightBackfill {
+
+    private static final Logger logger = Logger.getLogger("FlightBackfill");
+
+    /**
+     * Flight ids per batch.
+     */
+    private static final int BATCH = 16 * 1024;
+
+    private static final int THREADS = Runtime.getRuntime()
+            .availableProcessors();
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService workers = Executors
+            .newFixedThreadPool(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "flybook-backfill-"
+                            + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final ExecutorService runner = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "flybook-backfill");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    protected final DBConnection dbconn;
+
+    private final String column;
+
+    private final String[] inputs;
+
+    /**
+     * Rows without value that have all inputs.
+     */
+    private final String missing;
+
+    /**
+     * Backfill of column computed from given input columns.
+     */
+    FlightBackfill(DBConnection dbconn, String column, String... inputs) {
+
+        this.dbconn = dbconn;
+        this.column = column;
+        this.inputs = inputs;
+
+        StringBuilder sql = new StringBuilder(column).append(" IS NULL");
+        for (String input : inputs) {
+            sql.append(" AND ").append(input).append(" IS NOT NULL");
+        }
+        this.missing = sql.toString();
+    }
+
+    /**
+     * Stops backfills of all columns on context shutdown.
+     */
+    public static void shutdown() {
+
+        runner.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Returns value computed from input values (in input column order), null
+     * if it cannot be computed. Called on worker threads.
+     */
+    protected abstract Integer compute(long[] values) throws SQLException;
+
+    /**
+     * Called on backfill thread after rows have been updated, to drop state
+     * derived from the old values.
+     */
+    protected abstract void filled(int rows) throws SQLException;
+
+    /**
+     * Queues backfill on the backfill thread.
+     */
+    void start() {
+
+        runner.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int rows = backfill();
+                    if (rows > 0) {
+                        logger.info("Computed " + column + " of " + rows
+                                + " flights");
+                    }
+                } catch (SQLException e) {
+                    logger.log(Level.WARNING, "Backfill of " + column
+                            + " failed", e);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Backfill of " + column
+                            + " failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes value of rows that have none but have all inputs. Returns
+     * number of rows updated. Rows whose value cannot be computed stay NULL.
+     */
+    public int backfill() throws SQLException {
+
+        int updated = 0;
+
+        Connection conn = dbconn.reserve();
+        try {
+            long[] range = readRange(conn);
+            if (range == null) {
+                return 0;
+            }
+
+            LinkedList<Future<long[][]>> pending = new LinkedList<Future<long[][]>>();
+
+            for (long from = range[0]; from <= range[1]; from += BATCH) {
+
+                final long[][] rows = readBatch(conn, from, from + BATCH - 1);
+                if (rows[0].length > 0) {
+                    pending.add(workers.submit(new Callable<long[][]>() {
+                        @Override
+                        public long[][] call() throws SQLException {
+                            return computeBatch(rows);
+                        }
+                    }));
+                }
+                /**
+                 * Keep workers busy while writing oldest results.
+                 */
+                if (pending.size() > THREADS) {
+                    updated += write(conn, get(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                updated += write(conn, get(pending.removeFirst()));
+            }
+        } finally {
+            dbconn.release(conn);
+        }
+
+        if (updated > 0) {
+            filled(updated);
+        }
+        return updated;
+    }
+
+    /**
+     * Returns {min, max} flight id of rows missing value, null if none.
+     */
+    private long[] readRange(Connection conn) throws SQLException {
+
+        PreparedStatement stmt = conn.prepareStatement("SELECT MIN("
+                + DBConstants.FLIGHTENTRIES_FLIGHT_ID + "), MAX("
+                + DBConstants.FLIGHTENTRIES_FLIGHT_ID + ") FROM "
+                + DBConstants.TABLE_FLIGHTENTRIES + " WHERE " + missing);
+        try {
+            ResultSet rs = stmt.executeQuery();
+            try {
+                rs.next();
+                long min = rs.getLong(1);
+                if (rs.wasNull()) {
+                    return null;
+                }
+                return new long[] { min, rs.getLong(2) };
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+            conn.commit();
+        }
+    }
+
+    /**
+     * Reads {ids, input columns...} of rows missing value in id range.
+     */
+    private long[][] readBatch(Connection conn, long from, long to)
+            throws SQLException {
+
+        List<long[]> rows = new ArrayList<long[]>();
+
+        StringBuilder sql = new StringBuilder("SELECT ");
+        sql.append(DBConstants.FLIGHTENTRIES_FLIGHT_ID);
+        for (String input : inputs) {
+            sql.append(", ").append(input);
+        }
+        sql.append(" FROM ").append(DBConstants.TABLE_FLIGHTENTRIES);
+        sql.append(" WHERE ").append(DBConstants.FLIGHTENTRIES_FLIGHT_ID);
+        sql.append(" BETWEEN ? AND ? AND ").append(missing);
+
+        PreparedStatement stmt = conn.prepareStatement(sql.toString());
+        try {
+            stmt.setLong(1, from);
+            stmt.setLong(2, to);
+            ResultSet rs = stmt.executeQuery();
+            try {
+                while (rs.next()) {
+                    long[] row = new long[inputs.length + 1];
+                    for (int c = 0; c < row.length; ++c) {
+                        row[c] = rs.getLong(c + 1);
+                    }
+                    rows.add(row);
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+            conn.commit();
+        }
+
+        long[][] batch = new long[inputs.length + 1][rows.size()];
+        for (int i = 0; i < rows.size(); ++i) {
+            for (int c = 0; c < batch.length; ++c) {
+                batch[c][i] = rows.get(i)[c];
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Returns {ids, values, input columns...} of rows whose value is known.
+     */
+    private long[][] computeBatch(long[][] rows) throws SQLException {
+
+        int n = rows[0].length;
+        long[][] result = new long[inputs.length + 2][n];
+        long[] row = new long[inputs.length];
+        int k = 0;
+        for (int i = 0; i < n; ++i) {
+            for (int c = 0; c < row.length; ++c) {
+                row[c] = rows[c + 1][i];
+            }
+            Integer value = compute(row);
+            if (value != null) {
+                result[0][k] = rows[0][i];
+                result[1][k] = value;
+                for (int c = 0; c < row.length; ++c) {
+                    result[c + 2][k] = row[c];
+                }
+                ++k;
+            }
+        }
+        for (int c = 0; c < result.length; ++c) {
+            result[c] = Arrays.copyOf(result[c], k);
+        }
+        return result;
+    }
+
+    /**
+     * Writes values of batch in one transaction. Rows stored with a value
+     * meanwhile, or whose inputs have changed since they were read, are left
+     * as they are.
+     */
+    private int write(Connection conn, long[][] batch) throws SQLException {
+
+        if (batch[0].length == 0) {
+            return 0;
+        }
+        StringBuilder sql = new StringBuilder("UPDATE ");
+        sql.append(DBConstants.TABLE_FLIGHTENTRIES);
+        sql.append(" SET ").append(column).append(" = ? WHERE ");
+        sql.append(DBConstants.FLIGHTENTRIES_FLIGHT_ID).append(" = ? AND ");
+        sql.append(column).append(" IS NULL");
+        for (String input : inputs) {
+            sql.append(" AND ").append(input).append(" = ?");
+        }
+
+        int updated = 0;
+        PreparedStatement stmt = conn.prepareStatement(sql.toString());
+        try {
+            for (int i = 0; i < batch[0].length; ++i) {
+                stmt.setLong(1, batch[1][i]);
+                stmt.setLong(2, batch[0][i]);
+                for (int c = 0; c < inputs.length; ++c) {
+                    stmt.setLong(c + 3, batch[c + 2][i]);
+                }
+                stmt.addBatch();
+            }
+            for (int count : stmt.executeBatch()) {
+                updated += count;
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            stmt.close();
+        }
+        return updated;
+    }
+
+    private static long[][] get(Future<long[][]> future) throws SQLException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Backfill interrupted", e);
+        } catch (ExecutionException e) {
+            throw new SQLException("Backfill computation failed",
+                    e.getCause());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package hlrv.flybook.db;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Committed change of one FlightEntries row: column values before and after.
+ * Insert has no before values and delete has no after values. Values are
+ * list columns (notes excluded) as the row had them in the committing
+ * container.
+ */
+public class FlightChange {
+
+    private final int flightId;
+    private final Map<String, Object> before;
+    private final Map<String, Object> after;
+
+    public FlightChange(int flightId, Map<String, Object> before,
+            Map<String, Object> after) {
+        this.flightId = flightId;
+        this.before = before != null ? Collections.unmodifiableMap(before)
+                : null;
+        this.after = after != null ? Collections.unmodifiableMap(after) : null;
+    }
+
+    public int getFlightId() {
+        return flightId;
+    }
+
+    /**
+     * Returns values before change, null for inserted flight.
+     */
+    public Map<String, Object> getBefore() {
+        return before;
+    }
+
+    /**
+     * Returns values after change, null for deleted flight.
+     */
+    public Map<String, Object> getAfter() {
+        return after;
+    }
+
+    public boolean isInsert() {
+        return before == null;
+    }
+
+    public boolean isDelete() {
+        return after == null;
+    }
+}
@@ -0,0 +1,102 @@
+package hlrv.flybook.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Count of committed FlightEntries row changes, for state derived from
+ * flights and persisted outside their transaction.
+ *
+ * Row FLIGHTS of table FlightChangeCount is incremented by triggers on every
+ * inserted and deleted row and on every update of stored columns, in the
+ * same transaction. That is once per FlightChange, so a listener that adds
+ * the number of applied changes to the count its state was read with knows
+ * the count its state matches. Listeners write that count under their own
+ * name together with their state; if it differs from FLIGHTS on startup,
+ * changes were committed that the saved state does not have.
+ *
+ * Notes, derived columns (distance, night time) and optlock are not stored
+ * columns, writing them does not count as a change.
+ */
+public class FlightChangeCount {
+
+    public static final String TABLE = "FlightChangeCount";
+
+    /**
+     * Name of the row counting FlightEntries changes.
+     */
+    public static final String FLIGHTS = "FlightEntries";
+
+    /**
+     * Columns written from flight values, each update of them is a
+     * FlightChange.
+     */
+    public static final String STORED_COLUMNS = "username, date, aircraft, departure_time, departure_airport, "
+            + "landing_time, landing_airport, onblock_time, offblock_time, flight_type, ifr_time";
+
+    private static final String INCREMENT = "UPDATE " + TABLE
+            + " SET changes = changes + 1 WHERE name = '" + FLIGHTS + "'; ";
+
+    // @formatter:off
+
+    /**
+     * Migrations creating counter and its triggers, appended to Migrations.
+     */
+    public static final String[] MIGRATIONS = {
+            "CREATE TABLE if not exists " + TABLE + "(name TEXT PRIMARY KEY, changes INTEGER)",
+            "INSERT OR IGNORE INTO " + TABLE + " (name, changes) VALUES ('" + FLIGHTS + "', 0)",
+            "CREATE TRIGGER if not exists trigger_change_count_insert AFTER INSERT ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN " + INCREMENT + "END",
+            "CREATE TRIGGER if not exists trigger_change_count_delete AFTER DELETE ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN " + INCREMENT + "END",
+            "CREATE TRIGGER if not exists trigger_change_count_update AFTER UPDATE OF " + STORED_COLUMNS + " ON "
+                    + DBConstants.TABLE_FLIGHTENTRIES + " FOR EACH ROW BEGIN " + INCREMENT + "END" };
+
+    // @formatter:on
+
+    private FlightChangeCount() {
+    }
+
+    /**
+     * Reads count of name in transaction of conn, -1 if there is none.
+     */
+    static long read(Connection conn, String name) throws SQLException {
+
+        PreparedStatement stmt = conn.prepareStatement("SELECT changes FROM "
+                + TABLE + " WHERE name = ?");
+        try {
+            stmt.setString(1, name);
+            ResultSet rs = stmt.executeQuery();
+            try {
+                if (rs.next()) {
+                    long changes = rs.getLong(1);
+                    return rs.wasNull() ? -1 : changes;
+                }
+                return -1;
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Writes count of name in transaction of conn.
+     */
+    static void write(Connection conn, String name, long changes)
+            throws SQLException {
+
+        PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE "
+                + "INTO " + TABLE + " (name, changes) VALUES (?, ?)");
+        try {
+            stmt.setString(1, name);
+            stmt.setLong(2, changes);
+            stmt.executeUpdate();
+        } finally {
+            stmt.close();
+        }
+    }
+}
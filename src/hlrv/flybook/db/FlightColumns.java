@@ -0,0 +1,625 @@
+package hlrv.flybook.db;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Read-optimized columnar copy of FlightEntries, shared by all sessions.
+ *
+ * Every column is an int[] (struct of arrays), usernames and aircraft
+ * registers are dictionary coded to int codes, so reports can scan flights
+ * in tight loops over primitive arrays without Item/Property objects or
+ * boxing. Null values are stored as NULL. Notes are not included.
+ *
+ * Store is optional: it is loaded from database on first get() and then kept
+ * in sync by FlightEvents, reloading committed rows by primary key. Row order
+ * is arbitrary (deleted rows are replaced by the last row).
+ *
+ * Column arrays must only be accessed inside read(), which holds the read
+ * lock, and only indexes below size() are valid.
+ */
+public class FlightColumns implements FlightEvents.Listener,
+        FlightColumnsMXBean {
+
+    private static final Logger logger = Logger.getLogger("FlightColumns");
+
+    /**
+     * Stored value of SQL NULL.
+     */
+    public static final int NULL = Integer.MIN_VALUE;
+
+    private static final String COLUMNS = DBConstants.FLIGHTENTRIES_FLIGHT_ID
+            + ", " + DBConstants.FLIGHTENTRIES_USERNAME + ", "
+            + DBConstants.FLIGHTENTRIES_DATE + ", "
+            + DBConstants.FLIGHTENTRIES_AIRCRAFT + ", "
+            + DBConstants.FLIGHTENTRIES_DEPARTURE_TIME + ", "
+            + DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT + ", "
+            + DBConstants.FLIGHTENTRIES_LANDING_TIME + ", "
+            + DBConstants.FLIGHTENTRIES_LANDING_AIRPORT + ", "
+            + DBConstants.FLIGHTENTRIES_ONBLOCK_TIME + ", "
+            + DBConstants.FLIGHTENTRIES_OFFBLOCK_TIME + ", "
+            + DBConstants.FLIGHTENTRIES_FLIGHT_TYPE + ", "
+            + DBConstants.FLIGHTENTRIES_IFR_TIME;
+
+    private static FlightColumns instance = null;
+
+    /**
+     * Scan over store, run with read lock held.
+     */
+    public interface Scan<R> {
+        R scan(FlightColumns columns);
+    }
+
+    private final DBConnection dbconn;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int size = 0;
+
+    private int[] flightIds;
+    private int[] usernames;
+    private int[] dates;
+    private int[] aircrafts;
+    private int[] departureTimes;
+    private int[] departureAirports;
+    private int[] landingTimes;
+    private int[] landingAirports;
+    private int[] onBlockTimes;
+    private int[] offBlockTimes;
+    private int[] flightTypes;
+    private int[] ifrTimes;
+
+    private final Dictionary usernameDict = new Dictionary();
+    private final Dictionary aircraftDict = new Dictionary();
+
+    /**
+     * Flight id to row.
+     */
+    private final IntIndex rows = new IntIndex();
+
+    private long loadMillis;
+    private long syncCount;
+    private long syncedRowCount;
+
+    private FlightColumns(DBConnection dbconn) {
+
+        this.dbconn = dbconn;
+        allocate(1024);
+    }
+
+    /**
+     * Returns store, loading it on first call.
+     */
+    public static synchronized FlightColumns get(DBConnection dbconn)
+            throws SQLException {
+
+        if (instance == null) {
+
+            /**
+             * Listen before loading so no commit is missed; events block on
+             * write lock until load is done.
+             */
+            FlightColumns columns = new FlightColumns(dbconn);
+            FlightEvents.addListener(columns);
+            try {
+                columns.loadAll();
+            } catch (SQLException e) {
+                FlightEvents.removeListener(columns);
+                throw e;
+            }
+            instance = columns;
+
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        instance,
+                        new ObjectName("hlrv.flybook:type=FlightColumns"));
+            } catch (Exception e) {
+                logger.log(Level.WARNING,
+                        "Failed to register flight columns MBean", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Drops store, next get() loads it again.
+     */
+    public static synchronized void invalidate() {
+
+        if (instance != null) {
+            FlightEvents.removeListener(instance);
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        new ObjectName("hlrv.flybook:type=FlightColumns"));
+            } catch (Exception e) {
+                // not registered
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * Runs scan with read lock held. Commits wait until scan returns, so
+     * keep scans short.
+     */
+    public <R> R read(Scan<R> scan) {
+
+        lock.readLock().lock();
+        try {
+            return scan.scan(this);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Column accessors, valid inside read() only. Arrays may be longer than
+     * size().
+     */
+
+    public int size() {
+        return size;
+    }
+
+    public int[] getFlightIds() {
+        return flightIds;
+    }
+
+    public int[] getUsernameCodes() {
+        return usernames;
+    }
+
+    public int[] getDates() {
+        return dates;
+    }
+
+    public int[] getAircraftCodes() {
+        return aircrafts;
+    }
+
+    public int[] getDepartureTimes() {
+        return departureTimes;
+    }
+
+    public int[] getDepartureAirports() {
+        return departureAirports;
+    }
+
+    public int[] getLandingTimes() {
+        return landingTimes;
+    }
+
+    public int[] getLandingAirports() {
+        return landingAirports;
+    }
+
+    public int[] getOnBlockTimes() {
+        return onBlockTimes;
+    }
+
+    public int[] getOffBlockTimes() {
+        return offBlockTimes;
+    }
+
+    public int[] getFlightTypes() {
+        return flightTypes;
+    }
+
+    public int[] getIFRTimes() {
+        return ifrTimes;
+    }
+
+    /**
+     * Returns row of flight, or -1.
+     */
+    public int indexOf(int flightId) {
+        return rows.get(flightId);
+    }
+
+    /**
+     * Returns username of code, null for NULL.
+     */
+    public String getUsername(int code) {
+        return usernameDict.value(code);
+    }
+
+    /**
+     * Returns code of username, or -1 if no flight has it.
+     */
+    public int getUsernameCode(String username) {
+        return usernameDict.find(username);
+    }
+
+    public String getAircraft(int code) {
+        return aircraftDict.value(code);
+    }
+
+    public int getAircraftCode(String register) {
+        return aircraftDict.find(register);
+    }
+
+    public int getUsernameCount() {
+        return usernameDict.size();
+    }
+
+    public int getAircraftCount() {
+        return aircraftDict.size();
+    }
+
+    @Override
+    public int getRowCount() {
+        return size;
+    }
+
+    @Override
+    public int getCapacity() {
+        return flightIds.length;
+    }
+
+    @Override
+    public long getMemoryUsage() {
+
+        lock.readLock().lock();
+        try {
+            return 12L * 4 * flightIds.length + rows.getMemoryUsage()
+                    + usernameDict.getMemoryUsage()
+                    + aircraftDict.getMemoryUsage();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    @Override
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    @Override
+    public synchronized long getSyncedRowCount() {
+        return syncedRowCount;
+    }
+
+    /**
+     * Reloads committed flights by primary key. Flights no longer in
+     * database are removed.
+     */
+    @Override
+    public void flightsCommitted(Set<Integer> flightIds, Set<String> pilots) {
+
+        if (flightIds.isEmpty()) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            sync(flightIds);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Failed to sync flights, dropping store",
+                    e);
+            invalidate();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        synchronized (this) {
+            ++syncCount;
+            syncedRowCount += flightIds.size();
+        }
+    }
+
+    private void loadAll() throws SQLException {
+
+        long start = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            load();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        loadMillis = System.currentTimeMillis() - start;
+
+        logger.info("Loaded " + size + " flights in " + loadMillis + " ms, "
+                + getMemoryUsage() / 1024 + " kB");
+    }
+
+    private void load() throws SQLException {
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT " + COLUMNS
+                    + " FROM " + DBConstants.TABLE_FLIGHTENTRIES + " ORDER BY "
+                    + DBConstants.FLIGHTENTRIES_FLIGHT_ID);
+            try {
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        put(rs);
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            /**
+             * Ends read transaction, pool connections are not autocommit.
+             */
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+    }
+
+    private void sync(Set<Integer> flightIds) throws SQLException {
+
+        final Set<Integer> missing = new HashSet<Integer>(flightIds);
+
+        FlightRows.readByIds(dbconn, COLUMNS, flightIds,
+                new FlightRows.Handler() {
+                    @Override
+                    public void row(ResultSet rs) throws SQLException {
+                        missing.remove(put(rs));
+                    }
+                });
+
+        for (Iterator<Integer> it = missing.iterator(); it.hasNext();) {
+            remove(it.next());
+        }
+    }
+
+    /**
+     * Inserts or replaces row from result set of COLUMNS, returns flight id.
+     */
+    private int put(ResultSet rs) throws SQLException {
+
+        int flightId = rs.getInt(1);
+
+        int row = rows.get(flightId);
+        if (row < 0) {
+            if (size == flightIds.length) {
+                allocate(size + (size >> 1));
+            }
+            row = size++;
+            rows.put(flightId, row);
+        }
+
+        flightIds[row] = flightId;
+        usernames[row] = usernameDict.code(rs.getString(2));
+        dates[row] = getInt(rs, 3);
+        aircrafts[row] = aircraftDict.code(rs.getString(4));
+        departureTimes[row] = getInt(rs, 5);
+        departureAirports[row] = getInt(rs, 6);
+        landingTimes[row] = getInt(rs, 7);
+        landingAirports[row] = getInt(rs, 8);
+        onBlockTimes[row] = getInt(rs, 9);
+        offBlockTimes[row] = getInt(rs, 10);
+        flightTypes[row] = getInt(rs, 11);
+        ifrTimes[row] = getInt(rs, 12);
+
+        return flightId;
+    }
+
+    /**
+     * Removes flight by moving last row in its place.
+     */
+    private void remove(int flightId) {
+
+        int row = rows.get(flightId);
+        if (row < 0) {
+            return;
+        }
+        rows.remove(flightId);
+
+        int last = --size;
+        if (row != last) {
+            flightIds[row] = flightIds[last];
+            usernames[row] = usernames[last];
+            dates[row] = dates[last];
+            aircrafts[row] = aircrafts[last];
+            departureTimes[row] = departureTimes[last];
+            departureAirports[row] = departureAirports[last];
+            landingTimes[row] = landingTimes[last];
+            landingAirports[row] = landingAirports[last];
+            onBlockTimes[row] = onBlockTimes[last];
+            offBlockTimes[row] = offBlockTimes[last];
+            flightTypes[row] = flightTypes[last];
+            ifrTimes[row] = ifrTimes[last];
+            rows.put(flightIds[row], row);
+        }
+    }
+
+    private void allocate(int capacity) {
+
+        flightIds = grow(flightIds, capacity);
+        usernames = grow(usernames, capacity);
+        dates = grow(dates, capacity);
+        aircrafts = grow(aircrafts, capacity);
+        departureTimes = grow(departureTimes, capacity);
+        departureAirports = grow(departureAirports, capacity);
+        landingTimes = grow(landingTimes, capacity);
+        landingAirports = grow(landingAirports, capacity);
+        onBlockTimes = grow(onBlockTimes, capacity);
+        offBlockTimes = grow(offBlockTimes, capacity);
+        flightTypes = grow(flightTypes, capacity);
+        ifrTimes = grow(ifrTimes, capacity);
+    }
+
+    private static int[] grow(int[] a, int capacity) {
+        return a == null ? new int[capacity] : Arrays.copyOf(a, capacity);
+    }
+
+    private static int getInt(ResultSet rs, int column) throws SQLException {
+        int v = rs.getInt(column);
+        return rs.wasNull() ? NULL : v;
+    }
+
+    /**
+     * Append-only string dictionary. Codes of values no longer used are kept.
+     */
+    private static class Dictionary {
+
+        private final Map<String, Integer> codes = new HashMap<String, Integer>();
+        private String[] values = new String[16];
+        private int size = 0;
+
+        int code(String value) {
+
+            if (value == null) {
+                return NULL;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                code = size;
+                values[size++] = value;
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        int find(String value) {
+
+            Integer code = value == null ? null : codes.get(value);
+            return code == null ? -1 : code;
+        }
+
+        String value(int code) {
+            return code == NULL ? null : values[code];
+        }
+
+        int size() {
+            return size;
+        }
+
+        long getMemoryUsage() {
+
+            /**
+             * Array slot, map entry and String with its char array.
+             */
+            long bytes = 4L * values.length;
+            for (int i = 0; i < size; ++i) {
+                bytes += 48 + 40 + 2 * values[i].length();
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Open addressing int to int map with linear probing, -1 for missing.
+     */
+    private static class IntIndex {
+
+        private static final int FREE = -1;
+
+        private int[] keys;
+        private int[] values;
+        private int size = 0;
+
+        IntIndex() {
+            allocate(1024);
+        }
+
+        private void allocate(int capacity) {
+
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, FREE);
+        }
+
+        private int slot(int key) {
+            return (key * 0x9E3779B9 >>> 1) & (keys.length - 1);
+        }
+
+        int get(int key) {
+
+            for (int i = slot(key);; i = (i + 1) & (keys.length - 1)) {
+                if (values[i] == FREE) {
+                    return -1;
+                }
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+        }
+
+        void put(int key, int value) {
+
+            if (2 * (size + 1) > keys.length) {
+                int[] oldKeys = keys;
+                int[] oldValues = values;
+                allocate(keys.length * 2);
+                size = 0;
+                for (int i = 0; i < oldKeys.length; ++i) {
+                    if (oldValues[i] != FREE) {
+                        put(oldKeys[i], oldValues[i]);
+                    }
+                }
+            }
+
+            int i = slot(key);
+            while (values[i] != FREE && keys[i] != key) {
+                i = (i + 1) & (keys.length - 1);
+            }
+            if (values[i] == FREE) {
+                ++size;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void remove(int key) {
+
+            int mask = keys.length - 1;
+            int i = slot(key);
+            while (values[i] != FREE && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (values[i] == FREE) {
+                return;
+            }
+            values[i] = FREE;
+            --size;
+
+            /**
+             * Shift following entries of the probe sequence back, so lookups
+             * never stop at the freed slot too early.
+             */
+            for (int j = (i + 1) & mask; values[j] != FREE; j = (j + 1) & mask) {
+                int home = slot(keys[j]);
+                boolean movable = i <= j ? (home <= i || home > j)
+                        : (home <= i && home > j);
+                if (movable) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = FREE;
+                    i = j;
+                }
+            }
+        }
+
+        long getMemoryUsage() {
+            return 8L * keys.length;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package hlrv.flybook.db;
+
+/**
+ * JMX view of columnar flight store. Registered as
+ * "hlrv.flybook:type=FlightColumns".
+ */
+public interface FlightColumnsMXBean {
+
+    /**
+     * Number of flights in store.
+     */
+    int getRowCount();
+
+    /**
+     * Allocated row slots.
+     */
+    int getCapacity();
+
+    int getUsernameCount();
+
+    int getAircraftCount();
+
+    /**
+     * Approximate bytes retained by column arrays and dictionaries.
+     */
+    long getMemoryUsage();
+
+    /**
+     * Duration of initial load in milliseconds.
+     */
+    long getLoadMillis();
+
+    /**
+     * Number of commit events applied.
+     */
+    long getSyncCount();
+
+    /**
+     * Total number of rows reloaded by commit events.
+     */
+    long getSyncedRowCount();
+}
@@ -0,0 +1,274 @@
+package hlrv.flybook.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds flights overlapping in time with a flight of same pilot or same
+ * aircraft.
+ *
+ * Flights (departure_time, landing_time) are kept in an IntervalTree per
+ * pilot and per aircraft register. Tree of a pilot or register is loaded from
+ * database on its first query and then kept in sync by FlightEvents, so
+ * checks cost O(log n + k) instead of a query over the pilot's flights.
+ *
+ * Flights without both times, or landing before departure, are ignored.
+ */
+public class FlightConflicts implements FlightEvents.Listener {
+
+    private static final Logger logger = Logger.getLogger("FlightConflicts");
+
+    private static final String COLUMNS = DBConstants.FLIGHTENTRIES_FLIGHT_ID
+            + ", " + DBConstants.FLIGHTENTRIES_USERNAME + ", "
+            + DBConstants.FLIGHTENTRIES_AIRCRAFT + ", "
+            + DBConstants.FLIGHTENTRIES_DEPARTURE_TIME + ", "
+            + DBConstants.FLIGHTENTRIES_LANDING_TIME;
+
+    private static FlightConflicts instance = null;
+
+    /**
+     * Interval of an indexed flight, needed to remove it from trees.
+     */
+    private static class Span {
+
+        final String pilot;
+        final String aircraft;
+        final int start;
+        final int end;
+
+        Span(String pilot, String aircraft, int start, int end) {
+            this.pilot = pilot;
+            this.aircraft = aircraft;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final DBConnection dbconn;
+
+    private final Map<String, IntervalTree> pilotTrees = new HashMap<String, IntervalTree>();
+    private final Map<String, IntervalTree> aircraftTrees = new HashMap<String, IntervalTree>();
+
+    /**
+     * Flight id to span, for flights in any loaded tree.
+     */
+    private final Map<Integer, Span> spans = new HashMap<Integer, Span>();
+
+    private FlightConflicts(DBConnection dbconn) {
+        this.dbconn = dbconn;
+    }
+
+    public static synchronized FlightConflicts get(DBConnection dbconn) {
+
+        if (instance == null) {
+            instance = new FlightConflicts(dbconn);
+            FlightEvents.addListener(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns ids of other flights of pilot overlapping (start, end), in
+     * departure order. Flight id is excluded from result, null for new
+     * flights.
+     */
+    public synchronized List<Integer> findPilotConflicts(String pilot,
+            Integer flightId, int start, int end) throws SQLException {
+
+        if (pilot == null) {
+            return Collections.emptyList();
+        }
+        IntervalTree tree = pilotTrees.get(pilot);
+        if (tree == null) {
+            tree = load(DBConstants.FLIGHTENTRIES_USERNAME, pilot);
+            pilotTrees.put(pilot, tree);
+        }
+        return find(tree, flightId, start, end);
+    }
+
+    /**
+     * Returns ids of other flights with aircraft overlapping (start, end), in
+     * departure order.
+     */
+    public synchronized List<Integer> findAircraftConflicts(String aircraft,
+            Integer flightId, int start, int end) throws SQLException {
+
+        if (aircraft == null || aircraft.isEmpty()) {
+            return Collections.emptyList();
+        }
+        IntervalTree tree = aircraftTrees.get(aircraft);
+        if (tree == null) {
+            tree = load(DBConstants.FLIGHTENTRIES_AIRCRAFT, aircraft);
+            aircraftTrees.put(aircraft, tree);
+        }
+        return find(tree, flightId, start, end);
+    }
+
+    /**
+     * Drops all trees, they are loaded again when queried.
+     */
+    public synchronized void clear() {
+        pilotTrees.clear();
+        aircraftTrees.clear();
+        spans.clear();
+    }
+
+    /**
+     * Moves committed flights in loaded trees. On failure trees are dropped
+     * rather than left stale.
+     */
+    @Override
+    public synchronized void flightsCommitted(Set<Integer> flightIds,
+            Set<String> pilots) {
+
+        if (flightIds.isEmpty() || pilotTrees.isEmpty()
+                && aircraftTrees.isEmpty()) {
+            return;
+        }
+
+        for (Integer flightId : flightIds) {
+            Span span = spans.remove(flightId);
+            if (span != null) {
+                removeFrom(pilotTrees, span.pilot, span, flightId);
+                removeFrom(aircraftTrees, span.aircraft, span, flightId);
+            }
+        }
+
+        try {
+            sync(flightIds);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING,
+                    "Failed to sync flight intervals, dropping trees", e);
+            clear();
+        }
+    }
+
+    private List<Integer> find(IntervalTree tree, Integer flightId,
+            int start, int end) {
+
+        List<Integer> result = new ArrayList<Integer>();
+        tree.findOverlapping(start, end, result);
+        if (flightId != null) {
+            result.remove(flightId);
+        }
+        return result;
+    }
+
+    private static void removeFrom(Map<String, IntervalTree> trees,
+            String key, Span span, int flightId) {
+
+        if (key != null) {
+            IntervalTree tree = trees.get(key);
+            if (tree != null) {
+                tree.remove(span.start, flightId);
+            }
+        }
+    }
+
+    /**
+     * Loads tree of flights where column = value. Flights already in spans
+     * (indexed in other trees) are read again, values are the same.
+     */
+    private IntervalTree load(String column, String value) throws SQLException {
+
+        IntervalTree tree = new IntervalTree();
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT " + COLUMNS
+                    + " FROM " + DBConstants.TABLE_FLIGHTENTRIES + " WHERE "
+                    + column + " = ?");
+            try {
+                stmt.setString(1, value);
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        Span span = readSpan(rs);
+                        if (span != null) {
+                            int flightId = rs.getInt(1);
+                            tree.add(span.start, span.end, flightId);
+                            spans.put(flightId, span);
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            /**
+             * Ends read transaction, pool connections are not autocommit.
+             */
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+        return tree;
+    }
+
+    /**
+     * Reloads flights by primary key and adds them to loaded trees of their
+     * pilot and aircraft.
+     */
+    private void sync(Set<Integer> flightIds) throws SQLException {
+
+        FlightRows.readByIds(dbconn, COLUMNS, flightIds,
+                new FlightRows.Handler() {
+                    @Override
+                    public void row(ResultSet rs) throws SQLException {
+                        Span span = readSpan(rs);
+                        if (span != null) {
+                            add(rs.getInt(1), span);
+                        }
+                    }
+                });
+    }
+
+    private void add(int flightId, Span span) {
+
+        boolean indexed = false;
+
+        IntervalTree tree = span.pilot != null ? pilotTrees.get(span.pilot)
+                : null;
+        if (tree != null) {
+            tree.add(span.start, span.end, flightId);
+            indexed = true;
+        }
+
+        tree = span.aircraft != null ? aircraftTrees.get(span.aircraft) : null;
+        if (tree != null) {
+            tree.add(span.start, span.end, flightId);
+            indexed = true;
+        }
+
+        if (indexed) {
+            spans.put(flightId, span);
+        }
+    }
+
+    /**
+     * Returns span of current row, null if flight has no valid interval.
+     */
+    private static Span readSpan(ResultSet rs) throws SQLException {
+
+        int start = rs.getInt(4);
+        if (rs.wasNull()) {
+            return null;
+        }
+        int end = rs.getInt(5);
+        if (rs.wasNull() || end < start) {
+            return null;
+        }
+        return new Span(rs.getString(2), rs.getString(3), start, end);
+    }
+}
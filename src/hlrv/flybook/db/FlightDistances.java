@@ -0,0 +1,127 @@
+package hlrv.flybook.db;
+
+import java.sql.SQLException;
+
+/**
+ * Great-circle distance of flights between departure and landing airport,
+ * stored in FlightEntries.distance (meters, NULL if an airport or its
+ * location is unknown) and indexed for sorting.
+ *
+ * Query delegate computes distance of every stored row from AirportIndex, so
+ * queries and FlightTotals sum stored values. Rows written before the column
+ * existed are filled by backfill(), started in background on first use.
+ */
+public class FlightDistances extends FlightBackfill {
+
+    /**
+     * Migrations adding distance column and its index, appended to
+     * Migrations.
+     */
+    public static final String[] MIGRATIONS = {
+            "ALTER TABLE " + DBConstants.TABLE_FLIGHTENTRIES + " ADD COLUMN "
+                    + DBConstants.FLIGHTENTRIES_DISTANCE + " INTEGER",
+            "CREATE INDEX if not exists flightentries_distance_index ON "
+                    + DBConstants.TABLE_FLIGHTENTRIES + " ("
+                    + DBConstants.FLIGHTENTRIES_DISTANCE + ")" };
+
+    /**
+     * Mean earth radius in meters.
+     */
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private static final double METERS_PER_NM = 1852.0;
+
+    private static FlightDistances instance = null;
+
+    private FlightDistances(DBConnection dbconn) {
+        super(dbconn, DBConstants.FLIGHTENTRIES_DISTANCE,
+                DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT,
+                DBConstants.FLIGHTENTRIES_LANDING_AIRPORT);
+    }
+
+    /**
+     * Returns shared instance, backfill is started on first call.
+     */
+    public static synchronized FlightDistances get(DBConnection dbconn) {
+
+        if (instance == null) {
+            instance = new FlightDistances(dbconn);
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns great-circle distance in meters between airports, null if
+     * either is null or has no location.
+     */
+    public Integer getDistance(Object departure, Object landing)
+            throws SQLException {
+
+        if (!(departure instanceof Number) || !(landing instanceof Number)) {
+            return null;
+        }
+        return distance(AirportIndex.get(dbconn),
+                ((Number) departure).intValue(),
+                ((Number) landing).intValue());
+    }
+
+    /**
+     * Returns distance in meters, null if unknown.
+     */
+    private static Integer distance(AirportIndex airports, int departure,
+            int landing) {
+
+        int from = airports.indexOf(departure);
+        int to = airports.indexOf(landing);
+        if (from < 0 || to < 0 || !airports.hasLocation(from)
+                || !airports.hasLocation(to)) {
+            return null;
+        }
+        return greatCircle(airports.getLatitude(from),
+                airports.getLongitude(from), airports.getLatitude(to),
+                airports.getLongitude(to));
+    }
+
+    /**
+     * Returns great-circle (haversine) distance in meters between points
+     * given in degrees.
+     */
+    public static int greatCircle(double lat1, double lon1, double lat2,
+            double lon2) {
+
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dPhi = phi2 - phi1;
+        double dLambda = Math.toRadians(lon2 - lon1);
+
+        double sinPhi = Math.sin(dPhi / 2);
+        double sinLambda = Math.sin(dLambda / 2);
+        double h = sinPhi * sinPhi + Math.cos(phi1) * Math.cos(phi2)
+                * sinLambda * sinLambda;
+
+        return (int) Math.round(2 * EARTH_RADIUS
+                * Math.asin(Math.min(1.0, Math.sqrt(h))));
+    }
+
+    /**
+     * Returns meters as whole nautical miles.
+     */
+    public static long toNauticalMiles(long meters) {
+        return Math.round(meters / METERS_PER_NM);
+    }
+
+    @Override
+    protected Integer compute(long[] values) throws SQLException {
+        return distance(AirportIndex.get(dbconn), (int) values[0],
+                (int) values[1]);
+    }
+
+    /**
+     * Totals sum stored distances, drop them.
+     */
+    @Override
+    protected void filled(int rows) throws SQLException {
+        FlightTotals.get(dbconn).invalidateAll();
+    }
+}
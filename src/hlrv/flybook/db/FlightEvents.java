@@ -0,0 +1,97 @@
+package hlrv.flybook.db;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Application wide notification of committed FlightEntries changes. Shared
+ * derived data (totals, in-memory stores) listens to these to stay in sync
+ * with commits made by any session.
+ */
+public class FlightEvents {
+
+    private static final Logger logger = Logger.getLogger("FlightEvents");
+
+    public interface Listener {
+
+        /**
+         * Called after FlightsContainer commit has written (inserted, updated
+         * or deleted) given flights. Pilots are usernames of written rows.
+         */
+        void flightsCommitted(Set<Integer> flightIds, Set<String> pilots);
+    }
+
+    /**
+     * Listener of committed row values, for derived data that is updated by
+     * deltas instead of reloading rows.
+     */
+    public interface ChangeListener {
+
+        /**
+         * Called after FlightsContainer commit has succeeded, with changes in
+         * the order they were written. Not called for failed commits.
+         */
+        void flightsChanged(List<FlightChange> changes);
+    }
+
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private static final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
+
+    private FlightEvents() {
+    }
+
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public static void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    public static void removeChangeListener(ChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * Notifies all listeners in calling thread. A failing listener does not
+     * prevent others from being notified.
+     */
+    public static void fireCommitted(Set<Integer> flightIds, Set<String> pilots) {
+
+        if (flightIds.isEmpty() && pilots.isEmpty()) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.flightsCommitted(flightIds, pilots);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Flight commit listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Notifies change listeners in calling thread.
+     */
+    public static void fireChanged(List<FlightChange> changes) {
+
+        if (changes.isEmpty()) {
+            return;
+        }
+        for (ChangeListener listener : changeListeners) {
+            try {
+                listener.flightsChanged(changes);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Flight change listener failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package hlrv.flybook.db;
+
+import java.sql.SQLException;
+
+/**
+ * Night time of flights, stored in FlightEntries.night_time (minutes, NULL if
+ * an airport, its location or a time is unknown).
+ *
+ * Computed by SolarTables from departure and landing airport and time
+ * whenever the query delegate stores a row. Rows written before the column
+ * existed are filled by backfill(), started in background on first use.
+ */
+public class FlightNightTimes extends FlightBackfill {
+
+    /**
+     * Migrations adding night time column, appended to Migrations.
+     */
+    public static final String[] MIGRATIONS = { "ALTER TABLE "
+            + DBConstants.TABLE_FLIGHTENTRIES + " ADD COLUMN "
+            + DBConstants.FLIGHTENTRIES_NIGHT_TIME + " INTEGER" };
+
+    private static FlightNightTimes instance = null;
+
+    /**
+     * Tables of current AirportIndex, replaced when index is reloaded.
+     */
+    private volatile SolarTables tables = null;
+
+    private FlightNightTimes(DBConnection dbconn) {
+        super(dbconn, DBConstants.FLIGHTENTRIES_NIGHT_TIME,
+                DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT,
+                DBConstants.FLIGHTENTRIES_LANDING_AIRPORT,
+                DBConstants.FLIGHTENTRIES_DEPARTURE_TIME,
+                DBConstants.FLIGHTENTRIES_LANDING_TIME);
+    }
+
+    /**
+     * Returns shared instance, backfill is started on first call.
+     */
+    public static synchronized FlightNightTimes get(DBConnection dbconn) {
+
+        if (instance == null) {
+            instance = new FlightNightTimes(dbconn);
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns night minutes of flight, null if any argument is null, an
+     * airport has no location or landing is before departure.
+     */
+    public Integer getNightTime(Object departureAirport,
+            Object landingAirport, Object departureTime, Object landingTime)
+            throws SQLException {
+
+        if (!(departureAirport instanceof Number)
+                || !(landingAirport instanceof Number)
+                || !(departureTime instanceof Number)
+                || !(landingTime instanceof Number)) {
+            return null;
+        }
+        return nightTime(((Number) departureAirport).intValue(),
+                ((Number) landingAirport).intValue(),
+                ((Number) departureTime).longValue(),
+                ((Number) landingTime).longValue());
+    }
+
+    /**
+     * Returns night minutes, null if unknown.
+     */
+    private Integer nightTime(int departureAirport, int landingAirport,
+            long departureTime, long landingTime) throws SQLException {
+
+        SolarTables solar = getTables();
+        AirportIndex airports = AirportIndex.get(dbconn);
+
+        int from = airports.indexOf(departureAirport);
+        int to = airports.indexOf(landingAirport);
+        if (from < 0 || to < 0) {
+            return null;
+        }
+        long seconds = solar.getNightSeconds(from, to, departureTime,
+                landingTime);
+        return seconds < 0 ? null : (int) Math.round(seconds / 60.0);
+    }
+
+    /**
+     * Returns sun tables of current airport index.
+     */
+    public SolarTables getTables() throws SQLException {
+
+        AirportIndex airports = AirportIndex.get(dbconn);
+        SolarTables solar = tables;
+        if (solar == null || !solar.isFor(airports)) {
+            solar = new SolarTables(airports);
+            tables = solar;
+        }
+        return solar;
+    }
+
+    @Override
+    protected Integer compute(long[] values) throws SQLException {
+        return nightTime((int) values[0], (int) values[1], values[2],
+                values[3]);
+    }
+
+    /**
+     * Loaded recency trackers have night time of the old values, drop them.
+     */
+    @Override
+    protected void filled(int rows) throws SQLException {
+        PilotRecency.get(dbconn).invalidateAll();
+    }
+}
@@ -0,0 +1,135 @@
+package hlrv.flybook.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Full-text index of FlightEntries notes.
+ *
+ * FTS4 table FlightNotesFTS holds notes with docid = flight_id and is kept in
+ * sync by triggers on FlightEntries, so index changes commit with the flight
+ * rows. (Bundled SQLite has no FTS5 and no external content tables, so notes
+ * are stored twice.)
+ */
+public class FlightNotesIndex {
+
+    public static final String TABLE = "FlightNotesFTS";
+
+    /**
+     * Highlight markers in snippets. Control characters, so they cannot
+     * clash with note text and survive HTML escaping.
+     */
+    public static final String MATCH_START = "\u0001";
+    public static final String MATCH_END = "\u0002";
+
+    /**
+     * Number of matched term occurrences of current row, computed from
+     * offsets() (four numbers per occurrence). FTS4 of bundled SQLite has no
+     * built-in ranking function.
+     */
+    public static final String HITS = "((length(offsets(" + TABLE
+            + ")) - length(replace(offsets(" + TABLE + "), ' ', '')) + 1) / 4)";
+
+    /**
+     * Highlighted excerpt of current row.
+     */
+    public static final String SNIPPET = "snippet(" + TABLE + ", '"
+            + MATCH_START + "', '" + MATCH_END + "', '...', -1, 12)";
+
+    // @formatter:off
+
+    /**
+     * Migrations creating and filling index, appended to Migrations.
+     */
+    public static final String[] MIGRATIONS = {
+            "CREATE VIRTUAL TABLE " + TABLE + " USING fts4(notes)",
+            "INSERT INTO " + TABLE + " (docid, notes) SELECT flight_id, IFNULL(notes, '') FROM " + DBConstants.TABLE_FLIGHTENTRIES,
+            "CREATE TRIGGER if not exists trigger_notes_insert AFTER INSERT ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN INSERT INTO " + TABLE + " (docid, notes) VALUES (NEW.flight_id, IFNULL(NEW.notes, '')); END",
+            "CREATE TRIGGER if not exists trigger_notes_update AFTER UPDATE OF notes ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN UPDATE " + TABLE + " SET notes = IFNULL(NEW.notes, '') WHERE docid = NEW.flight_id; END",
+            "CREATE TRIGGER if not exists trigger_notes_delete AFTER DELETE ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN DELETE FROM " + TABLE + " WHERE docid = OLD.flight_id; END" };
+
+    // @formatter:on
+
+    private FlightNotesIndex() {
+    }
+
+    /**
+     * Converts user input to FTS query: every word must occur, last word may
+     * be a prefix. Operators and quotes in input are ignored, so query is
+     * always valid. Returns null if input has no words.
+     */
+    public static String toMatchQuery(String text) {
+
+        if (text == null) {
+            return null;
+        }
+
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); ++i) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                words.add(word.toString().toLowerCase(Locale.ENGLISH));
+                word.setLength(0);
+            }
+        }
+
+        if (words.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < words.size(); ++i) {
+            if (i > 0) {
+                query.append(' ');
+            }
+            query.append(words.get(i));
+        }
+        query.append('*');
+        return query.toString();
+    }
+
+    /**
+     * Escapes snippet for HTML and turns match markers into bold tags.
+     */
+    public static String snippetToHtml(String snippet) {
+
+        if (snippet == null) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder(snippet.length() + 32);
+        for (int i = 0; i < snippet.length(); ++i) {
+            char c = snippet.charAt(i);
+            switch (c) {
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '&':
+                sb.append("&amp;");
+                break;
+            case '"':
+                sb.append("&quot;");
+                break;
+            case '\u0001':
+                sb.append("<b>");
+                break;
+            case '\u0002':
+                sb.append("</b>");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package hlrv.flybook.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reads FlightEntries rows by primary key, for listeners that reload
+ * committed flights.
+ */
+final class FlightRows {
+
+    /**
+     * Receives rows of readByIds() in result set order.
+     */
+    interface Handler {
+
+        /**
+         * Called for every row read, with result set positioned on it.
+         */
+        void row(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Max ids per IN list.
+     */
+    private static final int BATCH = 500;
+
+    private FlightRows() {
+    }
+
+    /**
+     * Reads given columns of flights by id in one read transaction, with IN
+     * lists of at most BATCH ids. Flights that do not exist are not
+     * reported.
+     */
+    static void readByIds(DBConnection dbconn, String columns,
+            Collection<Integer> flightIds, Handler handler)
+            throws SQLException {
+
+        if (flightIds.isEmpty()) {
+            return;
+        }
+        List<Integer> ids = new ArrayList<Integer>(flightIds);
+
+        Connection conn = dbconn.reserve();
+        try {
+            for (int from = 0; from < ids.size(); from += BATCH) {
+
+                List<Integer> batch = ids.subList(from,
+                        Math.min(ids.size(), from + BATCH));
+
+                StringBuilder sql = new StringBuilder();
+                sql.append("SELECT ").append(columns).append(" FROM ");
+                sql.append(DBConstants.TABLE_FLIGHTENTRIES).append(" WHERE ");
+                sql.append(DBConstants.FLIGHTENTRIES_FLIGHT_ID).append(" IN (");
+                for (int i = 0; i < batch.size(); ++i) {
+                    sql.append(i == 0 ? "?" : ", ?");
+                }
+                sql.append(")");
+
+                PreparedStatement stmt = conn.prepareStatement(sql.toString());
+                try {
+                    for (int i = 0; i < batch.size(); ++i) {
+                        stmt.setInt(i + 1, batch.get(i));
+                    }
+                    ResultSet rs = stmt.executeQuery();
+                    try {
+                        while (rs.next()) {
+                            handler.row(rs);
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    stmt.close();
+                }
+            }
+            /**
+             * Ends read transaction, pool connections are not autocommit.
+             */
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+    }
+}
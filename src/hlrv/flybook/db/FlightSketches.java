@@ -0,0 +1,710 @@
+package hlrv.flybook.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Approximate fleet-wide heavy hitters: most flown airport pairs, busiest
+ * airports (departures plus landings) and most used aircraft registers.
+ *
+ * Every category has a SpaceSaving summary of candidate keys and a
+ * CountMinSketch of all keys, both updated by deltas of committed
+ * FlightChanges, so top lists are read without scanning flights. Estimate of
+ * a key is the smaller upper bound of the two, lower bound comes from
+ * Space-Saving error.
+ *
+ * Sketches are checkpointed to table FlightSketches every few minutes when
+ * changed and on context shutdown, and loaded from there on startup. Every
+ * checkpoint saves the FlightChangeCount its sketches match; a checkpoint
+ * whose count is not the current one is stale (commits after it were lost
+ * with the process) and sketches are rebuilt by a scan instead. verify()
+ * compares estimates against exact counts, rebuild() recomputes sketches.
+ */
+public class FlightSketches implements FlightEvents.ChangeListener {
+
+    private static final Logger logger = Logger.getLogger("FlightSketches");
+
+    public static final String TABLE = "FlightSketches";
+
+    /**
+     * Migrations creating checkpoint table, appended to Migrations.
+     */
+    public static final String[] MIGRATIONS = { "CREATE TABLE if not exists "
+            + TABLE + "(name TEXT PRIMARY KEY, flights INTEGER, "
+            + "saved INTEGER, data BLOB)" };
+
+    private static final String CHECKPOINT_NAME = "fleet";
+
+    private static final int CHECKPOINT_MINUTES = 5;
+
+    /**
+     * Wait for a running checkpoint on shutdown.
+     */
+    private static final int SHUTDOWN_SECONDS = 10;
+
+    /**
+     * Count-Min dimensions: overcount over e / 4096 (0.07 %) of total with
+     * probability 1 - exp(-4) (98 %).
+     */
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 4096;
+
+    /**
+     * Space-Saving capacities, well above listed top size.
+     */
+    private static final int ROUTE_CANDIDATES = 1024;
+    private static final int AIRPORT_CANDIDATES = 512;
+    private static final int AIRCRAFT_CANDIDATES = 512;
+
+    private static FlightSketches instance = null;
+
+    /**
+     * Estimated count of a key with bounds of true count.
+     */
+    public static class Estimate {
+
+        private final String label;
+        private final long count;
+        private final long lowerBound;
+
+        Estimate(String label, long count, long lowerBound) {
+            this.label = label;
+            this.count = count;
+            this.lowerBound = lowerBound;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Estimated count, also upper bound of true count.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getLowerBound() {
+            return lowerBound;
+        }
+
+        public long getUpperBound() {
+            return count;
+        }
+    }
+
+    /**
+     * Result of comparing top lists against exact counts.
+     */
+    public static class Verification {
+
+        private final int checked;
+        private final int outOfBounds;
+        private final int missing;
+        private final long maxError;
+
+        Verification(int checked, int outOfBounds, int missing, long maxError) {
+            this.checked = checked;
+            this.outOfBounds = outOfBounds;
+            this.missing = missing;
+            this.maxError = maxError;
+        }
+
+        /**
+         * Number of exact top keys checked.
+         */
+        public int getChecked() {
+            return checked;
+        }
+
+        /**
+         * Number of keys whose exact count is outside estimate bounds.
+         */
+        public int getOutOfBounds() {
+            return outOfBounds;
+        }
+
+        /**
+         * Number of exact top keys not in estimated top list.
+         */
+        public int getMissing() {
+            return missing;
+        }
+
+        /**
+         * Largest difference between estimate and exact count.
+         */
+        public long getMaxError() {
+            return maxError;
+        }
+
+        public boolean isConsistent() {
+            return outOfBounds == 0;
+        }
+    }
+
+    /**
+     * Candidates and counts of one category.
+     */
+    private static class Sketch<K> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final SpaceSaving<K> candidates;
+        final CountMinSketch counts;
+
+        Sketch(int capacity) {
+            candidates = new SpaceSaving<K>(capacity);
+            counts = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+        }
+
+        void add(K key) {
+            candidates.add(key);
+            counts.add(hash(key), 1);
+        }
+
+        void remove(K key) {
+            candidates.remove(key);
+            counts.add(hash(key), -1);
+        }
+
+        List<SpaceSaving.Counter<K>> top(int n) {
+            return candidates.top(n);
+        }
+
+        long upperBound(SpaceSaving.Counter<K> counter) {
+            return Math.min(counter.getCount(),
+                    counts.estimate(hash(counter.getKey())));
+        }
+
+        long lowerBound(SpaceSaving.Counter<K> counter) {
+            return Math.max(0, counter.getCount() - counter.getError());
+        }
+
+        private static long hash(Object key) {
+
+            if (key instanceof Number) {
+                return ((Number) key).longValue();
+            }
+            /**
+             * FNV-1a of string chars.
+             */
+            String s = key.toString();
+            long h = 0xCBF29CE484222325L;
+            for (int i = 0; i < s.length(); ++i) {
+                h ^= s.charAt(i);
+                h *= 0x100000001B3L;
+            }
+            return h;
+        }
+    }
+
+    /**
+     * All sketches, the unit of checkpoint.
+     */
+    private static class State implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        long flights = 0;
+
+        /**
+         * FlightChangeCount sketches match, saved next to the checkpoint.
+         */
+        transient long changes = -1;
+
+        /**
+         * Route key is departure airport id << 32 | landing airport id.
+         */
+        final Sketch<Long> routes = new Sketch<Long>(ROUTE_CANDIDATES);
+        final Sketch<Integer> airports = new Sketch<Integer>(
+                AIRPORT_CANDIDATES);
+        final Sketch<String> aircraft = new Sketch<String>(
+                AIRCRAFT_CANDIDATES);
+
+        void apply(Integer departure, Integer landing, String register,
+                boolean add) {
+
+            flights += add ? 1 : -1;
+            if (departure != null && landing != null) {
+                long route = (long) departure << 32 | (landing & 0xFFFFFFFFL);
+                if (add) {
+                    routes.add(route);
+                } else {
+                    routes.remove(route);
+                }
+            }
+            for (Integer airport : new Integer[] { departure, landing }) {
+                if (airport != null) {
+                    if (add) {
+                        airports.add(airport);
+                    } else {
+                        airports.remove(airport);
+                    }
+                }
+            }
+            if (register != null && !register.isEmpty()) {
+                if (add) {
+                    aircraft.add(register);
+                } else {
+                    aircraft.remove(register);
+                }
+            }
+        }
+    }
+
+    private final DBConnection dbconn;
+
+    private State state;
+
+    /**
+     * Changed since last checkpoint.
+     */
+    private boolean dirty = false;
+
+    private final ScheduledExecutorService scheduler;
+
+    private FlightSketches(DBConnection dbconn) {
+
+        this.dbconn = dbconn;
+        this.scheduler = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "flybook-sketches");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Returns shared instance. On first call sketches are loaded from
+     * checkpoint or built by a scan, and checkpoints are scheduled.
+     */
+    public static synchronized FlightSketches get(DBConnection dbconn)
+            throws SQLException {
+
+        if (instance == null) {
+            FlightSketches sketches = new FlightSketches(dbconn);
+            sketches.init();
+            FlightEvents.addChangeListener(sketches);
+            sketches.scheduleCheckpoints();
+            instance = sketches;
+        }
+        return instance;
+    }
+
+    /**
+     * Writes last checkpoint and stops checkpoints on context shutdown.
+     */
+    public static synchronized void shutdown() {
+
+        if (instance != null) {
+            FlightEvents.removeChangeListener(instance);
+
+            /**
+             * A running checkpoint is let finish, it has taken the changes.
+             */
+            instance.scheduler.shutdown();
+            try {
+                instance.scheduler.awaitTermination(SHUTDOWN_SECONDS,
+                        TimeUnit.SECONDS);
+                instance.checkpoint();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "Failed to checkpoint sketches", e);
+            }
+            instance = null;
+        }
+    }
+
+    public synchronized List<Estimate> getTopRoutes(int n) throws SQLException {
+
+        AirportIndex airports = AirportIndex.get(dbconn);
+        List<Estimate> result = new ArrayList<Estimate>();
+        for (SpaceSaving.Counter<Long> c : state.routes.top(n)) {
+            long key = c.getKey();
+            String label = FleetAggregator.airportLabel(airports,
+                    (int) (key >> 32))
+                    + " - " + FleetAggregator.airportLabel(airports, (int) key);
+            result.add(new Estimate(label, state.routes.upperBound(c),
+                    state.routes.lowerBound(c)));
+        }
+        return result;
+    }
+
+    public synchronized List<Estimate> getTopAirports(int n)
+            throws SQLException {
+
+        AirportIndex airports = AirportIndex.get(dbconn);
+        List<Estimate> result = new ArrayList<Estimate>();
+        for (SpaceSaving.Counter<Integer> c : state.airports.top(n)) {
+            result.add(new Estimate(FleetAggregator.airportLabel(airports,
+                    c.getKey()), state.airports.upperBound(c),
+                    state.airports.lowerBound(c)));
+        }
+        return result;
+    }
+
+    public synchronized List<Estimate> getTopAircraft(int n) {
+
+        List<Estimate> result = new ArrayList<Estimate>();
+        for (SpaceSaving.Counter<String> c : state.aircraft.top(n)) {
+            result.add(new Estimate(c.getKey(), state.aircraft.upperBound(c),
+                    state.aircraft.lowerBound(c)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns number of flights counted in sketches.
+     */
+    public synchronized long getFlights() {
+        return state.flights;
+    }
+
+    /**
+     * Applies committed row values: values before are removed and values
+     * after added.
+     */
+    @Override
+    public synchronized void flightsChanged(List<FlightChange> changes) {
+
+        for (FlightChange change : changes) {
+            if (change.getBefore() != null) {
+                apply(state, change.getBefore(), false);
+            }
+            if (change.getAfter() != null) {
+                apply(state, change.getAfter(), true);
+            }
+        }
+        state.changes += changes.size();
+        dirty = true;
+    }
+
+    private static void apply(State state, Map<String, Object> values,
+            boolean add) {
+
+        state.apply(toInteger(values
+                .get(DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT)),
+                toInteger(values.get(DBConstants.FLIGHTENTRIES_LANDING_AIRPORT)),
+                (String) values.get(DBConstants.FLIGHTENTRIES_AIRCRAFT), add);
+    }
+
+    private static Integer toInteger(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : null;
+    }
+
+    /**
+     * Compares top n lists of every category against exact counts by GROUP
+     * BY over all flights.
+     */
+    public Verification verify(int n) throws SQLException {
+
+        List<Estimate> routes = getTopRoutes(n);
+        List<Estimate> airports = getTopAirports(n);
+        List<Estimate> aircraft = getTopAircraft(n);
+
+        AirportIndex index = AirportIndex.get(dbconn);
+        int[] stats = new int[3];
+        long[] maxError = new long[1];
+
+        Connection conn = dbconn.reserve();
+        try {
+            compare(conn, "SELECT departure_airport, landing_airport, "
+                    + "COUNT(*) AS c FROM " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " WHERE departure_airport IS NOT NULL AND "
+                    + "landing_airport IS NOT NULL GROUP BY departure_airport, "
+                    + "landing_airport ORDER BY c DESC LIMIT ?", n, index,
+                    routes, stats, maxError);
+            compare(conn, "SELECT airport, COUNT(*) AS c FROM (SELECT "
+                    + "departure_airport AS airport FROM "
+                    + DBConstants.TABLE_FLIGHTENTRIES
+                    + " UNION ALL SELECT landing_airport FROM "
+                    + DBConstants.TABLE_FLIGHTENTRIES
+                    + ") WHERE airport IS NOT NULL GROUP BY airport "
+                    + "ORDER BY c DESC LIMIT ?", n, index, airports, stats,
+                    maxError);
+            compare(conn, "SELECT aircraft, COUNT(*) AS c FROM "
+                    + DBConstants.TABLE_FLIGHTENTRIES
+                    + " WHERE IFNULL(aircraft, '') <> '' GROUP BY aircraft "
+                    + "ORDER BY c DESC LIMIT ?", n, null, aircraft, stats,
+                    maxError);
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+        return new Verification(stats[0], stats[1], stats[2], maxError[0]);
+    }
+
+    /**
+     * Checks exact rows of query against estimates. Query selects key
+     * column(s) (two airport ids for routes) and count last. Airport keys are
+     * labelled like in top lists.
+     */
+    private static void compare(Connection conn, String sql, int n,
+            AirportIndex index, List<Estimate> estimates, int[] stats,
+            long[] maxError) throws SQLException {
+
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            stmt.setInt(1, n);
+            ResultSet rs = stmt.executeQuery();
+            try {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    String label;
+                    if (index == null) {
+                        label = rs.getString(1);
+                    } else if (columns == 3) {
+                        label = FleetAggregator.airportLabel(index,
+                                rs.getInt(1))
+                                + " - "
+                                + FleetAggregator.airportLabel(index,
+                                        rs.getInt(2));
+                    } else {
+                        label = FleetAggregator.airportLabel(index,
+                                rs.getInt(1));
+                    }
+                    long exact = rs.getLong(columns);
+
+                    ++stats[0];
+                    Estimate estimate = null;
+                    for (Estimate e : estimates) {
+                        if (e.getLabel().equals(label)) {
+                            estimate = e;
+                            break;
+                        }
+                    }
+                    if (estimate == null) {
+                        ++stats[2];
+                        continue;
+                    }
+                    if (exact < estimate.getLowerBound()
+                            || exact > estimate.getUpperBound()) {
+                        ++stats[1];
+                    }
+                    maxError[0] = Math.max(maxError[0],
+                            Math.abs(estimate.getCount() - exact));
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Recomputes sketches by a scan over all flights and checkpoints them.
+     * Commits made during the scan may be counted twice or not at all;
+     * verify() shows such drift.
+     */
+    public void rebuild() throws SQLException {
+
+        State rebuilt = scan();
+        synchronized (this) {
+            state = rebuilt;
+            dirty = true;
+        }
+        checkpoint();
+    }
+
+    private void init() throws SQLException {
+
+        State loaded = null;
+        long saved;
+        long changes;
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT data FROM "
+                    + TABLE + " WHERE name = ?");
+            try {
+                stmt.setString(1, CHECKPOINT_NAME);
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    if (rs.next()) {
+                        loaded = deserialize(rs.getBytes(1));
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            saved = FlightChangeCount.read(conn, TABLE);
+            changes = FlightChangeCount.read(conn, FlightChangeCount.FLIGHTS);
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+
+        if (loaded != null && saved >= 0 && saved == changes) {
+            loaded.changes = changes;
+            state = loaded;
+        } else {
+            if (loaded != null) {
+                logger.info("Sketch checkpoint is stale, rebuilding");
+            }
+            state = scan();
+            dirty = true;
+        }
+    }
+
+    private State scan() throws SQLException {
+
+        State scanned = new State();
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT "
+                    + DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT + ", "
+                    + DBConstants.FLIGHTENTRIES_LANDING_AIRPORT + ", "
+                    + DBConstants.FLIGHTENTRIES_AIRCRAFT + " FROM "
+                    + DBConstants.TABLE_FLIGHTENTRIES);
+            try {
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        scanned.apply(toInteger(rs.getObject(1)),
+                                toInteger(rs.getObject(2)), rs.getString(3),
+                                true);
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            scanned.changes = FlightChangeCount.read(conn,
+                    FlightChangeCount.FLIGHTS);
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+        return scanned;
+    }
+
+    /**
+     * Writes sketches to checkpoint table if they have changed.
+     */
+    public void checkpoint() throws SQLException {
+
+        byte[] data;
+        long flights;
+        long changes;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            data = serialize(state);
+            flights = state.flights;
+            changes = state.changes;
+            dirty = false;
+        }
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE "
+                    + "INTO " + TABLE + " (name, flights, saved, data) "
+                    + "VALUES (?, ?, ?, ?)");
+            try {
+                stmt.setString(1, CHECKPOINT_NAME);
+                stmt.setLong(2, flights);
+                stmt.setLong(3, System.currentTimeMillis() / 1000L);
+                stmt.setBytes(4, data);
+                stmt.executeUpdate();
+            } finally {
+                stmt.close();
+            }
+            FlightChangeCount.write(conn, TABLE, changes);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        } finally {
+            dbconn.release(conn);
+        }
+    }
+
+    private void scheduleCheckpoints() {
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (SQLException e) {
+                    logger.log(Level.WARNING, "Failed to checkpoint sketches",
+                            e);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to checkpoint sketches",
+                            e);
+                }
+            }
+        }, 0, CHECKPOINT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private static byte[] serialize(State state) {
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(state);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to serialize sketches", e);
+        }
+    }
+
+    /**
+     * Returns checkpointed state, null if it cannot be read (e.g. written by
+     * incompatible version).
+     */
+    private static State deserialize(byte[] data) {
+
+        if (data == null) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(data));
+            try {
+                return (State) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read sketch checkpoint", e);
+        } catch (ClassNotFoundException e) {
+            logger.log(Level.WARNING, "Failed to read sketch checkpoint", e);
+        } catch (ClassCastException e) {
+            logger.log(Level.WARNING, "Failed to read sketch checkpoint", e);
+        }
+        return null;
+    }
+}
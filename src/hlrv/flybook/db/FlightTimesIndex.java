@@ -0,0 +1,50 @@
+package hlrv.flybook.db;
+
+/**
+ * Interval index of FlightEntries departure/landing times.
+ *
+ * R*Tree table FlightTimesRTree holds one (min_time, max_time) box per flight
+ * with id = flight_id and is kept in sync by triggers on FlightEntries. Date
+ * overlap queries look up matching ids from the tree instead of scanning
+ * FlightEntries, as no single B-tree index serves both bounds.
+ *
+ * Boxes span min/max of the two times, so flights with landing before
+ * departure still fit the tree; the tree lookup may then return extra rows and
+ * exact predicates are checked as well (see containers.DateOverlap).
+ */
+public class FlightTimesIndex {
+
+    public static final String TABLE = "FlightTimesRTree";
+
+    /**
+     * Row id subquery for flights overlapping [?, ?]. Parameters are range
+     * end and range start, in that order.
+     */
+    public static final String SELECT_OVERLAP = "SELECT id FROM " + TABLE
+            + " WHERE min_time <= ? AND max_time >= ?";
+
+    // @formatter:off
+
+    /**
+     * Migrations creating and filling index, appended to Migrations. Flights
+     * without both times are not indexed, they never match a date range.
+     */
+    public static final String[] MIGRATIONS = {
+            "CREATE VIRTUAL TABLE " + TABLE + " USING rtree_i32(id, min_time, max_time)",
+            "INSERT INTO " + TABLE + " (id, min_time, max_time) SELECT flight_id, min(departure_time, landing_time), max(departure_time, landing_time) FROM " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " WHERE departure_time IS NOT NULL AND landing_time IS NOT NULL",
+            "CREATE TRIGGER if not exists trigger_times_insert AFTER INSERT ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW WHEN NEW.departure_time IS NOT NULL AND NEW.landing_time IS NOT NULL BEGIN"
+                    + " INSERT INTO " + TABLE + " (id, min_time, max_time) VALUES (NEW.flight_id, min(NEW.departure_time, NEW.landing_time), max(NEW.departure_time, NEW.landing_time)); END",
+            "CREATE TRIGGER if not exists trigger_times_update AFTER UPDATE OF departure_time, landing_time ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN DELETE FROM " + TABLE + " WHERE id = OLD.flight_id;"
+                    + " INSERT INTO " + TABLE + " (id, min_time, max_time) SELECT NEW.flight_id, min(NEW.departure_time, NEW.landing_time), max(NEW.departure_time, NEW.landing_time)"
+                    + " WHERE NEW.departure_time IS NOT NULL AND NEW.landing_time IS NOT NULL; END",
+            "CREATE TRIGGER if not exists trigger_times_delete AFTER DELETE ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN DELETE FROM " + TABLE + " WHERE id = OLD.flight_id; END" };
+
+    // @formatter:on
+
+    private FlightTimesIndex() {
+    }
+}
@@ -0,0 +1,362 @@
+package hlrv.flybook.db;
+
+import hlrv.flybook.FlightType;
+import hlrv.flybook.cache.LRUCache;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+
+/**
+ * Logbook totals per pilot, shared by all sessions.
+ *
+ * Totals are read from rollup table FlightTotals, which has one row per
+ * (username, aircraft, flight_type, month) and is maintained by triggers on
+ * FlightEntries, i.e. in the same transaction as every insert, update and
+ * delete. Totals of a pilot are cached until a FlightEvents commit touches
+ * one of the pilot's flights, so reading them does not depend on logbook
+ * size.
+ *
+ * Flight time is in seconds (landing - departure), IFR and block times in
+ * minutes as entered in the flight form, distance in meters (flights without
+ * distance count as zero).
+ */
+public class FlightTotals implements FlightEvents.Listener {
+
+    public static final String TABLE = "FlightTotals";
+
+    /**
+     * Cache key of totals over all pilots.
+     */
+    private static final String ALL_PILOTS = "";
+
+    /**
+     * Rollup row key and values of a FlightEntries row, "X" is replaced by
+     * row reference (NEW, OLD or table name).
+     */
+    private static final String KEY_USERNAME = "IFNULL(X.username, '')";
+    private static final String KEY_AIRCRAFT = "IFNULL(X.aircraft, '')";
+    private static final String KEY_FLIGHT_TYPE = "IFNULL(X.flight_type, 0)";
+    private static final String KEY_MONTH = "IFNULL(strftime('%Y-%m', X.departure_time, 'unixepoch'), '')";
+
+    private static final String VALUE_FLIGHT_TIME = "(CASE WHEN X.landing_time > X.departure_time THEN X.landing_time - X.departure_time ELSE 0 END)";
+    private static final String VALUE_IFR_TIME = "IFNULL(X.ifr_time, 0)";
+    private static final String VALUE_BLOCK_TIME = "(CASE WHEN X.offblock_time > 0 AND X.onblock_time > X.offblock_time THEN X.onblock_time - X.offblock_time ELSE 0 END)";
+
+    /**
+     * Columns whose change affects totals. Optlock trigger updates are not
+     * among them.
+     */
+    private static final String TRIGGER_COLUMNS = "username, aircraft, flight_type, departure_time, landing_time, onblock_time, offblock_time, ifr_time";
+
+    private static final String VALUE_DISTANCE = "IFNULL(X.distance, 0)";
+
+    // @formatter:off
+
+    private static final String CREATE_TABLE =
+            "CREATE TABLE if not exists " + TABLE + "(username TEXT, aircraft TEXT, flight_type INTEGER, month TEXT, "
+            + "flights INTEGER DEFAULT 0, flight_time INTEGER DEFAULT 0, ifr_time INTEGER DEFAULT 0, block_time INTEGER DEFAULT 0, "
+            + "PRIMARY KEY (username, aircraft, flight_type, month))";
+
+    private static final String FILL_TABLE = row("INSERT INTO " + TABLE
+            + " (username, aircraft, flight_type, month, flights, flight_time, ifr_time, block_time) SELECT "
+            + KEY_USERNAME + ", " + KEY_AIRCRAFT + ", " + KEY_FLIGHT_TYPE + ", " + KEY_MONTH + ", COUNT(*), SUM("
+            + VALUE_FLIGHT_TIME + "), SUM(" + VALUE_IFR_TIME + "), SUM(" + VALUE_BLOCK_TIME + ") FROM "
+            + DBConstants.TABLE_FLIGHTENTRIES + " X GROUP BY 1, 2, 3, 4", "X");
+
+    private static final String KEY_MATCH = "username = " + KEY_USERNAME + " AND aircraft = " + KEY_AIRCRAFT
+            + " AND flight_type = " + KEY_FLIGHT_TYPE + " AND month = " + KEY_MONTH;
+
+    private static final String ADD_ROW = "INSERT OR IGNORE INTO " + TABLE + " (username, aircraft, flight_type, month) VALUES ("
+            + KEY_USERNAME + ", " + KEY_AIRCRAFT + ", " + KEY_FLIGHT_TYPE + ", " + KEY_MONTH + "); "
+            + "UPDATE " + TABLE + " SET flights = flights + 1, flight_time = flight_time + " + VALUE_FLIGHT_TIME
+            + ", ifr_time = ifr_time + " + VALUE_IFR_TIME + ", block_time = block_time + " + VALUE_BLOCK_TIME
+            + " WHERE " + KEY_MATCH + "; ";
+
+    private static final String SUBTRACT_ROW = "UPDATE " + TABLE + " SET flights = flights - 1, flight_time = flight_time - "
+            + VALUE_FLIGHT_TIME + ", ifr_time = ifr_time - " + VALUE_IFR_TIME + ", block_time = block_time - "
+            + VALUE_BLOCK_TIME + " WHERE " + KEY_MATCH + "; "
+            + "DELETE FROM " + TABLE + " WHERE " + KEY_MATCH + " AND flights <= 0; ";
+
+    /**
+     * Migrations creating and filling rollup table, appended to Migrations.
+     */
+    public static final String[] MIGRATIONS = {
+            CREATE_TABLE,
+            FILL_TABLE,
+            "CREATE TRIGGER if not exists trigger_totals_insert AFTER INSERT ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN " + row(ADD_ROW, "NEW") + "END",
+            "CREATE TRIGGER if not exists trigger_totals_delete AFTER DELETE ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN " + row(SUBTRACT_ROW, "OLD") + "END",
+            "CREATE TRIGGER if not exists trigger_totals_update AFTER UPDATE OF " + TRIGGER_COLUMNS + " ON "
+                    + DBConstants.TABLE_FLIGHTENTRIES + " FOR EACH ROW BEGIN " + row(SUBTRACT_ROW, "OLD")
+                    + row(ADD_ROW, "NEW") + "END" };
+
+    /**
+     * Rollup with distance. Triggers of MIGRATIONS are replaced by these
+     * once FlightEntries has distance column (FlightDistances.MIGRATIONS).
+     */
+    private static final String FILL_TABLE_DISTANCE = row("INSERT INTO " + TABLE
+            + " (username, aircraft, flight_type, month, flights, flight_time, ifr_time, block_time, distance) SELECT "
+            + KEY_USERNAME + ", " + KEY_AIRCRAFT + ", " + KEY_FLIGHT_TYPE + ", " + KEY_MONTH + ", COUNT(*), SUM("
+            + VALUE_FLIGHT_TIME + "), SUM(" + VALUE_IFR_TIME + "), SUM(" + VALUE_BLOCK_TIME + "), SUM(" + VALUE_DISTANCE
+            + ") FROM " + DBConstants.TABLE_FLIGHTENTRIES + " X GROUP BY 1, 2, 3, 4", "X");
+
+    private static final String ADD_ROW_DISTANCE = "INSERT OR IGNORE INTO " + TABLE + " (username, aircraft, flight_type, month) VALUES ("
+            + KEY_USERNAME + ", " + KEY_AIRCRAFT + ", " + KEY_FLIGHT_TYPE + ", " + KEY_MONTH + "); "
+            + "UPDATE " + TABLE + " SET flights = flights + 1, flight_time = flight_time + " + VALUE_FLIGHT_TIME
+            + ", ifr_time = ifr_time + " + VALUE_IFR_TIME + ", block_time = block_time + " + VALUE_BLOCK_TIME
+            + ", distance = distance + " + VALUE_DISTANCE + " WHERE " + KEY_MATCH + "; ";
+
+    private static final String SUBTRACT_ROW_DISTANCE = "UPDATE " + TABLE + " SET flights = flights - 1, flight_time = flight_time - "
+            + VALUE_FLIGHT_TIME + ", ifr_time = ifr_time - " + VALUE_IFR_TIME + ", block_time = block_time - "
+            + VALUE_BLOCK_TIME + ", distance = distance - " + VALUE_DISTANCE + " WHERE " + KEY_MATCH + "; "
+            + "DELETE FROM " + TABLE + " WHERE " + KEY_MATCH + " AND flights <= 0; ";
+
+    /**
+     * Migrations adding distance to rollup, appended to Migrations after
+     * FlightDistances.MIGRATIONS. Existing flights have no distance yet, so
+     * zero is the right initial total; backfill updates go through the
+     * update trigger.
+     */
+    public static final String[] DISTANCE_MIGRATIONS = {
+            "ALTER TABLE " + TABLE + " ADD COLUMN distance INTEGER DEFAULT 0",
+            "DROP TRIGGER IF EXISTS trigger_totals_insert",
+            "DROP TRIGGER IF EXISTS trigger_totals_delete",
+            "DROP TRIGGER IF EXISTS trigger_totals_update",
+            "CREATE TRIGGER if not exists trigger_totals_insert AFTER INSERT ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN " + row(ADD_ROW_DISTANCE, "NEW") + "END",
+            "CREATE TRIGGER if not exists trigger_totals_delete AFTER DELETE ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN " + row(SUBTRACT_ROW_DISTANCE, "OLD") + "END",
+            "CREATE TRIGGER if not exists trigger_totals_update AFTER UPDATE OF " + TRIGGER_COLUMNS + ", distance ON "
+                    + DBConstants.TABLE_FLIGHTENTRIES + " FOR EACH ROW BEGIN " + row(SUBTRACT_ROW_DISTANCE, "OLD")
+                    + row(ADD_ROW_DISTANCE, "NEW") + "END" };
+
+    // @formatter:on
+
+    private static FlightTotals instance = null;
+
+    private final DBConnection dbconn;
+
+    /**
+     * Totals by username (ALL_PILOTS for all).
+     */
+    private final LRUCache<String, Totals> cache;
+
+    private FlightTotals(DBConnection dbconn) {
+
+        this.dbconn = dbconn;
+        this.cache = new LRUCache<String, Totals>(4096).register(TABLE);
+    }
+
+    /**
+     * Returns shared instance.
+     */
+    public static synchronized FlightTotals get(DBConnection dbconn) {
+
+        if (instance == null) {
+            instance = new FlightTotals(dbconn);
+            FlightEvents.addListener(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns totals of pilot, or of all pilots if username is null.
+     */
+    public Totals getTotals(String username) throws SQLException {
+
+        try {
+            return cache.get(username != null ? username : ALL_PILOTS,
+                    new LRUCache.Loader<String, Totals>() {
+                        @Override
+                        public Totals load(String key) throws Exception {
+                            return loadTotals(key);
+                        }
+                    });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void flightsCommitted(Set<Integer> flightIds, Set<String> pilots) {
+
+        for (String pilot : pilots) {
+            invalidate(pilot);
+        }
+    }
+
+    /**
+     * Drops cached totals of pilot.
+     */
+    public void invalidate(String username) {
+
+        cache.invalidate(username != null ? username : ALL_PILOTS);
+        cache.invalidate(ALL_PILOTS);
+    }
+
+    /**
+     * Drops all cached totals, after flights have been updated without
+     * FlightEvents (e.g. distance backfill).
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Recomputes rollup table from FlightEntries, for repair after the table
+     * has been modified without triggers (or triggers have changed).
+     */
+    public void rebuild() throws SQLException {
+
+        Connection conn = dbconn.reserve();
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.executeUpdate("DELETE FROM " + TABLE);
+                stmt.executeUpdate(FILL_TABLE_DISTANCE);
+            } finally {
+                stmt.close();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            dbconn.release(conn);
+        }
+
+        cache.invalidateAll();
+    }
+
+    private Totals loadTotals(String username) throws SQLException {
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT flight_type, SUM(flights), SUM(flight_time), ");
+        sql.append("SUM(ifr_time), SUM(block_time), SUM(distance) FROM ");
+        sql.append(TABLE);
+        if (!ALL_PILOTS.equals(username)) {
+            sql.append(" WHERE username = ?");
+        }
+        sql.append(" GROUP BY flight_type");
+
+        Totals totals = new Totals();
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(sql.toString());
+            try {
+                if (!ALL_PILOTS.equals(username)) {
+                    stmt.setString(1, username);
+                }
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        totals.add(rs.getInt(1), rs.getLong(2),
+                                rs.getLong(3), rs.getLong(4), rs.getLong(5),
+                                rs.getLong(6));
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            /**
+             * Ends read transaction, pool connections are not autocommit.
+             */
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+
+        return totals;
+    }
+
+    private static String row(String sql, String ref) {
+        return sql.replace("X.", ref + ".");
+    }
+
+    /**
+     * Immutable once loaded.
+     */
+    public static class Totals implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private long flights;
+        private long flightTime;
+        private long ifrTime;
+        private long blockTime;
+        private long distance;
+
+        private final long[] flightsByType = new long[FlightType.values().length];
+        private final long[] flightTimeByType = new long[FlightType.values().length];
+
+        private void add(int type, long flights, long flightTime,
+                long ifrTime, long blockTime, long distance) {
+
+            this.flights += flights;
+            this.flightTime += flightTime;
+            this.ifrTime += ifrTime;
+            this.blockTime += blockTime;
+            this.distance += distance;
+
+            if (type >= 0 && type < flightsByType.length) {
+                flightsByType[type] += flights;
+                flightTimeByType[type] += flightTime;
+            }
+        }
+
+        public long getFlights() {
+            return flights;
+        }
+
+        /**
+         * Returns flight time in seconds.
+         */
+        public long getFlightTime() {
+            return flightTime;
+        }
+
+        /**
+         * Returns IFR time in minutes.
+         */
+        public long getIFRTime() {
+            return ifrTime;
+        }
+
+        /**
+         * Returns block time in minutes.
+         */
+        public long getBlockTime() {
+            return blockTime;
+        }
+
+        /**
+         * Returns distance in meters.
+         */
+        public long getDistance() {
+            return distance;
+        }
+
+        public long getFlights(FlightType type) {
+            return flightsByType[type.ordinal()];
+        }
+
+        /**
+         * Returns flight time of type in seconds.
+         */
+        public long getFlightTime(FlightType type) {
+            return flightTimeByType[type.ordinal()];
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package hlrv.flybook.db;
+
+import hlrv.flybook.map.TrackPyramid;
+import hlrv.flybook.track.Track;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recorded tracks of flights.
+ *
+ * Table FlightTracks holds one encoded Track per flight, linked by flight_id,
+ * apart from FlightEntries so list queries never read track blobs. Fix count
+ * and times are stored as columns too, so they can be listed without
+ * decoding. A track is deleted with its flight by trigger.
+ *
+ * Table FlightTrackLevels holds the TrackPyramid levels of each track, so
+ * maps read and draw a few hundred points instead of the whole recording.
+ * Levels are built on a background thread after a track is stored, and on
+ * startup for tracks that have none, maps use the full track until then.
+ */
+public class FlightTracks {
+
+    private static final Logger logger = Logger.getLogger("FlightTracks");
+
+    public static final String TABLE = "FlightTracks";
+
+    public static final String LEVELS_TABLE = "FlightTrackLevels";
+
+    // @formatter:off
+
+    /**
+     * Migrations creating track table, appended to Migrations.
+     */
+    public static final String[] MIGRATIONS = {
+            "CREATE TABLE if not exists " + TABLE + " (flight_id INTEGER PRIMARY KEY, fixes INTEGER, start_time INTEGER, end_time INTEGER, data BLOB)",
+            "CREATE TRIGGER if not exists trigger_tracks_delete AFTER DELETE ON " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " FOR EACH ROW BEGIN DELETE FROM " + TABLE + " WHERE flight_id = OLD.flight_id; END" };
+
+    /**
+     * Migrations creating track level table, appended to Migrations.
+     */
+    public static final String[] LEVEL_MIGRATIONS = {
+            "CREATE TABLE if not exists " + LEVELS_TABLE + " (flight_id INTEGER, zoom INTEGER, fixes INTEGER, data BLOB, PRIMARY KEY (flight_id, zoom))",
+            "CREATE TRIGGER if not exists trigger_track_levels_delete AFTER DELETE ON " + TABLE
+                    + " FOR EACH ROW BEGIN DELETE FROM " + LEVELS_TABLE + " WHERE flight_id = OLD.flight_id; END" };
+
+    // @formatter:on
+
+    private static final ExecutorService builder = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "flybook-track-levels");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static FlightTracks instance = null;
+
+    private final DBConnection dbconn;
+
+    /**
+     * Flights queued for building levels.
+     */
+    private final Set<Integer> queued = Collections
+            .synchronizedSet(new HashSet<Integer>());
+
+    private FlightTracks(DBConnection dbconn) {
+        this.dbconn = dbconn;
+    }
+
+    public static synchronized FlightTracks get(DBConnection dbconn) {
+
+        if (instance == null) {
+            instance = new FlightTracks(dbconn);
+            instance.buildMissing();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops building levels on context shutdown.
+     */
+    public static synchronized void shutdown() {
+
+        builder.shutdownNow();
+        instance = null;
+    }
+
+    /**
+     * Returns track of flight, null if it has none.
+     */
+    public Track load(int flightId) throws SQLException {
+
+        byte[] data = null;
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT data FROM "
+                    + TABLE + " WHERE flight_id = ?");
+            try {
+                stmt.setInt(1, flightId);
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    if (rs.next()) {
+                        data = rs.getBytes(1);
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            /**
+             * Ends read transaction, pool connections are not autocommit.
+             */
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        try {
+            return new Track(data);
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Invalid track of flight " + flightId, e);
+        }
+    }
+
+    /**
+     * Writes track of flight in transaction of conn, null track deletes the
+     * track of flight. Caller commits and then calls stored().
+     */
+    public void write(Connection conn, int flightId, Track track)
+            throws SQLException {
+
+        /**
+         * Replacing a row does not fire delete triggers.
+         */
+        PreparedStatement deleteLevels = conn.prepareStatement("DELETE FROM "
+                + LEVELS_TABLE + " WHERE flight_id = ?");
+        try {
+            deleteLevels.setInt(1, flightId);
+            deleteLevels.executeUpdate();
+        } finally {
+            deleteLevels.close();
+        }
+
+        if (track == null) {
+            PreparedStatement delete = conn.prepareStatement("DELETE FROM "
+                    + TABLE + " WHERE flight_id = ?");
+            try {
+                delete.setInt(1, flightId);
+                delete.executeUpdate();
+            } finally {
+                delete.close();
+            }
+        } else {
+            PreparedStatement insert = conn.prepareStatement("INSERT OR REPLACE INTO "
+                    + TABLE + " (flight_id, fixes, start_time, end_time, data) VALUES (?, ?, ?, ?, ?)");
+            try {
+                insert.setInt(1, flightId);
+                insert.setInt(2, track.getFixCount());
+                insert.setLong(3, track.getStartTime());
+                insert.setLong(4, track.getEndTime());
+                insert.setBytes(5, track.getData());
+                insert.executeUpdate();
+            } finally {
+                insert.close();
+            }
+        }
+    }
+
+    /**
+     * Called after tracks written by write() have been committed, queues
+     * building their levels.
+     */
+    public void stored(Collection<Integer> flightIds) {
+
+        for (Integer flightId : flightIds) {
+            queue(flightId);
+        }
+    }
+
+    /**
+     * Returns track of flight for drawing, its levels if they are built and
+     * the full track otherwise. Returns null if flight has no track.
+     */
+    public TrackPyramid loadPyramid(int flightId) throws SQLException {
+
+        Track[] levels = new Track[TrackPyramid.LEVEL_ZOOMS.length];
+        int found = 0;
+        int fixes = -1;
+        long startTime = 0;
+        long endTime = 0;
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT t.fixes,"
+                    + " t.start_time, t.end_time, l.zoom, l.data FROM " + TABLE
+                    + " t LEFT JOIN " + LEVELS_TABLE
+                    + " l ON l.flight_id = t.flight_id WHERE t.flight_id = ?");
+            try {
+                stmt.setInt(1, flightId);
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        fixes = rs.getInt(1);
+                        startTime = rs.getLong(2);
+                        endTime = rs.getLong(3);
+                        int level = levelOf(rs.getInt(4));
+                        byte[] data = rs.getBytes(5);
+                        if (level >= 0 && data != null && data.length > 0
+                                && levels[level] == null) {
+                            levels[level] = new Track(data);
+                            ++found;
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            conn.commit();
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Invalid track level of flight " + flightId,
+                    e);
+        } finally {
+            dbconn.release(conn);
+        }
+
+        if (fixes < 0) {
+            return null;
+        }
+        if (found == levels.length) {
+            return new TrackPyramid(levels, fixes, startTime, endTime);
+        }
+
+        Track track = load(flightId);
+        if (track == null) {
+            return null;
+        }
+        queue(flightId);
+        return new TrackPyramid(track);
+    }
+
+    /**
+     * Returns LEVEL_ZOOMS index of zoom, -1 if it has no level (anymore).
+     */
+    private static int levelOf(int zoom) {
+
+        for (int i = 0; i < TrackPyramid.LEVEL_ZOOMS.length; ++i) {
+            if (TrackPyramid.LEVEL_ZOOMS[i] == zoom) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Queues building levels of flight, unless already queued.
+     */
+    private void queue(final int flightId) {
+
+        if (!queued.add(flightId)) {
+            return;
+        }
+        builder.submit(new Runnable() {
+            @Override
+            public void run() {
+                queued.remove(flightId);
+                try {
+                    buildLevels(flightId);
+                } catch (SQLException e) {
+                    logger.log(Level.WARNING,
+                            "Building track levels of flight " + flightId
+                                    + " failed", e);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING,
+                            "Building track levels of flight " + flightId
+                                    + " failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues building levels of tracks that have none, such as tracks stored
+     * before levels existed or whose build was cut short.
+     */
+    private void buildMissing() {
+
+        builder.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<Integer> flights = readMissing();
+                    for (Integer flightId : flights) {
+                        queue(flightId);
+                    }
+                    if (!flights.isEmpty()) {
+                        logger.info("Building track levels of "
+                                + flights.size() + " flights");
+                    }
+                } catch (SQLException e) {
+                    logger.log(Level.WARNING,
+                            "Reading tracks without levels failed", e);
+                }
+            }
+        });
+    }
+
+    private List<Integer> readMissing() throws SQLException {
+
+        List<Integer> flights = new ArrayList<Integer>();
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn
+                    .prepareStatement("SELECT flight_id FROM " + TABLE
+                            + " WHERE flight_id NOT IN (SELECT flight_id FROM "
+                            + LEVELS_TABLE + ")");
+            try {
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        flights.add(rs.getInt(1));
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+        return flights;
+    }
+
+    /**
+     * Builds and stores levels of current track of flight. Builds run one at
+     * a time in queue order, so the build queued by the latest store() writes
+     * last.
+     */
+    void buildLevels(int flightId) throws SQLException {
+
+        Track track = load(flightId);
+        if (track == null) {
+            return;
+        }
+        Track[] levels = TrackPyramid.simplify(track);
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement delete = conn.prepareStatement("DELETE FROM "
+                    + LEVELS_TABLE + " WHERE flight_id = ?");
+            /**
+             * Levels are written only while the track exists, a flight
+             * deleted meanwhile leaves none behind.
+             */
+            PreparedStatement insert = conn.prepareStatement("INSERT INTO "
+                    + LEVELS_TABLE + " (flight_id, zoom, fixes, data)"
+                    + " SELECT ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM " + TABLE
+                    + " WHERE flight_id = ?)");
+            try {
+                delete.setInt(1, flightId);
+                delete.executeUpdate();
+                for (int i = 0; i < levels.length; ++i) {
+                    insert.setInt(1, flightId);
+                    insert.setInt(2, TrackPyramid.LEVEL_ZOOMS[i]);
+                    insert.setInt(3, levels[i].getFixCount());
+                    insert.setBytes(4, levels[i].getData());
+                    insert.setInt(5, flightId);
+                    insert.executeUpdate();
+                }
+            } finally {
+                delete.close();
+                insert.close();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            dbconn.release(conn);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package hlrv.flybook.db;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Set of (start, end, id) intervals supporting overlap queries in O(log n +
+ * k) expected time.
+ *
+ * Randomized balanced search tree (treap) ordered by (start, id), every node
+ * keeps max end of its subtree so subtrees ending before query start are
+ * skipped. Not thread safe.
+ */
+public class IntervalTree {
+
+    private static class Node {
+
+        final int start;
+        final int end;
+        final int id;
+        final int priority;
+
+        int maxEnd;
+        Node left;
+        Node right;
+
+        Node(int start, int end, int id, int priority) {
+            this.start = start;
+            this.end = end;
+            this.id = id;
+            this.priority = priority;
+            this.maxEnd = end;
+        }
+
+        void update() {
+            maxEnd = end;
+            if (left != null && left.maxEnd > maxEnd) {
+                maxEnd = left.maxEnd;
+            }
+            if (right != null && right.maxEnd > maxEnd) {
+                maxEnd = right.maxEnd;
+            }
+        }
+    }
+
+    private final Random random = new Random();
+
+    private Node root = null;
+
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds interval. Start must not be greater than end, and (start, id)
+     * should be unique.
+     */
+    public void add(int start, int end, int id) {
+
+        if (start > end) {
+            throw new IllegalArgumentException("Interval start after end");
+        }
+        root = insert(root, new Node(start, end, id, random.nextInt()));
+        ++size;
+    }
+
+    /**
+     * Removes interval of given start and id. Returns false if not found.
+     */
+    public boolean remove(int start, int id) {
+
+        int oldSize = size;
+        root = delete(root, start, id);
+        return size < oldSize;
+    }
+
+    /**
+     * Adds ids of intervals overlapping open range (from, to) to result, in
+     * start order. Intervals only touching range ends are not included.
+     */
+    public void findOverlapping(int from, int to, List<Integer> result) {
+        find(root, from, to, result);
+    }
+
+    private static int compare(int start, int id, Node node) {
+
+        if (start != node.start) {
+            return start < node.start ? -1 : 1;
+        }
+        return id < node.id ? -1 : (id > node.id ? 1 : 0);
+    }
+
+    private static Node insert(Node node, Node n) {
+
+        if (node == null) {
+            return n;
+        }
+
+        if (compare(n.start, n.id, node) < 0) {
+            node.left = insert(node.left, n);
+            if (node.left.priority > node.priority) {
+                node = rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, n);
+            if (node.right.priority > node.priority) {
+                node = rotateLeft(node);
+            }
+        }
+        node.update();
+        return node;
+    }
+
+    private Node delete(Node node, int start, int id) {
+
+        if (node == null) {
+            return null;
+        }
+
+        int c = compare(start, id, node);
+        if (c < 0) {
+            node.left = delete(node.left, start, id);
+        } else if (c > 0) {
+            node.right = delete(node.right, start, id);
+        } else {
+            --size;
+            return merge(node.left, node.right);
+        }
+        node.update();
+        return node;
+    }
+
+    /**
+     * Joins two treaps, all keys of a before keys of b.
+     */
+    private static Node merge(Node a, Node b) {
+
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            b.update();
+            return b;
+        }
+    }
+
+    private static Node rotateRight(Node node) {
+
+        Node l = node.left;
+        node.left = l.right;
+        l.right = node;
+        node.update();
+        l.update();
+        return l;
+    }
+
+    private static Node rotateLeft(Node node) {
+
+        Node r = node.right;
+        node.right = r.left;
+        r.left = node;
+        node.update();
+        r.update();
+        return r;
+    }
+
+    private static void find(Node node, int from, int to, List<Integer> result) {
+
+        /**
+         * Nothing in subtree ends after range start.
+         */
+        if (node == null || node.maxEnd <= from) {
+            return;
+        }
+
+        find(node.left, from, to, result);
+
+        /**
+         * Right subtree starts at or after this node, so nothing there
+         * either if this starts at or after range end.
+         */
+        if (node.start >= to) {
+            return;
+        }
+
+        if (node.end > from) {
+            result.add(node.id);
+        }
+
+        find(node.right, from, to, result);
+    }
+}
@@ -63,6 +63,95 @@ public class Migrations {
             // Log errors
             System.out.println("Nope");
         }
+
+        /**
+         * Logbook totals rollup table and its triggers.
+         */
+        for (String migration : FlightTotals.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Notes full-text index and its triggers.
+         */
+        for (String migration : FlightNotesIndex.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Departure/landing time interval index and its triggers.
+         */
+        for (String migration : FlightTimesIndex.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Aircraft utilization counters and their triggers.
+         */
+        for (String migration : AircraftUtilization.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Heavy hitter sketch checkpoints.
+         */
+        for (String migration : FlightSketches.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Visited airports bitmaps and pilot airports index.
+         */
+        for (String migration : VisitedAirports.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Flight distance column, and totals of distance.
+         */
+        for (String migration : FlightDistances.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+        for (String migration : FlightTotals.DISTANCE_MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Flight night time column.
+         */
+        for (String migration : FlightNightTimes.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Recorded flight tracks.
+         */
+        for (String migration : FlightTracks.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Simplified levels of recorded tracks for maps.
+         */
+        for (String migration : FlightTracks.LEVEL_MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Count of flight changes, for checkpoints of derived state.
+         */
+        for (String migration : FlightChangeCount.MIGRATIONS) {
+            this.migrations.add(migration);
+        }
+
+        /**
+         * Version only changes of flight values and notes, so backfills of
+         * derived columns do not fail concurrent edits.
+         */
+        // @formatter:off
+        this.migrations.add("DROP TRIGGER IF EXISTS trigger_version_FlightEntries");
+        this.migrations.add("CREATE TRIGGER if not exists trigger_version_FlightEntries AFTER UPDATE OF " + FlightChangeCount.STORED_COLUMNS + ", notes ON FlightEntries FOR EACH ROW BEGIN UPDATE FlightEntries SET optlock = optlock + 1 WHERE flight_id = OLD.flight_id; END");
+        // @formatter:on
     }
 
     public void runMigrations() throws SQLException {
@@ -78,7 +167,11 @@ public class Migrations {
         rs.next();
         int latestVersion = rs.getInt(1);
         int i = 0;
-        for (i = latestVersion + 1; i < this.migrations.size(); i++) {
+        /**
+         * Stored version is the number of migrations run (-1 before first
+         * run), so next one to run has that index.
+         */
+        for (i = Math.max(latestVersion, 0); i < this.migrations.size(); i++) {
             PreparedStatement stmt = conn.prepareStatement(this.migrations
                     .get(i));
             stmt.execute();
@@ -0,0 +1,510 @@
+package hlrv.flybook.db;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recency (currency) of pilots over sliding windows of days: landings and
+ * night time in the last 90 days, IFR time in the last 6 months.
+ *
+ * Every loaded pilot has per-day buckets (ring over the longest window) and
+ * running window sums, so recency is answered in constant time. Pilot is
+ * loaded on first query (flights of the longest window only), then kept up to
+ * date by FlightEvents. Once a day (UTC midnight) windows are advanced and
+ * buckets of days that fell out are dropped.
+ *
+ * Days are UTC days of departure time, every flight counts as one landing.
+ * IFR and night times are in minutes.
+ */
+public class PilotRecency implements FlightEvents.Listener {
+
+    private static final Logger logger = Logger.getLogger("PilotRecency");
+
+    public static final int LANDINGS_DAYS = 90;
+    public static final int NIGHT_DAYS = 90;
+    public static final int IFR_DAYS = 183;
+
+    /**
+     * Days kept in buckets, longest window.
+     */
+    private static final int BUCKET_DAYS = IFR_DAYS;
+
+    /**
+     * Default currency requirements.
+     */
+    public static final int REQUIRED_LANDINGS = 3;
+    public static final int REQUIRED_IFR_MINUTES = 6 * 60;
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private static final String COLUMNS = DBConstants.FLIGHTENTRIES_FLIGHT_ID
+            + ", " + DBConstants.FLIGHTENTRIES_USERNAME + ", "
+            + DBConstants.FLIGHTENTRIES_DEPARTURE_TIME + ", "
+            + DBConstants.FLIGHTENTRIES_IFR_TIME + ", "
+            + DBConstants.FLIGHTENTRIES_NIGHT_TIME;
+
+    private static PilotRecency instance = null;
+
+    /**
+     * What a flight adds to its pilot's day bucket.
+     */
+    private static class Flight {
+
+        final String pilot;
+        final int day;
+        final int ifrMinutes;
+        final int nightMinutes;
+
+        Flight(String pilot, int day, int ifrMinutes, int nightMinutes) {
+            this.pilot = pilot;
+            this.day = day;
+            this.ifrMinutes = ifrMinutes;
+            this.nightMinutes = nightMinutes;
+        }
+    }
+
+    /**
+     * Buckets and window sums of one pilot.
+     */
+    private static class Tracker {
+
+        /**
+         * Flights of current buckets and future days, by id.
+         */
+        final Map<Integer, Flight> flights = new HashMap<Integer, Flight>();
+
+        /**
+         * Day buckets, index day % BUCKET_DAYS.
+         */
+        final int[] landings = new int[BUCKET_DAYS];
+        final int[] ifrMinutes = new int[BUCKET_DAYS];
+        final int[] nightMinutes = new int[BUCKET_DAYS];
+
+        int today;
+
+        int landingsSum;
+        int ifrSum;
+        int nightSum;
+
+        /**
+         * Number of flights departing after today.
+         */
+        int future;
+
+        Tracker(int today) {
+            this.today = today;
+        }
+
+        void add(int flightId, Flight flight) {
+            flights.put(flightId, flight);
+            count(flight, 1);
+        }
+
+        void remove(int flightId) {
+            Flight flight = flights.remove(flightId);
+            if (flight != null) {
+                count(flight, -1);
+            }
+        }
+
+        /**
+         * Moves windows day by day to given day: buckets of days leaving a
+         * window are subtracted from its sum, oldest bucket is reused for the
+         * new day and flights departing that day are counted in.
+         */
+        void advance(int day) {
+
+            if (day - today >= BUCKET_DAYS) {
+                /**
+                 * Every bucket is out of range, start over.
+                 */
+                for (int i = 0; i < BUCKET_DAYS; ++i) {
+                    landings[i] = 0;
+                    ifrMinutes[i] = 0;
+                    nightMinutes[i] = 0;
+                }
+                landingsSum = 0;
+                ifrSum = 0;
+                nightSum = 0;
+                future = 0;
+                today = day;
+                Iterator<Flight> it = flights.values().iterator();
+                while (it.hasNext()) {
+                    Flight flight = it.next();
+                    if (today - flight.day >= BUCKET_DAYS) {
+                        it.remove();
+                    } else {
+                        count(flight, 1);
+                    }
+                }
+                return;
+            }
+
+            while (today < day) {
+
+                ++today;
+
+                landingsSum -= landings[slot(today - LANDINGS_DAYS)];
+                ifrSum -= ifrMinutes[slot(today - IFR_DAYS)];
+                nightSum -= nightMinutes[slot(today - NIGHT_DAYS)];
+
+                int i = slot(today);
+                landings[i] = 0;
+                ifrMinutes[i] = 0;
+                nightMinutes[i] = 0;
+
+                if (future > 0) {
+                    for (Flight flight : flights.values()) {
+                        if (flight.day == today) {
+                            --future;
+                            count(flight, 1);
+                        }
+                    }
+                }
+            }
+
+            Iterator<Flight> it = flights.values().iterator();
+            while (it.hasNext()) {
+                if (today - it.next().day >= BUCKET_DAYS) {
+                    it.remove();
+                }
+            }
+        }
+
+        private static int slot(int day) {
+            return day % BUCKET_DAYS;
+        }
+
+        /**
+         * Adds (sign 1) or subtracts (sign -1) flight from bucket and window
+         * sums. Future flights are counted when their day comes.
+         */
+        private void count(Flight flight, int sign) {
+
+            int age = today - flight.day;
+            if (age < 0) {
+                future += sign;
+                return;
+            }
+            if (age >= BUCKET_DAYS) {
+                return;
+            }
+
+            int i = slot(flight.day);
+            landings[i] += sign;
+            ifrMinutes[i] += sign * flight.ifrMinutes;
+            nightMinutes[i] += sign * flight.nightMinutes;
+
+            if (age < LANDINGS_DAYS) {
+                landingsSum += sign;
+            }
+            if (age < IFR_DAYS) {
+                ifrSum += sign * flight.ifrMinutes;
+            }
+            if (age < NIGHT_DAYS) {
+                nightSum += sign * flight.nightMinutes;
+            }
+        }
+    }
+
+    private final DBConnection dbconn;
+
+    private final Map<String, Tracker> trackers = new HashMap<String, Tracker>();
+
+    /**
+     * Pilot of every tracked flight.
+     */
+    private final Map<Integer, String> flightPilots = new HashMap<Integer, String>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private PilotRecency(DBConnection dbconn) {
+
+        this.dbconn = dbconn;
+        this.scheduler = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "flybook-recency");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Returns shared instance, daily advance is scheduled on first call.
+     */
+    public static synchronized PilotRecency get(DBConnection dbconn) {
+
+        if (instance == null) {
+            instance = new PilotRecency(dbconn);
+            FlightEvents.addListener(instance);
+            instance.scheduleAdvance();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops daily advance on context shutdown.
+     */
+    public static synchronized void shutdown() {
+
+        if (instance != null) {
+            FlightEvents.removeListener(instance);
+            instance.scheduler.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns recency of pilot as of today, loading pilot on first call.
+     */
+    public synchronized Recency getRecency(String pilot) throws SQLException {
+
+        int day = today();
+
+        Tracker tracker = trackers.get(pilot);
+        if (tracker == null) {
+            tracker = load(pilot, day);
+            trackers.put(pilot, tracker);
+        } else if (tracker.today != day) {
+            /**
+             * Scheduler has not run yet.
+             */
+            tracker.advance(day);
+        }
+
+        return new Recency(tracker.landingsSum, tracker.ifrSum,
+                tracker.nightSum);
+    }
+
+    /**
+     * Advances all trackers to current day.
+     */
+    public synchronized void advance() {
+
+        int day = today();
+        for (Tracker tracker : trackers.values()) {
+            if (tracker.today != day) {
+                tracker.advance(day);
+            }
+        }
+
+        /**
+         * Drop flights no longer in any tracker.
+         */
+        Iterator<Map.Entry<Integer, String>> it = flightPilots.entrySet()
+                .iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, String> e = it.next();
+            Tracker tracker = trackers.get(e.getValue());
+            if (tracker == null || !tracker.flights.containsKey(e.getKey())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all trackers, pilots are reloaded on next query. Call after
+     * flights have been modified outside FlightEvents.
+     */
+    public synchronized void invalidateAll() {
+        trackers.clear();
+        flightPilots.clear();
+    }
+
+    /**
+     * Moves committed flights in loaded trackers. On failure trackers are
+     * dropped rather than left stale.
+     */
+    @Override
+    public synchronized void flightsCommitted(Set<Integer> flightIds,
+            Set<String> pilots) {
+
+        if (flightIds.isEmpty() || trackers.isEmpty()) {
+            return;
+        }
+
+        for (Integer flightId : flightIds) {
+            String pilot = flightPilots.remove(flightId);
+            if (pilot != null) {
+                Tracker tracker = trackers.get(pilot);
+                if (tracker != null) {
+                    tracker.remove(flightId);
+                }
+            }
+        }
+
+        try {
+            sync(flightIds);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING,
+                    "Failed to sync pilot recency, dropping trackers", e);
+            trackers.clear();
+            flightPilots.clear();
+        }
+    }
+
+    private void scheduleAdvance() {
+
+        long now = System.currentTimeMillis();
+        long dayMillis = SECONDS_PER_DAY * 1000L;
+        long delay = dayMillis - now % dayMillis;
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    advance();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to advance recency", e);
+                }
+            }
+        }, delay, dayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static int today() {
+        return (int) (System.currentTimeMillis() / 1000L / SECONDS_PER_DAY);
+    }
+
+    /**
+     * Loads flights of pilot departing in bucket range or later.
+     */
+    private Tracker load(String pilot, int day) throws SQLException {
+
+        Tracker tracker = new Tracker(day);
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT " + COLUMNS
+                    + " FROM " + DBConstants.TABLE_FLIGHTENTRIES + " WHERE "
+                    + DBConstants.FLIGHTENTRIES_USERNAME + " = ? AND "
+                    + DBConstants.FLIGHTENTRIES_DEPARTURE_TIME + " >= ?");
+            try {
+                stmt.setString(1, pilot);
+                stmt.setLong(2, (long) (day - BUCKET_DAYS + 1)
+                        * SECONDS_PER_DAY);
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        Flight flight = readFlight(rs);
+                        if (flight != null) {
+                            tracker.add(rs.getInt(1), flight);
+                            flightPilots.put(rs.getInt(1), pilot);
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            /**
+             * Ends read transaction, pool connections are not autocommit.
+             */
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+        return tracker;
+    }
+
+    /**
+     * Reloads flights by primary key and adds them to loaded trackers.
+     */
+    private void sync(Set<Integer> flightIds) throws SQLException {
+
+        FlightRows.readByIds(dbconn, COLUMNS, flightIds,
+                new FlightRows.Handler() {
+                    @Override
+                    public void row(ResultSet rs) throws SQLException {
+                        Flight flight = readFlight(rs);
+                        Tracker tracker = flight != null ? trackers
+                                .get(flight.pilot) : null;
+                        if (tracker != null
+                                && tracker.today - flight.day < BUCKET_DAYS) {
+                            tracker.add(rs.getInt(1), flight);
+                            flightPilots.put(rs.getInt(1), flight.pilot);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Returns flight of current row, null if it has no pilot or departure.
+     */
+    private static Flight readFlight(ResultSet rs) throws SQLException {
+
+        String pilot = rs.getString(2);
+        long departure = rs.getLong(3);
+        if (pilot == null || rs.wasNull()) {
+            return null;
+        }
+        int ifr = Math.max(0, rs.getInt(4));
+        int night = Math.max(0, rs.getInt(5));
+
+        return new Flight(pilot, (int) (departure / SECONDS_PER_DAY), ifr,
+                night);
+    }
+
+    /**
+     * Window sums of a pilot, immutable.
+     */
+    public static class Recency implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int landings;
+        private final int ifrMinutes;
+        private final int nightMinutes;
+
+        Recency(int landings, int ifrMinutes, int nightMinutes) {
+            this.landings = landings;
+            this.ifrMinutes = ifrMinutes;
+            this.nightMinutes = nightMinutes;
+        }
+
+        /**
+         * Landings in the last LANDINGS_DAYS days.
+         */
+        public int getLandings() {
+            return landings;
+        }
+
+        /**
+         * IFR minutes in the last IFR_DAYS days.
+         */
+        public int getIFRMinutes() {
+            return ifrMinutes;
+        }
+
+        /**
+         * Night minutes in the last NIGHT_DAYS days.
+         */
+        public int getNightMinutes() {
+            return nightMinutes;
+        }
+
+        public boolean isLandingCurrent() {
+            return landings >= REQUIRED_LANDINGS;
+        }
+
+        public boolean isIFRCurrent() {
+            return ifrMinutes >= REQUIRED_IFR_MINUTES;
+        }
+    }
+}
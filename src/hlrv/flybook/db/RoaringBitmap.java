@@ -0,0 +1,537 @@
+package hlrv.flybook.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative ints (Roaring layout).
+ *
+ * Values are grouped by high 16 bits into containers kept in key order. A
+ * container holds low 16 bits either as sorted array (up to 4096 values) or
+ * as 65536-bit bitmap, whichever is smaller, so sparse and dense sets are
+ * both compact and set operations work container by container.
+ *
+ * Blob format (big-endian): container count, then per container key (short),
+ * cardinality (int) and either cardinality shorts or 1024 longs.
+ * Not thread safe.
+ */
+public class RoaringBitmap {
+
+    /**
+     * Largest array container, bitmap (8 kB) is smaller above it.
+     */
+    private static final int MAX_ARRAY = 4096;
+
+    private static final int BITMAP_WORDS = 1024;
+
+    /**
+     * Low 16 bits of values sharing a key. Exactly one of array and bits is
+     * set.
+     */
+    private static class Container {
+
+        char[] array;
+        long[] bits;
+        int cardinality;
+
+        static Container ofArray(char[] array, int cardinality) {
+            Container c = new Container();
+            c.array = array;
+            c.cardinality = cardinality;
+            return c;
+        }
+
+        static Container ofBits(long[] bits, int cardinality) {
+            Container c = new Container();
+            c.bits = bits;
+            c.cardinality = cardinality;
+            return c.cardinality <= MAX_ARRAY ? c.toArray() : c;
+        }
+
+        boolean contains(char v) {
+            if (array != null) {
+                return Arrays.binarySearch(array, 0, cardinality, v) >= 0;
+            }
+            return (bits[v >>> 6] & (1L << v)) != 0;
+        }
+
+        /**
+         * Returns false if already present.
+         */
+        boolean add(char v) {
+
+            if (bits != null) {
+                long old = bits[v >>> 6];
+                bits[v >>> 6] = old | (1L << v);
+                if (old == bits[v >>> 6]) {
+                    return false;
+                }
+                ++cardinality;
+                return true;
+            }
+            int i = Arrays.binarySearch(array, 0, cardinality, v);
+            if (i >= 0) {
+                return false;
+            }
+            i = -i - 1;
+            if (cardinality == MAX_ARRAY) {
+                toBits();
+                return add(v);
+            }
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array,
+                        Math.min(MAX_ARRAY, Math.max(4, cardinality * 2)));
+            }
+            System.arraycopy(array, i, array, i + 1, cardinality - i);
+            array[i] = v;
+            ++cardinality;
+            return true;
+        }
+
+        /**
+         * Returns false if not present.
+         */
+        boolean remove(char v) {
+
+            if (bits != null) {
+                long old = bits[v >>> 6];
+                bits[v >>> 6] = old & ~(1L << v);
+                if (old == bits[v >>> 6]) {
+                    return false;
+                }
+                if (--cardinality <= MAX_ARRAY) {
+                    Container c = toArray();
+                    array = c.array;
+                    bits = null;
+                }
+                return true;
+            }
+            int i = Arrays.binarySearch(array, 0, cardinality, v);
+            if (i < 0) {
+                return false;
+            }
+            System.arraycopy(array, i + 1, array, i, cardinality - i - 1);
+            --cardinality;
+            return true;
+        }
+
+        Container copy() {
+            return array != null ? ofArray(
+                    Arrays.copyOf(array, cardinality), cardinality)
+                    : ofBits(bits.clone(), cardinality);
+        }
+
+        long[] words() {
+
+            if (bits != null) {
+                return bits.clone();
+            }
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; ++i) {
+                words[array[i] >>> 6] |= 1L << array[i];
+            }
+            return words;
+        }
+
+        private void toBits() {
+            bits = words();
+            array = null;
+        }
+
+        private Container toArray() {
+
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                long word = bits[w];
+                while (word != 0) {
+                    values[n++] = (char) (w * 64 + Long
+                            .numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return ofArray(values, n);
+        }
+
+        static Container and(Container a, Container b) {
+
+            if (a.array != null && b.array != null) {
+                char[] values = new char[Math.min(a.cardinality,
+                        b.cardinality)];
+                return ofArray(values, intersect(a, b, values));
+            }
+            if (a.array != null || b.array != null) {
+                Container small = a.array != null ? a : b;
+                Container other = small == a ? b : a;
+                char[] values = new char[small.cardinality];
+                int n = 0;
+                for (int i = 0; i < small.cardinality; ++i) {
+                    if (other.contains(small.array[i])) {
+                        values[n++] = small.array[i];
+                    }
+                }
+                return ofArray(values, n);
+            }
+            long[] words = new long[BITMAP_WORDS];
+            int card = 0;
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                words[w] = a.bits[w] & b.bits[w];
+                card += Long.bitCount(words[w]);
+            }
+            return ofBits(words, card);
+        }
+
+        static int andCardinality(Container a, Container b) {
+
+            if (a.array != null && b.array != null) {
+                return intersect(a, b, null);
+            }
+            if (a.array != null || b.array != null) {
+                Container small = a.array != null ? a : b;
+                Container other = small == a ? b : a;
+                int n = 0;
+                for (int i = 0; i < small.cardinality; ++i) {
+                    if (other.contains(small.array[i])) {
+                        ++n;
+                    }
+                }
+                return n;
+            }
+            int card = 0;
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                card += Long.bitCount(a.bits[w] & b.bits[w]);
+            }
+            return card;
+        }
+
+        /**
+         * Merges two array containers, writing common values to values if
+         * not null. Returns number of common values.
+         */
+        static int intersect(Container a, Container b, char[] values) {
+
+            int i = 0, j = 0, n = 0;
+            while (i < a.cardinality && j < b.cardinality) {
+                char x = a.array[i];
+                char y = b.array[j];
+                if (x < y) {
+                    ++i;
+                } else if (x > y) {
+                    ++j;
+                } else {
+                    if (values != null) {
+                        values[n] = x;
+                    }
+                    ++n;
+                    ++i;
+                    ++j;
+                }
+            }
+            return n;
+        }
+
+        static Container or(Container a, Container b) {
+
+            if (a.array != null && b.array != null
+                    && a.cardinality + b.cardinality <= MAX_ARRAY) {
+                char[] values = new char[a.cardinality + b.cardinality];
+                int i = 0, j = 0, n = 0;
+                while (i < a.cardinality && j < b.cardinality) {
+                    char x = a.array[i];
+                    char y = b.array[j];
+                    if (x <= y) {
+                        values[n++] = x;
+                        ++i;
+                        if (x == y) {
+                            ++j;
+                        }
+                    } else {
+                        values[n++] = y;
+                        ++j;
+                    }
+                }
+                while (i < a.cardinality) {
+                    values[n++] = a.array[i++];
+                }
+                while (j < b.cardinality) {
+                    values[n++] = b.array[j++];
+                }
+                return ofArray(values, n);
+            }
+            long[] words = a.words();
+            if (b.bits != null) {
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    words[w] |= b.bits[w];
+                }
+            } else {
+                for (int i = 0; i < b.cardinality; ++i) {
+                    words[b.array[i] >>> 6] |= 1L << b.array[i];
+                }
+            }
+            int card = 0;
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                card += Long.bitCount(words[w]);
+            }
+            return ofBits(words, card);
+        }
+    }
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+
+    public RoaringBitmap() {
+    }
+
+    private static char high(int value) {
+        return (char) (value >>> 16);
+    }
+
+    private static char low(int value) {
+        return (char) value;
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    /**
+     * Adds value, returns false if already present.
+     */
+    public boolean add(int value) {
+
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        int i = find(high(value));
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, high(value), Container.ofArray(new char[4], 0));
+        }
+        return containers[i].add(low(value));
+    }
+
+    /**
+     * Removes value, returns false if not present.
+     */
+    public boolean remove(int value) {
+
+        int i = value >= 0 ? find(high(value)) : -1;
+        if (i < 0 || !containers[i].remove(low(value))) {
+            return false;
+        }
+        if (containers[i].cardinality == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            containers[--size] = null;
+        }
+        return true;
+    }
+
+    public boolean contains(int value) {
+
+        int i = value >= 0 ? find(high(value)) : -1;
+        return i >= 0 && containers[i].contains(low(value));
+    }
+
+    public int getCardinality() {
+
+        int card = 0;
+        for (int i = 0; i < size; ++i) {
+            card += containers[i].cardinality;
+        }
+        return card;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns values in ascending order.
+     */
+    public int[] toArray() {
+
+        int[] values = new int[getCardinality()];
+        int n = 0;
+        for (int i = 0; i < size; ++i) {
+            int base = keys[i] << 16;
+            Container c = containers[i];
+            if (c.array != null) {
+                for (int j = 0; j < c.cardinality; ++j) {
+                    values[n++] = base | c.array[j];
+                }
+            } else {
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    long word = c.bits[w];
+                    while (word != 0) {
+                        values[n++] = base | (w * 64 + Long
+                                .numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    public RoaringBitmap copy() {
+
+        RoaringBitmap copy = new RoaringBitmap();
+        copy.keys = Arrays.copyOf(keys, Math.max(4, size));
+        copy.containers = new Container[copy.keys.length];
+        for (int i = 0; i < size; ++i) {
+            copy.containers[i] = containers[i].copy();
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Returns new bitmap of values in both.
+     */
+    public static RoaringBitmap and(RoaringBitmap a, RoaringBitmap b) {
+
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                ++i;
+            } else if (a.keys[i] > b.keys[j]) {
+                ++j;
+            } else {
+                Container c = Container.and(a.containers[i], b.containers[j]);
+                if (c.cardinality > 0) {
+                    result.insert(result.size, a.keys[i], c);
+                }
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns number of values in both, without building intersection.
+     */
+    public static int andCardinality(RoaringBitmap a, RoaringBitmap b) {
+
+        int card = 0;
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                ++i;
+            } else if (a.keys[i] > b.keys[j]) {
+                ++j;
+            } else {
+                card += Container.andCardinality(a.containers[i],
+                        b.containers[j]);
+                ++i;
+                ++j;
+            }
+        }
+        return card;
+    }
+
+    /**
+     * Returns new bitmap of values in either.
+     */
+    public static RoaringBitmap or(RoaringBitmap a, RoaringBitmap b) {
+
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || i < a.size && a.keys[i] < b.keys[j]) {
+                result.insert(result.size, a.keys[i], a.containers[i].copy());
+                ++i;
+            } else if (i == a.size || a.keys[i] > b.keys[j]) {
+                result.insert(result.size, b.keys[j], b.containers[j].copy());
+                ++j;
+            } else {
+                result.insert(result.size, a.keys[i],
+                        Container.or(a.containers[i], b.containers[j]));
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    private void insert(int i, char key, Container container) {
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        ++size;
+    }
+
+    public byte[] serialize() {
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(size);
+            for (int i = 0; i < size; ++i) {
+                Container c = containers[i];
+                out.writeShort(keys[i]);
+                out.writeInt(c.cardinality);
+                if (c.array != null) {
+                    for (int j = 0; j < c.cardinality; ++j) {
+                        out.writeShort(c.array[j]);
+                    }
+                } else {
+                    for (int w = 0; w < BITMAP_WORDS; ++w) {
+                        out.writeLong(c.bits[w]);
+                    }
+                }
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads bitmap written by serialize(). Null or empty blob is empty set.
+     */
+    public static RoaringBitmap deserialize(byte[] data) throws IOException {
+
+        RoaringBitmap bitmap = new RoaringBitmap();
+        if (data == null || data.length == 0) {
+            return bitmap;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                data));
+        int n = in.readInt();
+        for (int i = 0; i < n; ++i) {
+            char key = in.readChar();
+            int card = in.readInt();
+            Container c;
+            if (card <= MAX_ARRAY) {
+                char[] values = new char[Math.max(4, card)];
+                for (int j = 0; j < card; ++j) {
+                    values[j] = in.readChar();
+                }
+                c = Container.ofArray(values, card);
+            } else {
+                long[] words = new long[BITMAP_WORDS];
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    words[w] = in.readLong();
+                }
+                c = Container.ofBits(words, card);
+            }
+            bitmap.insert(bitmap.size, key, c);
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,389 @@
+package hlrv.flybook.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sun position and night time of flights over AirportIndex airports.
+ *
+ * Night is when the sun is more than 6 degrees below the horizon, i.e.
+ * between end of evening and beginning of morning civil twilight. Sun
+ * position uses the low precision almanac formulas (about 1 minute of time),
+ * declination and equation of time are tabled per UTC day and interpolated in
+ * between. Daylight (sunrise to sunset at the twilight altitude) is tabled per
+ * airport and solar day.
+ *
+ * Flights up to TABLE_DISTANCE use the tables of both airports, sunrise and
+ * sunset being interpolated along the route, which gives night time in closed
+ * form. Longer flights, and flights where the sun does not rise or set, are
+ * sampled along the great circle every SAMPLE_SECONDS. Times are epoch
+ * seconds, so airport time zones are not needed. Thread safe.
+ */
+public class SolarTables {
+
+    /**
+     * Sun altitude in degrees below which it is night.
+     */
+    public static final double NIGHT_ALTITUDE = -6.0;
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Epoch seconds of J2000.0 (2000-01-01 12:00 UTC).
+     */
+    private static final long J2000 = 946728000L;
+
+    /**
+     * Longest route in meters using interpolated airport tables.
+     */
+    private static final double TABLE_DISTANCE = 500 * 1000;
+
+    private static final int SAMPLE_SECONDS = 60;
+
+    /**
+     * Cached daylight entries before the cache is cleared.
+     */
+    private static final int MAX_CACHED = 64 * 1024;
+
+    private static final double SIN_NIGHT = Math.sin(Math
+            .toRadians(NIGHT_ALTITUDE));
+
+    private final AirportIndex airports;
+
+    /**
+     * {declination (radians), equation of time (degrees)} at 0h UTC, by UTC
+     * day.
+     */
+    private final ConcurrentHashMap<Long, double[]> days = new ConcurrentHashMap<Long, double[]>();
+
+    /**
+     * {sunrise, sunset, regular} by airport position and solar day.
+     */
+    private final ConcurrentHashMap<Long, long[]> daylight = new ConcurrentHashMap<Long, long[]>();
+
+    public SolarTables(AirportIndex airports) {
+        this.airports = airports;
+    }
+
+    /**
+     * Returns true if tables are for given index.
+     */
+    public boolean isFor(AirportIndex index) {
+        return airports == index;
+    }
+
+    /**
+     * Returns night seconds of flight between airport positions, -1 if either
+     * airport has no location or landing is before departure.
+     */
+    public long getNightSeconds(int from, int to, long departure, long landing) {
+
+        if (landing < departure || !airports.hasLocation(from)
+                || !airports.hasLocation(to)) {
+            return -1;
+        }
+        if (landing == departure) {
+            return 0;
+        }
+
+        double lat1 = airports.getLatitude(from);
+        double lon1 = airports.getLongitude(from);
+        double lat2 = airports.getLatitude(to);
+        double lon2 = airports.getLongitude(to);
+
+        long night;
+        if (from == to) {
+            night = nightAt(from, departure, landing);
+        } else if (Math.abs(lon1 - lon2) < 90
+                && FlightDistances.greatCircle(lat1, lon1, lat2, lon2) <= TABLE_DISTANCE) {
+            night = nightAlong(from, to, departure, landing);
+        } else {
+            night = -1;
+        }
+        if (night < 0) {
+            night = sample(lat1, lon1, lat2, lon2, departure, landing);
+        }
+        return Math.max(0, Math.min(landing - departure, night));
+    }
+
+    /**
+     * Returns sun altitude in degrees at location and time.
+     */
+    public double getAltitude(double lat, double lon, long time) {
+
+        double[] sun = sun(time);
+        double phi = Math.toRadians(lat);
+        double h = Math.toRadians(hourAngle(time, sun[1]) + lon);
+        return Math.toDegrees(Math.asin(Math.sin(phi) * Math.sin(sun[0])
+                + Math.cos(phi) * Math.cos(sun[0]) * Math.cos(h)));
+    }
+
+    /**
+     * Night seconds at one airport, or -1 if the sun does not rise or set
+     * there on some day.
+     */
+    private long nightAt(int airport, long start, long end) {
+
+        long day = 0;
+        for (long d = floorDay(start) - 1; d <= floorDay(end) + 1; ++d) {
+            long[] dl = getDaylight(airport, d);
+            if (dl[2] == 0) {
+                return -1;
+            }
+            day += Math.max(0,
+                    Math.min(end, dl[1]) - Math.max(start, dl[0]));
+        }
+        return end - start - day;
+    }
+
+    /**
+     * Night seconds along route with sunrise and sunset interpolated linearly
+     * between the airports by position along the route, or -1 if the sun does
+     * not rise or set at either airport on some day.
+     */
+    private long nightAlong(int from, int to, long start, long end) {
+
+        double duration = end - start;
+        double day = 0;
+
+        for (long d = floorDay(start) - 1; d <= floorDay(end) + 1; ++d) {
+
+            long[] a = getDaylight(from, d);
+            long[] b = getDaylight(to, d);
+            if (a[2] == 0 || b[2] == 0) {
+                return -1;
+            }
+
+            /**
+             * At time t position is f = (t - start) / duration, daylight when
+             * rise(f) <= t <= set(f) with rise(f) = rise0 + f (rise1 - rise0).
+             */
+            double kRise = (b[0] - a[0]) / duration;
+            double kSet = (b[1] - a[1]) / duration;
+
+            double[] range = { start, end };
+            atLeast(range, 1 - kRise, a[0] - kRise * start);
+            atLeast(range, kSet - 1, kSet * start - a[1]);
+            day += Math.max(0, range[1] - range[0]);
+        }
+        return end - start - Math.round(day);
+    }
+
+    /**
+     * Narrows range to times t where a t >= b.
+     */
+    private static void atLeast(double[] range, double a, double b) {
+
+        if (a > 0) {
+            range[0] = Math.max(range[0], b / a);
+        } else if (a < 0) {
+            range[1] = Math.min(range[1], b / a);
+        } else if (b > 0) {
+            range[1] = range[0];
+        }
+    }
+
+    /**
+     * Night seconds sampling sun altitude along the great circle, crossings
+     * of the night altitude are interpolated between samples.
+     */
+    private long sample(double lat1, double lon1, double lat2, double lon2,
+            long start, long end) {
+
+        double[] p = vector(lat1, lon1);
+        double[] q = vector(lat2, lon2);
+        double omega = Math.acos(Math.max(-1,
+                Math.min(1, p[0] * q[0] + p[1] * q[1] + p[2] * q[2])));
+        double sinOmega = Math.sin(omega);
+
+        long duration = end - start;
+        int n = (int) Math.max(1, (duration + SAMPLE_SECONDS - 1)
+                / SAMPLE_SECONDS);
+
+        double night = 0;
+        double previous = 0;
+        double[] pos = new double[3];
+
+        for (int i = 0; i <= n; ++i) {
+
+            double f = (double) i / n;
+            if (sinOmega < 1e-9) {
+                System.arraycopy(p, 0, pos, 0, 3);
+            } else {
+                double wp = Math.sin((1 - f) * omega) / sinOmega;
+                double wq = Math.sin(f * omega) / sinOmega;
+                for (int c = 0; c < 3; ++c) {
+                    pos[c] = wp * p[c] + wq * q[c];
+                }
+            }
+
+            long time = start + Math.round(f * duration);
+            double[] sun = sun(time);
+            double gha = Math.toRadians(hourAngle(time, sun[1]));
+            double cosDecl = Math.cos(sun[0]);
+
+            /**
+             * Dot product of position and subsolar point, sine of altitude.
+             */
+            double value = pos[0] * cosDecl * Math.cos(gha) - pos[1] * cosDecl
+                    * Math.sin(gha) + pos[2] * Math.sin(sun[0]) - SIN_NIGHT;
+
+            if (i > 0) {
+                double step = (double) duration / n;
+                if (previous < 0 && value < 0) {
+                    night += step;
+                } else if (previous < 0) {
+                    night += step * previous / (previous - value);
+                } else if (value < 0) {
+                    night += step * value / (value - previous);
+                }
+            }
+            previous = value;
+        }
+        return Math.round(night);
+    }
+
+    private static double[] vector(double lat, double lon) {
+
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        return new double[] { Math.cos(phi) * Math.cos(lambda),
+                Math.cos(phi) * Math.sin(lambda), Math.sin(phi) };
+    }
+
+    /**
+     * Returns {sunrise, sunset, regular} of airport on solar day, regular is 0
+     * if the sun does not cross the night altitude that day (sunrise equals
+     * sunset at polar night, sunset - sunrise is a day at midnight sun).
+     */
+    private long[] getDaylight(int airport, long day) {
+
+        Long key = Long.valueOf(((long) airport << 32) | (day & 0xffffffffL));
+        long[] dl = daylight.get(key);
+        if (dl == null) {
+            if (daylight.size() >= MAX_CACHED) {
+                daylight.clear();
+            }
+            dl = computeDaylight(airports.getLatitude(airport),
+                    airports.getLongitude(airport), day);
+            daylight.put(key, dl);
+        }
+        return dl;
+    }
+
+    private long[] computeDaylight(double lat, double lon, long day) {
+
+        /**
+         * Solar noon is where hour angle is zero.
+         */
+        long start = day * SECONDS_PER_DAY;
+        double[] sun = sun(start + SECONDS_PER_DAY / 2);
+        long noon = start
+                + Math.round((12 - (sun[1] + lon) / 15) * 3600);
+        sun = sun(noon);
+
+        double phi = Math.toRadians(lat);
+        double cosH = cosHalfDay(phi, sun[0]);
+
+        if (cosH >= 1) {
+            return new long[] { noon, noon, 0 };
+        }
+        if (cosH <= -1) {
+            return new long[] { noon - SECONDS_PER_DAY / 2,
+                    noon + SECONDS_PER_DAY / 2, 0 };
+        }
+
+        /**
+         * Refine sunrise and sunset with declination at the estimates, which
+         * matters at high latitudes where the sun crosses at a low angle.
+         */
+        long half = halfDaySeconds(cosH);
+        long rise = noon - half;
+        long set = noon + half;
+        double cosRise = cosHalfDay(phi, sun(rise)[0]);
+        double cosSet = cosHalfDay(phi, sun(set)[0]);
+        if (Math.abs(cosRise) < 1 && Math.abs(cosSet) < 1) {
+            rise = noon - halfDaySeconds(cosRise);
+            set = noon + halfDaySeconds(cosSet);
+        }
+        return new long[] { rise, set, 1 };
+    }
+
+    /**
+     * Returns cosine of hour angle where sun is at night altitude.
+     */
+    private static double cosHalfDay(double phi, double declination) {
+        return (SIN_NIGHT - Math.sin(phi) * Math.sin(declination))
+                / (Math.cos(phi) * Math.cos(declination));
+    }
+
+    private static long halfDaySeconds(double cosH) {
+        return Math.round(Math.toDegrees(Math.acos(cosH)) * 240);
+    }
+
+    /**
+     * Greenwich hour angle of the sun in degrees.
+     */
+    private static double hourAngle(long time, double equationOfTime) {
+
+        double hours = (double) (time - floorDay(time) * SECONDS_PER_DAY)
+                / 3600;
+        return 15 * (hours - 12) + equationOfTime;
+    }
+
+    /**
+     * Returns {declination, equation of time} at time, interpolated from
+     * table.
+     */
+    private double[] sun(long time) {
+
+        long day = floorDay(time);
+        double[] a = getDay(day);
+        double[] b = getDay(day + 1);
+        double f = (double) (time - day * SECONDS_PER_DAY) / SECONDS_PER_DAY;
+        return new double[] { a[0] + f * (b[0] - a[0]),
+                a[1] + f * (b[1] - a[1]) };
+    }
+
+    private double[] getDay(long day) {
+
+        Long key = Long.valueOf(day);
+        double[] sun = days.get(key);
+        if (sun == null) {
+            sun = computeSun((double) (day * SECONDS_PER_DAY - J2000)
+                    / SECONDS_PER_DAY);
+            days.put(key, sun);
+        }
+        return sun;
+    }
+
+    /**
+     * Returns {declination (radians), equation of time (degrees)} at given
+     * days from J2000.0.
+     */
+    private static double[] computeSun(double n) {
+
+        double meanLongitude = 280.460 + 0.9856474 * n;
+        double anomaly = Math.toRadians(357.528 + 0.9856003 * n);
+        double longitude = Math.toRadians(meanLongitude + 1.915
+                * Math.sin(anomaly) + 0.020 * Math.sin(2 * anomaly));
+        double obliquity = Math.toRadians(23.439 - 0.0000004 * n);
+
+        double declination = Math.asin(Math.sin(obliquity)
+                * Math.sin(longitude));
+        double ascension = Math.toDegrees(Math.atan2(Math.cos(obliquity)
+                * Math.sin(longitude), Math.cos(longitude)));
+
+        double equationOfTime = (meanLongitude - ascension) % 360;
+        if (equationOfTime > 180) {
+            equationOfTime -= 360;
+        } else if (equationOfTime < -180) {
+            equationOfTime += 360;
+        }
+        return new double[] { declination, equationOfTime };
+    }
+
+    private static long floorDay(long time) {
+        long day = time / SECONDS_PER_DAY;
+        return time < 0 && day * SECONDS_PER_DAY != time ? day - 1 : day;
+    }
+}
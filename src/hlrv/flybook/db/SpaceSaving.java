@@ -0,0 +1,233 @@
+package hlrv.flybook.db;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving summary of most frequent keys, monitoring at most capacity
+ * keys.
+ *
+ * An unmonitored key replaces the monitored key of smallest count and takes
+ * over its count as error, so for a monitored key count - error <= true count
+ * <= count. Every key with true count over total / capacity is monitored when
+ * there are no removals.
+ *
+ * Removals decrement monitored keys only; removals of unmonitored keys are
+ * not seen, which keeps the bounds but weakens the frequent key guarantee.
+ * As removals can lower the smallest count below the count an evicted key
+ * had, a new key takes over the largest evicted count instead.
+ * Counters are a min-heap on count, so updates cost O(log capacity). Not
+ * thread safe.
+ */
+public class SpaceSaving<K> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Monitored key with its counters.
+     */
+    public static class Counter<K> {
+
+        private final K key;
+        private final long count;
+        private final long error;
+
+        Counter(K key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * Upper bound of true count.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Max overcount, count - error is lower bound of true count.
+         */
+        public long getError() {
+            return error;
+        }
+    }
+
+    private final int capacity;
+
+    /**
+     * Min-heap of counters on count.
+     */
+    private final Object[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private int size = 0;
+
+    /**
+     * Largest count of an evicted key, upper bound of true count of any
+     * unmonitored key.
+     */
+    private long floor = 0;
+
+    /**
+     * Heap position of monitored keys.
+     */
+    private final Map<K, Integer> positions;
+
+    public SpaceSaving(int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.keys = new Object[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.positions = new HashMap<K, Integer>(capacity * 2);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Counts one occurrence of key.
+     */
+    public void add(K key) {
+
+        Integer pos = positions.get(key);
+        if (pos != null) {
+            ++counts[pos];
+            siftDown(pos);
+        } else if (size < capacity) {
+            keys[size] = key;
+            counts[size] = 1;
+            errors[size] = 0;
+            positions.put(key, size);
+            siftUp(size++);
+        } else {
+            /**
+             * Replace key of smallest count, at heap root.
+             */
+            positions.remove(keys[0]);
+            floor = Math.max(floor, counts[0]);
+            keys[0] = key;
+            counts[0] = floor + 1;
+            errors[0] = floor;
+            positions.put(key, 0);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Removes one occurrence of key if it is monitored.
+     */
+    public void remove(K key) {
+
+        Integer pos = positions.get(key);
+        if (pos != null && counts[pos] > 0) {
+            --counts[pos];
+            if (errors[pos] > counts[pos]) {
+                errors[pos] = counts[pos];
+            }
+            siftUp(pos);
+        }
+    }
+
+    /**
+     * Returns monitored counters of given key, null if not monitored.
+     */
+    @SuppressWarnings("unchecked")
+    public Counter<K> get(K key) {
+
+        Integer pos = positions.get(key);
+        return pos != null ? new Counter<K>((K) keys[pos], counts[pos],
+                errors[pos]) : null;
+    }
+
+    /**
+     * Returns at most n monitored counters of highest count, in descending
+     * count order. Counters of zero count are left out.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Counter<K>> top(int n) {
+
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ca = counts[a];
+                long cb = counts[b];
+                return ca > cb ? -1 : (ca < cb ? 1 : 0);
+            }
+        });
+
+        List<Counter<K>> result = new ArrayList<Counter<K>>();
+        for (int i = 0; i < order.length && result.size() < n; ++i) {
+            int pos = order[i];
+            if (counts[pos] > 0) {
+                result.add(new Counter<K>((K) keys[pos], counts[pos],
+                        errors[pos]));
+            }
+        }
+        return result;
+    }
+
+    private void siftUp(int pos) {
+
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (counts[parent] <= counts[pos]) {
+                break;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[child + 1] < counts[child]) {
+                ++child;
+            }
+            if (counts[pos] <= counts[child]) {
+                break;
+            }
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void swap(int a, int b) {
+
+        Object key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        long count = counts[a];
+        counts[a] = counts[b];
+        counts[b] = count;
+        long error = errors[a];
+        errors[a] = errors[b];
+        errors[b] = error;
+        positions.put((K) keys[a], a);
+        positions.put((K) keys[b], b);
+    }
+}
@@ -0,0 +1,505 @@
+package hlrv.flybook.db;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Airports and countries visited (departed from or landed at) by every pilot,
+ * as RoaringBitmaps of airport ids and country ids.
+ *
+ * Airport bitmaps are persisted as blobs in table PilotAirports, loaded
+ * all at once on first use and updated from committed FlightChanges: added
+ * airports are set directly, and a pilot who may have lost an airport is
+ * reloaded from the covering index. Country bitmaps are derived through
+ * AirportIndex, country id is index of country name in sorted country list.
+ *
+ * Bitmaps are written after commit, together with the FlightChangeCount they
+ * match. If a write fails or the process stops in between, the saved count
+ * is behind the current one and bitmaps are rebuilt from flights on next
+ * startup.
+ */
+public class VisitedAirports implements FlightEvents.ChangeListener {
+
+    private static final Logger logger = Logger.getLogger("VisitedAirports");
+
+    public static final String TABLE = "PilotAirports";
+
+    /**
+     * Migrations creating bitmap table and pilot airports index, appended to
+     * Migrations. Table is filled on first use.
+     */
+    public static final String[] MIGRATIONS = {
+            "CREATE TABLE if not exists " + TABLE
+                    + "(username TEXT PRIMARY KEY, airports BLOB)",
+            "CREATE INDEX if not exists flightentries_username_airports_index ON "
+                    + DBConstants.TABLE_FLIGHTENTRIES + " ("
+                    + DBConstants.FLIGHTENTRIES_USERNAME + ", "
+                    + DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT + ", "
+                    + DBConstants.FLIGHTENTRIES_LANDING_AIRPORT + ")" };
+
+    private static final String SELECT_AIRPORTS = "SELECT "
+            + DBConstants.FLIGHTENTRIES_USERNAME + ", "
+            + DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT + ", "
+            + DBConstants.FLIGHTENTRIES_LANDING_AIRPORT + " FROM "
+            + DBConstants.TABLE_FLIGHTENTRIES;
+
+    private static VisitedAirports instance = null;
+
+    private final DBConnection dbconn;
+
+    private final Map<String, RoaringBitmap> airports = new HashMap<String, RoaringBitmap>();
+
+    /**
+     * Derived country bitmaps, dropped when airports of pilot change.
+     */
+    private final Map<String, RoaringBitmap> countries = new HashMap<String, RoaringBitmap>();
+
+    /**
+     * AirportIndex country ids were derived from, and its country names and
+     * country id of every airport index.
+     */
+    private AirportIndex countryIndex = null;
+    private String[] countryNames;
+    private int[] airportCountries;
+
+    /**
+     * FlightChangeCount bitmaps match, -1 if they may have missed changes.
+     */
+    private long changeCount = -1;
+
+    /**
+     * Pilots whose bitmaps have changed since last successful write.
+     */
+    private final Set<String> unsaved = new HashSet<String>();
+
+    private VisitedAirports(DBConnection dbconn) {
+        this.dbconn = dbconn;
+    }
+
+    /**
+     * Returns shared instance. On first call bitmaps are loaded, or built
+     * from flights if they do not match current flights.
+     */
+    public static synchronized VisitedAirports get(DBConnection dbconn)
+            throws SQLException {
+
+        if (instance == null) {
+            VisitedAirports visited = new VisitedAirports(dbconn);
+            if (!visited.load()) {
+                logger.info("Visited airports are stale, rebuilding");
+                visited.rebuild();
+            }
+            FlightEvents.addChangeListener(visited);
+            instance = visited;
+        }
+        return instance;
+    }
+
+    /**
+     * Returns copy of airport ids visited by pilot, all pilots if null.
+     */
+    public synchronized RoaringBitmap getAirports(String pilot) {
+
+        if (pilot != null) {
+            RoaringBitmap bitmap = airports.get(pilot);
+            return bitmap != null ? bitmap.copy() : new RoaringBitmap();
+        }
+        return union(airports.keySet());
+    }
+
+    /**
+     * Returns copy of country ids visited by pilot, all pilots if null.
+     */
+    public synchronized RoaringBitmap getCountries(String pilot)
+            throws SQLException {
+
+        if (pilot != null) {
+            return countriesOf(pilot).copy();
+        }
+        RoaringBitmap result = new RoaringBitmap();
+        for (String p : airports.keySet()) {
+            result = RoaringBitmap.or(result, countriesOf(p));
+        }
+        return result;
+    }
+
+    /**
+     * Returns name of country id in bitmaps of getCountries().
+     */
+    public synchronized String getCountryName(int countryId)
+            throws SQLException {
+
+        updateCountryIndex();
+        return countryNames[countryId];
+    }
+
+    /**
+     * Returns airports visited by any of pilots.
+     */
+    public synchronized RoaringBitmap union(Collection<String> pilots) {
+
+        RoaringBitmap result = new RoaringBitmap();
+        for (String pilot : pilots) {
+            RoaringBitmap bitmap = airports.get(pilot);
+            if (bitmap != null) {
+                result = RoaringBitmap.or(result, bitmap);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns airports visited by all of pilots, empty if no pilots.
+     */
+    public synchronized RoaringBitmap intersect(Collection<String> pilots) {
+
+        RoaringBitmap result = null;
+        for (String pilot : pilots) {
+            RoaringBitmap bitmap = airports.get(pilot);
+            if (bitmap == null) {
+                return new RoaringBitmap();
+            }
+            result = result == null ? bitmap.copy() : RoaringBitmap.and(
+                    result, bitmap);
+        }
+        return result != null ? result : new RoaringBitmap();
+    }
+
+    /**
+     * Returns number of airports visited by both pilots.
+     */
+    public synchronized int countCommon(String pilot, String other) {
+
+        RoaringBitmap a = airports.get(pilot);
+        RoaringBitmap b = airports.get(other);
+        return a != null && b != null ? RoaringBitmap.andCardinality(a, b) : 0;
+    }
+
+    /**
+     * Returns pilots who have visited airport, sorted.
+     */
+    public synchronized List<String> getPilots(int airportId) {
+
+        List<String> pilots = new ArrayList<String>();
+        for (Map.Entry<String, RoaringBitmap> e : airports.entrySet()) {
+            if (e.getValue().contains(airportId)) {
+                pilots.add(e.getKey());
+            }
+        }
+        Collections.sort(pilots);
+        return pilots;
+    }
+
+    /**
+     * Sets airports of added values and reloads pilots whose removed values
+     * may have been their last visit of an airport, then writes changed
+     * bitmaps. Pilots whose write failed are written with the next changes.
+     */
+    @Override
+    public synchronized void flightsChanged(List<FlightChange> changes) {
+
+        Set<String> changed = new HashSet<String>();
+        Set<String> reload = new HashSet<String>();
+
+        for (FlightChange change : changes) {
+            Map<String, Object> after = change.getAfter();
+            if (after != null) {
+                String pilot = (String) after
+                        .get(DBConstants.FLIGHTENTRIES_USERNAME);
+                if (pilot != null) {
+                    for (Integer airport : airportsOf(after)) {
+                        if (bitmapOf(pilot).add(airport)) {
+                            changed.add(pilot);
+                        }
+                    }
+                }
+            }
+            Map<String, Object> before = change.getBefore();
+            if (before != null) {
+                String pilot = (String) before
+                        .get(DBConstants.FLIGHTENTRIES_USERNAME);
+                if (pilot == null) {
+                    continue;
+                }
+                Set<Integer> kept = after != null
+                        && pilot.equals(after
+                                .get(DBConstants.FLIGHTENTRIES_USERNAME)) ? airportsOf(after)
+                        : Collections.<Integer> emptySet();
+                if (!kept.containsAll(airportsOf(before))) {
+                    reload.add(pilot);
+                }
+            }
+        }
+
+        if (changeCount >= 0) {
+            changeCount += changes.size();
+        }
+        try {
+            for (String pilot : reload) {
+                RoaringBitmap bitmap = new RoaringBitmap();
+                read(pilot, Collections.singletonMap(pilot, bitmap));
+                airports.put(pilot, bitmap);
+                changed.add(pilot);
+            }
+        } catch (SQLException e) {
+            /**
+             * Bitmaps may keep airports no longer visited, have them rebuilt
+             * on next startup.
+             */
+            changeCount = -1;
+            logger.log(Level.WARNING, "Failed to update visited airports", e);
+        }
+        for (String pilot : changed) {
+            countries.remove(pilot);
+        }
+        unsaved.addAll(changed);
+        try {
+            store(unsaved, false);
+            unsaved.clear();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Failed to store visited airports", e);
+        }
+    }
+
+    /**
+     * Recomputes bitmaps of all pilots from flights and stores them.
+     */
+    public synchronized void rebuild() throws SQLException {
+
+        Map<String, RoaringBitmap> rebuilt = new HashMap<String, RoaringBitmap>();
+        long count = read(null, rebuilt);
+        airports.clear();
+        airports.putAll(rebuilt);
+        countries.clear();
+        changeCount = count;
+        unsaved.clear();
+        store(airports.keySet(), true);
+    }
+
+    private static Set<Integer> airportsOf(Map<String, Object> values) {
+
+        Set<Integer> result = new HashSet<Integer>(2);
+        for (String col : new String[] {
+                DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT,
+                DBConstants.FLIGHTENTRIES_LANDING_AIRPORT }) {
+            Object value = values.get(col);
+            if (value instanceof Number && ((Number) value).intValue() >= 0) {
+                result.add(((Number) value).intValue());
+            }
+        }
+        return result;
+    }
+
+    private RoaringBitmap bitmapOf(String pilot) {
+
+        RoaringBitmap bitmap = airports.get(pilot);
+        if (bitmap == null) {
+            bitmap = new RoaringBitmap();
+            airports.put(pilot, bitmap);
+        }
+        return bitmap;
+    }
+
+    private RoaringBitmap countriesOf(String pilot) throws SQLException {
+
+        if (updateCountryIndex()) {
+            countries.clear();
+        }
+        RoaringBitmap result = countries.get(pilot);
+        if (result == null) {
+            result = new RoaringBitmap();
+            RoaringBitmap visited = airports.get(pilot);
+            if (visited != null) {
+                for (int airport : visited.toArray()) {
+                    int i = countryIndex.indexOf(airport);
+                    if (i >= 0 && airportCountries[i] >= 0) {
+                        result.add(airportCountries[i]);
+                    }
+                }
+            }
+            countries.put(pilot, result);
+        }
+        return result;
+    }
+
+    /**
+     * Derives country ids from current AirportIndex if it has changed.
+     * Returns true if ids were derived again.
+     */
+    private boolean updateCountryIndex() throws SQLException {
+
+        AirportIndex index = AirportIndex.get(dbconn);
+        if (index == countryIndex) {
+            return false;
+        }
+
+        TreeSet<String> names = new TreeSet<String>();
+        for (int i = 0; i < index.size(); ++i) {
+            String country = index.getCountry(i);
+            if (country != null && country.length() > 0) {
+                names.add(country);
+            }
+        }
+        countryNames = names.toArray(new String[names.size()]);
+
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for (int i = 0; i < countryNames.length; ++i) {
+            ids.put(countryNames[i], i);
+        }
+        airportCountries = new int[index.size()];
+        for (int i = 0; i < index.size(); ++i) {
+            Integer id = ids.get(index.getCountry(i));
+            airportCountries[i] = id != null ? id : -1;
+        }
+        countryIndex = index;
+        return true;
+    }
+
+    /**
+     * Loads stored bitmaps. Returns false if they do not match current
+     * flights.
+     */
+    private boolean load() throws SQLException {
+
+        long saved;
+        long current;
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT username, "
+                    + "airports FROM " + TABLE);
+            try {
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        try {
+                            airports.put(rs.getString(1),
+                                    RoaringBitmap.deserialize(rs.getBytes(2)));
+                        } catch (IOException e) {
+                            throw new SQLException("Invalid airport bitmap of "
+                                    + rs.getString(1), e);
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            saved = FlightChangeCount.read(conn, TABLE);
+            current = FlightChangeCount.read(conn, FlightChangeCount.FLIGHTS);
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+
+        changeCount = current;
+        return saved >= 0 && saved == current;
+    }
+
+    /**
+     * Reads visited airports of one pilot (or all if null) into bitmaps of
+     * given map; with a pilot, map must have bitmap of that pilot. Returns
+     * FlightChangeCount the flights were read with.
+     */
+    private long read(String pilot, Map<String, RoaringBitmap> bitmaps)
+            throws SQLException {
+
+        long count;
+
+        Connection conn = dbconn.reserve();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(pilot != null ? SELECT_AIRPORTS
+                    + " WHERE " + DBConstants.FLIGHTENTRIES_USERNAME + " = ?"
+                    : SELECT_AIRPORTS);
+            try {
+                if (pilot != null) {
+                    stmt.setString(1, pilot);
+                }
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        String username = rs.getString(1);
+                        if (username == null) {
+                            continue;
+                        }
+                        RoaringBitmap bitmap = bitmaps.get(username);
+                        if (bitmap == null) {
+                            bitmap = new RoaringBitmap();
+                            bitmaps.put(username, bitmap);
+                        }
+                        for (int col = 2; col <= 3; ++col) {
+                            int airport = rs.getInt(col);
+                            if (!rs.wasNull() && airport >= 0) {
+                                bitmap.add(airport);
+                            }
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            count = FlightChangeCount.read(conn, FlightChangeCount.FLIGHTS);
+            conn.commit();
+        } finally {
+            dbconn.release(conn);
+        }
+        return count;
+    }
+
+    /**
+     * Writes bitmaps of pilots, replacing all rows if replaceAll is set, and
+     * the change count they match.
+     */
+    private void store(Collection<String> pilots, boolean replaceAll)
+            throws SQLException {
+
+        Connection conn = dbconn.reserve();
+        try {
+            if (replaceAll) {
+                PreparedStatement delete = conn.prepareStatement("DELETE FROM "
+                        + TABLE);
+                try {
+                    delete.executeUpdate();
+                } finally {
+                    delete.close();
+                }
+            }
+            PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE "
+                    + "INTO " + TABLE + " (username, airports) VALUES (?, ?)");
+            try {
+                for (String pilot : pilots) {
+                    stmt.setString(1, pilot);
+                    stmt.setBytes(2, bitmapOf(pilot).serialize());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            } finally {
+                stmt.close();
+            }
+            FlightChangeCount.write(conn, TABLE, changeCount);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            dbconn.release(conn);
+        }
+    }
+}
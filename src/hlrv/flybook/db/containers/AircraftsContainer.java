@@ -5,6 +5,7 @@ import hlrv.flybook.auth.User;
 import hlrv.flybook.db.DBConnection;
 import hlrv.flybook.db.DBConstants;
 import hlrv.flybook.db.items.AircraftItem;
+import hlrv.flybook.session.MemoryEstimator;
 
 import java.sql.SQLException;
 
@@ -26,12 +27,12 @@ public class AircraftsContainer {
     /**
      * Primary container.
      */
-    private SQLContainer aircraftsContainer;
+    private SessionSQLContainer aircraftsContainer;
 
     /**
      * Unfiltered container.
      */
-    private SQLContainer unfilteredAircraftsContainer;
+    private SessionSQLContainer unfilteredAircraftsContainer;
 
     /**
      * Custom permanent filter.
@@ -44,10 +45,10 @@ public class AircraftsContainer {
 
         TableQuery tq = new TableQuery(DBConstants.TABLE_AIRCRAFTS, pool);
         tq.setVersionColumn(DBConstants.AIRCRAFTS_OPTLOCK);
-        aircraftsContainer = new SQLContainer(tq);
+        aircraftsContainer = new SessionSQLContainer(tq);
         aircraftsContainer.setAutoCommit(false);
 
-        unfilteredAircraftsContainer = new SQLContainer(tq);
+        unfilteredAircraftsContainer = new SessionSQLContainer(tq);
         unfilteredAircraftsContainer.setAutoCommit(false);
     }
 
@@ -65,6 +66,28 @@ public class AircraftsContainer {
         return unfilteredAircraftsContainer;
     }
 
+    /**
+     * Returns approximate retained size (bytes) of container row caches.
+     */
+    public long estimateMemoryUsage() {
+
+        return MemoryEstimator.estimate(aircraftsContainer)
+                + MemoryEstimator.estimate(unfilteredAircraftsContainer);
+    }
+
+    /**
+     * Returns true if no component is bound to containers and there are no
+     * uncommitted changes, so the whole container can be dropped and created
+     * again on demand.
+     */
+    public boolean isDetached() {
+
+        return !aircraftsContainer.isAttached()
+                && !unfilteredAircraftsContainer.isAttached()
+                && !aircraftsContainer.isModified()
+                && !unfilteredAircraftsContainer.isModified();
+    }
+
     public boolean containsItem(String register) {
 
         Object[] pkey = { register };
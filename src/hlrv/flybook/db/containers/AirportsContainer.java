@@ -1,8 +1,10 @@
 package hlrv.flybook.db.containers;
 
+import hlrv.flybook.cache.LRUCache;
 import hlrv.flybook.db.DBConnection;
 import hlrv.flybook.db.DBConstants;
 import hlrv.flybook.db.items.AirportItem;
+import hlrv.flybook.session.MemoryEstimator;
 
 import java.sql.SQLException;
 import java.util.Iterator;
@@ -31,7 +33,7 @@ public class AirportsContainer {
     /**
      * Primary container.
      */
-    private SQLContainer airportsContainer;
+    private SessionSQLContainer airportsContainer;
 
     /**
      * Container of country/flag columns.
@@ -46,16 +48,29 @@ public class AirportsContainer {
     private IndexedContainer icaoCodesContainer;
 
     /**
-     * Keep cache of containers country -> city .
+     * Weight of cached value is number of container items built from it.
      */
-    private ContainerCache<String, IndexedContainer> cachedCityContainers = new ContainerCache<String, IndexedContainer>(
-            50);
+    private static final LRUCache.Weigher<String[]> ITEM_COUNT = new LRUCache.Weigher<String[]>() {
+        @Override
+        public int weigh(String[] value) {
+            return value.length + 1;
+        }
+    };
 
     /**
-     * Keep cache of containers country-city -> name.
+     * Cache of sorted cities by country, shared by all sessions. Sessions
+     * build their own IndexedContainer from cached array, as containers
+     * cannot be shared between components of different sessions.
      */
-    private ContainerCache<String, IndexedContainer> cachedNameContainers = new ContainerCache<String, IndexedContainer>(
-            100);
+    private static final LRUCache<String, String[]> cityCache = new LRUCache<String, String[]>(
+            20000, ITEM_COUNT).register("airportCities");
+
+    /**
+     * Cache of sorted airport names by country and city, shared by all
+     * sessions.
+     */
+    private static final LRUCache<String, String[]> nameCache = new LRUCache<String, String[]>(
+            20000, ITEM_COUNT).register("airportNames");
 
     private Filter filterCountry = null;
     private Filter filterCity = null;
@@ -66,7 +81,7 @@ public class AirportsContainer {
 
         TableQuery tq = new TableQuery(DBConstants.TABLE_AIRPORTS, pool);
         tq.setVersionColumn(DBConstants.AIRPORTS_OPTLOCK);
-        airportsContainer = new SQLContainer(tq);
+        airportsContainer = new SessionSQLContainer(tq);
         airportsContainer.setAutoCommit(false);
 
         countriesContainer = createCountriesContainer();
@@ -242,36 +257,83 @@ public class AirportsContainer {
      * Returns Container of unique cities for country. If country is null,
      * returned container is empty.
      */
-    public IndexedContainer getCitiesContainer(String country) {
+    public IndexedContainer getCitiesContainer(final String country) {
 
-        if (country == null) {
-            return createCitiesContainer(null);
-        }
+        String[] cities = new String[0];
 
-        if (!cachedCityContainers.containsKey(country)) {
-            cachedCityContainers.put(country, createCitiesContainer(country));
+        if (country != null) {
+            cities = cityCache.get(country,
+                    new LRUCache.Loader<String, String[]>() {
+                        @Override
+                        public String[] load(String key) {
+                            return toArray(fetchPropertySet(new Equal(
+                                    DBConstants.AIRPORTS_COUNTRY, country),
+                                    DBConstants.AIRPORTS_CITY));
+                        }
+                    });
         }
 
-        return cachedCityContainers.get(country);
+        return createStringContainer(DBConstants.AIRPORTS_CITY, cities);
     }
 
     /**
      * Returns Container of name for country and city pair. If country or city
      * is null, returned container is empty.
      */
-    public IndexedContainer getAirportNamesContainer(String country, String city) {
+    public IndexedContainer getAirportNamesContainer(final String country,
+            final String city) {
 
-        if (country == null || city == null) {
-            return createAirportNamesContainer(null, null);
-        }
+        String[] names = new String[0];
 
-        String key = country + "-" + city;
-        if (!cachedNameContainers.containsKey(key)) {
-            cachedNameContainers.put(key,
-                    createAirportNamesContainer(country, city));
+        if (country != null && city != null) {
+            names = nameCache.get(country + "\t" + city,
+                    new LRUCache.Loader<String, String[]>() {
+                        @Override
+                        public String[] load(String key) {
+                            return toArray(fetchPropertySet(new And(new Equal(
+                                    DBConstants.AIRPORTS_COUNTRY, country),
+                                    new Equal(DBConstants.AIRPORTS_CITY, city)),
+                                    DBConstants.AIRPORTS_NAME));
+                        }
+                    });
         }
 
-        return cachedNameContainers.get(key);
+        return createStringContainer(DBConstants.AIRPORTS_NAME, names);
+    }
+
+    /**
+     * Drops shared city and airport name caches, e.g. after airports table
+     * has been modified.
+     */
+    public static void invalidateSharedCaches() {
+
+        cityCache.invalidateAll();
+        nameCache.invalidateAll();
+    }
+
+    /**
+     * Returns approximate retained size (bytes) of this container and its
+     * helper containers.
+     */
+    public long estimateMemoryUsage() {
+
+        long bytes = MemoryEstimator.estimate(airportsContainer);
+        bytes += MemoryEstimator.estimate(countriesContainer);
+        bytes += MemoryEstimator.estimate(icaoCodesContainer);
+        return bytes;
+    }
+
+    /**
+     * Returns true if no component is bound to containers and there are no
+     * uncommitted changes, so the whole container can be dropped and created
+     * again on demand. Shared city/name caches are bounded on their own.
+     */
+    public boolean isDetached() {
+
+        return !airportsContainer.isAttached()
+                && !SessionSQLContainer.isAttached(countriesContainer)
+                && !SessionSQLContainer.isAttached(icaoCodesContainer)
+                && !airportsContainer.isModified();
     }
 
     /**
@@ -383,67 +445,26 @@ public class AirportsContainer {
     }
 
     /**
-     * Returns Container of unique cities for country. If country is null,
-     * returned container is empty.
+     * Creates container with single String property pid and one item per
+     * value, value being also the item id.
      */
-    private IndexedContainer createCitiesContainer(String country) {
-
-        IndexedContainer cityContainer = new IndexedContainer();
-        cityContainer.addContainerProperty(DBConstants.AIRPORTS_CITY,
-                String.class, null);
-
-        if (country != null) {
-
-            /**
-             * Fetch all cities from db and insert to ordered set.
-             */
-            TreeSet<String> cities = fetchPropertySet(new Equal(
-                    DBConstants.AIRPORTS_COUNTRY, country),
-                    DBConstants.AIRPORTS_CITY);
-
-            /**
-             * Create container from city set.
-             */
-
-            Iterator<String> it = cities.iterator();
-            while (it.hasNext()) {
-                String city = it.next();
-                Item item = cityContainer.addItem(city);
-                item.getItemProperty(DBConstants.AIRPORTS_CITY).setValue(city);
-            }
-        }
-
-        return cityContainer;
-    }
-
-    private IndexedContainer createAirportNamesContainer(String country,
-            String city) {
+    private IndexedContainer createStringContainer(String pid, String[] values) {
 
         IndexedContainer container = new IndexedContainer();
-        container.addContainerProperty(DBConstants.AIRPORTS_NAME, String.class,
-                null);
+        container.addContainerProperty(pid, String.class, null);
 
-        if (country != null && city != null) {
-
-            /**
-             * Fetch all airport names and insert to ordered set.
-             */
-            TreeSet<String> airports = fetchPropertySet(new And(new Equal(
-                    DBConstants.AIRPORTS_COUNTRY, country), new Equal(
-                    DBConstants.AIRPORTS_CITY, city)),
-                    DBConstants.AIRPORTS_NAME);
-
-            Iterator<String> it = airports.iterator();
-            while (it.hasNext()) {
-                String name = it.next();
-                Item item = container.addItem(name);
-                item.getItemProperty(DBConstants.AIRPORTS_NAME).setValue(name);
-            }
+        for (String value : values) {
+            Item item = container.addItem(value);
+            item.getItemProperty(pid).setValue(value);
         }
 
         return container;
     }
 
+    private static String[] toArray(TreeSet<String> set) {
+        return set.toArray(new String[set.size()]);
+    }
+
     /**
      * Iterates through filtered primary container rows and adds each row value
      * indicated by pid to TreeSet object.
@@ -0,0 +1,109 @@
+package hlrv.flybook.db.containers;
+
+import hlrv.flybook.db.DBConstants;
+import hlrv.flybook.db.FlightTimesIndex;
+
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.sqlcontainer.query.generator.StatementHelper;
+import com.vaadin.data.util.sqlcontainer.query.generator.filter.FilterTranslator;
+import com.vaadin.data.util.sqlcontainer.query.generator.filter.QueryBuilder;
+
+/**
+ * Filter: flight (departure_time <= to) && (landing_time >= from).
+ *
+ * Translated to a row id lookup from interval index (FlightTimesIndex)
+ * together with the exact predicates, so query does not scan FlightEntries.
+ */
+public class DateOverlap implements Filter {
+
+    private static final long serialVersionUID = 1L;
+
+    static {
+        QueryBuilder.addFilterTranslator(new Translator());
+    }
+
+    private final int from;
+    private final int to;
+
+    public DateOverlap(int from, int to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    @Override
+    public boolean passesFilter(Object itemId, Item item) {
+
+        Property<?> dep = item
+                .getItemProperty(DBConstants.FLIGHTENTRIES_DEPARTURE_TIME);
+        Property<?> land = item
+                .getItemProperty(DBConstants.FLIGHTENTRIES_LANDING_TIME);
+        if (dep == null || land == null || dep.getValue() == null
+                || land.getValue() == null) {
+            return false;
+        }
+
+        return ((Number) dep.getValue()).intValue() <= to
+                && ((Number) land.getValue()).intValue() >= from;
+    }
+
+    @Override
+    public boolean appliesToProperty(Object propertyId) {
+        return DBConstants.FLIGHTENTRIES_DEPARTURE_TIME.equals(propertyId)
+                || DBConstants.FLIGHTENTRIES_LANDING_TIME.equals(propertyId);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof DateOverlap)) {
+            return false;
+        }
+        DateOverlap o = (DateOverlap) obj;
+        return from == o.from && to == o.to;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * from + to;
+    }
+
+    /**
+     * Registered to QueryBuilder once, when DateOverlap is loaded.
+     */
+    private static class Translator implements FilterTranslator {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean translatesFilter(Filter filter) {
+            return filter instanceof DateOverlap;
+        }
+
+        @Override
+        public String getWhereStringForFilter(Filter filter, StatementHelper sh) {
+
+            DateOverlap overlap = (DateOverlap) filter;
+
+            sh.addParameterValue(overlap.to);
+            sh.addParameterValue(overlap.from);
+            sh.addParameterValue(overlap.to);
+            sh.addParameterValue(overlap.from);
+
+            return "(" + QueryBuilder.quote(DBConstants.FLIGHTENTRIES_FLIGHT_ID)
+                    + " IN (" + FlightTimesIndex.SELECT_OVERLAP + ") AND "
+                    + QueryBuilder.quote(DBConstants.FLIGHTENTRIES_DEPARTURE_TIME)
+                    + " <= ? AND "
+                    + QueryBuilder.quote(DBConstants.FLIGHTENTRIES_LANDING_TIME)
+                    + " >= ?)";
+        }
+    }
+}
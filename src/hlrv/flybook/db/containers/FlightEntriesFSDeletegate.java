@@ -1,265 +1,590 @@
-//package hlrv.flybook.db.containers;
-//
-//import java.sql.Connection;
-//import java.sql.PreparedStatement;
-//import java.sql.SQLException;
-//import java.util.List;
-//
-//import com.vaadin.data.Container.Filter;
-//import com.vaadin.data.util.sqlcontainer.RowItem;
-//import com.vaadin.data.util.sqlcontainer.SQLUtil;
-//import com.vaadin.data.util.sqlcontainer.TemporaryRowId;
-//import com.vaadin.data.util.sqlcontainer.query.FreeformStatementDelegate;
-//import com.vaadin.data.util.sqlcontainer.query.OrderBy;
-//import com.vaadin.data.util.sqlcontainer.query.generator.StatementHelper;
-//import com.vaadin.data.util.sqlcontainer.query.generator.filter.QueryBuilder;
-//import com.vaadin.data.util.sqlcontainer.query.generator.filter.StringDecorator;
-//
-//public class FlightEntriesFSDeletegate implements FreeformStatementDelegate {
-//
-//    private List<Filter> filters;
-//
-//    private List<OrderBy> orderBys;
-//
-//    public FlightEntriesFSDeletegate() {
-//        // Bug fix:
-//        // https://vaadin.com/forum/-/message_boards/view_message/715285?_19_delta=20&_19_keywords=&_19_advancedSearch=false&_19_andOperator=true&cur=5
-//        // Must be set this way so that filters work
-//        QueryBuilder.setStringDecorator(new StringDecorator("", ""));
-//    }
-//
-//    @Override
-//    @Deprecated
-//    public String getContainsRowQueryString(Object... keys)
-//            throws UnsupportedOperationException {
-//        throw new UnsupportedOperationException(
-//                "Please use getContainsRowQueryStatement method.");
-//    }
-//
-//    @Override
-//    @Deprecated
-//    public String getCountQuery() throws UnsupportedOperationException {
-//        throw new UnsupportedOperationException("Use getCountStatement method.");
-//    }
-//
-//    @Override
-//    @Deprecated
-//    public String getQueryString(int offset, int limit)
-//            throws UnsupportedOperationException {
-//        throw new UnsupportedOperationException("Use getQueryStatement method.");
-//    }
-//
-//    @Override
-//    public StatementHelper getCountStatement()
-//            throws UnsupportedOperationException {
-//
-//        StatementHelper sh = new StatementHelper();
-//
-//        StringBuilder sql = new StringBuilder();
-//
-//        sql.append("SELECT COUNT(*) ");
-//        sql.append("FROM FlightEntries");
-//
-//        if (filters != null) {
-//            sql.append(QueryBuilder.getWhereStringForFilters(filters, sh));
-//        }
-//
-//        System.out.println("countStatement: " + sql.toString());
-//
-//        sh.setQueryString(sql.toString());
-//        return sh;
-//    }
-//
-//    @Override
-//    public StatementHelper getQueryStatement(int offset, int limit)
-//            throws UnsupportedOperationException {
-//
-//        StatementHelper sh = new StatementHelper();
-//
-//        StringBuilder sql = new StringBuilder("");
-//        sql.append("SELECT ");
-//
-//        sql.append("FlightEntries.*,  ");
-//
-//        sql.append("u.firstname || ' ' || u.lastname AS pilot_fullname, ");
-//        sql.append("time(FlightEntries.landing_time - FlightEntries.departure_time, 'unixepoch') AS flight_time, ");
-//        sql.append("ap1.name || ',' || ap1.city || ',' || ap1.country AS departure_airport_string, ");
-//        sql.append("ap2.name || ',' || ap2.city || ',' || ap2.country AS landing_airport_string, ");
-//        sql.append("ac.make_model || ',' || ac.engine_count || ' engines,' || ac.capacity || ' passengers' AS aircraft_string ");
-//
-//        sql.append("FROM FlightEntries ");
-//        sql.append("INNER JOIN Users u ON u.username = FlightEntries.username ");
-//        sql.append("INNER JOIN Airports ap1 ON FlightEntries.departure_airport = ap1.id ");
-//        sql.append("INNER JOIN Airports ap2 ON FlightEntries.landing_airport = ap2.id ");
-//        sql.append("INNER JOIN Aircrafts ac ON FlightEntries.aircraft = ac.register");
-//
-//        if (filters != null) {
-//            // Returned string is empty or first char is space
-//            sql.append(QueryBuilder.getWhereStringForFilters(filters, sh));
-//        }
-//
-//        sql.append(getOrderByString());
-//        if (offset != 0 || limit != 0) {
-//            sql.append(" LIMIT ").append(limit);
-//            sql.append(" OFFSET ").append(offset);
-//        }
-//
-//        System.out.println("queryStatement: " + sql.toString());
-//
-//        sh.setQueryString(sql.toString());
-//        return sh;
-//    }
-//
-//    private String getOrderByString() {
-//
-//        StringBuilder sql = new StringBuilder("");
-//
-//        if (orderBys != null && !orderBys.isEmpty()) {
-//
-//            sql.append(" ORDER BY ");
-//            OrderBy lastOrderBy = orderBys.get(orderBys.size() - 1);
-//            for (OrderBy orderBy : orderBys) {
-//                sql.append(SQLUtil.escapeSQL(orderBy.getColumn()));
-//                if (orderBy.isAscending()) {
-//                    sql.append(" ASC");
-//                } else {
-//                    sql.append(" DESC");
-//                }
-//                if (orderBy != lastOrderBy) {
-//                    sql.append(", ");
-//                }
-//            }
-//        }
-//        return sql.toString();
-//    }
-//
-//    @Override
-//    public StatementHelper getContainsRowQueryStatement(Object... keys)
-//            throws UnsupportedOperationException {
-//
-//        StatementHelper sh = new StatementHelper();
-//
-//        StringBuilder sql = new StringBuilder();
-//        sql.append("SELECT id FROM FlightEntries");
-//        sql.append("WHERE flight_id = ?");
-//
-//        sh.addParameterValue(keys[0]);
-//        sh.setQueryString(sql.toString());
-//        return sh;
-//    }
-//
-//    @Override
-//    public void setFilters(List<Filter> filters)
-//            throws UnsupportedOperationException {
-//        this.filters = filters;
-//    }
-//
-//    @Override
-//    public void setOrderBy(List<OrderBy> orderBys)
-//            throws UnsupportedOperationException {
-//        this.orderBys = orderBys;
-//
-//    }
-//
-//    @Override
-//    public int storeRow(Connection conn, RowItem row)
-//            throws UnsupportedOperationException, SQLException {
-//
-//        PreparedStatement statement = null;
-//        if (row.getId() instanceof TemporaryRowId) {
-//
-//            StringBuilder dml = new StringBuilder();
-//            dml.append("INSERT INTO FlightEntries ( ");
-//            dml.append("username, ");
-//            dml.append("date, ");
-//            dml.append("aircraft, ");
-//            dml.append("departure_time, ");
-//            dml.append("departure_airport, ");
-//            dml.append("landing_time, ");
-//            dml.append("landing_airport, ");
-//            dml.append("onblock_time, ");
-//            dml.append("offblock_time, ");
-//            dml.append("flight_type, ");
-//            dml.append("ifr_time, ");
-//            dml.append("notes ) ");
-//            dml.append("VALUES( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? )");
-//
-//            System.out.println("FlightEntries INSERT: " + dml.toString());
-//
-//            statement = conn.prepareStatement(dml.toString());
-//            setRowValues(statement, row);
-//        } else {
-//
-//            StringBuilder dml = new StringBuilder();
-//            dml.append("UPDATE FlightEntries SET ");
-//            dml.append("username = ?, ");
-//            dml.append("date = ?, ");
-//            dml.append("aircraft = ?, ");
-//            dml.append("departure_time = ?, ");
-//            dml.append("departure_airport = ?, ");
-//            dml.append("landing_time = ?, ");
-//            dml.append("landing_airport = ?, ");
-//            dml.append("onblock_time = ?, ");
-//            dml.append("offblock_time = ?, ");
-//            dml.append("flight_type = ?, ");
-//            dml.append("ifr_time = ?, ");
-//            dml.append("notes = ? ");
-//            dml.append("WHERE flight_id = ?");
-//
-//            System.out.println("FlightEntries UPDATE: " + dml.toString());
-//
-//            statement = conn.prepareStatement(dml.toString());
-//
-//            setRowValues(statement, row);
-//            statement.setInt(13, (Integer) row.getItemProperty("flight_id")
-//                    .getValue());
-//        }
-//
-//        int retval = statement.executeUpdate();
-//        statement.close();
-//        return retval;
-//    }
-//
-//    private void setRowValues(PreparedStatement statement, RowItem row)
-//            throws SQLException {
-//
-//        statement.setString(1, (String) row.getItemProperty("username")
-//                .getValue());
-//        statement.setInt(2, (Integer) row.getItemProperty("date").getValue());
-//        statement.setString(3, (String) row.getItemProperty("aircraft")
-//                .getValue());
-//        statement.setInt(4, (Integer) row.getItemProperty("departure_time")
-//                .getValue());
-//        statement.setInt(5, (Integer) row.getItemProperty("departure_airport")
-//                .getValue());
-//        statement.setInt(6, (Integer) row.getItemProperty("landing_time")
-//                .getValue());
-//        statement.setInt(7, (Integer) row.getItemProperty("landing_airport")
-//                .getValue());
-//        statement.setInt(8, (Integer) row.getItemProperty("onblock_time")
-//                .getValue());
-//        statement.setInt(9, (Integer) row.getItemProperty("offblock_time")
-//                .getValue());
-//        statement.setInt(10, (Integer) row.getItemProperty("flight_type")
-//                .getValue());
-//        statement.setInt(11, (Integer) row.getItemProperty("ifr_time")
-//                .getValue());
-//        statement.setString(12, (String) row.getItemProperty("notes")
-//                .getValue());
-//    }
-//
-//    @Override
-//    public boolean removeRow(Connection conn, RowItem row)
-//            throws UnsupportedOperationException, SQLException {
-//
-//        PreparedStatement statement = conn
-//                .prepareStatement("DELETE FROM FlightEntries WHERE flight_id = ?");
-//
-//        statement.setInt(1, (Integer) row.getItemProperty("flight_id")
-//                .getValue());
-//        int rowsChanged = statement.executeUpdate();
-//        statement.close();
-//        return rowsChanged == 1;
-//    }
-//
-// }
+package hlrv.flybook.db.containers;
+
+import hlrv.flybook.db.DBConstants;
+import hlrv.flybook.db.FlightChange;
+import hlrv.flybook.db.FlightDistances;
+import hlrv.flybook.db.FlightNightTimes;
+import hlrv.flybook.db.FlightNotesIndex;
+import hlrv.flybook.db.FlightTracks;
+import hlrv.flybook.track.Track;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.util.sqlcontainer.ColumnProperty;
+import com.vaadin.data.util.sqlcontainer.OptimisticLockException;
+import com.vaadin.data.util.sqlcontainer.RowItem;
+import com.vaadin.data.util.sqlcontainer.TemporaryRowId;
+import com.vaadin.data.util.sqlcontainer.query.FreeformStatementDelegate;
+import com.vaadin.data.util.sqlcontainer.query.OrderBy;
+import com.vaadin.data.util.sqlcontainer.query.generator.StatementHelper;
+import com.vaadin.data.util.sqlcontainer.query.generator.filter.QueryBuilder;
+
+/**
+ * FreeformQuery delegate for FlightEntries list.
+ *
+ * Selects only list columns (LIST_COLUMNS), i.e. everything except the
+ * free-text notes, which can be long and are needed only by the flight form.
+ * Notes are read by primary key on demand (FlightsContainer.loadNotes()) and
+ * written together with the row: storeRow() takes pending notes of the row
+ * from the map shared with FlightsContainer. Pending tracks are written the
+ * same way, to FlightTracks. FlightsContainer stores rows whose notes or
+ * track alone changed too, unmodified, in the same transaction; storeRow()
+ * then checks their optlock and writes just their notes and track.
+ *
+ * NotesMatch filter joins list query to notes full-text index: only matching
+ * flights are listed, best matches first unless sorted otherwise, and column
+ * FlightsContainer.PID_NOTES_SNIPPET has highlighted excerpt of notes (it is
+ * NULL when there is no notes filter).
+ *
+ * Distance and night time are not taken from the row but computed by
+ * FlightDistances from departure and landing airport, and by FlightNightTimes
+ * from airports and times, whenever a row is stored.
+ *
+ * Updates and deletes check optlock like TableQuery with version column does.
+ * Ids and usernames of stored and removed rows are collected, FlightsContainer
+ * publishes them as FlightEvents after commit. Values before and after each
+ * write are collected too, as FlightChanges published after successful
+ * commit only.
+ */
+public class FlightEntriesFSDeletegate implements FreeformStatementDelegate {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Columns of list query, notes excluded.
+     */
+    public static final List<String> LIST_COLUMNS = Arrays.asList(
+            DBConstants.FLIGHTENTRIES_FLIGHT_ID,
+            DBConstants.FLIGHTENTRIES_USERNAME,
+            DBConstants.FLIGHTENTRIES_DATE,
+            DBConstants.FLIGHTENTRIES_AIRCRAFT,
+            DBConstants.FLIGHTENTRIES_DEPARTURE_TIME,
+            DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT,
+            DBConstants.FLIGHTENTRIES_LANDING_TIME,
+            DBConstants.FLIGHTENTRIES_LANDING_AIRPORT,
+            DBConstants.FLIGHTENTRIES_ONBLOCK_TIME,
+            DBConstants.FLIGHTENTRIES_OFFBLOCK_TIME,
+            DBConstants.FLIGHTENTRIES_FLIGHT_TYPE,
+            DBConstants.FLIGHTENTRIES_IFR_TIME,
+            DBConstants.FLIGHTENTRIES_DISTANCE,
+            DBConstants.FLIGHTENTRIES_NIGHT_TIME,
+            DBConstants.FLIGHTENTRIES_OPTLOCK);
+
+    /**
+     * Columns written from row values by storeRow(), in statement parameter
+     * order. Distance, night time and optlock are not among them.
+     */
+    private static final List<String> STORED_COLUMNS = LIST_COLUMNS.subList(1,
+            LIST_COLUMNS.size() - 3);
+
+    private static final String SELECT_COLUMNS = join(LIST_COLUMNS);
+
+    /**
+     * Subquery of flights matching notes filter, parameter is FTS query.
+     */
+    private static final String MATCH_JOIN = " JOIN (SELECT docid, "
+            + FlightNotesIndex.SNIPPET + " AS snippet, "
+            + FlightNotesIndex.HITS + " AS hits FROM "
+            + FlightNotesIndex.TABLE + " WHERE notes MATCH ?) AS fts ON "
+            + "fts.docid = " + DBConstants.FLIGHTENTRIES_FLIGHT_ID;
+
+    /**
+     * Filters other than notesMatch.
+     */
+    private List<Filter> filters;
+
+    private NotesMatch notesMatch;
+
+    private List<OrderBy> orderBys;
+
+    /**
+     * Notes waiting to be written, by flight id. Owned by FlightsContainer.
+     */
+    private final Map<Integer, String> pendingNotes;
+
+    /**
+     * Tracks waiting to be written, by flight id, null removes track. Owned
+     * by FlightsContainer.
+     */
+    private final Map<Integer, Track> pendingTracks;
+
+    private final FlightTracks tracks;
+
+    private final FlightDistances distances;
+
+    private final FlightNightTimes nightTimes;
+
+    /**
+     * Ids and usernames of rows written since clearChanges().
+     */
+    private final Set<Integer> changedFlights = new HashSet<Integer>();
+    private final Set<String> changedPilots = new HashSet<String>();
+
+    /**
+     * Row values written since clearChanges(), in write order.
+     */
+    private final List<FlightChange> rowChanges = new ArrayList<FlightChange>();
+
+    /**
+     * Ids of flights whose pending notes and track were written, or whose
+     * row was removed, since clearChanges(). Pending notes and tracks stay in
+     * their maps until FlightsContainer sees the transaction commit, so a
+     * failed commit can be retried with them.
+     */
+    private final Set<Integer> storedPending = new HashSet<Integer>();
+
+    public FlightEntriesFSDeletegate(Map<Integer, String> pendingNotes,
+            Map<Integer, Track> pendingTracks, FlightTracks tracks,
+            FlightDistances distances, FlightNightTimes nightTimes) {
+        this.pendingNotes = pendingNotes;
+        this.pendingTracks = pendingTracks;
+        this.tracks = tracks;
+        this.distances = distances;
+        this.nightTimes = nightTimes;
+    }
+
+    Set<Integer> getChangedFlights() {
+        return changedFlights;
+    }
+
+    Set<String> getChangedPilots() {
+        return changedPilots;
+    }
+
+    List<FlightChange> getRowChanges() {
+        return rowChanges;
+    }
+
+    Set<Integer> getStoredPending() {
+        return storedPending;
+    }
+
+    void clearChanges() {
+        changedFlights.clear();
+        changedPilots.clear();
+        rowChanges.clear();
+        storedPending.clear();
+    }
+
+    /**
+     * Records written row. Values before are the ones row was read with,
+     * none for inserted rows; removed rows have no values after.
+     */
+    private void addChange(RowItem row, boolean inserted, boolean removed) {
+
+        Integer flightId = (Integer) row.getItemProperty(
+                DBConstants.FLIGHTENTRIES_FLIGHT_ID).getValue();
+
+        changedFlights.add(flightId);
+        changedPilots.add((String) row.getItemProperty(
+                DBConstants.FLIGHTENTRIES_USERNAME).getValue());
+
+        Map<String, Object> before = null;
+        Map<String, Object> after = null;
+        if (!inserted) {
+            before = new HashMap<String, Object>();
+            for (String col : LIST_COLUMNS) {
+                before.put(col, ((ColumnProperty) row.getItemProperty(col))
+                        .getOldValue());
+            }
+        }
+        if (!removed) {
+            after = new HashMap<String, Object>();
+            for (String col : LIST_COLUMNS) {
+                after.put(col, row.getItemProperty(col).getValue());
+            }
+        }
+        rowChanges.add(new FlightChange(flightId, before, after));
+    }
+
+    @Override
+    @Deprecated
+    public String getContainsRowQueryString(Object... keys)
+            throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(
+                "Please use getContainsRowQueryStatement method.");
+    }
+
+    @Override
+    @Deprecated
+    public String getCountQuery() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("Use getCountStatement method.");
+    }
+
+    @Override
+    @Deprecated
+    public String getQueryString(int offset, int limit)
+            throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("Use getQueryStatement method.");
+    }
+
+    @Override
+    public StatementHelper getCountStatement()
+            throws UnsupportedOperationException {
+
+        StatementHelper sh = new StatementHelper();
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT COUNT(*) FROM ").append(
+                DBConstants.TABLE_FLIGHTENTRIES);
+
+        appendMatchJoin(sql, sh);
+
+        if (filters != null) {
+            sql.append(QueryBuilder.getWhereStringForFilters(filters, sh));
+        }
+
+        sh.setQueryString(sql.toString());
+        return sh;
+    }
+
+    @Override
+    public StatementHelper getQueryStatement(int offset, int limit)
+            throws UnsupportedOperationException {
+
+        StatementHelper sh = new StatementHelper();
+
+        StringBuilder sql = new StringBuilder(256);
+        sql.append("SELECT ").append(SELECT_COLUMNS).append(", ");
+        sql.append(notesMatch != null ? "fts.snippet" : "NULL");
+        sql.append(" AS ").append(FlightsContainer.PID_NOTES_SNIPPET);
+        sql.append(" FROM ").append(DBConstants.TABLE_FLIGHTENTRIES);
+
+        appendMatchJoin(sql, sh);
+
+        if (filters != null) {
+            // Returned string is empty or first char is space
+            sql.append(QueryBuilder.getWhereStringForFilters(filters, sh));
+        }
+
+        sql.append(getOrderByString());
+
+        if (offset != 0 || limit != 0) {
+            sql.append(" LIMIT ").append(limit);
+            sql.append(" OFFSET ").append(offset);
+        }
+
+        sh.setQueryString(sql.toString());
+        return sh;
+    }
+
+    /**
+     * Appends notes index join if notes filter is set. Must be called before
+     * WHERE parameters are added.
+     */
+    private void appendMatchJoin(StringBuilder sql, StatementHelper sh) {
+
+        if (notesMatch != null) {
+            sql.append(MATCH_JOIN);
+            sh.addParameterValue(notesMatch.getQuery());
+        }
+    }
+
+    /**
+     * Returns ORDER BY clause. Primary key is always last, so paging is
+     * stable like with TableQuery. Notes matches are ordered by relevance
+     * unless sort order has been set.
+     */
+    private String getOrderByString() {
+
+        StringBuilder sql = new StringBuilder(" ORDER BY ");
+
+        if (notesMatch != null && (orderBys == null || orderBys.isEmpty())) {
+            sql.append("fts.hits DESC, ");
+        }
+
+        if (orderBys != null) {
+            for (OrderBy orderBy : orderBys) {
+                /**
+                 * Column names go to SQL as is, so accept only known ones.
+                 */
+                if (!LIST_COLUMNS.contains(orderBy.getColumn())) {
+                    continue;
+                }
+                sql.append(QueryBuilder.quote(orderBy.getColumn()));
+                sql.append(orderBy.isAscending() ? " ASC, " : " DESC, ");
+            }
+        }
+        sql.append(DBConstants.FLIGHTENTRIES_FLIGHT_ID).append(" ASC");
+
+        return sql.toString();
+    }
+
+    @Override
+    public StatementHelper getContainsRowQueryStatement(Object... keys)
+            throws UnsupportedOperationException {
+
+        StatementHelper sh = new StatementHelper();
+
+        sh.setQueryString("SELECT 1 FROM " + DBConstants.TABLE_FLIGHTENTRIES
+                + " WHERE " + DBConstants.FLIGHTENTRIES_FLIGHT_ID + " = ?");
+        sh.addParameterValue(keys[0]);
+        return sh;
+    }
+
+    @Override
+    public void setFilters(List<Filter> filters)
+            throws UnsupportedOperationException {
+
+        this.notesMatch = null;
+        this.filters = null;
+        if (filters != null) {
+            this.filters = new ArrayList<Filter>(filters.size());
+            for (Filter filter : filters) {
+                if (filter instanceof NotesMatch) {
+                    this.notesMatch = (NotesMatch) filter;
+                } else {
+                    this.filters.add(filter);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setOrderBy(List<OrderBy> orderBys)
+            throws UnsupportedOperationException {
+        this.orderBys = orderBys;
+    }
+
+    @Override
+    public int storeRow(Connection conn, RowItem row)
+            throws UnsupportedOperationException, SQLException {
+
+        Integer flightId = (Integer) row.getItemProperty(
+                DBConstants.FLIGHTENTRIES_FLIGHT_ID).getValue();
+        String notes = pendingNotes.get(flightId);
+
+        boolean inserted = row.getId() instanceof TemporaryRowId;
+        if (!inserted && !row.isModified()
+                && (notes != null || pendingTracks.containsKey(flightId))) {
+            return storePending(conn, row, flightId, notes);
+        }
+
+        Integer distance = distances.getDistance(
+                row.getItemProperty(
+                        DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT).getValue(),
+                row.getItemProperty(DBConstants.FLIGHTENTRIES_LANDING_AIRPORT)
+                        .getValue());
+        Integer nightTime = nightTimes.getNightTime(
+                row.getItemProperty(
+                        DBConstants.FLIGHTENTRIES_DEPARTURE_AIRPORT).getValue(),
+                row.getItemProperty(DBConstants.FLIGHTENTRIES_LANDING_AIRPORT)
+                        .getValue(),
+                row.getItemProperty(DBConstants.FLIGHTENTRIES_DEPARTURE_TIME)
+                        .getValue(),
+                row.getItemProperty(DBConstants.FLIGHTENTRIES_LANDING_TIME)
+                        .getValue());
+
+        PreparedStatement statement;
+        int retval;
+
+        if (inserted) {
+
+            /**
+             * Flight id is set by FlightsContainer.addEntry().
+             */
+            StringBuilder dml = new StringBuilder();
+            dml.append("INSERT INTO ").append(DBConstants.TABLE_FLIGHTENTRIES);
+            dml.append(" (").append(join(STORED_COLUMNS)).append(", ");
+            dml.append(DBConstants.FLIGHTENTRIES_DISTANCE).append(", ");
+            dml.append(DBConstants.FLIGHTENTRIES_NIGHT_TIME).append(", ");
+            dml.append(DBConstants.FLIGHTENTRIES_NOTES).append(", ");
+            dml.append(DBConstants.FLIGHTENTRIES_FLIGHT_ID).append(") VALUES (");
+            for (int i = 0; i < STORED_COLUMNS.size() + 4; ++i) {
+                dml.append(i == 0 ? "?" : ", ?");
+            }
+            dml.append(")");
+
+            statement = conn.prepareStatement(dml.toString());
+            try {
+                int p = setRowValues(statement, row);
+                statement.setObject(p++, distance);
+                statement.setObject(p++, nightTime);
+                statement.setString(p++, notes != null ? notes : "");
+                statement.setInt(p, flightId);
+                retval = statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+
+        } else {
+
+            StringBuilder dml = new StringBuilder();
+            dml.append("UPDATE ").append(DBConstants.TABLE_FLIGHTENTRIES);
+            dml.append(" SET ");
+            for (String col : STORED_COLUMNS) {
+                dml.append(col).append(" = ?, ");
+            }
+            dml.append(DBConstants.FLIGHTENTRIES_DISTANCE).append(" = ?, ");
+            dml.append(DBConstants.FLIGHTENTRIES_NIGHT_TIME).append(" = ?, ");
+            if (notes != null) {
+                dml.append(DBConstants.FLIGHTENTRIES_NOTES).append(" = ?, ");
+            }
+            dml.setLength(dml.length() - 2);
+            dml.append(" WHERE ").append(DBConstants.FLIGHTENTRIES_FLIGHT_ID);
+            dml.append(" = ? AND ").append(DBConstants.FLIGHTENTRIES_OPTLOCK);
+            dml.append(" = ?");
+
+            statement = conn.prepareStatement(dml.toString());
+            try {
+                int p = setRowValues(statement, row);
+                statement.setObject(p++, distance);
+                statement.setObject(p++, nightTime);
+                if (notes != null) {
+                    statement.setString(p++, notes);
+                }
+                statement.setInt(p++, flightId);
+                statement.setObject(p, row.getItemProperty(
+                        DBConstants.FLIGHTENTRIES_OPTLOCK).getValue());
+                retval = statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+
+            if (retval == 0) {
+                throw new OptimisticLockException(
+                        "Someone else changed the row that was being updated.",
+                        row.getId());
+            }
+        }
+
+        storeTrack(conn, flightId);
+        storedPending.add(flightId);
+        addChange(row, inserted, false);
+        return retval;
+    }
+
+    /**
+     * Writes notes and track of row that has no other changes, if row has not
+     * changed since it was read. Values of row are not changed, so there are
+     * no changes to record.
+     */
+    private int storePending(Connection conn, RowItem row, Integer flightId,
+            String notes) throws SQLException {
+
+        Object optlock = row.getItemProperty(DBConstants.FLIGHTENTRIES_OPTLOCK)
+                .getValue();
+        int retval;
+        if (notes != null) {
+            PreparedStatement statement = conn.prepareStatement("UPDATE "
+                    + DBConstants.TABLE_FLIGHTENTRIES + " SET "
+                    + DBConstants.FLIGHTENTRIES_NOTES + " = ? WHERE "
+                    + DBConstants.FLIGHTENTRIES_FLIGHT_ID + " = ? AND "
+                    + DBConstants.FLIGHTENTRIES_OPTLOCK + " = ?");
+            try {
+                statement.setString(1, notes);
+                statement.setInt(2, flightId);
+                statement.setObject(3, optlock);
+                retval = statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } else {
+            PreparedStatement statement = conn.prepareStatement("SELECT "
+                    + "COUNT(*) FROM " + DBConstants.TABLE_FLIGHTENTRIES
+                    + " WHERE " + DBConstants.FLIGHTENTRIES_FLIGHT_ID
+                    + " = ? AND " + DBConstants.FLIGHTENTRIES_OPTLOCK + " = ?");
+            try {
+                statement.setInt(1, flightId);
+                statement.setObject(2, optlock);
+                ResultSet rs = statement.executeQuery();
+                try {
+                    rs.next();
+                    retval = rs.getInt(1);
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                statement.close();
+            }
+        }
+
+        if (retval == 0) {
+            throw new OptimisticLockException(
+                    "Someone else changed the row whose notes or track were being updated.",
+                    row.getId());
+        }
+        storeTrack(conn, flightId);
+        storedPending.add(flightId);
+        return retval;
+    }
+
+    /**
+     * Writes pending track of flight, if any.
+     */
+    private void storeTrack(Connection conn, Integer flightId)
+            throws SQLException {
+
+        if (pendingTracks.containsKey(flightId)) {
+            tracks.write(conn, flightId, pendingTracks.get(flightId));
+        }
+    }
+
+    /**
+     * Sets STORED_COLUMNS values, returns next parameter index.
+     */
+    private int setRowValues(PreparedStatement statement, RowItem row)
+            throws SQLException {
+
+        int p = 1;
+        for (String col : STORED_COLUMNS) {
+            statement.setObject(p++, row.getItemProperty(col).getValue());
+        }
+        return p;
+    }
+
+    @Override
+    public boolean removeRow(Connection conn, RowItem row)
+            throws UnsupportedOperationException, SQLException {
+
+        PreparedStatement statement = conn.prepareStatement("DELETE FROM "
+                + DBConstants.TABLE_FLIGHTENTRIES + " WHERE "
+                + DBConstants.FLIGHTENTRIES_FLIGHT_ID + " = ? AND "
+                + DBConstants.FLIGHTENTRIES_OPTLOCK + " = ?");
+        int rowsChanged;
+        try {
+            statement.setObject(1,
+                    row.getItemProperty(DBConstants.FLIGHTENTRIES_FLIGHT_ID)
+                            .getValue());
+            statement.setObject(2,
+                    row.getItemProperty(DBConstants.FLIGHTENTRIES_OPTLOCK)
+                            .getValue());
+            rowsChanged = statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+
+        if (rowsChanged == 0) {
+            throw new OptimisticLockException(
+                    "Someone else changed the row that was being deleted.",
+                    row.getId());
+        }
+        storedPending.add((Integer) row.getItemProperty(
+                DBConstants.FLIGHTENTRIES_FLIGHT_ID).getValue());
+        addChange(row, false, true);
+        return true;
+    }
+
+    private static String join(List<String> columns) {
+
+        StringBuilder sb = new StringBuilder();
+        for (String col : columns) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(col);
+        }
+        return sb.toString();
+    }
+}
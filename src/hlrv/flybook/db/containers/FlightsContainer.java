@@ -5,32 +5,106 @@ import hlrv.flybook.FlybookUI;
 import hlrv.flybook.auth.User;
 import hlrv.flybook.db.DBConnection;
 import hlrv.flybook.db.DBConstants;
+import hlrv.flybook.db.DutyCompliance;
+import hlrv.flybook.db.FlightChange;
+import hlrv.flybook.db.FlightConflicts;
+import hlrv.flybook.db.FlightDistances;
+import hlrv.flybook.db.FlightNightTimes;
+import hlrv.flybook.db.FlightEvents;
+import hlrv.flybook.db.FlightNotesIndex;
+import hlrv.flybook.db.FlightSketches;
+import hlrv.flybook.db.FlightTotals;
+import hlrv.flybook.db.FlightTracks;
+import hlrv.flybook.db.VisitedAirports;
 import hlrv.flybook.db.items.FlightItem;
+import hlrv.flybook.map.TrackPyramid;
+import hlrv.flybook.session.MemoryEstimator;
+import hlrv.flybook.track.Track;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.vaadin.data.Container.Filter;
 import com.vaadin.data.Item;
 import com.vaadin.data.util.IndexedContainer;
-import com.vaadin.data.util.filter.And;
-import com.vaadin.data.util.filter.Compare;
 import com.vaadin.data.util.filter.Compare.Equal;
+import com.vaadin.data.util.sqlcontainer.OptimisticLockException;
 import com.vaadin.data.util.sqlcontainer.RowId;
+import com.vaadin.data.util.sqlcontainer.RowItem;
 import com.vaadin.data.util.sqlcontainer.SQLContainer;
 import com.vaadin.data.util.sqlcontainer.connection.JDBCConnectionPool;
-import com.vaadin.data.util.sqlcontainer.query.TableQuery;
+import com.vaadin.data.util.sqlcontainer.query.FreeformQuery;
 import com.vaadin.ui.UI;
 
 /**
  * FlightsContainer abstracts SQLContainer to table "FlightEntries".
+ * 
+ * Container rows hold list columns only (see FlightEntriesFSDeletegate).
+ * Notes are read by primary key with loadNotes() and changed with setNotes(),
+ * changes are written on commit(). Recorded tracks likewise with loadTrack()
+ * and setTrack().
  */
 public class FlightsContainer {
 
     /**
      * Primary container.
      */
-    private SQLContainer flightsContainer;
+    private SessionSQLContainer flightsContainer;
+
+    private JDBCConnectionPool pool;
+
+    /**
+     * Uncommitted notes by flight id. Shared with query delegate, which writes
+     * notes of stored rows in the same statement.
+     */
+    private Map<Integer, String> pendingNotes = new HashMap<Integer, String>();
+
+    /**
+     * Rows of stored flights as they were when their notes or track were
+     * set, by flight id. Rows whose notes or track alone changed are written
+     * with the optlock of these.
+     */
+    private Map<Integer, RowItem> pendingRows = new HashMap<Integer, RowItem>();
+
+    /**
+     * Uncommitted tracks by flight id, null value removes track. Shared with
+     * query delegate, which writes them like pending notes.
+     */
+    private Map<Integer, Track> pendingTracks = new HashMap<Integer, Track>();
+
+    private FlightTracks flightTracks;
+
+    private FlightEntriesFSDeletegate queryDelegate;
+
+    /**
+     * Shared logbook totals, kept up to date by database triggers.
+     */
+    private FlightTotals flightTotals;
+
+    /**
+     * Shared overlapping flight detection, kept up to date by FlightEvents.
+     */
+    private FlightConflicts flightConflicts;
+
+    /**
+     * Shared duty and rest checks, kept up to date by FlightEvents.
+     */
+    private DutyCompliance dutyCompliance;
+
+    /**
+     * Shared visited airports bitmaps, kept up to date by FlightEvents.
+     */
+    private VisitedAirports visitedAirports;
 
     /**
      * Keep reference to filters so we can remove/add them from container.
@@ -38,6 +112,7 @@ public class FlightsContainer {
     private Filter usernameFilter;
     private Filter dateFilter;
     private Filter flightTypeFilter;
+    private Filter notesFilter;
 
     /**
      * Container that holds flight types.
@@ -46,26 +121,58 @@ public class FlightsContainer {
 
     public static final String PID_FLIGHT_TYPE = "type";
 
+    /**
+     * Highlighted notes excerpt of notes search results, null otherwise. See
+     * FlightNotesIndex for markers.
+     */
+    public static final String PID_NOTES_SNIPPET = "snippet";
+
     /**
      * Create new instance of FlightsContainer that uses DBConnection given as
      * argument.
      */
     public FlightsContainer(DBConnection dbconn) throws SQLException {
 
-        JDBCConnectionPool pool = dbconn.getPool();
+        pool = dbconn.getPool();
+        flightTotals = FlightTotals.get(dbconn);
+        flightConflicts = FlightConflicts.get(dbconn);
+        dutyCompliance = DutyCompliance.get(dbconn);
+        flightTracks = FlightTracks.get(dbconn);
+
+        /**
+         * Sketches and visited airports are updated by deltas, so they must
+         * listen before any container commits.
+         */
+        FlightSketches.get(dbconn);
+        visitedAirports = VisitedAirports.get(dbconn);
 
-        TableQuery query = new TableQuery(DBConstants.TABLE_FLIGHTENTRIES, pool);
-        query.setVersionColumn(DBConstants.FLIGHTENTRIES_OPTLOCK);
+        /**
+         * Query string is not used, delegate builds all statements.
+         */
+        FreeformQuery query = new FreeformQuery("SELECT * FROM "
+                + DBConstants.TABLE_FLIGHTENTRIES, pool,
+                DBConstants.FLIGHTENTRIES_FLIGHT_ID) {
 
-        // FreeformQuery query = new
-        // FreeformQuery("SELECT * FROM FlightEntries",
-        // pool, DBConstants.FLIGHTENTRIES_FLIGHT_ID);
+            private static final long serialVersionUID = 1L;
 
-        // FlightEntriesFSDeletegate delegate = new FlightEntriesFSDeletegate();
+            /**
+             * SQLContainer has stored changed rows, store rows whose notes
+             * or track alone changed in the same transaction.
+             */
+            @Override
+            public synchronized void commit()
+                    throws UnsupportedOperationException, SQLException {
 
-        // query.setDelegate(delegate);
+                storePendingRows(this);
+                super.commit();
+            }
+        };
+        queryDelegate = new FlightEntriesFSDeletegate(pendingNotes,
+                pendingTracks, flightTracks, FlightDistances.get(dbconn),
+                FlightNightTimes.get(dbconn));
+        query.setDelegate(queryDelegate);
 
-        flightsContainer = new SQLContainer(query);
+        flightsContainer = new SessionSQLContainer(query);
         flightsContainer.setAutoCommit(false);
 
         flightTypesContainer = createFlightTypesContainer();
@@ -80,6 +187,34 @@ public class FlightsContainer {
         return flightsContainer;
     }
 
+    /**
+     * Returns logbook totals.
+     */
+    public FlightTotals getFlightTotals() {
+        return flightTotals;
+    }
+
+    /**
+     * Returns overlapping flight detection.
+     */
+    public FlightConflicts getFlightConflicts() {
+        return flightConflicts;
+    }
+
+    /**
+     * Returns duty and rest checks.
+     */
+    public DutyCompliance getDutyCompliance() {
+        return dutyCompliance;
+    }
+
+    /**
+     * Returns visited airports and countries of pilots.
+     */
+    public VisitedAirports getVisitedAirports() {
+        return visitedAirports;
+    }
+
     /**
      * Returns flight types container.
      */
@@ -87,6 +222,34 @@ public class FlightsContainer {
         return flightTypesContainer;
     }
 
+    /**
+     * Returns approximate retained size (bytes) of container row cache.
+     */
+    public long estimateMemoryUsage() {
+
+        long bytes = MemoryEstimator.estimate(flightsContainer)
+                + MemoryEstimator.estimate(flightTypesContainer);
+        for (Track track : pendingTracks.values()) {
+            if (track != null) {
+                bytes += track.getData().length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns true if no component is bound to containers and there are no
+     * uncommitted changes, so the whole container can be dropped and created
+     * again on demand.
+     */
+    public boolean isDetached() {
+
+        return !flightsContainer.isAttached()
+                && !SessionSQLContainer.isAttached(flightTypesContainer)
+                && !flightsContainer.isModified() && pendingNotes.isEmpty()
+                && pendingTracks.isEmpty();
+    }
+
     public boolean containsItem(Integer flightId) {
 
         Object[] pkey = { flightId };
@@ -105,13 +268,6 @@ public class FlightsContainer {
         }
 
         if (username != null) {
-            /**
-             * Must use table prefix for filter to work with custom implemented
-             * FreeformQuery (NOTE: not used presently). Also requires some
-             * trickery in FlightEntriesFSDelegate constructor (something to do
-             * with quotes)
-             */
-            // usernameFilter = new Equal("FlightEntries.username", username);
             usernameFilter = new Equal(DBConstants.FLIGHTENTRIES_USERNAME,
                     username);
             flightsContainer.addContainerFilter(usernameFilter);
@@ -136,15 +292,11 @@ public class FlightsContainer {
         }
 
         /**
-         * Filter: (departure <= to) && (landing >= from)
+         * Filter: (departure <= to) && (landing >= from), served by interval
+         * index.
          */
         if (timeFrom != null && timeTo != null) {
-            Filter ge = new Compare.LessOrEqual(
-                    DBConstants.FLIGHTENTRIES_DEPARTURE_TIME, timeTo);
-            Filter le = new Compare.GreaterOrEqual(
-                    DBConstants.FLIGHTENTRIES_LANDING_TIME, timeFrom);
-
-            dateFilter = new And(le, ge);
+            dateFilter = new DateOverlap(timeFrom, timeTo);
             flightsContainer.addContainerFilter(dateFilter);
         }
     }
@@ -167,6 +319,27 @@ public class FlightsContainer {
         }
     }
 
+    /**
+     * Add notes full-text filter. If null or there are no words to search,
+     * removes filter.
+     * 
+     * @return true if filter was set
+     */
+    public boolean filterByNotes(String text) {
+
+        if (notesFilter != null) {
+            flightsContainer.removeContainerFilter(notesFilter);
+            notesFilter = null;
+        }
+
+        String query = FlightNotesIndex.toMatchQuery(text);
+        if (query != null) {
+            notesFilter = new NotesMatch(query);
+            flightsContainer.addContainerFilter(notesFilter);
+        }
+        return notesFilter != null;
+    }
+
     /**
      * Creates a new row in container and initializes it with default values.
      * 
@@ -227,8 +400,6 @@ public class FlightsContainer {
 
         flightItem.setIFRTime(0);
 
-        flightItem.setNotes("");
-
         return flightItem;
     }
 
@@ -246,12 +417,128 @@ public class FlightsContainer {
         return flightsContainer.removeItem(item.getItemId());
     }
 
+    /**
+     * Returns notes of flight, including uncommitted changes. Returns empty
+     * string if flight is not in database.
+     */
+    public String loadNotes(Integer flightId) throws SQLException {
+
+        String notes = pendingNotes.get(flightId);
+        if (notes != null) {
+            return notes;
+        }
+
+        Connection conn = pool.reserveConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT "
+                    + DBConstants.FLIGHTENTRIES_NOTES + " FROM "
+                    + DBConstants.TABLE_FLIGHTENTRIES + " WHERE "
+                    + DBConstants.FLIGHTENTRIES_FLIGHT_ID + " = ?");
+            try {
+                stmt.setInt(1, flightId);
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    if (rs.next()) {
+                        notes = rs.getString(1);
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+            /**
+             * Ends read transaction, pool connections are not autocommit.
+             */
+            conn.commit();
+        } finally {
+            pool.releaseConnection(conn);
+        }
+
+        return notes != null ? notes : "";
+    }
+
+    /**
+     * Sets notes of flight. Like item changes, notes are written to database
+     * on commit() and discarded on rollback().
+     */
+    public void setNotes(Integer flightId, String notes) {
+
+        pendingNotes.put(flightId, notes != null ? notes : "");
+        addPendingRow(flightId);
+    }
+
+    /**
+     * Returns recorded track of flight for display, including uncommitted
+     * changes. Returns null if flight has no track.
+     */
+    public TrackPyramid loadTrack(Integer flightId) throws SQLException {
+
+        if (pendingTracks.containsKey(flightId)) {
+            Track track = pendingTracks.get(flightId);
+            return track != null ? new TrackPyramid(track) : null;
+        }
+        return flightTracks.loadPyramid(flightId);
+    }
+
+    /**
+     * Sets recorded track of flight, null removes it. Written to database on
+     * commit() and discarded on rollback().
+     */
+    public void setTrack(Integer flightId, Track track) {
+
+        pendingTracks.put(flightId, track);
+        addPendingRow(flightId);
+    }
+
+    /**
+     * Keeps row of stored flight as it is now, unless already kept.
+     */
+    private void addPendingRow(Integer flightId) {
+
+        Item row = flightsContainer.getItemUnfiltered(new RowId(
+                new Object[] { flightId }));
+        if (row instanceof RowItem && !pendingRows.containsKey(flightId)) {
+            pendingRows.put(flightId, (RowItem) row);
+        }
+    }
+
     /**
      * Commit changes to SQLContainer.
      */
     public void commit() throws SQLException {
 
-        flightsContainer.commit();
+        /**
+         * Stored rows take their pending notes and tracks along, those of
+         * other rows are written in the same transaction (see
+         * storePendingRows()). Totals rollup is updated by triggers in the
+         * same transaction.
+         * 
+         * Changes are published even if commit fails, listeners then just
+         * reload some unchanged rows. Row values are published only after
+         * successful commit, as their listeners apply them as deltas.
+         */
+        try {
+            flightsContainer.commit();
+
+            List<Integer> tracks = new ArrayList<Integer>();
+            for (Integer flightId : queryDelegate.getStoredPending()) {
+                pendingNotes.remove(flightId);
+                if (pendingTracks.remove(flightId) != null) {
+                    tracks.add(flightId);
+                }
+            }
+            flightTracks.stored(tracks);
+
+            FlightEvents.fireChanged(new ArrayList<FlightChange>(queryDelegate
+                    .getRowChanges()));
+        } finally {
+            FlightEvents.fireCommitted(
+                    new HashSet<Integer>(queryDelegate.getChangedFlights()),
+                    new HashSet<String>(queryDelegate.getChangedPilots()));
+            queryDelegate.clearChanges();
+            pendingRows.keySet().retainAll(pendingFlights());
+        }
     }
 
     /**
@@ -259,9 +546,46 @@ public class FlightsContainer {
      */
     public void rollback() throws SQLException {
 
+        pendingNotes.clear();
+        pendingRows.clear();
+        pendingTracks.clear();
         flightsContainer.rollback();
     }
 
+    /**
+     * Returns ids of flights with pending notes or track.
+     */
+    private Set<Integer> pendingFlights() {
+
+        Set<Integer> flightIds = new LinkedHashSet<Integer>(
+                pendingNotes.keySet());
+        flightIds.addAll(pendingTracks.keySet());
+        return flightIds;
+    }
+
+    /**
+     * Stores rows of notes and tracks that were not written with their row,
+     * i.e. rows whose notes or track alone changed. Called by query before
+     * committing, so the notes and tracks go in the transaction of the other
+     * changes and are checked against the optlock of the row they were set
+     * on.
+     */
+    private void storePendingRows(FreeformQuery query) throws SQLException {
+
+        for (Integer flightId : pendingFlights()) {
+            if (queryDelegate.getStoredPending().contains(flightId)) {
+                continue;
+            }
+            RowItem row = pendingRows.get(flightId);
+            if (row == null) {
+                throw new OptimisticLockException(
+                        "Flight of the changed notes or track was not loaded.",
+                        new RowId(new Object[] { flightId }));
+            }
+            query.storeRow(row);
+        }
+    }
+
     private IndexedContainer createFlightTypesContainer() {
 
         final String caption = PID_FLIGHT_TYPE;
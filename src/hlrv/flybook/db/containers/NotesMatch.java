@@ -0,0 +1,55 @@
+package hlrv.flybook.db.containers;
+
+import hlrv.flybook.db.DBConstants;
+
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Item;
+
+/**
+ * Full-text filter on flight notes. Not translated to a WHERE clause like
+ * other filters: FlightEntriesFSDeletegate joins list query to notes index
+ * (FlightNotesIndex) when this filter is set.
+ */
+public class NotesMatch implements Filter {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String query;
+
+    /**
+     * @param query
+     *            FTS query, see FlightNotesIndex.toMatchQuery()
+     */
+    public NotesMatch(String query) {
+        this.query = query;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Notes are not in container items, so items are accepted as is. Only
+     * applies to uncommitted items, others come from filtered query.
+     */
+    @Override
+    public boolean passesFilter(Object itemId, Item item) {
+        return true;
+    }
+
+    @Override
+    public boolean appliesToProperty(Object propertyId) {
+        return DBConstants.FLIGHTENTRIES_FLIGHT_ID.equals(propertyId);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof NotesMatch
+                && query.equals(((NotesMatch) obj).query);
+    }
+
+    @Override
+    public int hashCode() {
+        return query.hashCode();
+    }
+}
@@ -0,0 +1,117 @@
+package hlrv.flybook.db.containers;
+
+import java.lang.reflect.Field;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.util.AbstractContainer;
+import com.vaadin.data.util.sqlcontainer.SQLContainer;
+import com.vaadin.data.util.sqlcontainer.query.QueryDelegate;
+
+/**
+ * SQLContainer of a session container wrapper, tells SessionMonitor whether
+ * any component is bound to it and how many rows it has cached.
+ *
+ * Components bound to a container (Table, ComboBox etc.) listen to its item
+ * set changes, so a container without item set change listeners is not shown
+ * anywhere and can be dropped as a whole.
+ */
+public class SessionSQLContainer extends SQLContainer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Row cache of SQLContainer, which has no public accessor for it. Null if
+     * the field is not there (other Vaadin version).
+     */
+    private static final Field CACHED_ITEMS = cachedItemsField();
+
+    private final Set<ItemSetChangeListener> listeners = Collections
+            .newSetFromMap(new IdentityHashMap<ItemSetChangeListener, Boolean>());
+
+    public SessionSQLContainer(QueryDelegate delegate)
+            throws SQLException {
+        super(delegate);
+    }
+
+    @Override
+    public void addItemSetChangeListener(ItemSetChangeListener listener) {
+        super.addItemSetChangeListener(listener);
+        listeners.add(listener);
+    }
+
+    @Override
+    @Deprecated
+    public void addListener(ItemSetChangeListener listener) {
+        super.addListener(listener);
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeItemSetChangeListener(ItemSetChangeListener listener) {
+        super.removeItemSetChangeListener(listener);
+        listeners.remove(listener);
+    }
+
+    @Override
+    @Deprecated
+    public void removeListener(ItemSetChangeListener listener) {
+        super.removeListener(listener);
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns true if a component is bound to container.
+     */
+    public boolean isAttached() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Returns true if a component is bound to container. Containers other
+     * than SessionSQLContainer and AbstractContainer are taken to be bound.
+     */
+    public static boolean isAttached(Container container) {
+
+        if (container instanceof SessionSQLContainer) {
+            return ((SessionSQLContainer) container).isAttached();
+        }
+        if (container instanceof AbstractContainer) {
+            return !((AbstractContainer) container).getListeners(
+                    Container.ItemSetChangeEvent.class).isEmpty();
+        }
+        return container != null;
+    }
+
+    /**
+     * Returns number of rows in row cache, -1 if it cannot be read.
+     */
+    public int getCachedRowCount() {
+
+        if (CACHED_ITEMS == null) {
+            return -1;
+        }
+        try {
+            return ((Map<?, ?>) CACHED_ITEMS.get(this)).size();
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
+    }
+
+    private static Field cachedItemsField() {
+
+        try {
+            Field field = SQLContainer.class.getDeclaredField("cachedItems");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+}
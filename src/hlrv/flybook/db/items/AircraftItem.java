@@ -1,5 +1,6 @@
 package hlrv.flybook.db.items;
 
+import hlrv.flybook.auth.User;
 import hlrv.flybook.db.DBConstants;
 
 import com.vaadin.data.Item;
@@ -87,4 +88,26 @@ public class AircraftItem extends AbstractItem {
         setValue(DBConstants.AIRCRAFTS_ADDRESS, address);
     }
 
+    /**
+     * Returns true if user can modify this item.
+     */
+    public boolean isModifiableByUser(User user) {
+
+        if (isNull()) {
+            return false;
+        }
+
+        /**
+         * Admin can modify anything.
+         */
+        if (user.isAdmin()) {
+            return true;
+        }
+
+        /**
+         * User can modify if username matches.
+         */
+        return user.getUsername().equals(getUsername());
+    }
+
 }
@@ -73,10 +73,6 @@ public class FlightItem extends AbstractItem {
         return getInteger(DBConstants.FLIGHTENTRIES_IFR_TIME);
     }
 
-    public String getNotes() {
-        return getString(DBConstants.FLIGHTENTRIES_NOTES);
-    }
-
     /**
      * Derived columns getters.
      */
@@ -158,10 +154,6 @@ public class FlightItem extends AbstractItem {
         setValue(DBConstants.FLIGHTENTRIES_IFR_TIME, time);
     }
 
-    public void setNotes(String notes) {
-        setValue(DBConstants.FLIGHTENTRIES_NOTES, notes);
-    }
-
     // /**
     // * Derived columns setters.
     // */
@@ -249,8 +241,6 @@ public class FlightItem extends AbstractItem {
         item.addItemProperty(DBConstants.FLIGHTENTRIES_ONBLOCK_TIME, nullInt);
         item.addItemProperty(DBConstants.FLIGHTENTRIES_OFFBLOCK_TIME, nullInt);
 
-        item.addItemProperty(DBConstants.FLIGHTENTRIES_NOTES, nullString);
-
         return new FlightItem(item, null);
     }
 }
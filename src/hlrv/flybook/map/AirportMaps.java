@@ -0,0 +1,193 @@
+package hlrv.flybook.map;
+
+import hlrv.flybook.db.AirportIndex;
+import hlrv.flybook.db.DBConnection;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Application wide airport map: cluster pyramid built once from AirportIndex,
+ * and rendering of map views with basemap and clusters.
+ *
+ * Rendered views are cached in memory. Views are requested on a grid (see
+ * AirportMap) so users panning the same area share cached images.
+ */
+public final class AirportMaps {
+
+    private static final Logger logger = Logger.getLogger("AirportMaps");
+
+    private static final long MEMORY_BYTES = 16L * 1024 * 1024;
+
+    private static final Color AIRPORT_COLOR = new Color(0xe07010);
+    private static final Color CLUSTER_COLOR = new Color(0xd01010);
+
+    private static AirportMaps instance = null;
+
+    private final AirportIndex index;
+
+    private final ClusterPyramid pyramid;
+
+    private final BasemapPainter basemap;
+
+    private final RenderedImageCache cache;
+
+    private AirportMaps(File baseDir, DBConnection dbconn) throws SQLException {
+
+        index = AirportIndex.get(dbconn);
+
+        long start = System.currentTimeMillis();
+        pyramid = new ClusterPyramid(index);
+        logger.info("Built " + pyramid.getClusterCount() + " clusters of "
+                + index.size() + " airports in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        basemap = BasemapPainter.get(baseDir);
+        cache = new RenderedImageCache("airportMaps", MEMORY_BYTES, null);
+    }
+
+    /**
+     * Returns instance, building cluster pyramid on first call.
+     *
+     * @param baseDir
+     *            application base directory
+     */
+    public static synchronized AirportMaps get(File baseDir,
+            DBConnection dbconn) throws SQLException {
+
+        if (instance == null) {
+            instance = new AirportMaps(baseDir, dbconn);
+        }
+        return instance;
+    }
+
+    public AirportIndex getIndex() {
+        return index;
+    }
+
+    public ClusterPyramid getPyramid() {
+        return pyramid;
+    }
+
+    /**
+     * Returns cluster nearest to world pixel (x, y) at zoom within radius
+     * pixels, or null.
+     */
+    public ClusterPyramid.Cluster findNearest(int zoom, double x, double y,
+            double radius) {
+
+        double world = WebMercator.worldSize(zoom);
+        ClusterPyramid.Cluster nearest = null;
+        double best = radius * radius;
+
+        List<ClusterPyramid.Cluster> clusters = pyramid.query(zoom, x - radius,
+                y - radius, x + radius, y + radius);
+        for (ClusterPyramid.Cluster c : clusters) {
+            double dx = c.getX() * world - x;
+            double dy = c.getY() * world - y;
+            double d = dx * dx + dy * dy;
+            if (d <= best) {
+                best = d;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Returns view centered at world pixel (centerX, centerY) as PNG.
+     */
+    public byte[] getView(final MapType type, final int zoom,
+            final long centerX, final long centerY, final int width,
+            final int height) {
+
+        String key = "airports-" + type.name().toLowerCase() + "-" + zoom
+                + "-" + centerX + "-" + centerY + "-" + width + "x" + height;
+
+        return cache.get(key, new RenderedImageCache.Renderer() {
+            @Override
+            public byte[] render() throws IOException {
+                return renderView(type, zoom, centerX, centerY, width, height);
+            }
+        });
+    }
+
+    private byte[] renderView(MapType type, int zoom, long centerX,
+            long centerY, int width, int height) throws IOException {
+
+        double originX = centerX - width / 2.0;
+        double originY = centerY - height / 2.0;
+        double world = WebMercator.worldSize(zoom);
+
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+
+            basemap.paint(g, type, zoom, originX, originY, width, height);
+
+            /**
+             * Include clusters just outside view, their circles may reach
+             * in.
+             */
+            double pad = ClusterPyramid.CELL_SIZE;
+            List<ClusterPyramid.Cluster> clusters = pyramid.query(zoom,
+                    originX - pad, originY - pad, originX + width + pad,
+                    originY + height + pad);
+
+            g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 10));
+            FontMetrics fm = g.getFontMetrics();
+
+            for (ClusterPyramid.Cluster c : clusters) {
+                double x = c.getX() * world - originX;
+                double y = c.getY() * world - originY;
+
+                if (c.getCount() == 1) {
+                    drawCircle(g, x, y, 4, AIRPORT_COLOR);
+                } else {
+                    double r = 8 + 3 * Math.log10(c.getCount());
+                    drawCircle(g, x, y, r, CLUSTER_COLOR);
+                    String label = String.valueOf(c.getCount());
+                    g.setColor(Color.WHITE);
+                    g.drawString(label,
+                            (float) (x - fm.stringWidth(label) / 2.0),
+                            (float) (y + (fm.getAscent() - fm.getDescent()) / 2.0));
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static void drawCircle(Graphics2D g, double x, double y,
+            double r, Color color) {
+
+        Ellipse2D.Double circle = new Ellipse2D.Double(x - r, y - r, 2 * r,
+                2 * r);
+        g.setColor(color);
+        g.fill(circle);
+        g.setColor(Color.WHITE);
+        g.setStroke(new BasicStroke(1.2f));
+        g.draw(circle);
+    }
+}
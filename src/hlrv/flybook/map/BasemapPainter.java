@@ -0,0 +1,152 @@
+package hlrv.flybook.map;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Draws Web Mercator basemap for server side rendered maps.
+ *
+ * Basemap is assembled from tiles (see Tiles) when there are tiles for the
+ * map type. Otherwise it is read from "basemap-<type>.png" in basemap
+ * directory: a square world image in Web Mercator projection (zoom 0
+ * covering whole world). If image is missing, a plain background with
+ * graticule is drawn instead.
+ *
+ * Basemap directory can be set with system property "flybook.map.basemapDir"
+ * (default VAADIN/themes/images under base directory).
+ *
+ * Painter is thread-safe.
+ */
+public class BasemapPainter {
+
+    private static final Logger logger = Logger.getLogger("BasemapPainter");
+
+    private static BasemapPainter instance = null;
+
+    private final File basemapDir;
+
+    /**
+     * Tile subsystem, may be null.
+     */
+    private final Tiles tiles;
+
+    /**
+     * Loaded basemaps. Missing basemap is stored as null value, so it is
+     * looked for only once. Guarded by this.
+     */
+    private final Map<MapType, BufferedImage> basemaps = new EnumMap<MapType, BufferedImage>(
+            MapType.class);
+
+    public BasemapPainter(File basemapDir, Tiles tiles) {
+        this.basemapDir = basemapDir;
+        this.tiles = tiles;
+    }
+
+    /**
+     * Returns application wide painter, creating it on first call.
+     *
+     * @param baseDir
+     *            application base directory
+     */
+    public static synchronized BasemapPainter get(File baseDir) {
+
+        if (instance == null) {
+            String dir = System.getProperty("flybook.map.basemapDir");
+            instance = new BasemapPainter(dir != null ? new File(dir)
+                    : new File(baseDir, "VAADIN/themes/images"),
+                    Tiles.get(baseDir));
+        }
+        return instance;
+    }
+
+    /**
+     * Paints area with top-left corner at world pixel (originX, originY).
+     */
+    public void paint(Graphics2D g, MapType type, int zoom,
+            double originX, double originY, int width, int height) {
+
+        g.setColor(type.getBackground());
+        g.fillRect(0, 0, width, height);
+
+        if (tiles != null
+                && tiles.getAssembler().draw(g, type, zoom, originX, originY,
+                        width, height)) {
+            return;
+        }
+
+        double world = WebMercator.worldSize(zoom);
+        BufferedImage basemap = getBasemap(type);
+
+        if (basemap != null) {
+
+            /**
+             * Repeat world horizontally to cover antimeridian and views
+             * wider than world.
+             */
+            int first = (int) Math.floor(originX / world);
+            int lastCopy = (int) Math.floor((originX + width) / world);
+            for (int k = first; k <= lastCopy; ++k) {
+                int x = (int) Math.round(k * world - originX);
+                int y = (int) Math.round(-originY);
+                int size = (int) Math.round(world);
+                g.drawImage(basemap, x, y, size, size, null);
+            }
+            return;
+        }
+
+        /**
+         * Graticule, denser when zoomed in.
+         */
+        double step = zoom < 3 ? 30 : zoom < 6 ? 10 : zoom < 8 ? 2 : 1;
+
+        g.setColor(type.getGraticule());
+        g.setStroke(new BasicStroke(1f));
+
+        double lonFrom = WebMercator.longitude(originX / world);
+        double lonTo = WebMercator.longitude((originX + width) / world);
+        for (double lon = Math.floor(lonFrom / step) * step; lon <= lonTo; lon += step) {
+            double x = WebMercator.x(lon) * world - originX;
+            g.draw(new Line2D.Double(x, 0, x, height));
+        }
+
+        double latTo = WebMercator.latitude(originY / world);
+        double latFrom = WebMercator.latitude((originY + height) / world);
+        for (double lat = Math.floor(latFrom / step) * step; lat <= latTo; lat += step) {
+            double y = WebMercator.y(lat) * world - originY;
+            g.draw(new Line2D.Double(0, y, width, y));
+        }
+    }
+
+    private synchronized BufferedImage getBasemap(MapType type) {
+
+        if (basemaps.containsKey(type)) {
+            return basemaps.get(type);
+        }
+
+        BufferedImage image = null;
+        File file = new File(basemapDir, "basemap-"
+                + type.getName().toLowerCase() + ".png");
+        if (file.isFile()) {
+            try {
+                image = ImageIO.read(file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read basemap " + file, e);
+            }
+        } else {
+            logger.info("No basemap " + file + ", drawing graticule only");
+        }
+
+        basemaps.put(type, image);
+        return image;
+    }
+}
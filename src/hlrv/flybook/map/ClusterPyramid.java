@@ -0,0 +1,233 @@
+package hlrv.flybook.map;
+
+import hlrv.flybook.db.AirportIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed grid clusters of airports for every zoom level.
+ *
+ * At each zoom the world is divided into square cells of CELL_SIZE pixels
+ * and airports falling in the same cell form one cluster positioned at their
+ * centroid. Deepest level is built from the airport index and every upper
+ * level by merging 2x2 cells of the level below, so the whole pyramid costs
+ * one pass over the airports plus a pass per level over the clusters.
+ *
+ * Clusters are grouped by map tile, so a viewport is answered by looking up
+ * the few tiles it covers instead of scanning airports.
+ */
+public class ClusterPyramid {
+
+    public static final int MAX_ZOOM = 14;
+
+    /**
+     * Cell size in pixels, a tile holds TILE_SIZE / CELL_SIZE squared cells.
+     */
+    public static final int CELL_SIZE = 32;
+
+    private static final int CELLS_PER_TILE_SHIFT = 3;
+
+    /**
+     * One cluster. x and y are normalized (0..1) world coordinates.
+     */
+    public static class Cluster {
+
+        private final double x;
+        private final double y;
+        private final int count;
+        private final int airportIndex;
+
+        Cluster(double x, double y, int count, int airportIndex) {
+            this.x = x;
+            this.y = y;
+            this.count = count;
+            this.airportIndex = airportIndex;
+        }
+
+        public double getX() {
+            return x;
+        }
+
+        public double getY() {
+            return y;
+        }
+
+        /**
+         * Returns number of airports in cluster.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns AirportIndex position of one airport of the cluster, the
+         * only one if count is 1.
+         */
+        public int getAirportIndex() {
+            return airportIndex;
+        }
+    }
+
+    /**
+     * Cell accumulator used while building.
+     */
+    private static class Cell {
+        double sumX;
+        double sumY;
+        int count;
+        int airportIndex;
+    }
+
+    /**
+     * Clusters by tile key for each zoom.
+     */
+    private final List<Map<Long, Cluster[]>> levels;
+
+    private final int clusterCount;
+
+    public ClusterPyramid(AirportIndex index) {
+
+        List<Map<Long, Cluster[]>> built = new ArrayList<Map<Long, Cluster[]>>(
+                MAX_ZOOM + 1);
+        for (int z = 0; z <= MAX_ZOOM; ++z) {
+            built.add(null);
+        }
+
+        /**
+         * Deepest level from airports.
+         */
+        double cells = WebMercator.worldSize(MAX_ZOOM) / CELL_SIZE;
+        Map<Long, Cell> level = new HashMap<Long, Cell>();
+        for (int i = 0; i < index.size(); ++i) {
+            if (!index.hasLocation(i)) {
+                continue;
+            }
+            double x = WebMercator.x(index.getLongitude(i));
+            double y = WebMercator.y(index.getLatitude(i));
+            long cx = Math.min((long) cells - 1, (long) (x * cells));
+            long cy = Math.min((long) cells - 1, (long) (y * cells));
+            add(level, cx, cy, x, y, 1, i);
+        }
+
+        int total = 0;
+        for (int z = MAX_ZOOM; z >= 0; --z) {
+
+            built.set(z, groupByTile(level));
+            total += level.size();
+
+            if (z > 0) {
+                Map<Long, Cell> upper = new HashMap<Long, Cell>();
+                for (Map.Entry<Long, Cell> e : level.entrySet()) {
+                    long key = e.getKey();
+                    Cell c = e.getValue();
+                    add(upper, (key >>> 32) >> 1, (key & 0xffffffffL) >> 1,
+                            c.sumX, c.sumY, c.count, c.airportIndex);
+                }
+                level = upper;
+            }
+        }
+
+        levels = Collections.unmodifiableList(built);
+        clusterCount = total;
+    }
+
+    /**
+     * Returns clusters of tile, never null.
+     */
+    public Cluster[] getTile(int zoom, int x, int y) {
+
+        Cluster[] tile = levels.get(zoom).get(((long) x << 32) | y);
+        return tile == null ? new Cluster[0] : tile;
+    }
+
+    /**
+     * Returns clusters within area given in world pixels at zoom. Area may
+     * extend over the antimeridian; returned clusters then have x outside
+     * 0..1, so they can be drawn with the same origin.
+     */
+    public List<Cluster> query(int zoom, double x0, double y0, double x1,
+            double y1) {
+
+        zoom = Math.max(0, Math.min(MAX_ZOOM, zoom));
+        int tiles = 1 << zoom;
+        double world = WebMercator.worldSize(zoom);
+
+        List<Cluster> result = new ArrayList<Cluster>();
+
+        int tx0 = (int) Math.floor(x0 / WebMercator.TILE_SIZE);
+        int tx1 = (int) Math.floor(x1 / WebMercator.TILE_SIZE);
+        int ty0 = Math.max(0, (int) Math.floor(y0 / WebMercator.TILE_SIZE));
+        int ty1 = Math.min(tiles - 1,
+                (int) Math.floor(y1 / WebMercator.TILE_SIZE));
+
+        for (int tx = tx0; tx <= tx1; ++tx) {
+            int wrap = (int) Math.floor((double) tx / tiles);
+            int x = tx - wrap * tiles;
+            for (int ty = ty0; ty <= ty1; ++ty) {
+                for (Cluster c : getTile(zoom, x, ty)) {
+                    double px = (c.x + wrap) * world;
+                    double py = c.y * world;
+                    if (px >= x0 && px < x1 && py >= y0 && py < y1) {
+                        result.add(wrap == 0 ? c : new Cluster(c.x + wrap,
+                                c.y, c.count, c.airportIndex));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns total number of clusters over all levels.
+     */
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    private static void add(Map<Long, Cell> level, long cx, long cy,
+            double sumX, double sumY, int count, int airportIndex) {
+
+        Long key = (cx << 32) | cy;
+        Cell cell = level.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            cell.airportIndex = airportIndex;
+            level.put(key, cell);
+        }
+        cell.sumX += sumX;
+        cell.sumY += sumY;
+        cell.count += count;
+    }
+
+    private static Map<Long, Cluster[]> groupByTile(Map<Long, Cell> level) {
+
+        Map<Long, List<Cluster>> tiles = new HashMap<Long, List<Cluster>>();
+        for (Map.Entry<Long, Cell> e : level.entrySet()) {
+            long key = e.getKey();
+            long tx = (key >>> 32) >> CELLS_PER_TILE_SHIFT;
+            long ty = (key & 0xffffffffL) >> CELLS_PER_TILE_SHIFT;
+            Long tileKey = (tx << 32) | ty;
+
+            Cell c = e.getValue();
+            List<Cluster> list = tiles.get(tileKey);
+            if (list == null) {
+                list = new ArrayList<Cluster>(4);
+                tiles.put(tileKey, list);
+            }
+            list.add(new Cluster(c.sumX / c.count, c.sumY / c.count, c.count,
+                    c.airportIndex));
+        }
+
+        Map<Long, Cluster[]> result = new HashMap<Long, Cluster[]>(
+                tiles.size() * 2);
+        for (Map.Entry<Long, List<Cluster>> e : tiles.entrySet()) {
+            result.put(e.getKey(),
+                    e.getValue().toArray(new Cluster[e.getValue().size()]));
+        }
+        return result;
+    }
+}
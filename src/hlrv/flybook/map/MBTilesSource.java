@@ -0,0 +1,199 @@
+package hlrv.flybook.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TileSource over an MBTiles file (SQLite database with "tiles" and
+ * "metadata" tables, TMS row order).
+ *
+ * SQLite is asked to use memory-mapped I/O for the file (PRAGMA mmap_size);
+ * SQLite versions before 3.7.17 ignore the pragma and use their page cache.
+ * For guaranteed mapping convert the file to a TilePack.
+ */
+public class MBTilesSource implements TileSource {
+
+    private static final Logger logger = Logger.getLogger("MBTilesSource");
+
+    private static final long MMAP_SIZE = 1L << 30;
+
+    private final Connection conn;
+
+    /**
+     * Guarded by this, a SQLite connection is not to be used concurrently.
+     */
+    private final PreparedStatement select;
+
+    private final String mimeType;
+    private final int minZoom;
+    private final int maxZoom;
+    private final String version;
+
+    public MBTilesSource(File file) throws SQLException {
+
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite driver not found");
+        }
+
+        conn = DriverManager.getConnection("jdbc:sqlite:"
+                + file.getAbsolutePath());
+
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute("PRAGMA mmap_size = " + MMAP_SIZE);
+        } catch (SQLException e) {
+            logger.log(Level.FINE, "mmap_size not supported", e);
+        } finally {
+            stmt.close();
+        }
+
+        String format = metadata("format", "png");
+        mimeType = format.equals("jpg") || format.equals("jpeg") ? "image/jpeg"
+                : "image/png";
+
+        int[] zooms = zoomRange();
+        minZoom = Integer.parseInt(metadata("minzoom",
+                String.valueOf(zooms[0])));
+        maxZoom = Integer.parseInt(metadata("maxzoom",
+                String.valueOf(zooms[1])));
+
+        version = Long.toHexString(file.length()) + "-"
+                + Long.toHexString(file.lastModified());
+
+        select = conn.prepareStatement("SELECT tile_data FROM tiles "
+                + "WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?");
+    }
+
+    @Override
+    public synchronized byte[] getTile(int zoom, int x, int y)
+            throws IOException {
+
+        if (zoom < minZoom || zoom > maxZoom) {
+            return null;
+        }
+
+        try {
+            select.setInt(1, zoom);
+            select.setInt(2, x);
+            /**
+             * MBTiles rows are counted from south.
+             */
+            select.setInt(3, (1 << zoom) - 1 - y);
+            ResultSet rs = select.executeQuery();
+            try {
+                return rs.next() ? rs.getBytes(1) : null;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to read tile " + zoom + "/" + x
+                    + "/" + y + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Calls visitor for each tile key in source, in no particular order.
+     */
+    public synchronized void forEachTile(TileVisitor visitor)
+            throws SQLException, IOException {
+
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT zoom_level, "
+                    + "tile_column, tile_row FROM tiles");
+            try {
+                while (rs.next()) {
+                    int z = rs.getInt(1);
+                    visitor.visit(z, rs.getInt(2), (1 << z) - 1 - rs.getInt(3));
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Receives tile keys from forEachTile().
+     */
+    public interface TileVisitor {
+        void visit(int zoom, int x, int y) throws IOException;
+    }
+
+    @Override
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    @Override
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    @Override
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    @Override
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            select.close();
+            conn.close();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Failed to close MBTiles", e);
+        }
+    }
+
+    private String metadata(String name, String defaultValue)
+            throws SQLException {
+
+        PreparedStatement stmt = conn
+                .prepareStatement("SELECT value FROM metadata WHERE name = ?");
+        try {
+            stmt.setString(1, name);
+            ResultSet rs = stmt.executeQuery();
+            try {
+                return rs.next() && rs.getString(1) != null ? rs.getString(1)
+                        : defaultValue;
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private int[] zoomRange() throws SQLException {
+
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT MIN(zoom_level), "
+                    + "MAX(zoom_level) FROM tiles");
+            try {
+                rs.next();
+                return new int[] { rs.getInt(1), rs.getInt(2) };
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package hlrv.flybook.map;
+
+import java.awt.Color;
+
+/**
+ * Basemap styles. Each type has a bundled basemap image (see
+ * RouteMapRenderer) and colors used when the image is not available.
+ */
+public enum MapType {
+
+    TERRAIN("Terrain", new Color(0xe8e4d8), new Color(0xc8c2b0)),
+
+    SATELLITE("Satellite", new Color(0x1d2b3a), new Color(0x3a4c60));
+
+    private final String name;
+    private final Color background;
+    private final Color graticule;
+
+    private MapType(String name, Color background, Color graticule) {
+        this.name = name;
+        this.background = background;
+        this.graticule = graticule;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Color getBackground() {
+        return background;
+    }
+
+    public Color getGraticule() {
+        return graticule;
+    }
+
+    /**
+     * Returns type with name, or null.
+     */
+    public static MapType fromName(String name) {
+
+        for (MapType t : values()) {
+            if (t.name.equals(name)) {
+                return t;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,151 @@
+package hlrv.flybook.map;
+
+import hlrv.flybook.cache.LRUCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Two tier cache of rendered images: bounded LRU memory tier (weighed by
+ * bytes) in front of a disk tier that survives restarts.
+ *
+ * Memory tier does single-flight loading, so a route requested by several
+ * sessions at once is rendered only once.
+ */
+public class RenderedImageCache {
+
+    private static final Logger logger = Logger
+            .getLogger("RenderedImageCache");
+
+    /**
+     * Renders image on cache miss.
+     */
+    public interface Renderer {
+        byte[] render() throws IOException;
+    }
+
+    private final LRUCache<String, byte[]> memory;
+
+    /**
+     * Disk tier directory, null if disk tier is disabled.
+     */
+    private final File directory;
+
+    /**
+     * @param name
+     *            JMX name of memory tier statistics
+     * @param maxBytes
+     *            memory tier bound
+     * @param directory
+     *            disk tier directory or null
+     */
+    public RenderedImageCache(String name, long maxBytes, File directory) {
+
+        memory = new LRUCache<String, byte[]>(maxBytes,
+                new LRUCache.Weigher<byte[]>() {
+                    @Override
+                    public int weigh(byte[] value) {
+                        return value.length;
+                    }
+                }).register(name);
+
+        if (directory != null && !directory.isDirectory()
+                && !directory.mkdirs()) {
+            logger.log(Level.WARNING, "Can't create image cache directory "
+                    + directory + ", disk tier disabled");
+            directory = null;
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Returns image of key from memory or disk, rendering and storing it to
+     * both tiers on miss. Key must be usable as file name.
+     */
+    public byte[] get(final String key, final Renderer renderer) {
+
+        return memory.get(key, new LRUCache.Loader<String, byte[]>() {
+            @Override
+            public byte[] load(String k) throws IOException {
+
+                byte[] data = readDisk(key);
+                if (data == null) {
+                    data = renderer.render();
+                    writeDisk(key, data);
+                }
+                return data;
+            }
+        });
+    }
+
+    private byte[] readDisk(String key) {
+
+        if (directory == null) {
+            return null;
+        }
+
+        File file = new File(directory, key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            byte[] data = new byte[(int) file.length()];
+            InputStream in = new FileInputStream(file);
+            try {
+                int off = 0;
+                while (off < data.length) {
+                    int n = in.read(data, off, data.length - off);
+                    if (n < 0) {
+                        return null;
+                    }
+                    off += n;
+                }
+            } finally {
+                in.close();
+            }
+            return data;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read cached image " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes via temporary file, so readers never see partial images.
+     */
+    private void writeDisk(String key, byte[] data) {
+
+        if (directory == null) {
+            return;
+        }
+
+        File file = new File(directory, key);
+        File temp = new File(directory, key + "."
+                + Thread.currentThread().getId() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Rename failed: " + temp);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write cached image " + file,
+                    e);
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package hlrv.flybook.map;
+
+import hlrv.flybook.track.Track;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders flight route maps locally, without any outbound requests.
+ *
+ * Route is drawn as a great circle path, or as the recorded track if there is
+ * one, with D(eparture) and L(anding) markers on a Web Mercator basemap drawn
+ * by BasemapPainter.
+ *
+ * Renderer is thread-safe.
+ */
+public class RouteMapRenderer {
+
+    /**
+     * Highest zoom used, keeps very short routes from being drawn on an
+     * empty, extremely magnified basemap.
+     */
+    private static final int MAX_ZOOM = 10;
+
+    private static final int MARGIN = 20;
+
+    private static final int PATH_SEGMENTS = 64;
+
+    private static final Color PATH_COLOR = new Color(0xd01010);
+    private static final Color DEPARTURE_COLOR = new Color(0x10a010);
+    private static final Color LANDING_COLOR = new Color(0x1040d0);
+
+    private final BasemapPainter basemap;
+
+    public RouteMapRenderer(BasemapPainter basemap) {
+        this.basemap = basemap;
+    }
+
+    /**
+     * Renders route map as PNG.
+     */
+    public byte[] render(double lat1, double lon1, double lat2, double lon2,
+            MapType type, int width, int height) throws IOException {
+
+        double[][] path = WebMercator.greatCircle(lat1, lon1, lat2, lon2,
+                PATH_SEGMENTS);
+
+        double[] xs = new double[path.length];
+        double[] ys = new double[path.length];
+        for (int i = 0; i < path.length; ++i) {
+            xs[i] = WebMercator.x(path[i][1]);
+            ys[i] = WebMercator.y(path[i][0]);
+        }
+        return render(xs, ys, xs.length, type, width, height);
+    }
+
+    /**
+     * Renders recorded track as PNG, first fix marked as departure and last
+     * as landing.
+     *
+     * Map is fitted to the coarsest level and drawn from the level of the
+     * zoom fitted, so a long track costs about as much as a short one. The
+     * drawn level contains the fitting one, so the zoom fitted to it can only
+     * be lower, which the level is accurate at too.
+     */
+    public byte[] renderTrack(TrackPyramid pyramid, MapType type, int width,
+            int height) throws IOException {
+
+        Track coarsest = pyramid.getCoarsest();
+        double[] xs = new double[coarsest.getFixCount()];
+        double[] ys = new double[coarsest.getFixCount()];
+        int n = TrackPyramid.project(coarsest, xs, ys);
+
+        double[] bounds = bounds(xs, ys, n);
+        int zoom = fitZoom(bounds[2] - bounds[0], bounds[3] - bounds[1],
+                width, height);
+
+        Track track = pyramid.getLevel(zoom);
+        if (track != coarsest) {
+            xs = new double[track.getFixCount()];
+            ys = new double[track.getFixCount()];
+            n = TrackPyramid.project(track, xs, ys);
+        }
+        return render(xs, ys, n, type, width, height);
+    }
+
+    /**
+     * Renders path of n points in normalized (0..1) world coordinates, x may
+     * go outside 0..1.
+     */
+    private byte[] render(double[] xs, double[] ys, int n, MapType type,
+            int width, int height) throws IOException {
+
+        double[] bounds = bounds(xs, ys, n);
+        double minX = bounds[0], minY = bounds[1];
+        double maxX = bounds[2], maxY = bounds[3];
+
+        int zoom = fitZoom(maxX - minX, maxY - minY, width, height);
+        double world = WebMercator.worldSize(zoom);
+
+        /**
+         * Pixel offset of image top-left corner in world pixels.
+         */
+        double originX = (minX + maxX) / 2 * world - width / 2.0;
+        double originY = (minY + maxY) / 2 * world - height / 2.0;
+
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+            basemap.paint(g, type, zoom, originX, originY, width, height);
+
+            /**
+             * Route.
+             */
+            Path2D.Double line = new Path2D.Double();
+            for (int i = 0; i < n; ++i) {
+                double px = xs[i] * world - originX;
+                double py = ys[i] * world - originY;
+                if (i == 0) {
+                    line.moveTo(px, py);
+                } else {
+                    line.lineTo(px, py);
+                }
+            }
+            g.setColor(PATH_COLOR);
+            g.setStroke(new BasicStroke(3f, BasicStroke.CAP_ROUND,
+                    BasicStroke.JOIN_ROUND));
+            g.draw(line);
+
+            /**
+             * Markers, landing first so departure stays on top of
+             * round-trips.
+             */
+            int last = n - 1;
+            drawMarker(g, xs[last] * world - originX, ys[last] * world
+                    - originY, LANDING_COLOR, "L");
+            drawMarker(g, xs[0] * world - originX, ys[0] * world - originY,
+                    DEPARTURE_COLOR, "D");
+        } finally {
+            g.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns bounds {minX, minY, maxX, maxY} of n points.
+     */
+    private static double[] bounds(double[] xs, double[] ys, int n) {
+
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < n; ++i) {
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        return new double[] { minX, minY, maxX, maxY };
+    }
+
+    /**
+     * Returns highest zoom that fits span (normalized world units) in image.
+     */
+    private static int fitZoom(double spanX, double spanY, int width,
+            int height) {
+
+        int zoom = 0;
+        while (zoom < MAX_ZOOM) {
+            double world = WebMercator.worldSize(zoom + 1);
+            if (spanX * world > width - 2 * MARGIN
+                    || spanY * world > height - 2 * MARGIN) {
+                break;
+            }
+            ++zoom;
+        }
+        return zoom;
+    }
+
+    private static void drawMarker(Graphics2D g, double x, double y,
+            Color color, String label) {
+
+        double r = 8;
+        Ellipse2D.Double circle = new Ellipse2D.Double(x - r, y - r, 2 * r,
+                2 * r);
+        g.setColor(color);
+        g.fill(circle);
+        g.setColor(Color.WHITE);
+        g.setStroke(new BasicStroke(1.5f));
+        g.draw(circle);
+
+        g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 11));
+        FontMetrics fm = g.getFontMetrics();
+        g.drawString(label, (float) (x - fm.stringWidth(label) / 2.0),
+                (float) (y + (fm.getAscent() - fm.getDescent()) / 2.0));
+    }
+}
@@ -0,0 +1,124 @@
+package hlrv.flybook.map;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Application wide route map renderer and image cache.
+ *
+ * Rendered images are kept on disk in "flybook.map.cacheDir" (default
+ * "mapcache" under base directory).
+ */
+public final class RouteMaps {
+
+    /**
+     * Bump when rendering changes, so old images on disk are not used.
+     */
+    private static final int RENDER_VERSION = 2;
+
+    private static final long MEMORY_BYTES = 8L * 1024 * 1024;
+
+    private static RouteMaps instance = null;
+
+    private final RouteMapRenderer renderer;
+
+    private final Tiles tiles;
+
+    private final RenderedImageCache cache;
+
+    private RouteMaps(File baseDir) {
+
+        tiles = Tiles.get(baseDir);
+
+        renderer = new RouteMapRenderer(BasemapPainter.get(baseDir));
+
+        String cacheDir = System.getProperty("flybook.map.cacheDir");
+        cache = new RenderedImageCache("routeMaps", MEMORY_BYTES,
+                cacheDir != null ? new File(cacheDir) : new File(baseDir,
+                        "mapcache"));
+    }
+
+    /**
+     * Returns instance, creating it on first call.
+     *
+     * @param baseDir
+     *            application base directory
+     */
+    public static synchronized RouteMaps get(File baseDir) {
+
+        if (instance == null) {
+            instance = new RouteMaps(baseDir);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns cache key (also file name) of route image.
+     */
+    public static String key(int departureId, int landingId, MapType type,
+            int width, int height) {
+
+        return "route-v" + RENDER_VERSION + "-" + departureId + "-"
+                + landingId + "-" + type.name().toLowerCase() + "-" + width
+                + "x" + height + ".png";
+    }
+
+    /**
+     * Returns PNG of route, rendering it only if not cached.
+     */
+    public byte[] getRoute(int departureId, final double lat1,
+            final double lon1, int landingId, final double lat2,
+            final double lon2, final MapType type, final int width,
+            final int height) {
+
+        /**
+         * Images on disk must not outlive the tiles they were drawn from.
+         */
+        TileSource source = tiles.getSource(type);
+        String prefix = source == null ? "" : Integer.toHexString(source
+                .getVersion().hashCode()) + "-";
+
+        return cache.get(
+                prefix + key(departureId, landingId, type, width, height),
+                new RenderedImageCache.Renderer() {
+                    @Override
+                    public byte[] render() throws IOException {
+                        return renderer.render(lat1, lon1, lat2, lon2, type,
+                                width, height);
+                    }
+                });
+    }
+
+    /**
+     * Returns cache key (also file name) of track image. Track hash is part
+     * of the key, so a replaced track is not served from cache.
+     */
+    public static String trackKey(int flightId, TrackPyramid track,
+            MapType type, int width, int height) {
+
+        return "track-v" + RENDER_VERSION + "-" + flightId + "-"
+                + Integer.toHexString(track.hashCode()) + "-"
+                + type.name().toLowerCase() + "-" + width + "x" + height
+                + ".png";
+    }
+
+    /**
+     * Returns PNG of recorded track, rendering it only if not cached.
+     */
+    public byte[] getTrack(int flightId, final TrackPyramid track,
+            final MapType type, final int width, final int height) {
+
+        TileSource source = tiles.getSource(type);
+        String prefix = source == null ? "" : Integer.toHexString(source
+                .getVersion().hashCode()) + "-";
+
+        return cache.get(prefix + trackKey(flightId, track, type, width, height),
+                new RenderedImageCache.Renderer() {
+                    @Override
+                    public byte[] render() throws IOException {
+                        return renderer.renderTrack(track, type, width,
+                                height);
+                    }
+                });
+    }
+}
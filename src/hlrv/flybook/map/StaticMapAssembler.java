@@ -0,0 +1,150 @@
+package hlrv.flybook.map;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Assembles basemap images of arbitrary size from tiles. Tiles of an image
+ * are fetched and decoded in parallel on the tile worker pool; drawing is
+ * done in the calling thread.
+ *
+ * Zooms beyond the source's maximum zoom are served by scaling up part of
+ * the parent tile.
+ */
+public class StaticMapAssembler {
+
+    private static final Logger logger = Logger.getLogger("StaticMapAssembler");
+
+    private static final int TILE_SIZE = WebMercator.TILE_SIZE;
+
+    private final Tiles tiles;
+
+    private final ExecutorService workers;
+
+    /**
+     * Decoded tile and the square region of it to draw.
+     */
+    private static class TilePart {
+        final BufferedImage image;
+        final int sx;
+        final int sy;
+        final int size;
+
+        TilePart(BufferedImage image, int sx, int sy, int size) {
+            this.image = image;
+            this.sx = sx;
+            this.sy = sy;
+            this.size = size;
+        }
+    }
+
+    StaticMapAssembler(Tiles tiles, ExecutorService workers) {
+        this.tiles = tiles;
+        this.workers = workers;
+    }
+
+    /**
+     * Returns true if there are tiles for type at zoom.
+     */
+    public boolean covers(MapType type, int zoom) {
+
+        TileSource source = tiles.getSource(type);
+        return source != null && zoom >= source.getMinZoom();
+    }
+
+    /**
+     * Draws basemap of area with top-left corner at world pixel (originX,
+     * originY) to g. Missing tiles are left undrawn.
+     *
+     * @return false if there are no tiles for type at zoom
+     */
+    public boolean draw(Graphics2D g, final MapType type, int zoom,
+            double originX, double originY, int width, int height) {
+
+        if (!covers(type, zoom)) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+
+        final int sourceZoom = Math.min(zoom, tiles.getSource(type)
+                .getMaxZoom());
+        final int overzoom = zoom - sourceZoom;
+        final int tileCount = 1 << zoom;
+
+        int tx0 = (int) Math.floor(originX / TILE_SIZE);
+        int tx1 = (int) Math.floor((originX + width - 1) / TILE_SIZE);
+        int ty0 = Math.max(0, (int) Math.floor(originY / TILE_SIZE));
+        int ty1 = Math.min(tileCount - 1,
+                (int) Math.floor((originY + height - 1) / TILE_SIZE));
+
+        List<int[]> positions = new ArrayList<int[]>();
+        List<Future<TilePart>> parts = new ArrayList<Future<TilePart>>();
+
+        for (int ty = ty0; ty <= ty1; ++ty) {
+            for (int tx = tx0; tx <= tx1; ++tx) {
+
+                /**
+                 * Wrap around antimeridian.
+                 */
+                final int x = ((tx % tileCount) + tileCount) % tileCount;
+                final int y = ty;
+
+                positions.add(new int[] {
+                        (int) Math.round(tx * (double) TILE_SIZE - originX),
+                        (int) Math.round(ty * (double) TILE_SIZE - originY) });
+
+                parts.add(workers.submit(new Callable<TilePart>() {
+                    @Override
+                    public TilePart call() {
+
+                        BufferedImage image = tiles.getDecodedTile(type,
+                                sourceZoom, x >> overzoom, y >> overzoom);
+                        if (image == null) {
+                            return null;
+                        }
+                        int size = Math.max(1, image.getWidth() >> overzoom);
+                        int mask = (1 << overzoom) - 1;
+                        return new TilePart(image, (x & mask) * size,
+                                (y & mask) * size, size);
+                    }
+                }));
+            }
+        }
+
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        for (int i = 0; i < parts.size(); ++i) {
+            TilePart part;
+            try {
+                part = parts.get(i).get();
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "Failed to load tile", e.getCause());
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (part == null) {
+                continue;
+            }
+            int[] p = positions.get(i);
+            g.drawImage(part.image, p[0], p[1], p[0] + TILE_SIZE, p[1]
+                    + TILE_SIZE, part.sx, part.sy, part.sx + part.size,
+                    part.sy + part.size, null);
+        }
+
+        tiles.getMetrics().assembled(System.nanoTime() - start);
+        return true;
+    }
+}
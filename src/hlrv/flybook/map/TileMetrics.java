@@ -0,0 +1,101 @@
+package hlrv.flybook.map;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters behind TileMetricsMXBean.
+ */
+public class TileMetrics implements TileMetricsMXBean {
+
+    private final long startTime = System.currentTimeMillis();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong notFound = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong decodes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong assemblies = new AtomicLong();
+    private final AtomicLong assemblyNanos = new AtomicLong();
+
+    void request() {
+        requests.incrementAndGet();
+    }
+
+    void served(int length) {
+        served.incrementAndGet();
+        bytes.addAndGet(length);
+    }
+
+    void notModified() {
+        notModified.incrementAndGet();
+    }
+
+    void notFound() {
+        notFound.incrementAndGet();
+    }
+
+    void decoded(long nanos) {
+        decodes.incrementAndGet();
+        decodeNanos.addAndGet(nanos);
+    }
+
+    void assembled(long nanos) {
+        assemblies.incrementAndGet();
+        assemblyNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public long getTileRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getTilesServed() {
+        return served.get();
+    }
+
+    @Override
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    @Override
+    public long getNotFoundCount() {
+        return notFound.get();
+    }
+
+    @Override
+    public long getBytesServed() {
+        return bytes.get();
+    }
+
+    @Override
+    public double getRequestsPerSecond() {
+        long ms = Math.max(1, System.currentTimeMillis() - startTime);
+        return requests.get() * 1000.0 / ms;
+    }
+
+    @Override
+    public long getDecodeCount() {
+        return decodes.get();
+    }
+
+    @Override
+    public double getAverageDecodeMillis() {
+        long n = decodes.get();
+        return n == 0 ? 0.0 : decodeNanos.get() / 1e6 / n;
+    }
+
+    @Override
+    public long getAssemblyCount() {
+        return assemblies.get();
+    }
+
+    @Override
+    public double getAverageAssemblyMillis() {
+        long n = assemblies.get();
+        return n == 0 ? 0.0 : assemblyNanos.get() / 1e6 / n;
+    }
+}
@@ -0,0 +1,50 @@
+package hlrv.flybook.map;
+
+/**
+ * JMX view of tile serving and static map assembly. Registered as
+ * "hlrv.flybook:type=Tiles". Decoded tile cache hit ratio is in
+ * "hlrv.flybook:type=Cache,name=decodedTiles".
+ */
+public interface TileMetricsMXBean {
+
+    /**
+     * Number of tile requests handled by TileServlet.
+     */
+    long getTileRequests();
+
+    /**
+     * Number of tiles sent with content.
+     */
+    long getTilesServed();
+
+    /**
+     * Number of requests answered 304 Not Modified.
+     */
+    long getNotModifiedCount();
+
+    /**
+     * Number of requests for tiles that do not exist.
+     */
+    long getNotFoundCount();
+
+    long getBytesServed();
+
+    /**
+     * Average tile requests per second since start.
+     */
+    double getRequestsPerSecond();
+
+    /**
+     * Number of tiles decoded to images.
+     */
+    long getDecodeCount();
+
+    double getAverageDecodeMillis();
+
+    /**
+     * Number of static maps assembled from tiles.
+     */
+    long getAssemblyCount();
+
+    double getAverageAssemblyMillis();
+}
@@ -0,0 +1,232 @@
+package hlrv.flybook.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * TileSource over a flat, memory-mapped tile pack file.
+ *
+ * File layout (big endian):
+ *
+ * <pre>
+ * header  int magic 'FBTP', int version, int count,
+ *         byte format (0 png, 1 jpeg), byte minZoom, byte maxZoom, byte 0
+ * index   count * (long key, long offset, int length), sorted by key
+ * data    tile bytes
+ * </pre>
+ *
+ * Lookup is a binary search in the mapped index and a copy from the mapped
+ * data, so tiles are read straight from the OS page cache without any
+ * system calls. Packs are limited to 2 GB (one mapping).
+ *
+ * Use main() to convert an MBTiles file into a pack.
+ */
+public class TilePack implements TileSource {
+
+    private static final int MAGIC = 0x46425450;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 20;
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final String mimeType;
+    private final int minZoom;
+    private final int maxZoom;
+    private final String version;
+
+    public TilePack(File file) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Tile pack larger than 2 GB: " + file);
+            }
+            /**
+             * Mapping stays valid after channel is closed.
+             */
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } finally {
+            raf.close();
+        }
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a tile pack: " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported tile pack version "
+                    + buffer.getInt(4) + ": " + file);
+        }
+        count = buffer.getInt(8);
+        mimeType = buffer.get(12) == 1 ? "image/jpeg" : "image/png";
+        minZoom = buffer.get(13);
+        maxZoom = buffer.get(14);
+
+        version = Long.toHexString(file.length()) + "-"
+                + Long.toHexString(file.lastModified());
+    }
+
+    /**
+     * Returns index key of tile. Keys sort by zoom, then x, then y.
+     */
+    static long key(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    @Override
+    public byte[] getTile(int zoom, int x, int y) {
+
+        if (zoom < minZoom || zoom > maxZoom) {
+            return null;
+        }
+
+        long key = key(zoom, x, y);
+
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = HEADER_SIZE + mid * INDEX_ENTRY_SIZE;
+            long k = buffer.getLong(pos);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                int offset = (int) buffer.getLong(pos + 8);
+                int length = buffer.getInt(pos + 16);
+
+                /**
+                 * Private view, so concurrent readers do not share position.
+                 */
+                ByteBuffer view = buffer.duplicate();
+                view.position(offset);
+                byte[] data = new byte[length];
+                view.get(data);
+                return data;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    @Override
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    @Override
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    @Override
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Mapping is released when the pack is garbage collected.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Writes all tiles of MBTiles source to a tile pack file. On failure,
+     * including a pack that would not fit in 2 GB (the largest file mapped
+     * as one buffer), the file is deleted rather than left half written.
+     */
+    public static void write(MBTilesSource source, File file)
+            throws Exception {
+
+        final List<Long> keys = new ArrayList<Long>();
+        source.forEachTile(new MBTilesSource.TileVisitor() {
+            @Override
+            public void visit(int zoom, int x, int y) {
+                keys.add(key(zoom, x, y));
+            }
+        });
+
+        long[] sorted = new long[keys.size()];
+        for (int i = 0; i < sorted.length; ++i) {
+            sorted[i] = keys.get(i);
+        }
+        Arrays.sort(sorted);
+
+        boolean written = false;
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.length);
+            out.writeByte(source.getMimeType().equals("image/jpeg") ? 1 : 0);
+            out.writeByte(source.getMinZoom());
+            out.writeByte(source.getMaxZoom());
+            out.writeByte(0);
+
+            long offset = HEADER_SIZE + (long) sorted.length
+                    * INDEX_ENTRY_SIZE;
+
+            for (int i = 0; i < sorted.length; ++i) {
+                long k = sorted[i];
+                int zoom = (int) (k >>> 58);
+                int x = (int) ((k >>> 29) & 0x1fffffff);
+                int y = (int) (k & 0x1fffffff);
+                byte[] data = source.getTile(zoom, x, y);
+
+                if (offset + data.length > Integer.MAX_VALUE) {
+                    throw new IOException("Tile pack larger than 2 GB");
+                }
+
+                out.seek(HEADER_SIZE + (long) i * INDEX_ENTRY_SIZE);
+                out.writeLong(k);
+                out.writeLong(offset);
+                out.writeInt(data.length);
+
+                out.seek(offset);
+                out.write(data);
+                offset += data.length;
+            }
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Converts MBTiles file to tile pack: TilePack in.mbtiles out.tilepack
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length != 2) {
+            System.err.println("Usage: TilePack <in.mbtiles> <out.tilepack>");
+            System.exit(1);
+        }
+
+        MBTilesSource source = new MBTilesSource(new File(args[0]));
+        try {
+            write(source, new File(args[1]));
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package hlrv.flybook.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves basemap tiles at /tiles/<type>/<zoom>/<x>/<y>.png, e.g.
+ * /tiles/terrain/3/4/2.png.
+ *
+ * Tiles are immutable for a given tile source version, so responses carry a
+ * strong ETag derived from source version and tile address, and may be cached
+ * by browsers and proxies for a long time.
+ */
+public class TileServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = Logger.getLogger("TileServlet");
+
+    /**
+     * 30 days.
+     */
+    private static final int MAX_AGE_SECONDS = 30 * 24 * 60 * 60;
+
+    private transient Tiles tiles;
+
+    @Override
+    public void init() throws ServletException {
+        tiles = Tiles.get(new File(getServletContext().getRealPath("/")));
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request,
+            HttpServletResponse response) throws ServletException, IOException {
+
+        TileMetrics metrics = tiles.getMetrics();
+        metrics.request();
+
+        String path = request.getPathInfo();
+        String[] parts = path == null ? new String[0] : path.substring(1)
+                .split("/");
+
+        MapType type = null;
+        int zoom, x, y;
+        try {
+            if (parts.length != 4) {
+                throw new NumberFormatException(path);
+            }
+            for (MapType t : MapType.values()) {
+                if (t.getName().equalsIgnoreCase(parts[0])) {
+                    type = t;
+                }
+            }
+            zoom = Integer.parseInt(parts[1]);
+            x = Integer.parseInt(parts[2]);
+            int dot = parts[3].indexOf('.');
+            y = Integer.parseInt(dot < 0 ? parts[3] : parts[3].substring(0,
+                    dot));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        TileSource source = type == null ? null : tiles.getSource(type);
+        if (source == null || zoom < 0 || zoom > 29 || x < 0 || y < 0
+                || x >= (1 << zoom) || y >= (1 << zoom)) {
+            metrics.notFound();
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        String etag = "\"" + source.getVersion() + "-" + zoom + "-" + x + "-"
+                + y + "\"";
+
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            metrics.notModified();
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader("ETag", etag);
+            return;
+        }
+
+        byte[] data;
+        try {
+            data = source.getTile(zoom, x, y);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read tile " + path, e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        if (data == null) {
+            metrics.notFound();
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setContentType(source.getMimeType());
+        response.setContentLength(data.length);
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "public, max-age="
+                + MAX_AGE_SECONDS);
+        response.getOutputStream().write(data);
+
+        metrics.served(data.length);
+    }
+
+    /**
+     * Returns true if If-None-Match header value lists etag.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,34 @@
+package hlrv.flybook.map;
+
+import java.io.IOException;
+
+/**
+ * Read-only source of encoded (PNG/JPEG) Web Mercator basemap tiles,
+ * addressed XYZ style: y grows south, (0, 0) is north-west corner.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface TileSource {
+
+    /**
+     * Returns encoded tile, or null if source has no such tile.
+     */
+    byte[] getTile(int zoom, int x, int y) throws IOException;
+
+    /**
+     * Returns MIME type of tiles, e.g. "image/png".
+     */
+    String getMimeType();
+
+    int getMinZoom();
+
+    int getMaxZoom();
+
+    /**
+     * Returns string that changes whenever source content changes. Used in
+     * ETags.
+     */
+    String getVersion();
+
+    void close();
+}
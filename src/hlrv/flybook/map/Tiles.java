@@ -0,0 +1,175 @@
+package hlrv.flybook.map;
+
+import hlrv.flybook.cache.LRUCache;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.management.ObjectName;
+
+/**
+ * Application wide basemap tile subsystem: tile sources per map type, LRU
+ * cache of decoded tiles, worker pool for static map assembly and metrics.
+ *
+ * For each MapType, "<type>.tilepack" (preferred, memory-mapped) or
+ * "<type>.mbtiles" is looked for in directory given by system property
+ * "flybook.tiles.dir" (default WEB-INF/tiles under base directory).
+ */
+public final class Tiles {
+
+    private static final Logger logger = Logger.getLogger("Tiles");
+
+    private static final long DECODED_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private static Tiles instance = null;
+
+    private final Map<MapType, TileSource> sources = new EnumMap<MapType, TileSource>(
+            MapType.class);
+
+    /**
+     * Decoded tiles by "type/zoom/x/y". Weighed by raster size.
+     */
+    private final LRUCache<String, BufferedImage> decoded;
+
+    private final ExecutorService workers;
+
+    private final TileMetrics metrics = new TileMetrics();
+
+    private final StaticMapAssembler assembler;
+
+    private Tiles(File baseDir) {
+
+        String dir = System.getProperty("flybook.tiles.dir");
+        File tilesDir = dir != null ? new File(dir) : new File(baseDir,
+                "WEB-INF/tiles");
+
+        for (MapType type : MapType.values()) {
+            String name = type.getName().toLowerCase();
+            File pack = new File(tilesDir, name + ".tilepack");
+            File mbtiles = new File(tilesDir, name + ".mbtiles");
+            try {
+                if (pack.isFile()) {
+                    sources.put(type, new TilePack(pack));
+                } else if (mbtiles.isFile()) {
+                    sources.put(type, new MBTilesSource(mbtiles));
+                }
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to open tiles of " + name, e);
+            }
+        }
+        logger.info("Tile sources " + sources.keySet() + " in " + tilesDir);
+
+        decoded = new LRUCache<String, BufferedImage>(DECODED_CACHE_BYTES,
+                new LRUCache.Weigher<BufferedImage>() {
+                    @Override
+                    public int weigh(BufferedImage value) {
+                        return value.getWidth() * value.getHeight() * 4;
+                    }
+                }).register("decodedTiles");
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime()
+                .availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "flybook-tiles-"
+                        + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        assembler = new StaticMapAssembler(this, workers);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("hlrv.flybook:type=Tiles"));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to register tiles MBean", e);
+        }
+    }
+
+    /**
+     * Returns instance, creating it on first call.
+     *
+     * @param baseDir
+     *            application base directory
+     */
+    public static synchronized Tiles get(File baseDir) {
+
+        if (instance == null) {
+            instance = new Tiles(baseDir);
+        }
+        return instance;
+    }
+
+    /**
+     * Stops tile workers on context shutdown.
+     */
+    public static synchronized void shutdown() {
+
+        if (instance != null) {
+            instance.workers.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns tile source of type, or null if there are no tiles for type.
+     */
+    public TileSource getSource(MapType type) {
+        return sources.get(type);
+    }
+
+    public TileMetrics getMetrics() {
+        return metrics;
+    }
+
+    public StaticMapAssembler getAssembler() {
+        return assembler;
+    }
+
+    /**
+     * Returns decoded tile, or null if source has no such tile.
+     */
+    public BufferedImage getDecodedTile(MapType type, final int zoom,
+            final int x, final int y) {
+
+        final TileSource source = sources.get(type);
+        if (source == null) {
+            return null;
+        }
+
+        String key = type.ordinal() + "/" + zoom + "/" + x + "/" + y;
+
+        return decoded.get(key, new LRUCache.Loader<String, BufferedImage>() {
+            @Override
+            public BufferedImage load(String k) throws IOException {
+                byte[] data = source.getTile(zoom, x, y);
+                if (data == null) {
+                    /**
+                     * Not cached, missing tiles are cheap to look up.
+                     */
+                    return null;
+                }
+                long start = System.nanoTime();
+                BufferedImage img = ImageIO.read(new ByteArrayInputStream(
+                        data));
+                metrics.decoded(System.nanoTime() - start);
+                return img;
+            }
+        });
+    }
+}
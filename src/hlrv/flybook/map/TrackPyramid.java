@@ -0,0 +1,303 @@
+package hlrv.flybook.map;
+
+import hlrv.flybook.track.Track;
+import hlrv.flybook.track.TrackEncoder;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Recorded track simplified for a few zoom levels, so a map draws at most
+ * about as many points as it has pixels along the track, however long the
+ * recording is.
+ *
+ * Each level is the Douglas-Peucker simplification of the track in Web
+ * Mercator coordinates with a tolerance of TOLERANCE pixels at the level
+ * zoom, and serves that zoom and every zoom below it. All levels come from a
+ * single Douglas-Peucker pass that records the significance of each fix
+ * (the distance at which it was split off, capped by that of the fix split
+ * before it), a level then keeps the fixes more significant than its
+ * tolerance. Levels are encoded Tracks themselves.
+ *
+ * A pyramid may also hold the full track only, before its levels have been
+ * built.
+ */
+public class TrackPyramid implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Zooms that have a level, coarsest first. The finest is the highest
+     * zoom of RouteMapRenderer.
+     */
+    public static final int[] LEVEL_ZOOMS = { 2, 4, 6, 8, 10 };
+
+    /**
+     * Largest distance of a dropped fix from the simplified path, in pixels
+     * at level zoom.
+     */
+    public static final double TOLERANCE = 0.5;
+
+    /**
+     * Levels in LEVEL_ZOOMS order, null if not built.
+     */
+    private final Track[] levels;
+
+    private final Track full;
+
+    private final int fixCount;
+    private final long startTime;
+    private final long endTime;
+
+    /**
+     * Pyramid of the full track only.
+     */
+    public TrackPyramid(Track full) {
+
+        this.levels = new Track[LEVEL_ZOOMS.length];
+        this.full = full;
+        this.fixCount = full.getFixCount();
+        this.startTime = full.getStartTime();
+        this.endTime = full.getEndTime();
+    }
+
+    /**
+     * Pyramid of built levels (in LEVEL_ZOOMS order) of a track that has
+     * given fix count and times.
+     */
+    public TrackPyramid(Track[] levels, int fixCount, long startTime,
+            long endTime) {
+
+        if (levels.length != LEVEL_ZOOMS.length) {
+            throw new IllegalArgumentException("Expected "
+                    + LEVEL_ZOOMS.length + " levels");
+        }
+        this.levels = levels.clone();
+        this.full = null;
+        this.fixCount = fixCount;
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    /**
+     * Returns fix count of the full track.
+     */
+    public int getFixCount() {
+        return fixCount;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * Returns coarsest track there is, for fitting the map to it.
+     */
+    public Track getCoarsest() {
+
+        for (Track level : levels) {
+            if (level != null) {
+                return level;
+            }
+        }
+        return full;
+    }
+
+    /**
+     * Returns coarsest track that is accurate at zoom: the level of zoom or
+     * the next finer one, the full track if there is none.
+     */
+    public Track getLevel(int zoom) {
+
+        for (int i = 0; i < levels.length; ++i) {
+            if (LEVEL_ZOOMS[i] >= zoom && levels[i] != null) {
+                return levels[i];
+            }
+        }
+        if (full != null) {
+            return full;
+        }
+        for (int i = levels.length - 1; i >= 0; --i) {
+            if (levels[i] != null) {
+                return levels[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns tolerance of level zoom in normalized world units.
+     */
+    static double tolerance(int zoom) {
+        return TOLERANCE / WebMercator.worldSize(zoom);
+    }
+
+    /**
+     * Builds levels of track, in LEVEL_ZOOMS order.
+     */
+    public static Track[] simplify(Track track) {
+
+        int n = track.getFixCount();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        n = project(track, xs, ys);
+
+        double[] tolerances = new double[LEVEL_ZOOMS.length];
+        for (int k = 0; k < tolerances.length; ++k) {
+            tolerances[k] = tolerance(LEVEL_ZOOMS[k]);
+        }
+        double[] significance = significance(xs, ys, n,
+                tolerances[tolerances.length - 1]);
+
+        TrackEncoder[] encoders = new TrackEncoder[LEVEL_ZOOMS.length];
+        for (int k = 0; k < encoders.length; ++k) {
+            encoders[k] = new TrackEncoder();
+        }
+        Track.Cursor fix = track.cursor();
+        for (int i = 0; i < n && fix.next(); ++i) {
+            for (int k = 0; k < encoders.length; ++k) {
+                if (significance[i] > tolerances[k]) {
+                    encoders[k].add(fix.getTime(), fix.getLatitude(),
+                            fix.getLongitude(), fix.getAltitude());
+                }
+            }
+        }
+
+        Track[] levels = new Track[LEVEL_ZOOMS.length];
+        for (int k = 0; k < levels.length; ++k) {
+            levels[k] = encoders[k].toTrack();
+        }
+        return levels;
+    }
+
+    /**
+     * Projects fixes of track to normalized (0..1) world coordinates, returns
+     * number of fixes. Longitudes are unwrapped across the antimeridian, like
+     * great circle paths, so x may go outside 0..1.
+     */
+    static int project(Track track, double[] xs, double[] ys) {
+
+        int n = 0;
+        Track.Cursor fix = track.cursor();
+        while (n < xs.length && fix.next()) {
+            double x = WebMercator.x(fix.getLongitude());
+            if (n > 0) {
+                x += Math.rint(xs[n - 1] - x);
+            }
+            xs[n] = x;
+            ys[n] = WebMercator.y(fix.getLatitude());
+            ++n;
+        }
+        return n;
+    }
+
+    /**
+     * Returns Douglas-Peucker significance of each of n points, endpoints
+     * are infinitely significant. Segments are not split further once no
+     * point is farther than minTolerance from them, points left inside have
+     * significance 0.
+     */
+    static double[] significance(double[] xs, double[] ys, int n,
+            double minTolerance) {
+
+        double[] significance = new double[n];
+        if (n == 0) {
+            return significance;
+        }
+        significance[0] = Double.POSITIVE_INFINITY;
+        significance[n - 1] = Double.POSITIVE_INFINITY;
+
+        /**
+         * Segments to split, as first and last point and significance of the
+         * point that split them off. Explicit stack, as recursion would go
+         * as deep as the track is long on a spiral.
+         */
+        int[] ends = new int[64];
+        double[] caps = new double[32];
+        ends[0] = 0;
+        ends[1] = n - 1;
+        caps[0] = Double.POSITIVE_INFINITY;
+        int top = 1;
+
+        while (top > 0) {
+            --top;
+            int first = ends[2 * top];
+            int last = ends[2 * top + 1];
+            double cap = caps[top];
+
+            int farthest = -1;
+            double max = minTolerance;
+            for (int i = first + 1; i < last; ++i) {
+                double d = distance(xs[i], ys[i], xs[first], ys[first],
+                        xs[last], ys[last]);
+                if (d > max) {
+                    max = d;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0) {
+                continue;
+            }
+
+            double s = Math.min(max, cap);
+            significance[farthest] = s;
+
+            if (2 * (top + 2) > ends.length) {
+                ends = Arrays.copyOf(ends, ends.length * 2);
+                caps = Arrays.copyOf(caps, caps.length * 2);
+            }
+            if (farthest - first > 1) {
+                ends[2 * top] = first;
+                ends[2 * top + 1] = farthest;
+                caps[top++] = s;
+            }
+            if (last - farthest > 1) {
+                ends[2 * top] = farthest;
+                ends[2 * top + 1] = last;
+                caps[top++] = s;
+            }
+        }
+        return significance;
+    }
+
+    /**
+     * Returns distance of point from segment a-b.
+     */
+    private static double distance(double x, double y, double ax, double ay,
+            double bx, double by) {
+
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ? ((x - ax) * dx + (y - ay) * dy)
+                / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        double ex = x - (ax + t * dx);
+        double ey = y - (ay + t * dy);
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    @Override
+    public int hashCode() {
+
+        Track track = getLevel(LEVEL_ZOOMS[LEVEL_ZOOMS.length - 1]);
+        return 31 * fixCount + (track != null ? track.hashCode() : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (!(obj instanceof TrackPyramid)) {
+            return false;
+        }
+        TrackPyramid other = (TrackPyramid) obj;
+        return fixCount == other.fixCount && startTime == other.startTime
+                && endTime == other.endTime
+                && Arrays.equals(levels, other.levels)
+                && (full == null ? other.full == null : full.equals(other.full));
+    }
+}
@@ -0,0 +1,127 @@
+package hlrv.flybook.map;
+
+/**
+ * Spherical (Web) Mercator projection used by map tiles: world is a square of
+ * 256 * 2^zoom pixels, x grows east from longitude -180 and y grows south
+ * from latitude ~85.05.
+ */
+public final class WebMercator {
+
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Latitude where projected world becomes square.
+     */
+    public static final double MAX_LATITUDE = 85.05112878;
+
+    private WebMercator() {
+    }
+
+    /**
+     * Returns world size in pixels at zoom.
+     */
+    public static double worldSize(int zoom) {
+        return TILE_SIZE * (double) (1L << zoom);
+    }
+
+    /**
+     * Returns x (0..1 for longitudes -180..180) of longitude. Longitudes
+     * outside the range map outside 0..1, which allows paths to continue over
+     * the antimeridian.
+     */
+    public static double x(double longitude) {
+        return (longitude + 180.0) / 360.0;
+    }
+
+    /**
+     * Returns y (0..1 from north to south) of latitude.
+     */
+    public static double y(double latitude) {
+
+        double lat = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+        double sin = Math.sin(Math.toRadians(lat));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    /**
+     * Returns longitude of x (0..1).
+     */
+    public static double longitude(double x) {
+        return x * 360.0 - 180.0;
+    }
+
+    /**
+     * Returns latitude of y (0..1).
+     */
+    public static double latitude(double y) {
+        double n = Math.PI - 2.0 * Math.PI * y;
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+
+    /**
+     * Returns points of great circle path between two locations as
+     * {latitude, longitude} pairs, segments + 1 points. Longitudes are
+     * unwrapped, i.e. consecutive points never differ by more than 180
+     * degrees, so the path can be drawn as one polyline.
+     */
+    public static double[][] greatCircle(double lat1, double lon1,
+            double lat2, double lon2, int segments) {
+
+        double phi1 = Math.toRadians(lat1);
+        double lambda1 = Math.toRadians(lon1);
+        double phi2 = Math.toRadians(lat2);
+        double lambda2 = Math.toRadians(lon2);
+
+        /**
+         * Unit vectors of end points.
+         */
+        double x1 = Math.cos(phi1) * Math.cos(lambda1);
+        double y1 = Math.cos(phi1) * Math.sin(lambda1);
+        double z1 = Math.sin(phi1);
+        double x2 = Math.cos(phi2) * Math.cos(lambda2);
+        double y2 = Math.cos(phi2) * Math.sin(lambda2);
+        double z2 = Math.sin(phi2);
+
+        double dot = Math.max(-1.0, Math.min(1.0, x1 * x2 + y1 * y2 + z1 * z2));
+        double omega = Math.acos(dot);
+        double sinOmega = Math.sin(omega);
+
+        double[][] points = new double[segments + 1][];
+        double prevLon = lon1;
+
+        for (int i = 0; i <= segments; ++i) {
+
+            double t = (double) i / segments;
+            double a, b;
+            if (sinOmega < 1e-9) {
+                /**
+                 * Same or antipodal points, fall back to linear.
+                 */
+                a = 1 - t;
+                b = t;
+            } else {
+                a = Math.sin((1 - t) * omega) / sinOmega;
+                b = Math.sin(t * omega) / sinOmega;
+            }
+
+            double x = a * x1 + b * x2;
+            double y = a * y1 + b * y2;
+            double z = a * z1 + b * z2;
+
+            double lat = Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y)));
+            double lon = Math.toDegrees(Math.atan2(y, x));
+
+            while (lon - prevLon > 180) {
+                lon -= 360;
+            }
+            while (lon - prevLon < -180) {
+                lon += 360;
+            }
+            prevLon = lon;
+
+            points[i] = new double[] { lat, lon };
+        }
+
+        return points;
+    }
+}
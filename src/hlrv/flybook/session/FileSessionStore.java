@@ -0,0 +1,198 @@
+package hlrv.flybook.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SessionStore that keeps each state in its own file. Directory can be on a
+ * shared volume to let several nodes use the same store.
+ * 
+ * Writes go to a temporary file that is then renamed over the old one, so a
+ * crash never leaves a half written state behind.
+ * 
+ * Expired states are removed when loaded, and the directory is swept for
+ * expired or unreadable states every SWEEP_PERIOD_MINUTES, so keys of users
+ * that never came back do not stay usable on disk.
+ */
+public class FileSessionStore implements SessionStore {
+
+    private static final Logger logger = Logger.getLogger("FileSessionStore");
+
+    private static final String SUFFIX = ".session";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final long SWEEP_PERIOD_MINUTES = 60;
+
+    private static final ScheduledExecutorService sweeper = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "flybook-session-sweep");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final File directory;
+
+    public FileSessionStore(File directory) {
+
+        this.directory = directory;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.log(Level.WARNING, "Can't create session directory "
+                    + directory);
+        }
+
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    removeExpired();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Session sweep failed", e);
+                }
+            }
+        }, 0, SWEEP_PERIOD_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops sweeps of all stores on context shutdown.
+     */
+    public static void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    @Override
+    public void save(String key, SessionState state) {
+
+        File file = fileFor(key);
+        File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeObject(state);
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                /**
+                 * Windows does not rename over existing files.
+                 */
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Rename failed: " + temp);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save session " + key, e);
+            temp.delete();
+        }
+    }
+
+    @Override
+    public SessionState load(String key) {
+
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            SessionState state = read(file);
+            if (state.isExpired(System.currentTimeMillis())) {
+                file.delete();
+                return null;
+            }
+            return state;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to load session " + key, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+
+        fileFor(key).delete();
+    }
+
+    @Override
+    public void removeExpired() {
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                boolean expired;
+                try {
+                    expired = read(file).isExpired(now);
+                } catch (Exception e) {
+                    expired = true;
+                }
+                if (expired && file.delete()) {
+                    ++removed;
+                }
+            } else if (name.endsWith(TEMP_SUFFIX)
+                    && now - file.lastModified() > TimeUnit.MINUTES
+                            .toMillis(SWEEP_PERIOD_MINUTES)) {
+                /**
+                 * Left behind by a crash during save.
+                 */
+                file.delete();
+            }
+        }
+        if (removed > 0) {
+            logger.info("Removed " + removed + " expired sessions");
+        }
+    }
+
+    private static SessionState read(File file) throws IOException,
+            ClassNotFoundException {
+
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            return (SessionState) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Keys are generated by us (hex), but never trust them to form a path.
+     */
+    private File fileFor(String key) {
+
+        StringBuilder name = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); ++i) {
+            char c = key.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                name.append(c);
+            }
+        }
+        return new File(directory, name.append(SUFFIX).toString());
+    }
+}
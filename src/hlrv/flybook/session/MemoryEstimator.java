@@ -0,0 +1,79 @@
+package hlrv.flybook.session;
+
+import hlrv.flybook.db.containers.SessionSQLContainer;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.util.sqlcontainer.SQLContainer;
+
+/**
+ * Rough retained size estimates of Vaadin containers.
+ * 
+ * Numbers are approximations for a 64-bit JVM with compressed oops. They are
+ * meant for comparing sessions and container types against each other, not
+ * for exact heap accounting.
+ */
+public final class MemoryEstimator {
+
+    /**
+     * Item object, item id and its map entry in container.
+     */
+    private static final long ITEM_OVERHEAD = 96;
+
+    /**
+     * Property object, its map entry and a small boxed/String value.
+     */
+    private static final long PROPERTY_OVERHEAD = 88;
+
+    /**
+     * SQLContainer keeps RowItem, RowId and ColumnProperty objects per row.
+     */
+    private static final long ROW_OVERHEAD = 160;
+    private static final long COLUMN_OVERHEAD = 120;
+
+    private MemoryEstimator() {
+    }
+
+    /**
+     * Estimates memory held by in-memory container (IndexedContainer etc.).
+     */
+    public static long estimate(Container container) {
+
+        if (container == null) {
+            return 0;
+        }
+
+        if (container instanceof SQLContainer) {
+            return estimate((SQLContainer) container);
+        }
+
+        int properties = container.getContainerPropertyIds().size();
+        return container.size() * (ITEM_OVERHEAD + properties
+                * PROPERTY_OVERHEAD);
+    }
+
+    /**
+     * Estimates memory held by SQLContainer row cache.
+     * 
+     * NOTE: SQLContainer.size() is not used, it may run a count query. Rows
+     * actually cached are counted for SessionSQLContainer, other containers
+     * (or if the cache cannot be read) are taken to hold the cache bound of
+     * CACHE_RATIO * pageLength rows.
+     */
+    public static long estimate(SQLContainer container) {
+
+        if (container == null) {
+            return 0;
+        }
+
+        int columns = container.getContainerPropertyIds().size();
+        long rows = -1;
+        if (container instanceof SessionSQLContainer) {
+            rows = ((SessionSQLContainer) container).getCachedRowCount();
+        }
+        if (rows < 0) {
+            rows = (long) SQLContainer.CACHE_RATIO * container.getPageLength();
+        }
+
+        return rows * (ROW_OVERHEAD + columns * COLUMN_OVERHEAD);
+    }
+}
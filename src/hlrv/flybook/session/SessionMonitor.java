@@ -0,0 +1,234 @@
+package hlrv.flybook.session;
+
+import hlrv.flybook.SessionContext;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+import com.vaadin.server.VaadinSession;
+
+/**
+ * SessionMonitor keeps track of sessions that have a SessionContext, collects
+ * approximate memory usage of their containers and drops containers that no
+ * component is bound to in sessions that have been idle longer than a
+ * threshold. All of it is done holding the session lock.
+ * 
+ * Dropped containers are created again on demand when the user comes back,
+ * so eviction costs a few queries for the returning user but bounds the
+ * memory held by users that have walked away from their browser. Containers
+ * shown in the UI are kept, as their components would reload them at once.
+ * 
+ * Idle threshold can be set with system property "flybook.session.idleMinutes"
+ * (default 15) or via JMX.
+ */
+public class SessionMonitor implements SessionMonitorMXBean {
+
+    private static final Logger logger = Logger.getLogger("SessionMonitor");
+
+    private static final long CHECK_PERIOD_SECONDS = 60;
+
+    private static SessionMonitor instance = null;
+
+    /**
+     * Sessions are referenced weakly, expired sessions vanish on their own.
+     */
+    private final Map<VaadinSession, Boolean> sessions = Collections
+            .synchronizedMap(new WeakHashMap<VaadinSession, Boolean>());
+
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long idleThresholdMs;
+
+    private volatile long evictionCount = 0;
+
+    /**
+     * Snapshot of last accounting run.
+     */
+    private volatile int sessionCount = 0;
+    private volatile int idleSessionCount = 0;
+    private volatile Map<String, Long> retainedBytes = new TreeMap<String, Long>();
+
+    private SessionMonitor() {
+
+        idleThresholdMs = TimeUnit.MINUTES.toMillis(Long.getLong(
+                "flybook.session.idleMinutes", 15));
+
+        scheduler = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "flybook-session-monitor");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runNow();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Session check failed", e);
+                }
+            }
+        }, CHECK_PERIOD_SECONDS, CHECK_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns monitor instance, creating and registering it to platform
+     * MBeanServer on first call.
+     */
+    public static synchronized SessionMonitor get() {
+
+        if (instance == null) {
+            instance = new SessionMonitor();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        instance, new ObjectName("hlrv.flybook:type=Sessions"));
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to register session MBean",
+                        e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the check on context shutdown.
+     */
+    public static synchronized void shutdown() {
+
+        if (instance != null) {
+            instance.scheduler.shutdownNow();
+            instance = null;
+        }
+    }
+
+    public void register(VaadinSession session) {
+        sessions.put(session, Boolean.TRUE);
+    }
+
+    public void unregister(VaadinSession session) {
+        sessions.remove(session);
+    }
+
+    @Override
+    public void runNow() {
+
+        List<VaadinSession> snapshot;
+        synchronized (sessions) {
+            snapshot = new ArrayList<VaadinSession>(sessions.keySet());
+        }
+
+        long now = System.currentTimeMillis();
+        int count = 0;
+        int idle = 0;
+        Map<String, Long> bytes = new TreeMap<String, Long>();
+
+        for (VaadinSession session : snapshot) {
+
+            session.lock();
+            try {
+                SessionContext context = SessionContext.get(session);
+                if (context == null) {
+                    continue;
+                }
+                ++count;
+
+                long lastRequest = session.getLastRequestTimestamp();
+                if (now - lastRequest > idleThresholdMs) {
+                    ++idle;
+
+                    /**
+                     * Evict once per idle period.
+                     */
+                    if (context.getLastEvictionTime() < lastRequest) {
+                        context.evictCaches(now);
+                        ++evictionCount;
+                    }
+                }
+
+                for (Map.Entry<String, Long> e : context.getFootprint()
+                        .entrySet()) {
+                    Long sum = bytes.get(e.getKey());
+                    bytes.put(e.getKey(), (sum == null ? 0 : sum)
+                            + e.getValue());
+                }
+            } finally {
+                session.unlock();
+            }
+        }
+
+        sessionCount = count;
+        idleSessionCount = idle;
+        retainedBytes = bytes;
+    }
+
+    @Override
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    @Override
+    public int getIdleSessionCount() {
+        return idleSessionCount;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public long getIdleThresholdMinutes() {
+        return TimeUnit.MILLISECONDS.toMinutes(idleThresholdMs);
+    }
+
+    @Override
+    public void setIdleThresholdMinutes(long minutes) {
+        idleThresholdMs = TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        long sum = 0;
+        for (Long b : retainedBytes.values()) {
+            sum += b;
+        }
+        return sum;
+    }
+
+    @Override
+    public Map<String, Long> getRetainedBytesByContainer() {
+        return Collections.unmodifiableMap(retainedBytes);
+    }
+
+    @Override
+    public long getAverageSessionBytes() {
+        int count = sessionCount;
+        return count == 0 ? 0 : getRetainedBytes() / count;
+    }
+
+    @Override
+    public long getEstimatedSessionCapacity() {
+        long avg = getAverageSessionBytes();
+        if (avg == 0) {
+            return -1;
+        }
+        return (Runtime.getRuntime().maxMemory() / 2) / avg;
+    }
+}
@@ -0,0 +1,58 @@
+package hlrv.flybook.session;
+
+import java.util.Map;
+
+/**
+ * JMX view of session memory accounting. Registered as
+ * "hlrv.flybook:type=Sessions".
+ */
+public interface SessionMonitorMXBean {
+
+    /**
+     * Number of sessions with a SessionContext (logged in users).
+     */
+    int getSessionCount();
+
+    /**
+     * Number of sessions idle longer than the idle threshold.
+     */
+    int getIdleSessionCount();
+
+    /**
+     * Total number of idle evictions done.
+     */
+    long getEvictionCount();
+
+    /**
+     * Idle threshold in minutes.
+     */
+    long getIdleThresholdMinutes();
+
+    void setIdleThresholdMinutes(long minutes);
+
+    /**
+     * Approximate retained bytes of all sessions.
+     */
+    long getRetainedBytes();
+
+    /**
+     * Approximate retained bytes of all sessions by container type.
+     */
+    Map<String, Long> getRetainedBytesByContainer();
+
+    /**
+     * Average approximate retained bytes per session.
+     */
+    long getAverageSessionBytes();
+
+    /**
+     * Number of sessions of average size that fit in half of the maximum
+     * heap.
+     */
+    long getEstimatedSessionCapacity();
+
+    /**
+     * Runs idle check and accounting now.
+     */
+    void runNow();
+}
@@ -0,0 +1,106 @@
+package hlrv.flybook.session;
+
+import java.io.Serializable;
+
+/**
+ * SessionState is the small serializable part of a user session: who is
+ * logged in and what the user was looking at. Everything else (containers,
+ * connection pool) is rebuilt on demand from this.
+ * 
+ * Keep this class small, it is written to SessionStore on each change.
+ */
+public class SessionState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String username;
+
+    /**
+     * Time (ms) after which the state no longer logs the user in. States
+     * stored before it existed read as 0, i.e. expired.
+     */
+    private long expiresAt;
+
+    /**
+     * FlightsView filters. Null means "All" / not set.
+     */
+    private String pilotFilter;
+    private Integer dateFromFilter;
+    private Integer dateToFilter;
+    private Integer flightTypeFilter;
+
+    /**
+     * Flight selected in FlightsView.
+     */
+    private Integer selectedFlightId;
+
+    /**
+     * Selected MainView tab position.
+     */
+    private int selectedTab = 0;
+
+    public SessionState(String username, long expiresAt) {
+        this.username = username;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Returns true if state must not be resumed at time (ms) anymore.
+     */
+    public boolean isExpired(long time) {
+        return time >= expiresAt;
+    }
+
+    public String getPilotFilter() {
+        return pilotFilter;
+    }
+
+    public void setPilotFilter(String pilotFilter) {
+        this.pilotFilter = pilotFilter;
+    }
+
+    public Integer getDateFromFilter() {
+        return dateFromFilter;
+    }
+
+    public Integer getDateToFilter() {
+        return dateToFilter;
+    }
+
+    public void setDateFilter(Integer from, Integer to) {
+        this.dateFromFilter = from;
+        this.dateToFilter = to;
+    }
+
+    public Integer getFlightTypeFilter() {
+        return flightTypeFilter;
+    }
+
+    public void setFlightTypeFilter(Integer flightTypeFilter) {
+        this.flightTypeFilter = flightTypeFilter;
+    }
+
+    public Integer getSelectedFlightId() {
+        return selectedFlightId;
+    }
+
+    public void setSelectedFlightId(Integer selectedFlightId) {
+        this.selectedFlightId = selectedFlightId;
+    }
+
+    public int getSelectedTab() {
+        return selectedTab;
+    }
+
+    public void setSelectedTab(int selectedTab) {
+        this.selectedTab = selectedTab;
+    }
+}
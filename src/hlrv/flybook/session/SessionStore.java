@@ -0,0 +1,32 @@
+package hlrv.flybook.session;
+
+/**
+ * SessionStore persists SessionState outside of the servlet container so that
+ * any node can resume a session after failover or restart.
+ * 
+ * Implementations must be thread-safe.
+ */
+public interface SessionStore {
+
+    /**
+     * Stores state under key, replacing previous value.
+     */
+    void save(String key, SessionState state);
+
+    /**
+     * Returns stored state or null if none, it has expired (it is then
+     * removed) or it can't be read.
+     */
+    SessionState load(String key);
+
+    /**
+     * Removes stored state.
+     */
+    void remove(String key);
+
+    /**
+     * Removes expired and unreadable states. Stores also do this
+     * periodically on their own.
+     */
+    void removeExpired();
+}
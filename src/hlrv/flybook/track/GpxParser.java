@@ -0,0 +1,309 @@
+package hlrv.flybook.track;
+
+import java.io.IOException;
+
+/**
+ * Parser of GPX files.
+ *
+ * A small tag scanner instead of an XML parser: only trkpt elements with
+ * their lat and lon attributes and ele and time children are read, anything
+ * else (metadata, routes, waypoints, extensions, comments, CDATA) is skipped
+ * without being kept. Track points without time are dropped. Input is taken
+ * to be UTF-8 or another ASCII compatible encoding.
+ */
+class GpxParser extends TrackParser {
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Longest tag kept, longer tags are not track points.
+     */
+    private static final int MAX_TAG = 1024;
+
+    private static final int MAX_TEXT = 64;
+
+    private static final int TEXT = 0;
+    private static final int TAG = 1;
+    private static final int SKIP = 2;
+
+    private static final int CAPTURE_NONE = 0;
+    private static final int CAPTURE_ELE = 1;
+    private static final int CAPTURE_TIME = 2;
+
+    private int state = TEXT;
+
+    private final byte[] tag = new byte[MAX_TAG];
+    private int tagLength = 0;
+    private boolean tagOverflow = false;
+
+    /**
+     * Quote character of attribute value being read, 0 if none.
+     */
+    private byte quote = 0;
+
+    /**
+     * End of comment or CDATA section being skipped.
+     */
+    private byte[] skipEnd;
+    private int skipMatched;
+
+    private final byte[] text = new byte[MAX_TEXT];
+    private int textLength = 0;
+    private int capture = CAPTURE_NONE;
+
+    private boolean inPoint = false;
+    private double lat;
+    private double lon;
+    private int altitude;
+    private long time;
+
+    private static final byte[] COMMENT_END = { '-', '-', '>' };
+    private static final byte[] CDATA_END = { ']', ']', '>' };
+
+    @Override
+    protected void parse(byte[] b, int off, int len) throws IOException {
+
+        for (int i = off; i < off + len; ++i) {
+            byte c = b[i];
+            switch (state) {
+            case TEXT:
+                if (c == '<') {
+                    state = TAG;
+                    tagLength = 0;
+                    tagOverflow = false;
+                    quote = 0;
+                } else if (capture != CAPTURE_NONE && textLength < MAX_TEXT) {
+                    text[textLength++] = c;
+                }
+                break;
+
+            case TAG:
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    state = TEXT;
+                    if (!tagOverflow) {
+                        tag();
+                    }
+                    break;
+                }
+                if (tagLength < MAX_TAG) {
+                    tag[tagLength++] = c;
+                } else {
+                    tagOverflow = true;
+                }
+                if (tagLength == 3 && startsWith("!--")) {
+                    skip(COMMENT_END);
+                } else if (tagLength == 8 && startsWith("![CDATA[")) {
+                    skip(CDATA_END);
+                }
+                break;
+
+            case SKIP:
+                if (c == skipEnd[skipMatched]) {
+                    if (++skipMatched == skipEnd.length) {
+                        state = TEXT;
+                    }
+                } else {
+                    skipMatched = c == skipEnd[0] ? 1 : 0;
+                }
+                break;
+            }
+        }
+    }
+
+    @Override
+    protected void end() throws IOException {
+        if (state != TEXT) {
+            throw new IOException("GPX file ends inside a tag");
+        }
+    }
+
+    private void skip(byte[] end) {
+        state = SKIP;
+        skipEnd = end;
+        skipMatched = 0;
+    }
+
+    private boolean startsWith(String prefix) {
+
+        if (tagLength < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); ++i) {
+            if (tag[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles tag in buffer, without the angle brackets.
+     */
+    private void tag() throws IOException {
+
+        boolean closing = tagLength > 0 && tag[0] == '/';
+        boolean empty = tagLength > 0 && tag[tagLength - 1] == '/';
+
+        /**
+         * Local name, namespace prefix dropped.
+         */
+        int start = closing ? 1 : 0;
+        int end = start;
+        while (end < tagLength && tag[end] != ' ' && tag[end] != '\t'
+                && tag[end] != '\r' && tag[end] != '\n' && tag[end] != '/') {
+            if (tag[end] == ':') {
+                start = end + 1;
+            }
+            ++end;
+        }
+
+        if (is("trkpt", start, end)) {
+            if (closing) {
+                endPoint();
+            } else {
+                startPoint(end);
+                if (empty) {
+                    endPoint();
+                }
+            }
+        } else if (inPoint && is("ele", start, end)) {
+            if (closing) {
+                altitude = (int) Math.round(parseDouble(text, 0, textLength));
+                capture = CAPTURE_NONE;
+            } else if (!empty) {
+                capture = CAPTURE_ELE;
+                textLength = 0;
+            }
+        } else if (inPoint && is("time", start, end)) {
+            if (closing) {
+                time = parseTime();
+                capture = CAPTURE_NONE;
+            } else if (!empty) {
+                capture = CAPTURE_TIME;
+                textLength = 0;
+            }
+        }
+    }
+
+    private boolean is(String name, int start, int end) {
+
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); ++i) {
+            if (tag[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void startPoint(int attributes) throws IOException {
+
+        inPoint = true;
+        lat = attribute("lat", attributes);
+        lon = attribute("lon", attributes);
+        altitude = 0;
+        time = Long.MIN_VALUE;
+    }
+
+    private void endPoint() {
+
+        if (inPoint && time != Long.MIN_VALUE && !Double.isNaN(lat)
+                && !Double.isNaN(lon)) {
+            encoder.add(time, lat, lon, altitude);
+        }
+        inPoint = false;
+        capture = CAPTURE_NONE;
+    }
+
+    /**
+     * Returns value of numeric attribute, NaN if missing.
+     */
+    private double attribute(String name, int from) throws IOException {
+
+        int n = name.length();
+        for (int i = from; i + n + 2 < tagLength; ++i) {
+            byte before = tag[i - 1];
+            if (before != ' ' && before != '\t' && before != '\r'
+                    && before != '\n') {
+                continue;
+            }
+            boolean match = true;
+            for (int k = 0; k < n && match; ++k) {
+                match = tag[i + k] == name.charAt(k);
+            }
+            if (!match || tag[i + n] != '=') {
+                continue;
+            }
+            byte q = tag[i + n + 1];
+            int valueStart = i + n + 2;
+            int valueEnd = valueStart;
+            while (valueEnd < tagLength && tag[valueEnd] != q) {
+                ++valueEnd;
+            }
+            return parseDouble(tag, valueStart, valueEnd - valueStart);
+        }
+        return Double.NaN;
+    }
+
+    private static double parseDouble(byte[] b, int off, int len)
+            throws IOException {
+
+        try {
+            return Double.parseDouble(new String(b, off, len, "US-ASCII")
+                    .trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in GPX file");
+        }
+    }
+
+    /**
+     * Parses captured ISO 8601 time YYYY-MM-DDTHH:MM:SS[.sss][Z|+HH:MM].
+     */
+    private long parseTime() throws IOException {
+
+        int s = 0;
+        while (s < textLength && text[s] <= ' ') {
+            ++s;
+        }
+        if (textLength - s < 19) {
+            throw new IOException("Invalid time in GPX file");
+        }
+        int year = digits(text, s, 4);
+        int month = digits(text, s + 5, 2);
+        int day = digits(text, s + 8, 2);
+        int hh = digits(text, s + 11, 2);
+        int mi = digits(text, s + 14, 2);
+        int ss = digits(text, s + 17, 2);
+        if (year < 0 || month < 1 || day < 1 || hh < 0 || mi < 0 || ss < 0) {
+            throw new IOException("Invalid time in GPX file");
+        }
+
+        long t = epochDay(year, month, day) * SECONDS_PER_DAY + hh * 3600
+                + mi * 60 + ss;
+
+        int p = s + 19;
+        if (p < textLength && text[p] == '.') {
+            ++p;
+            while (p < textLength && text[p] >= '0' && text[p] <= '9') {
+                ++p;
+            }
+        }
+        if (p + 6 <= textLength && (text[p] == '+' || text[p] == '-')) {
+            int oh = digits(text, p + 1, 2);
+            int om = digits(text, p + 4, 2);
+            if (oh >= 0 && om >= 0) {
+                int offset = oh * 3600 + om * 60;
+                t -= text[p] == '+' ? offset : -offset;
+            }
+        }
+        return t;
+    }
+}
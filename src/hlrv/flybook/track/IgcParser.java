@@ -0,0 +1,149 @@
+package hlrv.flybook.track;
+
+import java.io.IOException;
+
+/**
+ * Parser of IGC flight recorder files.
+ *
+ * Reads the flight date from the HFDTE header and fixes from B records, other
+ * records are skipped. Times are UTC, a time more than 12 hours before the
+ * previous fix is taken to be past midnight. Altitude is GNSS altitude, or
+ * pressure altitude if the recorder has no GNSS altitude. Fixes at 0,0 (no
+ * position yet) are dropped.
+ */
+class IgcParser extends TrackParser {
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Longest line kept, longer lines are not B or HFDTE records.
+     */
+    private static final int MAX_LINE = 256;
+
+    private final byte[] line = new byte[MAX_LINE];
+    private int lineLength = 0;
+    private boolean lineOverflow = false;
+
+    /**
+     * Epoch day of flight date, -1 before HFDTE record.
+     */
+    private long day = -1;
+
+    private long lastTime = Long.MIN_VALUE;
+
+    @Override
+    protected void parse(byte[] b, int off, int len) throws IOException {
+
+        for (int i = off; i < off + len; ++i) {
+            byte c = b[i];
+            if (c == '\n' || c == '\r') {
+                endLine();
+            } else if (lineLength < MAX_LINE) {
+                line[lineLength++] = c;
+            } else {
+                lineOverflow = true;
+            }
+        }
+    }
+
+    @Override
+    protected void end() throws IOException {
+        endLine();
+    }
+
+    private void endLine() throws IOException {
+
+        if (!lineOverflow && lineLength > 0) {
+            if (line[0] == 'B') {
+                parseFix();
+            } else if (lineLength >= 11 && line[0] == 'H'
+                    && line[2] == 'D' && line[3] == 'T' && line[4] == 'E') {
+                parseDate();
+            }
+        }
+        lineLength = 0;
+        lineOverflow = false;
+    }
+
+    /**
+     * Parses HFDTEDDMMYY or HFDTEDATE:DDMMYY,NN.
+     */
+    private void parseDate() throws IOException {
+
+        for (int i = 5; i + 6 <= lineLength; ++i) {
+            int dd = digits(line, i, 2);
+            int mm = digits(line, i + 2, 2);
+            int yy = digits(line, i + 4, 2);
+            if (dd > 0 && mm > 0 && yy >= 0) {
+                day = epochDay(yy < 80 ? 2000 + yy : 1900 + yy, mm, dd);
+                return;
+            }
+        }
+        throw new IOException("Invalid IGC date record");
+    }
+
+    /**
+     * Parses B HHMMSS DDMMmmmN DDDMMmmmE V PPPPP GGGGG.
+     */
+    private void parseFix() throws IOException {
+
+        if (lineLength < 35) {
+            return;
+        }
+        if (day < 0) {
+            throw new IOException("IGC file has no date (HFDTE) record");
+        }
+
+        int hh = digits(line, 1, 2);
+        int mi = digits(line, 3, 2);
+        int ss = digits(line, 5, 2);
+        int latDeg = digits(line, 7, 2);
+        int latMin = digits(line, 9, 5);
+        int lonDeg = digits(line, 15, 3);
+        int lonMin = digits(line, 18, 5);
+        if (hh < 0 || mi < 0 || ss < 0 || latDeg < 0 || latMin < 0
+                || lonDeg < 0 || lonMin < 0) {
+            return;
+        }
+        if (latDeg == 0 && latMin == 0 && lonDeg == 0 && lonMin == 0) {
+            return;
+        }
+
+        double lat = latDeg + latMin / 60000.0;
+        if (line[14] == 'S') {
+            lat = -lat;
+        }
+        double lon = lonDeg + lonMin / 60000.0;
+        if (line[23] == 'W') {
+            lon = -lon;
+        }
+
+        long time = day * SECONDS_PER_DAY + hh * 3600 + mi * 60 + ss;
+        if (lastTime != Long.MIN_VALUE && time < lastTime - SECONDS_PER_DAY / 2) {
+            day += 1;
+            time += SECONDS_PER_DAY;
+        }
+
+        int altitude = altitude(30);
+        if (altitude == 0) {
+            altitude = altitude(25);
+        }
+
+        if (encoder.add(time, lat, lon, altitude)) {
+            lastTime = time;
+        }
+    }
+
+    /**
+     * Returns 5 character altitude at offset, which may have a minus sign. 0
+     * if invalid.
+     */
+    private int altitude(int off) {
+
+        if (line[off] == '-') {
+            int value = digits(line, off + 1, 4);
+            return value < 0 ? 0 : -value;
+        }
+        return Math.max(0, digits(line, off, 5));
+    }
+}
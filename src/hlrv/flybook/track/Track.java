@@ -0,0 +1,187 @@
+package hlrv.flybook.track;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Recorded track of a flight, kept encoded.
+ *
+ * Fixes (time, latitude, longitude, altitude) are stored as zigzag varints of
+ * second differences (delta of delta) of each field, so steady flight takes
+ * about one byte per field and fix. A 10 hour 1 Hz track is some 150-250 kB.
+ * Fixes are decoded lazily by a Cursor, never all at once.
+ *
+ * Layout: version byte, varint fix count, varint start time, varint end time
+ * - start time, then the fixes. Coordinates are in 1e-5 degrees (about one
+ * meter), altitude in meters (0 if unknown), time in epoch seconds.
+ * Immutable.
+ */
+public final class Track implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int VERSION = 1;
+
+    static final double SCALE = 1e5;
+
+    private final byte[] data;
+
+    private final int fixCount;
+    private final long startTime;
+    private final long endTime;
+
+    /**
+     * Offset of first fix in data.
+     */
+    private final int fixesOffset;
+
+    private transient int hash;
+
+    /**
+     * Wraps encoded track, see getData().
+     *
+     * @throws IllegalArgumentException
+     *             if data is not an encoded track
+     */
+    public Track(byte[] data) {
+
+        this.data = data;
+
+        if (data.length == 0 || data[0] != VERSION) {
+            throw new IllegalArgumentException("Unknown track format");
+        }
+        int[] pos = { 1 };
+        fixCount = (int) readVarint(data, pos);
+        startTime = readVarint(data, pos);
+        endTime = startTime + readVarint(data, pos);
+        fixesOffset = pos[0];
+    }
+
+    /**
+     * Returns encoded track, which must not be modified.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getFixCount() {
+        return fixCount;
+    }
+
+    /**
+     * Time of first fix, epoch seconds.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Time of last fix, epoch seconds.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * Returns cursor before the first fix.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = Arrays.hashCode(data);
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Track
+                && Arrays.equals(data, ((Track) obj).data);
+    }
+
+    /**
+     * Decodes fixes one at a time.
+     */
+    public class Cursor {
+
+        private int pos = fixesOffset;
+        private int remaining = fixCount;
+
+        private final long[] value = new long[4];
+        private final long[] delta = new long[4];
+
+        private Cursor() {
+            value[0] = startTime;
+        }
+
+        /**
+         * Moves to next fix, returns false if there is none.
+         */
+        public boolean next() {
+
+            if (remaining == 0) {
+                return false;
+            }
+            --remaining;
+            int[] p = { pos };
+            for (int i = 0; i < 4; ++i) {
+                delta[i] += unzigzag(readVarint(data, p));
+                value[i] += delta[i];
+            }
+            pos = p[0];
+            return true;
+        }
+
+        public long getTime() {
+            return value[0];
+        }
+
+        /**
+         * Latitude in degrees.
+         */
+        public double getLatitude() {
+            return value[1] / SCALE;
+        }
+
+        /**
+         * Longitude in degrees.
+         */
+        public double getLongitude() {
+            return value[2] / SCALE;
+        }
+
+        /**
+         * Altitude in meters, 0 if unknown.
+         */
+        public int getAltitude() {
+            return (int) value[3];
+        }
+    }
+
+    static long readVarint(byte[] data, int[] pos) {
+
+        long value = 0;
+        int shift = 0;
+        int p = pos[0];
+        while (true) {
+            byte b = data[p++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+            shift += 7;
+        }
+        pos[0] = p;
+        return value;
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,118 @@
+package hlrv.flybook.track;
+
+import java.util.Arrays;
+
+/**
+ * Encodes fixes into a Track as they arrive, see Track for the format.
+ *
+ * Fixes must come in time order, a fix not later than the previous one is
+ * dropped. Not thread safe.
+ */
+public class TrackEncoder {
+
+    private byte[] buffer = new byte[4096];
+    private int length = 0;
+
+    private int fixCount = 0;
+
+    private long startTime;
+
+    private final long[] value = new long[4];
+    private final long[] delta = new long[4];
+
+    private final long[] fix = new long[4];
+
+    /**
+     * Returns number of fixes added.
+     */
+    public int getFixCount() {
+        return fixCount;
+    }
+
+    /**
+     * Adds fix, returns false if it was dropped as out of order.
+     *
+     * @param time
+     *            epoch seconds
+     * @param latitude
+     *            degrees
+     * @param longitude
+     *            degrees
+     * @param altitude
+     *            meters, 0 if unknown
+     */
+    public boolean add(long time, double latitude, double longitude,
+            int altitude) {
+
+        if (fixCount == 0) {
+            startTime = time;
+            value[0] = time;
+        } else if (time <= value[0]) {
+            return false;
+        }
+
+        fix[0] = time;
+        fix[1] = Math.round(latitude * Track.SCALE);
+        fix[2] = Math.round(longitude * Track.SCALE);
+        fix[3] = altitude;
+
+        ensure(4 * 10);
+        for (int i = 0; i < 4; ++i) {
+            long d = fix[i] - value[i];
+            writeVarint(zigzag(d - delta[i]));
+            delta[i] = d;
+            value[i] = fix[i];
+        }
+        ++fixCount;
+        return true;
+    }
+
+    /**
+     * Returns track of fixes added, null if there are none.
+     */
+    public Track toTrack() {
+
+        if (fixCount == 0) {
+            return null;
+        }
+
+        byte[] body = Arrays.copyOf(buffer, length);
+        length = 0;
+        ensure(1 + 3 * 10);
+        buffer[length++] = Track.VERSION;
+        writeVarint(fixCount);
+        writeVarint(startTime);
+        writeVarint(value[0] - startTime);
+
+        byte[] data = new byte[length + body.length];
+        System.arraycopy(buffer, 0, data, 0, length);
+        System.arraycopy(body, 0, data, length, body.length);
+
+        /**
+         * Encoder can go on from where it was.
+         */
+        buffer = Arrays.copyOf(body, Math.max(body.length, 4096));
+        length = body.length;
+
+        return new Track(data);
+    }
+
+    private void ensure(int bytes) {
+        if (length + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer,
+                    Math.max(buffer.length * 2, length + bytes));
+        }
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
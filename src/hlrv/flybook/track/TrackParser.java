@@ -0,0 +1,144 @@
+package hlrv.flybook.track;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streaming parser of track files, written to like an OutputStream.
+ *
+ * Bytes are parsed as they are written and fixes go straight into a
+ * TrackEncoder, so neither the file nor its fixes are ever held in memory,
+ * and an upload can be written into the parser directly. Call finish() after
+ * the last byte. Not thread safe.
+ *
+ * Input with more than MAX_FIX_COUNT fixes is rejected.
+ */
+public abstract class TrackParser extends OutputStream {
+
+    /**
+     * Most fixes in a track, a day of one second fixes and then some.
+     */
+    public static final int MAX_FIX_COUNT = 200000;
+
+    protected final TrackEncoder encoder = new TrackEncoder();
+
+    private boolean finished = false;
+
+    /**
+     * Returns parser for file by its extension (.igc or .gpx), null if format
+     * is not supported.
+     */
+    public static TrackParser create(String fileName) {
+
+        String name = fileName != null ? fileName.toLowerCase() : "";
+        if (name.endsWith(".igc")) {
+            return new IgcParser();
+        }
+        if (name.endsWith(".gpx")) {
+            return new GpxParser();
+        }
+        return null;
+    }
+
+    /**
+     * Parses whole stream, does not close it.
+     *
+     * @throws IOException
+     *             if format is not supported, stream fails or has no fixes
+     *             or too many fixes
+     */
+    public static Track parse(InputStream in, String fileName)
+            throws IOException {
+
+        TrackParser parser = create(fileName);
+        if (parser == null) {
+            throw new IOException("Unsupported track file " + fileName);
+        }
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            parser.write(buffer, 0, n);
+        }
+        return parser.finish();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Parser is finished");
+        }
+        parse(b, off, len);
+        if (encoder.getFixCount() > MAX_FIX_COUNT) {
+            throw new IOException("Track has more than " + MAX_FIX_COUNT
+                    + " fixes");
+        }
+    }
+
+    /**
+     * Ends input, returns track.
+     *
+     * @throws IOException
+     *             if input ended badly or had no fixes
+     */
+    public Track finish() throws IOException {
+
+        if (!finished) {
+            finished = true;
+            end();
+        }
+        Track track = encoder.toTrack();
+        if (track == null) {
+            throw new IOException("No track fixes found");
+        }
+        return track;
+    }
+
+    /**
+     * Parses next bytes.
+     */
+    protected abstract void parse(byte[] b, int off, int len)
+            throws IOException;
+
+    /**
+     * Called at end of input.
+     */
+    protected abstract void end() throws IOException;
+
+    /**
+     * Returns value of decimal digits, -1 if any byte is not a digit.
+     */
+    static int digits(byte[] b, int off, int len) {
+
+        int value = 0;
+        for (int i = off; i < off + len; ++i) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     * Returns epoch day of civil date.
+     */
+    static long epochDay(int year, int month, int day) {
+
+        /**
+         * Days from civil, years starting in March.
+         */
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+}